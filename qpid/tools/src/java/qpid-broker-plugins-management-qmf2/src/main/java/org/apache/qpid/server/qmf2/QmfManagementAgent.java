@@ -25,17 +25,32 @@ package org.apache.qpid.server.qmf2;
 
 import static org.apache.qpid.qmf2.common.WorkItem.WorkItemType.METHOD_CALL;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import org.apache.qpid.qmf2.agent.Agent;
+import org.apache.qpid.qmf2.agent.EventOverflowPolicy;
 import org.apache.qpid.qmf2.agent.MethodCallParams;
 import org.apache.qpid.qmf2.agent.MethodCallWorkItem;
 import org.apache.qpid.qmf2.agent.QmfAgentData;
 import org.apache.qpid.qmf2.common.ObjectId;
+import org.apache.qpid.qmf2.common.QmfEvent;
 import org.apache.qpid.qmf2.common.QmfEventListener;
 import org.apache.qpid.qmf2.common.QmfException;
 import org.apache.qpid.qmf2.common.WorkItem;
@@ -83,6 +98,95 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
     private static final int HEARTBEAT_INTERVAL = 10;
     private Agent _agent = null;
 
+    // Refresh the statistics of every Management Object every 10 seconds, the same as the C++ Broker's default
+    // management publish interval. The agentdata classes only call update() if a statistic has changed, so only
+    // objects that have actually changed are recorded in the Agent's change log for Subscriptions to publish.
+    private static final int STATISTICS_INTERVAL = 10;
+
+    // Sample the counters of Queues, Exchanges and Connections every second, from which their agentdata classes
+    // derive the message and byte rates over the last 1, 10 and 60 seconds that they publish as properties.
+    private static final int SAMPLE_INTERVAL = 1;
+
+    // The scheduler shared with the Agent, which runs its Subscriptions as well as the statistics refresh.
+    private ScheduledThreadPoolExecutor _scheduler = null;
+
+    // The number of QmfAgentData Objects added to the Agent at a time during the initial scan of the broker model
+    // or a bulk change.
+    private static final int REGISTRATION_BATCH_SIZE = 1000;
+
+    // A BulkChange is applied to the Agent early once it holds REGISTRATION_BATCH_SIZE changes, or by
+    // flushBulkChanges() once its changes are a second old, so a bulkChangeStart() that isn't matched by a
+    // bulkChangeEnd() on the same thread can't strand Objects and Events. A BulkChange that is still open after a
+    // minute is logged as probably unbalanced.
+    private static final long BULK_CHANGE_MAX_AGE = TimeUnit.SECONDS.toNanos(1);
+    private static final long BULK_CHANGE_WARNING_AGE = TimeUnit.SECONDS.toNanos(60);
+
+    // Events are queued and sent on the Agent's event sender thread so that the Broker threads that raise them never
+    // wait for management I/O, once the queue is full the oldest events are dropped.
+    private static final int EVENT_QUEUE_CAPACITY = 10000;
+
+    // Console requests are handled on up to four threads, each Console's requests in order on one of them, so that
+    // a Console querying every Queue doesn't hold up method calls and subscription refreshes from other Consoles.
+    private static final int REQUEST_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+
+    // Identical queries made by several Consoles within a second of each other, such as a number of dashboards all
+    // polling every Queue, share a single response, which is never more than two seconds old.
+    private static final long QUERY_REUSE_WINDOW = 1000;
+    private static final long QUERY_MAX_STALENESS = 2000;
+
+    /**
+     * A BulkChange holds the changes made by a thread that are waiting to be applied to the Agent. The QmfAgentData
+     * Objects created by childAdded() are added to the Agent in batches with addObjects(), and the Objects removed by
+     * childRemoved() are destroyed just before each batch is added, in case the batch re-creates an Object with the
+     * same ObjectId (Queues and Exchanges have ObjectIds derived from their names). Events are either buffered and
+     * raised together with raiseEvents() when the BulkChange ends, which sends Events of the same class in a single
+     * message, or for the initial scan of the broker model not raised at all.
+     * <p>
+     * A BulkChange is only changed by the thread that started it, but may also be flushed by flushBulkChanges(), so
+     * its changes are only accessed holding its lock.
+     */
+    private static final class BulkChange
+    {
+        private final List<QmfAgentData> _added = new ArrayList<QmfAgentData>();
+        private final List<QmfAgentData> _removed = new ArrayList<QmfAgentData>();
+        private final List<QmfEvent> _events;
+        private final Thread _thread = Thread.currentThread();
+        private final long _startTime = System.nanoTime();
+        private long _flushTime = _startTime;
+        private boolean _warned = false;
+        private int _depth = 1;
+
+        /**
+         * Construct a BulkChange.
+         * @param raiseEvents true if Events should be buffered and raised at the end, false if they are suppressed.
+         */
+        BulkChange(final boolean raiseEvents)
+        {
+            _events = raiseEvents ? new ArrayList<QmfEvent>() : null;
+        }
+
+        /**
+         * Return the number of changes waiting to be applied.
+         * @return the number of changes waiting to be applied.
+         */
+        int size()
+        {
+            return _added.size() + _removed.size() + (_events == null ? 0 : _events.size());
+        }
+    }
+
+    // The changes made by the current thread that are waiting to be applied to the Agent. This is set on the threads
+    // scanning the broker model in registerConfigurationChangeListeners() and on a thread making a bulk change to
+    // the broker model between the broker's bulkChangeStart() and bulkChangeEnd() calls.
+    private final ThreadLocal<BulkChange> _bulkChange = new ThreadLocal<BulkChange>();
+
+    // Every BulkChange that is open on any thread, so that flushBulkChanges() can apply their changes.
+    private final Set<BulkChange> _bulkChanges =
+        Collections.newSetFromMap(new ConcurrentHashMap<BulkChange, Boolean>());
+
+    // The total time spent applying BulkChanges to the Agent, which is reported when the initial scan completes.
+    private final AtomicLong _registrationTime = new AtomicLong();
+
     // The first Connection Object relates to the QmfManagementAgent, we use this flag to avoid mapping that Connection
     // to a QMF Object thus hiding it from Consoles. This is done to provide consistency with the C++ Broker which
     // also "hides" its own private AMQP Connections, Queues & Bindings.
@@ -113,7 +217,8 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
 
     /**
      * Constructor. Creates the AMQP Connection to the Broker and starts the QMF2 Agent.
-     * @param url the Connection URL to be used to construct the AMQP Connection.
+     * @param plugin the QmfManagementPlugin, whose config gives the Connection URL to be used to construct the AMQP
+     * Connection and the limits on the rate of Console requests.
      * @param broker the root Broker Management Object from which the other Management Objects may be obtained.
      * to work without explicitly setting a Virtual Host, which I think is necessary because the C++ Broker and
      * the python command line tools aren't currently Virtual Host aware (are they?). The intention is to mark
@@ -121,7 +226,7 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
      * the non-default Virtual Host prefix their names with {@literal [vhost:<vhost-name>/]}. This approach *ought* to allow
      * non-Virtual Host aware command line tools the ability to add queues/exchanges to a particular vhost.
      */
-    public QmfManagementAgent(final String url, final Broker broker)
+    public QmfManagementAgent(final QmfManagementPlugin<?> plugin, final Broker broker)
     {
         _broker = broker;
         _defaultVirtualHost = broker.findDefautVirtualHostNode().getVirtualHost().getName();
@@ -130,7 +235,7 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
         {
             // Create the actual JMS Connection. ConnectionHelper allows us to work with a variety of URL
             // formats so we can abstract away from the somewhat complex Java AMQP URL format.
-            javax.jms.Connection connection = ConnectionHelper.createConnection(url);
+            javax.jms.Connection connection = ConnectionHelper.createConnection(plugin.getConnectionURL());
             if (connection == null)
             {
                 _log.info("QmfManagementAgent Constructor failed due to null AMQP Connection");
@@ -141,11 +246,30 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
                 // Vendor and Product are deliberately set to be the same as for the C++ broker.
                 _agent.setVendor("apache.org");
                 _agent.setProduct("qpidd");
+
+                _scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+                {
+                    public Thread newThread(final Runnable r)
+                    {
+                        Thread thread = new Thread(r, "QMF2 Management Scheduler");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                _scheduler.setRemoveOnCancelPolicy(true); // As Subscriptions get cancelled when they expire.
+                _agent.setScheduler(_scheduler);
+                _agent.setEventQueue(EVENT_QUEUE_CAPACITY, EventOverflowPolicy.DROP_OLDEST);
+                _agent.setRequestThreads(REQUEST_THREADS);
+                _agent.setRequestRateLimits(plugin.getConsoleRequestRate(), plugin.getConsoleRequestBurst(),
+                                            plugin.getGlobalRequestRate(), plugin.getGlobalRequestBurst());
+                _agent.setRateLimitByUser(plugin.getRateLimitByUser());
+                _agent.setQuerySharing(QUERY_REUSE_WINDOW, QUERY_MAX_STALENESS);
                 _agent.setConnection(connection);
 
                 // Register the schema for the Management Objects. These don't have to be completely populated
                 // the minimum is to register package name and class name for the QmfAgentData.
                 _agent.registerObjectClass(org.apache.qpid.server.qmf2.agentdata.Broker.getSchema());
+                _agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Broker.getManagementReadySchema());
                 _agent.registerObjectClass(org.apache.qpid.server.qmf2.agentdata.Connection.getSchema());
                 _agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Connection.getClientConnectSchema());
                 _agent.registerEventClass(org.apache.qpid.server.qmf2.agentdata.Connection.getClientDisconnectSchema());
@@ -170,17 +294,112 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
 
                 // Initialise QmfAgentData Objects and track changes to the broker Management Objects.
                 registerConfigurationChangeListeners();
+
+                _scheduler.scheduleWithFixedDelay(new Runnable()
+                {
+                    public void run()
+                    {
+                        refreshStatistics();
+                    }
+                }, STATISTICS_INTERVAL, STATISTICS_INTERVAL, TimeUnit.SECONDS);
+
+                _scheduler.scheduleAtFixedRate(new Runnable()
+                {
+                    public void run()
+                    {
+                        sampleStatistics();
+                    }
+                }, SAMPLE_INTERVAL, SAMPLE_INTERVAL, TimeUnit.SECONDS);
+
+                _scheduler.scheduleWithFixedDelay(new Runnable()
+                {
+                    public void run()
+                    {
+                        flushBulkChanges();
+                    }
+                }, BULK_CHANGE_MAX_AGE, BULK_CHANGE_MAX_AGE, TimeUnit.NANOSECONDS);
             }
         }
         catch (QmfException qmfe)
         {
             _log.error("QmfException caught in QmfManagementAgent Constructor", qmfe);
             _agent = null; // Causes isConnected() to be false and thus prevents the "QMF2 Management Ready" message.
+            shutdownScheduler();
         }
         catch (Exception e)
         {
             _log.error("Exception caught in QmfManagementAgent Constructor", e);
             _agent = null; // Causes isConnected() to be false and thus prevents the "QMF2 Management Ready" message.
+            shutdownScheduler();
+        }
+    }
+
+    /**
+     * Shut down the scheduler shared with the Agent, which the Agent doesn't do itself as it was supplied to it.
+     */
+    private void shutdownScheduler()
+    {
+        if (_scheduler != null)
+        {
+            _scheduler.shutdownNow();
+            _scheduler = null;
+        }
+    }
+
+    /**
+     * Refresh the statistics of every Management Object from the broker model. The agentdata classes refresh their
+     * statistics in mapEncode() and only call update() if a statistic has actually changed value, which records the
+     * object in the Agent's change log so that Subscriptions publish it. As the result of mapEncode() is cached
+     * against the object's version, refreshing an idle object costs little more than reading its statistics.
+     */
+    private void refreshStatistics()
+    {
+        for (QmfAgentData object : _objects.values())
+        {
+            try
+            {
+                // Objects without an ObjectId haven't been added to the Agent yet.
+                if (object.getObjectId() != null && !object.isDeleted())
+                {
+                    object.mapEncode();
+                }
+            }
+            catch (RuntimeException re)
+            { // Don't let a problem with one object stop the others from being refreshed or cancel future refreshes.
+                _log.info("RuntimeException {} caught in refreshStatistics()", re.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Sample the counters of every Queue, Exchange and Connection into the ring buffers that their rate properties
+     * are derived from. Sampling only reads the statistics from the broker model, the rates are computed and the
+     * objects marked as updated when refreshStatistics() or a query serialises them.
+     */
+    private void sampleStatistics()
+    {
+        long time = System.nanoTime();
+        for (QmfAgentData object : _objects.values())
+        {
+            try
+            {
+                if (object instanceof org.apache.qpid.server.qmf2.agentdata.Queue)
+                {
+                    ((org.apache.qpid.server.qmf2.agentdata.Queue)object).sample(time);
+                }
+                else if (object instanceof org.apache.qpid.server.qmf2.agentdata.Exchange)
+                {
+                    ((org.apache.qpid.server.qmf2.agentdata.Exchange)object).sample(time);
+                }
+                else if (object instanceof org.apache.qpid.server.qmf2.agentdata.Connection)
+                {
+                    ((org.apache.qpid.server.qmf2.agentdata.Connection)object).sample(time);
+                }
+            }
+            catch (RuntimeException re)
+            { // Don't let a problem with one object stop the others from being sampled or cancel future samples.
+                _log.info("RuntimeException {} caught in sampleStatistics()", re.getMessage());
+            }
         }
     }
 
@@ -193,6 +412,7 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
         {
             _agent.destroy();
         }
+        shutdownScheduler();
     }
 
     /**
@@ -207,47 +427,309 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
     /**
      * This method initialises the initial set of QmfAgentData Objects and tracks changes to the Broker Management 
      * Objects via the childAdded() method call.
+     * <p>
+     * A broker may have a very large number of Queues and Bindings, so the initial set of QmfAgentData Objects is
+     * registered in bulk. The Connections and Sessions of every Virtual Host are scanned first on this thread, as the
+     * first Connection found is the QmfManagementAgent's own, then the Exchanges and Queues of the Virtual Hosts are
+     * scanned in parallel. The threads doing the scanning add the QmfAgentData Objects that they create to the Agent
+     * in batches, and rather than raising a declare, bind or subscribe Event for every Object a single managementReady
+     * Event summarising what has been registered is raised once the scan is complete.
      */
     private void registerConfigurationChangeListeners()
     {
-        childAdded(null, _broker);
+        long start = System.nanoTime();
+        List<VirtualHost<?,?,?>> vhosts = new ArrayList<VirtualHost<?,?,?>>();
 
-        if (_log.isDebugEnabled())
+        startBulkChange(false);
+        try
         {
-            _log.debug("Registering model listeners for broker " + _broker);
+            childAdded(null, _broker);
+
+            if (_log.isDebugEnabled())
+            {
+                _log.debug("Registering model listeners for broker " + _broker);
+            }
+
+            for (VirtualHostNode<?> vhostNode : _broker.getVirtualHostNodes())
+            {
+
+                if (_log.isDebugEnabled())
+                {
+                    _log.debug("Considering virtualhostnode " + vhostNode);
+                }
+
+                VirtualHost<?,?,?> vhost = vhostNode.getVirtualHost();
+
+                // We don't add QmfAgentData VirtualHost objects. Possibly TODO, but it's a bit awkward at the moment
+                // because the C++ Broker doesn't *seem* to do much with them and the command line tools such
+                // as qpid-config don't appear to be VirtualHost aware. A way to stay compatible is to mark queues,
+                // exchanges etc with [vhost:<vhost-name>/]<object-name> (see Constructor comments).
+
+                if (vhost != null)
+                {
+                    vhost.addChangeListener(this);
+                    addListenersForConnectionsAndChildren(vhost);
+                    vhosts.add(vhost);
+                }
+            }
+        }
+        finally
+        {
+            endBulkChange();
         }
 
-        for (VirtualHostNode<?> vhostNode : _broker.getVirtualHostNodes())
+        int threads = Math.min(vhosts.size(), Runtime.getRuntime().availableProcessors());
+        if (threads > 0)
         {
+            ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory()
+            {
+                public Thread newThread(final Runnable r)
+                {
+                    Thread thread = new Thread(r, "QMF2 Management Startup");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
-            if (_log.isDebugEnabled())
+            List<Future<?>> futures = new ArrayList<Future<?>>(vhosts.size());
+            for (final VirtualHost<?,?,?> vhost : vhosts)
             {
-                _log.debug("Considering virtualhostnode " + vhostNode);
+                futures.add(executor.submit(new Runnable()
+                {
+                    public void run()
+                    {
+                        startBulkChange(false);
+                        try
+                        {
+                            addListenersForExchangesAndChildren(vhost);
+                            addListenersForQueuesAndChildren(vhost);
+                        }
+                        finally
+                        {
+                            endBulkChange();
+                        }
+                    }
+                }));
             }
 
-            VirtualHost<?,?,?> vhost = vhostNode.getVirtualHost();
+            try
+            {
+                for (Future<?> future : futures)
+                {
+                    try
+                    {
+                        future.get();
+                    }
+                    catch (ExecutionException ee)
+                    { // Carry on so that the other Virtual Hosts are still registered.
+                        _log.error("Exception caught in registerConfigurationChangeListeners()", ee.getCause());
+                    }
+                }
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+            finally
+            {
+                executor.shutdown();
+            }
+        }
+
+        long scanTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long registrationTime = TimeUnit.NANOSECONDS.toMillis(_registrationTime.get());
+        Map<String, Integer> objectCounts = new TreeMap<String, Integer>();
+        for (QmfAgentData data : _objects.values())
+        {
+            String className = data.getSchemaClassId().getClassName();
+            Integer count = objectCounts.get(className);
+            objectCounts.put(className, count == null ? 1 : count + 1);
+        }
+
+        _log.info("QMF2 Management registered {} Objects {} in {} ms ({} ms adding them to the Agent) using {} threads",
+                  _objects.size(), objectCounts, scanTime, registrationTime, threads);
+
+        QmfAgentData broker = _objects.get(_broker);
+        if (broker != null)
+        {
+            _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Broker)broker).
+                createManagementReadyEvent(objectCounts, scanTime, registrationTime, threads));
+        }
+    }
+
+    /**
+     * Start a BulkChange on the current thread, or nest within the current thread's BulkChange if it already has one.
+     * @param raiseEvents true if Events should be buffered and raised at the end, false if they are suppressed.
+     */
+    private void startBulkChange(final boolean raiseEvents)
+    {
+        BulkChange bulkChange = _bulkChange.get();
+        if (bulkChange == null)
+        {
+            bulkChange = new BulkChange(raiseEvents);
+            _bulkChange.set(bulkChange);
+            _bulkChanges.add(bulkChange);
+        }
+        else
+        {
+            bulkChange._depth++;
+        }
+    }
 
-            // We don't add QmfAgentData VirtualHost objects. Possibly TODO, but it's a bit awkward at the moment
-            // because the C++ Broker doesn't *seem* to do much with them and the command line tools such
-            // as qpid-config don't appear to be VirtualHost aware. A way to stay compatible is to mark queues,
-            // exchanges etc with [vhost:<vhost-name>/]<object-name> (see Constructor comments).
+    /**
+     * End the current thread's BulkChange, applying its remaining changes to the Agent and raising its Events if this
+     * ends the outermost BulkChange. If the current thread has no BulkChange, for example because the broker ended
+     * the bulk change on a different thread to the one that started it, nothing is applied and a warning is logged.
+     */
+    private void endBulkChange()
+    {
+        BulkChange bulkChange = _bulkChange.get();
+        if (bulkChange == null)
+        {
+            _log.warn("bulkChangeEnd() called on thread {} without a matching bulkChangeStart(), ignoring it",
+                      Thread.currentThread().getName());
+        }
+        else if (--bulkChange._depth == 0)
+        {
+            _bulkChange.remove();
+            _bulkChanges.remove(bulkChange);
+            flushBulkChange(bulkChange);
+        }
+    }
 
-            if (vhost != null)
+    /**
+     * Add a change to a BulkChange, flushing the BulkChange if it now holds REGISTRATION_BATCH_SIZE changes.
+     * @param bulkChange the current thread's BulkChange.
+     * @param changes the List of changes to add the change to, which belongs to bulkChange.
+     * @param change the change.
+     */
+    private <T> void addBulkChange(final BulkChange bulkChange, final List<T> changes, final T change)
+    {
+        synchronized(bulkChange)
+        {
+            changes.add(change);
+            if (bulkChange.size() >= REGISTRATION_BATCH_SIZE)
             {
-                vhost.addChangeListener(this);
+                flushBulkChange(bulkChange);
+            }
+        }
+    }
 
-                addListenersForConnectionsAndChildren(vhost);
-                addListenersForExchangesAndChildren(vhost);
-                addListenersForQueuesAndChildren(vhost);
+    /**
+     * Apply the changes held by a BulkChange to the Agent and raise its buffered Events, leaving it empty so that it
+     * can carry on being used.
+     * @param bulkChange the BulkChange to be flushed.
+     */
+    private void flushBulkChange(final BulkChange bulkChange)
+    {
+        synchronized(bulkChange)
+        {
+            applyBulkChange(bulkChange);
+            if (bulkChange._events != null && !bulkChange._events.isEmpty())
+            {
+                _agent.raiseEvents(bulkChange._events);
+                bulkChange._events.clear();
             }
+            bulkChange._flushTime = System.nanoTime();
         }
+    }
 
+    /**
+     * Flush every open BulkChange whose changes have been waiting for BULK_CHANGE_MAX_AGE, which bounds how long the
+     * changes made after an unmatched bulkChangeStart() are held back. A BulkChange open for BULK_CHANGE_WARNING_AGE
+     * is logged once, and one whose thread has died is flushed and forgotten.
+     */
+    private void flushBulkChanges()
+    {
+        long now = System.nanoTime();
+        for (BulkChange bulkChange : _bulkChanges)
+        {
+            try
+            {
+                synchronized(bulkChange)
+                {
+                    boolean dead = !bulkChange._thread.isAlive();
+                    if (dead || now - bulkChange._flushTime >= BULK_CHANGE_MAX_AGE)
+                    {
+                        flushBulkChange(bulkChange);
+                    }
 
-        if (_log.isDebugEnabled())
+                    if (dead)
+                    {
+                        _bulkChanges.remove(bulkChange);
+                    }
+                    else if (!bulkChange._warned && now - bulkChange._startTime >= BULK_CHANGE_WARNING_AGE)
+                    {
+                        bulkChange._warned = true;
+                        _log.warn("Bulk change on thread {} has been open for over {} seconds, bulkChangeEnd() " +
+                                  "may be missing", bulkChange._thread.getName(),
+                                  TimeUnit.NANOSECONDS.toSeconds(BULK_CHANGE_WARNING_AGE));
+                    }
+                }
+            }
+            catch (RuntimeException re)
+            { // Don't let a problem with one BulkChange stop the others from being flushed or cancel future flushes.
+                _log.info("RuntimeException {} caught in flushBulkChanges()", re.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns whether Events for changes made by the current thread are being raised, which is the case unless the
+     * current thread is scanning the broker model. This allows childAdded() to avoid creating Events that won't be
+     * raised.
+     * @return true if Events for changes made by the current thread are being raised.
+     */
+    private boolean isRaisingEvents()
+    {
+        BulkChange bulkChange = _bulkChange.get();
+        return bulkChange == null || bulkChange._events != null;
+    }
+
+    /**
+     * Raise an Event, or buffer it until the end of the current thread's BulkChange if it has one.
+     * @param event the QmfEvent to be raised.
+     */
+    private void raiseEvent(final QmfEvent event)
+    {
+        BulkChange bulkChange = _bulkChange.get();
+        if (bulkChange == null)
+        {
+            _agent.raiseEvent(event);
+        }
+        else if (bulkChange._events != null)
         {
-            _log.debug("Registered model listeners");
+            addBulkChange(bulkChange, bulkChange._events, event);
         }
+    }
 
+    /**
+     * Apply the QmfAgentData Objects removed and added so far in a BulkChange to the Agent, then clear them so that
+     * the BulkChange can carry on being used. Called holding the BulkChange's lock.
+     * @param bulkChange the BulkChange to be applied.
+     */
+    private void applyBulkChange(final BulkChange bulkChange)
+    {
+        long start = System.nanoTime();
+        for (QmfAgentData data : bulkChange._removed)
+        {
+            data.destroy();
+        }
+        bulkChange._removed.clear();
+
+        if (!bulkChange._added.isEmpty())
+        {
+            try
+            { // addObjects() skips any Objects that were removed again before being added.
+                _agent.addObjects(bulkChange._added);
+            }
+            catch (QmfException qmfe)
+            {
+                _log.error("QmfException caught in QmfManagementAgent.addObjects()", qmfe);
+            }
+            bulkChange._added.clear();
+        }
+        _registrationTime.addAndGet(System.nanoTime() - start);
     }
 
     private void addListenersForQueuesAndChildren(final VirtualHost<?, ?, ?> vhost)
@@ -389,7 +871,10 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
 
         if (child instanceof Broker)
         {
-            data = new org.apache.qpid.server.qmf2.agentdata.Broker((Broker)child);
+            org.apache.qpid.server.qmf2.agentdata.Broker broker =
+                new org.apache.qpid.server.qmf2.agentdata.Broker((Broker)child);
+            broker.setAdmissionStatistics(_agent.getAdmissionStatistics());
+            data = broker;
         }
         else if (child instanceof Connection)
         {
@@ -401,7 +886,11 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
                 _objects.put(child, data);
 
                 // Raise a Client Connect Event.
-                _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Connection)data).createClientConnectEvent());
+                if (isRaisingEvents())
+                {
+                    raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Connection)data).
+                        createClientConnectEvent());
+                }
             }
             agentConnection = false; // Only ignore the first Connection, which is the one from the Agent. 
         }
@@ -427,8 +916,11 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
                 _objects.put(child, data);
 
                 // Raise an Exchange Declare Event.
-                _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Exchange)data).createExchangeDeclareEvent());
-
+                if (isRaisingEvents())
+                {
+                    raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Exchange)data).
+                        createExchangeDeclareEvent());
+                }
             }
         }
         else if (child instanceof Queue)
@@ -441,7 +933,10 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
                 _objects.put(child, data);
 
                 // Raise a Queue Declare Event.
-                _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Queue)data).createQueueDeclareEvent());
+                if (isRaisingEvents())
+                {
+                    raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Queue)data).createQueueDeclareEvent());
+                }
             }
         }
         else if (child instanceof Binding)
@@ -456,10 +951,11 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
                 _objects.put(child, data);
 
                 String eName = ((Binding)child).getExchange().getName();
-                if (!eName.equals("<<default>>")) // Don't send Event for Binding to default direct.
+                // Don't send Event for Binding to default direct.
+                if (!eName.equals("<<default>>") && isRaisingEvents())
                 {
                     // Raise a Bind Event.
-                    _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Binding)data).createBindEvent());
+                    raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Binding)data).createBindEvent());
                 }
             }
 
@@ -501,7 +997,10 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
                 {
                     subscription.setQueueRef(ref.getObjectId(), (Queue)object);
                     // Raise a Subscribe Event - N.B. Need to do it *after* we've set the queueRef.
-                    _agent.raiseEvent(subscription.createSubscribeEvent());
+                    if (isRaisingEvents())
+                    {
+                        raiseEvent(subscription.createSubscribeEvent());
+                    }
                 }
                 else if (object instanceof Session)
                 {
@@ -512,10 +1011,20 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
 
         try
         {
-            // If we've created new QmfAgentData we register it with the Agent.
+            // If we've created new QmfAgentData we register it with the Agent. During a BulkChange it is added to
+            // the BulkChange instead, apart from Connections and Sessions, which get their ObjectIds from the Agent
+            // and need them before the Sessions and Subscriptions that refer to them are created.
             if (data != null)
             {
-                _agent.addObject(data);
+                BulkChange bulkChange = _bulkChange.get();
+                if (bulkChange == null || child instanceof Connection || child instanceof Session)
+                {
+                    _agent.addObject(data);
+                }
+                else
+                {
+                    addBulkChange(bulkChange, bulkChange._added, data);
+                }
             }
         }
         catch (QmfException qmfe)
@@ -556,7 +1065,7 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
             if (child instanceof Connection)
             {
                 // Raise a Client Disconnect Event.
-                _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Connection)data).createClientDisconnectEvent());
+                raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Connection)data).createClientDisconnectEvent());
             }
             else if (child instanceof Session)
             {
@@ -565,12 +1074,12 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
             else if (child instanceof Exchange)
             {
                 // Raise an Exchange Delete Event.
-                _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Exchange)data).createExchangeDeleteEvent());
+                raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Exchange)data).createExchangeDeleteEvent());
             }
             else if (child instanceof Queue)
             {
                 // Raise a Queue Delete Event.
-                _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Queue)data).createQueueDeleteEvent());
+                raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Queue)data).createQueueDeleteEvent());
             }
             else if (child instanceof Binding)
             {
@@ -578,16 +1087,24 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
                 if (!eName.equals("<<default>>")) // Don't send Event for Unbinding from default direct.
                 {
                     // Raise an Unbind Event.
-                    _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Binding)data).createUnbindEvent());
+                    raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Binding)data).createUnbindEvent());
                 }
             }
             else if (child instanceof Consumer)
             {
                 // Raise an Unsubscribe Event.
-                _agent.raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Subscription)data).createUnsubscribeEvent());
+                raiseEvent(((org.apache.qpid.server.qmf2.agentdata.Subscription)data).createUnsubscribeEvent());
             }
 
-            data.destroy();
+            BulkChange bulkChange = _bulkChange.get();
+            if (bulkChange == null)
+            {
+                data.destroy();
+            }
+            else
+            {
+                addBulkChange(bulkChange, bulkChange._removed, data);
+            }
         }
 
         // Remove the mapping from the internal ConfiguredObject->QmfAgentData Map.
@@ -645,15 +1162,30 @@ public class QmfManagementAgent implements ConfigurationChangeListener, QmfEvent
         }
     }
 
+    /**
+     * ConfigurationChangeListener method called when the broker starts a bulk change, such as a Virtual Host
+     * restart, which may add or remove a large number of Objects.
+     * <p>
+     * Until the matching bulkChangeEnd() the QmfAgentData Objects created and removed by this thread are applied to
+     * the Agent in batches, and the Events raised for them are buffered, so that Consoles see a few batched Event
+     * messages rather than a message for every Object. The changes are never held back for more than about a second,
+     * in case bulkChangeEnd() is missed or called on another thread.
+     * @param object the object whose children are being changed.
+     */
     @Override
     public void bulkChangeStart(final ConfiguredObject<?> object)
     {
-
+        startBulkChange(true);
     }
 
+    /**
+     * ConfigurationChangeListener method called when the broker ends a bulk change, which applies the changes made
+     * since the matching bulkChangeStart() to the Agent and raises the buffered Events.
+     * @param object the object whose children have been changed.
+     */
     @Override
     public void bulkChangeEnd(final ConfiguredObject<?> object)
     {
-
+        endBulkChange();
     }
 }
@@ -30,7 +30,29 @@ public interface QmfManagementPlugin<X extends QmfManagementPlugin<X>> extends P
 
     // attributes
     String CONNECTION_URL = "connectionURL";
+    String CONSOLE_REQUEST_RATE = "consoleRequestRate";
+    String CONSOLE_REQUEST_BURST = "consoleRequestBurst";
+    String GLOBAL_REQUEST_RATE = "globalRequestRate";
+    String GLOBAL_REQUEST_BURST = "globalRequestBurst";
+    String RATE_LIMIT_BY_USER = "rateLimitByUser";
 
     @ManagedAttribute(defaultValue = "amqp://guest:guest@/?brokerlist='tcp://0.0.0.0:5672'")
     String getConnectionURL();
+
+    // Limits on the rate of QMF queries and subscriptions, see org.apache.qpid.qmf2.agent.Agent.setRequestRateLimits()
+    // A rate of zero means no limit.
+    @ManagedAttribute(defaultValue = "0")
+    int getConsoleRequestRate();
+
+    @ManagedAttribute(defaultValue = "0")
+    int getConsoleRequestBurst();
+
+    @ManagedAttribute(defaultValue = "0")
+    int getGlobalRequestRate();
+
+    @ManagedAttribute(defaultValue = "0")
+    int getGlobalRequestBurst();
+
+    @ManagedAttribute(defaultValue = "false")
+    boolean getRateLimitByUser();
 }
@@ -80,6 +80,15 @@ import org.apache.qpid.server.model.adapter.AbstractPluginAdapter;
  *    "connectionURL" : "amqp://guest:guest@/?brokerlist='tcp://0.0.0.0:5672'"
  * }]
  * </pre>
+ * The optional "consoleRequestRate", "consoleRequestBurst", "globalRequestRate" and "globalRequestBurst" settings
+ * limit the rate at which each Console, and all Consoles together, may make QMF queries and subscriptions so that
+ * management load can't starve the Broker's messaging, and "rateLimitByUser" identifies Consoles by user rather
+ * than by reply address. A rate of 0 means no limit, which is the default. A Console whose request is rejected
+ * is told how long to wait before retrying, e.g. for a limit of 10 requests per second in bursts of up to 20:
+ * <pre>
+ *    "consoleRequestRate" : 10,
+ *    "consoleRequestBurst" : 20
+ * </pre>
  * @author Fraser Adams
  */
 public class QmfManagementPluginImpl extends AbstractPluginAdapter<QmfManagementPluginImpl> implements QmfManagementPlugin<QmfManagementPluginImpl>
@@ -102,6 +111,21 @@ public class QmfManagementPluginImpl extends AbstractPluginAdapter<QmfManagement
 
     @ManagedAttributeField
     private String _connectionURL;      // Pulled from the Plugin config.
+
+    @ManagedAttributeField
+    private int _consoleRequestRate;    // Pulled from the Plugin config.
+
+    @ManagedAttributeField
+    private int _consoleRequestBurst;   // Pulled from the Plugin config.
+
+    @ManagedAttributeField
+    private int _globalRequestRate;     // Pulled from the Plugin config.
+
+    @ManagedAttributeField
+    private int _globalRequestBurst;    // Pulled from the Plugin config.
+
+    @ManagedAttributeField
+    private boolean _rateLimitByUser;   // Pulled from the Plugin config.
     private QmfManagementAgent _agent;
 
     /**
@@ -181,7 +205,7 @@ public class QmfManagementPluginImpl extends AbstractPluginAdapter<QmfManagement
                     }
 
                     // Now create the *real* Agent which maps Broker Management Objects to QmdAgentData Objects.
-                    _agent = new QmfManagementAgent(_connectionURL, _broker);
+                    _agent = new QmfManagementAgent(this, _broker);
                 }
 
 
@@ -239,4 +263,49 @@ public class QmfManagementPluginImpl extends AbstractPluginAdapter<QmfManagement
     {
         return _connectionURL;
     }
+
+    /**
+     * Accessor to retrieve the consoleRequestRate attribute.
+     * @return the number of QMF queries and subscriptions per second allowed from each Console.
+     */
+    public int getConsoleRequestRate()
+    {
+        return _consoleRequestRate;
+    }
+
+    /**
+     * Accessor to retrieve the consoleRequestBurst attribute.
+     * @return the number of QMF queries and subscriptions that each Console may make at once.
+     */
+    public int getConsoleRequestBurst()
+    {
+        return _consoleRequestBurst;
+    }
+
+    /**
+     * Accessor to retrieve the globalRequestRate attribute.
+     * @return the number of QMF queries and subscriptions per second allowed from all Consoles together.
+     */
+    public int getGlobalRequestRate()
+    {
+        return _globalRequestRate;
+    }
+
+    /**
+     * Accessor to retrieve the globalRequestBurst attribute.
+     * @return the number of QMF queries and subscriptions that all Consoles together may make at once.
+     */
+    public int getGlobalRequestBurst()
+    {
+        return _globalRequestBurst;
+    }
+
+    /**
+     * Accessor to retrieve the rateLimitByUser attribute.
+     * @return true if Consoles are identified by user rather than reply address for the per Console rate limit.
+     */
+    public boolean getRateLimitByUser()
+    {
+        return _rateLimitByUser;
+    }
 }
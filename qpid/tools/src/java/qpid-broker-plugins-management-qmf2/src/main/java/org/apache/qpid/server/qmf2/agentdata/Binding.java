@@ -37,7 +37,9 @@ import org.apache.qpid.qmf2.common.QmfEvent;
 import org.apache.qpid.qmf2.common.SchemaEventClass;
 //import org.apache.qpid.qmf2.common.SchemaMethod;
 import org.apache.qpid.qmf2.common.SchemaObjectClass;
-//import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfType;
 
 /**
  * This class provides a concrete implementation of QmfAgentData for the Binding Management Object.
@@ -94,8 +96,20 @@ public class Binding extends QmfAgentData
         // Declare the schema for the QMF2 broker class.
         _schema = new SchemaObjectClass("org.apache.qpid.broker", "binding");
 
-        // TODO
-        //_schema.addProperty(new SchemaProperty("whatHappened", QmfType.TYPE_STRING));
+        // Declare the properties that Binding sets, so that they are stored in the compact layout described by the
+        // schema rather than in a HashMap.
+        try
+        {
+            _schema.addProperty(new SchemaProperty("bindingKey", QmfType.TYPE_STRING));
+            _schema.addProperty(new SchemaProperty("arguments", QmfType.TYPE_MAP));
+            _schema.addProperty(new SchemaProperty("exchangeRef", QmfType.TYPE_MAP));
+            _schema.addProperty(new SchemaProperty("queueRef", QmfType.TYPE_MAP));
+            _schema.addProperty(new SchemaProperty("msgMatched", QmfType.TYPE_INT));
+        }
+        catch (QmfException qmfe)
+        { // Only thrown for invalid SchemaProperty options, which aren't used here.
+            _log.info("QmfException {} caught in Binding static initialiser", qmfe.getMessage());
+        }
 
         // Declare the schema for the QMF2 bind Event class.
         _bindSchema = new SchemaEventClass("org.apache.qpid.broker", "bind");
@@ -196,9 +210,13 @@ public class Binding extends QmfAgentData
     public Map<String, Object> mapEncode()
     {
         // Statistics 
+        long version = getVersion();
         setValue("msgMatched", _binding.getMatches());
 
-        update(); // TODO only set update if a statistic has actually changed value.
+        if (getVersion() != version)
+        { // Only mark the Binding as updated if a statistic has actually changed value.
+            update();
+        }
         return super.mapEncode();
     }
 }
@@ -30,11 +30,14 @@ import java.util.Map;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import org.apache.qpid.qmf2.agent.AdmissionStatistics;
 import org.apache.qpid.qmf2.agent.Agent;
 import org.apache.qpid.qmf2.agent.QmfAgentData;
 import org.apache.qpid.qmf2.common.Handle;
 import org.apache.qpid.qmf2.common.ObjectId;
 import org.apache.qpid.qmf2.common.QmfData;
+import org.apache.qpid.qmf2.common.QmfEvent;
+import org.apache.qpid.qmf2.common.SchemaEventClass;
 import org.apache.qpid.qmf2.common.SchemaObjectClass;
 import org.apache.qpid.server.model.Binding;
 import org.apache.qpid.server.model.Exchange;
@@ -49,8 +52,7 @@ import org.apache.qpid.server.model.VirtualHostNode;
 
 // Simple Logging Facade 4 Java
 // QMF2 Imports
-/*import org.apache.qpid.qmf2.common.QmfEvent;
-import org.apache.qpid.qmf2.common.QmfEventListener;
+/*import org.apache.qpid.qmf2.common.QmfEventListener;
 import org.apache.qpid.qmf2.common.QmfException;
 import org.apache.qpid.qmf2.common.QmfType;*/
 // Java Broker model Imports
@@ -72,14 +74,25 @@ public class Broker extends QmfAgentData
 
     /**
      * This static initialiser block initialises the QMF2 Schema information needed by the Agent to find
-     * QmfAgentData Objects of a given type.
+     * QmfAgentData and QmfEvent Objects of a given type.
      */
     private static final SchemaObjectClass _schema;
+    private static final SchemaEventClass _managementReadySchema;
+
     public static SchemaObjectClass getSchema()
     {
         return _schema;
     }
 
+    /**
+     * Returns the schema for the Management Ready Event.
+     * @return the SchemaEventClass for the Management Ready Event.
+     */
+    public static SchemaEventClass getManagementReadySchema()
+    {
+        return _managementReadySchema;
+    }
+
     static
     {
         // Declare the schema for the QMF2 broker class.
@@ -87,10 +100,16 @@ public class Broker extends QmfAgentData
 
         // TODO
         //_schema.addProperty(new SchemaProperty("whatHappened", QmfType.TYPE_STRING));
+
+        // Declare the schema for the QMF2 managementReady Event class. This isn't in the C++ Broker's Management
+        // Schema, it's raised once the QmfManagementAgent has registered the existing Management Objects in place
+        // of the declare, bind and subscribe Events for each of them.
+        _managementReadySchema = new SchemaEventClass("org.apache.qpid.broker", "managementReady");
     }
 
     private final org.apache.qpid.server.model.Broker<?> _broker; // Passed in by Plugin bootstrapping.
     private final String _defaultVirtualHost; // Pulled from the broker attributes.
+    private AdmissionStatistics _admissionStatistics = null; // Counts the Console requests that were rate limited.
 
     /**
      * This inner class parses the name String that was passed in as a QMF method argument.
@@ -678,6 +697,37 @@ System.out.println("properties = " + properties);
         }
     } // End of invokeMethod.
 
+    /**
+     * Factory method to create a Management Ready Event Object with timestamp of now.
+     * @param objectCounts the number of Management Objects registered, keyed by class name.
+     * @param scanTime the time in milliseconds taken to scan the broker model and register its Management Objects.
+     * @param registrationTime the part of scanTime spent adding the Management Objects to the Agent.
+     * @param threads the number of threads used to scan the Virtual Hosts.
+     * @return the newly created Management Ready Event Object.
+     */
+    public QmfEvent createManagementReadyEvent(final Map<String, Integer> objectCounts, final long scanTime,
+                                               final long registrationTime, final int threads)
+    {
+        QmfEvent managementReady = new QmfEvent(_managementReadySchema);
+        managementReady.setSeverity("info");
+        managementReady.setValue("objects", objectCounts);
+        managementReady.setValue("scanTime", scanTime);
+        managementReady.setValue("registrationTime", registrationTime);
+        managementReady.setValue("threads", threads);
+        return managementReady;
+    }
+
+    /**
+     * Set the statistics of the QMF2 Agent's request rate limits, which are published as the qmfRequestsAdmitted,
+     * qmfRequestsRejectedConsole and qmfRequestsRejectedGlobal properties. These aren't in the C++ Broker's
+     * Management Schema as it doesn't rate limit QMF requests.
+     * @param statistics the AdmissionStatistics of the QMF2 Agent.
+     */
+    public void setAdmissionStatistics(final AdmissionStatistics statistics)
+    {
+        _admissionStatistics = statistics;
+    }
+
     /**
      * This method maps the org.apache.qpid.server.model.Broker to QMF2 broker properties where possible then
      * serialises into the underlying Map for transmission via AMQP. This method is called by handleQueryRequest()
@@ -694,6 +744,13 @@ System.out.println("properties = " + properties);
         // the broker is and the Broker object is created then too the following approach should be good enough.
         setValue("uptime", getUpdateTime() - getCreateTime());
 
+        if (_admissionStatistics != null)
+        {
+            setValue("qmfRequestsAdmitted", _admissionStatistics.getAdmittedCount());
+            setValue("qmfRequestsRejectedConsole", _admissionStatistics.getConsoleRejectedCount());
+            setValue("qmfRequestsRejectedGlobal", _admissionStatistics.getGlobalRejectedCount());
+        }
+
         return super.mapEncode();
     }
 }
@@ -31,10 +31,12 @@ import org.slf4j.LoggerFactory;
 // QMF2 Imports
 import org.apache.qpid.qmf2.agent.QmfAgentData;
 import org.apache.qpid.qmf2.common.QmfEvent;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfType;
 import org.apache.qpid.qmf2.common.SchemaEventClass;
 //import org.apache.qpid.qmf2.common.SchemaMethod;
 import org.apache.qpid.qmf2.common.SchemaObjectClass;
-//import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.qmf2.common.SchemaProperty;
 
 /**
  * This class provides a concrete implementation of QmfAgentData for the Connection Management Object.
@@ -59,6 +61,16 @@ public class Connection extends QmfAgentData
     private static final SchemaEventClass _clientConnectSchema;
     private static final SchemaEventClass _clientDisconnectSchema;
 
+    /**
+     * The names of the rate properties derived from the sampled counters, indexed by the column constants below.
+     */
+    private static final String[][] RATES =
+        RateSampler.createNames("msgsFromClient", "msgsToClient", "bytesFromClient", "bytesToClient");
+    private static final int MSGS_FROM_CLIENT = 0;
+    private static final int MSGS_TO_CLIENT = 1;
+    private static final int BYTES_FROM_CLIENT = 2;
+    private static final int BYTES_TO_CLIENT = 3;
+
     /**
      * Returns the schema for the Connection class.
      * @return the SchemaObjectClass for the Connection class.
@@ -91,8 +103,31 @@ public class Connection extends QmfAgentData
         // Declare the schema for the QMF2 connection class.
         _schema = new SchemaObjectClass("org.apache.qpid.broker", "connection");
 
-        // TODO
-        //_schema.addProperty(new SchemaProperty("whatHappened", QmfType.TYPE_STRING));
+        // Declare the properties that Connection sets, so that they are stored in the compact layout described by
+        // the schema rather than in a HashMap.
+        try
+        {
+            _schema.addProperty(new SchemaProperty("address", QmfType.TYPE_STRING));
+            _schema.addProperty(new SchemaProperty("incoming", QmfType.TYPE_BOOL));
+            _schema.addProperty(new SchemaProperty("SystemConnection", QmfType.TYPE_BOOL));
+            _schema.addProperty(new SchemaProperty("userProxyAuth", QmfType.TYPE_BOOL));
+            _schema.addProperty(new SchemaProperty("federationLink", QmfType.TYPE_BOOL));
+            _schema.addProperty(new SchemaProperty("authIdentity", QmfType.TYPE_STRING));
+            _schema.addProperty(new SchemaProperty("remoteProcessName", QmfType.TYPE_STRING));
+            _schema.addProperty(new SchemaProperty("remotePid", QmfType.TYPE_STRING));
+            _schema.addProperty(new SchemaProperty("remoteParentPid", QmfType.TYPE_STRING));
+            _schema.addProperty(new SchemaProperty("framesFromClient", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("framesToClient", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("bytesFromClient", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("bytesToClient", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("msgsFromClient", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("msgsToClient", QmfType.TYPE_INT));
+            RateSampler.addProperties(_schema, RATES);
+        }
+        catch (QmfException qmfe)
+        { // Only thrown for invalid SchemaProperty options, which aren't used here.
+            _log.info("QmfException {} caught in Connection static initialiser", qmfe.getMessage());
+        }
 
         // Declare the schema for the QMF2 clientConnect Event class.
         _clientConnectSchema = new SchemaEventClass("org.apache.qpid.broker", "clientConnect");
@@ -103,6 +138,7 @@ public class Connection extends QmfAgentData
     // End of static initialiser.
 
     private final org.apache.qpid.server.model.Connection _connection;
+    private final RateSampler _rates = new RateSampler(RATES);
 
     /**
      * Constructor.
@@ -167,6 +203,20 @@ public class Connection extends QmfAgentData
         return clientDisconnect;
     }
 
+    /**
+     * Sample the message and byte counters of the peer org.apache.qpid.server.model.Connection. This is called once a
+     * second by the QmfManagementAgent, the derived rates are computed when the Connection is serialised.
+     * @param time the System.nanoTime() of the sample.
+     */
+    public void sample(final long time)
+    {
+        _rates.set(MSGS_FROM_CLIENT, _connection.getMessagesIn());
+        _rates.set(MSGS_TO_CLIENT, _connection.getMessagesOut());
+        _rates.set(BYTES_FROM_CLIENT, _connection.getBytesIn());
+        _rates.set(BYTES_TO_CLIENT, _connection.getBytesOut());
+        _rates.commit(time);
+    }
+
     /**
      * This method maps the org.apache.qpid.server.model.Connection to QMF2 connection properties where possible then
      * serialises into the underlying Map for transmission via AMQP. This method is called by handleQueryRequest()
@@ -178,6 +228,7 @@ public class Connection extends QmfAgentData
     public Map<String, Object> mapEncode()
     {
         // Statistics
+        long version = getVersion();
         // closing Not implemented in Java Broker
         setValue("framesFromClient", 0); // framesFromClient Not implemented in Java Broker
         setValue("framesToClient", 0); // framesToClient Not implemented in Java Broker
@@ -185,8 +236,12 @@ public class Connection extends QmfAgentData
         setValue("bytesToClient", _connection.getBytesOut()); 
         setValue("msgsFromClient", _connection.getMessagesIn());
         setValue("msgsToClient", _connection.getMessagesOut());
+        _rates.refresh(this, null);
 
-        update(); // TODO only set update if statistics change.
+        if (getVersion() != version)
+        { // Only mark the Connection as updated if a statistic has actually changed value.
+            update();
+        }
         return super.mapEncode();
     }
 }
@@ -33,10 +33,12 @@ import org.slf4j.LoggerFactory;
 import org.apache.qpid.qmf2.agent.QmfAgentData;
 import org.apache.qpid.qmf2.common.QmfEvent;
 import org.apache.qpid.qmf2.common.ObjectId;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfType;
 import org.apache.qpid.qmf2.common.SchemaEventClass;
 //import org.apache.qpid.qmf2.common.SchemaMethod;
 import org.apache.qpid.qmf2.common.SchemaObjectClass;
-//import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.qmf2.common.SchemaProperty;
 
 import org.apache.qpid.server.model.LifetimePolicy;
 
@@ -63,6 +65,14 @@ public class Exchange extends QmfAgentData
     private static final SchemaEventClass _exchangeDeclareSchema;
     private static final SchemaEventClass _exchangeDeleteSchema;
 
+    /**
+     * The names of the rate properties derived from the sampled counters, indexed by the column constants below.
+     */
+    private static final String[][] RATES = RateSampler.createNames("msgReceive", "msgRoute", "byteReceive");
+    private static final int MSG_RECEIVES = 0;
+    private static final int MSG_ROUTES = 1;
+    private static final int BYTE_RECEIVES = 2;
+
     /**
      * Returns the schema for the Exchange class.
      * @return the SchemaObjectClass for the Exchange class.
@@ -95,8 +105,29 @@ public class Exchange extends QmfAgentData
         // Declare the schema for the QMF2 broker class.
         _schema = new SchemaObjectClass("org.apache.qpid.broker", "exchange");
 
-        // TODO
-        //_schema.addProperty(new SchemaProperty("whatHappened", QmfType.TYPE_STRING));
+        // Declare the properties that Exchange sets, so that they are stored in the compact layout described by the
+        // schema rather than in a HashMap.
+        try
+        {
+            _schema.addProperty(new SchemaProperty("name", QmfType.TYPE_STRING));
+            _schema.addProperty(new SchemaProperty("type", QmfType.TYPE_STRING));
+            _schema.addProperty(new SchemaProperty("durable", QmfType.TYPE_BOOL));
+            _schema.addProperty(new SchemaProperty("autoDelete", QmfType.TYPE_BOOL));
+            _schema.addProperty(new SchemaProperty("arguments", QmfType.TYPE_MAP));
+            _schema.addProperty(new SchemaProperty("producerCount", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("bindingCount", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("msgReceives", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("msgDrops", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("msgRoutes", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("byteReceives", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("byteDrops", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("byteRoutes", QmfType.TYPE_INT));
+            RateSampler.addProperties(_schema, RATES);
+        }
+        catch (QmfException qmfe)
+        { // Only thrown for invalid SchemaProperty options, which aren't used here.
+            _log.info("QmfException {} caught in Exchange static initialiser", qmfe.getMessage());
+        }
 
         // Declare the schema for the QMF2 exchangeDeclare Event class.
         _exchangeDeclareSchema = new SchemaEventClass("org.apache.qpid.broker", "exchangeDeclare");
@@ -107,6 +138,7 @@ public class Exchange extends QmfAgentData
     // End of static initialiser.
 
     private final org.apache.qpid.server.model.Exchange _exchange;
+    private final RateSampler _rates = new RateSampler(RATES);
     private String _name;
 
     /**
@@ -204,6 +236,20 @@ public class Exchange extends QmfAgentData
         return exchangeDelete;
     }
 
+    /**
+     * Sample the receive and route counters of the peer org.apache.qpid.server.model.Exchange. This is called once a
+     * second by the QmfManagementAgent, the derived rates are computed when the Exchange is serialised.
+     * @param time the System.nanoTime() of the sample.
+     */
+    public void sample(final long time)
+    {
+        long msgReceives = _exchange.getMessagesIn();
+        _rates.set(MSG_RECEIVES, msgReceives);
+        _rates.set(MSG_ROUTES, msgReceives - _exchange.getMessagesDropped());
+        _rates.set(BYTE_RECEIVES, _exchange.getBytesIn());
+        _rates.commit(time);
+    }
+
     /**
      * This method maps the org.apache.qpid.server.model.Exchange to QMF2 broker properties where possible then
      * serialises into the underlying Map for transmission via AMQP. This method is called by handleQueryRequest()
@@ -215,6 +261,7 @@ public class Exchange extends QmfAgentData
     public Map<String, Object> mapEncode()
     {
         // Statistics
+        long version = getVersion();
         long msgReceives = _exchange.getMessagesIn();
         long msgDrops = _exchange.getMessagesDropped();
         long msgRoutes = msgReceives - msgDrops;
@@ -249,8 +296,12 @@ public class Exchange extends QmfAgentData
         setValue("byteReceives", byteReceives);
         setValue("byteDrops", byteDrops);
         setValue("byteRoutes", byteRoutes);
+        _rates.refresh(this, null);
 
-        update(); // TODO only set update if a statistic has actually changed value.
+        if (getVersion() != version)
+        { // Only mark the Exchange as updated if a statistic has actually changed value.
+            update();
+        }
         return super.mapEncode();
     }
 }
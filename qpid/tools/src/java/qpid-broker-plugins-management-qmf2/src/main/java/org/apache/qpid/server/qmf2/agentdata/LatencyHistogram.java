@@ -0,0 +1,128 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.server.qmf2.agentdata;
+
+// Misc Imports
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A compact fixed-bucket histogram of latencies in milliseconds, used to publish a percentile summary of the time
+ * that messages have spent on a Queue.
+ * <p>
+ * Bucket zero counts latencies of 0ms and bucket i counts latencies in the range [2^(i-1), 2^i) ms, so 32 buckets
+ * cover everything up to about 24 days and the percentiles are accurate to within a factor of two, which is enough
+ * to tell a healthy Queue from a backed up one. The counts are held in two preallocated int arrays, one for the
+ * current minute and one for the previous minute, which are swapped when the current minute ends, so the summary
+ * always covers between one and two minutes of recent history and recording a latency never allocates.
+ */
+final class LatencyHistogram
+{
+    private static final int BUCKETS = 32;
+    private static final long PERIOD = 60000000000L; // One minute in nanoseconds.
+
+    private int[] _current = new int[BUCKETS];
+    private int[] _previous = new int[BUCKETS];
+    private long _currentMax = 0;
+    private long _previousMax = 0;
+    private long _periodStart = 0;
+    private boolean _started = false;
+
+    /**
+     * Record a latency.
+     * @param latency the latency in milliseconds.
+     * @param time the System.nanoTime() at which the latency was measured.
+     */
+    synchronized void record(final long latency, final long time)
+    {
+        if (!_started)
+        {
+            _periodStart = time;
+            _started = true;
+        }
+        else if (time - _periodStart >= PERIOD)
+        {
+            int[] swap = _previous;
+            _previous = _current;
+            _current = swap;
+            Arrays.fill(_current, 0);
+            _previousMax = _currentMax;
+            _currentMax = 0;
+            _periodStart = time;
+        }
+
+        long value = Math.max(0, latency);
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+        _current[bucket]++;
+        _currentMax = Math.max(_currentMax, value);
+    }
+
+    /**
+     * Return the approximate latency below which the given fraction of recorded latencies fall, which is the upper
+     * bound of the bucket containing that percentile, capped at the maximum recorded latency.
+     * @param fraction the percentile as a fraction, e.g. 0.99.
+     * @return the percentile latency in milliseconds, or zero if nothing has been recorded.
+     */
+    synchronized long getPercentile(final double fraction)
+    {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            total += _current[i] + _previous[i];
+        }
+
+        long rank = (long)Math.ceil(fraction*total);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            cumulative += _current[i] + _previous[i];
+            if (cumulative >= rank && cumulative > 0)
+            {
+                long upper = (i == 0) ? 0 : (1L << i) - 1;
+                return Math.min(upper, getMax());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Return the maximum recorded latency.
+     * @return the maximum recorded latency in milliseconds.
+     */
+    synchronized long getMax()
+    {
+        return Math.max(_currentMax, _previousMax);
+    }
+
+    /**
+     * Return the summary published as a QMF property, a Map containing the p50, p99 and max latencies.
+     * @return the summary Map.
+     */
+    synchronized Map<String, Object> getSummary()
+    {
+        Map<String, Object> summary = new HashMap<String, Object>();
+        summary.put("p50", getPercentile(0.5d));
+        summary.put("p99", getPercentile(0.99d));
+        summary.put("max", getMax());
+        return summary;
+    }
+}
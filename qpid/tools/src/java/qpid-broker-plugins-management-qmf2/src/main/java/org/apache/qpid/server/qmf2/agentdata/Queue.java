@@ -36,10 +36,13 @@ import org.apache.qpid.qmf2.common.QmfEvent;
 import org.apache.qpid.qmf2.common.Handle;
 import org.apache.qpid.qmf2.common.ObjectId;
 import org.apache.qpid.qmf2.common.QmfData;
+import org.apache.qpid.qmf2.common.QmfQuery;
 import org.apache.qpid.qmf2.common.SchemaEventClass;
 //import org.apache.qpid.qmf2.common.SchemaMethod;
 import org.apache.qpid.qmf2.common.SchemaObjectClass;
-//import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfType;
 
 import org.apache.qpid.server.model.Exchange;
 import org.apache.qpid.server.model.ExclusivityPolicy;
@@ -68,6 +71,16 @@ public class Queue extends QmfAgentData
     private static final SchemaEventClass _queueDeclareSchema;
     private static final SchemaEventClass _queueDeleteSchema;
 
+    /**
+     * The names of the rate properties derived from the sampled counters, indexed by the column constants below.
+     */
+    private static final String[][] RATES =
+        RateSampler.createNames("msgEnqueue", "msgDequeue", "byteEnqueue", "byteDequeue");
+    private static final int MSG_ENQUEUES = 0;
+    private static final int MSG_DEQUEUES = 1;
+    private static final int BYTE_ENQUEUES = 2;
+    private static final int BYTE_DEQUEUES = 3;
+
     /**
      * Returns the schema for the Queue class.
      * @return the SchemaObjectClass for the Queue class.
@@ -100,8 +113,36 @@ public class Queue extends QmfAgentData
         // Declare the schema for the QMF2 broker class.
         _schema = new SchemaObjectClass("org.apache.qpid.broker", "queue");
 
-        // TODO
-        //_schema.addProperty(new SchemaProperty("whatHappened", QmfType.TYPE_STRING));
+        // Declare the properties that Queue sets, so that they are stored in the compact layout described by the
+        // schema rather than in a HashMap.
+        try
+        {
+            _schema.addProperty(new SchemaProperty("name", QmfType.TYPE_STRING));
+            _schema.addProperty(new SchemaProperty("durable", QmfType.TYPE_BOOL));
+            _schema.addProperty(new SchemaProperty("autoDelete", QmfType.TYPE_BOOL));
+            _schema.addProperty(new SchemaProperty("exclusive", QmfType.TYPE_BOOL));
+            _schema.addProperty(new SchemaProperty("arguments", QmfType.TYPE_MAP));
+            _schema.addProperty(new SchemaProperty("altExchange", QmfType.TYPE_MAP));
+            _schema.addProperty(new SchemaProperty("msgTotalEnqueues", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("msgTotalDequeues", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("msgPersistEnqueues", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("msgPersistDequeues", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("msgDepth", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("byteDepth", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("byteTotalEnqueues", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("byteTotalDequeues", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("bytePersistEnqueues", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("bytePersistDequeues", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("consumerCount", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("bindingCount", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("unackedMessages", QmfType.TYPE_INT));
+            _schema.addProperty(new SchemaProperty("messageLatency", QmfType.TYPE_MAP));
+            RateSampler.addProperties(_schema, RATES);
+        }
+        catch (QmfException qmfe)
+        { // Only thrown for invalid SchemaProperty options, which aren't used here.
+            _log.info("QmfException {} caught in Queue static initialiser", qmfe.getMessage());
+        }
 
         // Declare the schema for the QMF2 queueDeclare Event class.
         _queueDeclareSchema = new SchemaEventClass("org.apache.qpid.broker", "queueDeclare");
@@ -111,7 +152,19 @@ public class Queue extends QmfAgentData
     }
     // End of static initialiser.
 
+    /**
+     * The names of the statistics that are refreshed from the peer org.apache.qpid.server.model.Queue when the
+     * Queue is serialised.
+     */
+    private static final String[] STATISTICS = {
+        "msgTotalEnqueues", "msgTotalDequeues", "msgPersistEnqueues", "msgPersistDequeues", "msgDepth", "byteDepth",
+        "byteTotalEnqueues", "byteTotalDequeues", "bytePersistEnqueues", "bytePersistDequeues", "consumerCount",
+        "bindingCount", "unackedMessages", "messageLatency"
+    };
+
     private final org.apache.qpid.server.model.Queue _queue;
+    private final RateSampler _rates = new RateSampler(RATES);
+    private final LatencyHistogram _latency = new LatencyHistogram();
     private String _vhostName = "";
     private ObjectId _alternateExchange = null;
     private String _alternateExchangeName = "";
@@ -234,16 +287,10 @@ public class Queue extends QmfAgentData
     }
 
     /**
-     * This method maps the org.apache.qpid.server.model.Queue to QMF2 broker properties where possible then
-     * serialises into the underlying Map for transmission via AMQP. This method is called by handleQueryRequest()
-     * in the org.apache.qpid.qmf2.agent.Agent class implementing the main QMF2 Agent behaviour.
-     * 
-     * @return the underlying map. 
+     * Set the altExchange reference if an alternateExchange exists and hasn't already been set.
      */
-    @Override
-    public Map<String, Object> mapEncode()
+    private void refreshAlternateExchange()
     {
-        // Set the altExchange reference if an alternateExchange exists and hasn't already been set.
         // Not sure how to set this closer to the Constructor. At the moment the _alternateExchangeName gets set
         // too late to populate the "altEx" property of the queueDeclareEvent.
         if (_alternateExchange == null)
@@ -256,42 +303,128 @@ public class Queue extends QmfAgentData
                 setRefValue("altExchange", _alternateExchange);
             }
         }
+    }
+
+    /**
+     * Set the named statistic from the peer org.apache.qpid.server.model.Queue.
+     * @param name the name of the statistic, which must be one of the names in STATISTICS.
+     */
+    private void refreshStatistic(final String name)
+    {
+        switch (name)
+        {
+            case "msgTotalEnqueues": setValue(name, _queue.getTotalEnqueuedMessages()); break;
+            case "msgTotalDequeues": setValue(name, _queue.getTotalDequeuedMessages()); break;
+            // msgTxnEnqueues not implemented in Java Broker
+            // msgTxnDequeues not implemented in Java Broker
+            case "msgPersistEnqueues": setValue(name, _queue.getPersistentEnqueuedMessages()); break;
+            case "msgPersistDequeues": setValue(name, _queue.getPersistentDequeuedMessages()); break;
+            case "msgDepth": setValue(name, _queue.getQueueDepthMessages()); break;
+            case "byteDepth": setValue(name, _queue.getQueueDepthBytes()); break;
+            case "byteTotalEnqueues": setValue(name, _queue.getTotalEnqueuedBytes()); break;
+            case "byteTotalDequeues": setValue(name, _queue.getTotalDequeuedBytes()); break;
+            // byteTxnEnqueues not implemented in Java Broker
+            // byteTxnDequeues not implemented in Java Broker
+            case "bytePersistEnqueues": setValue(name, _queue.getPersistentEnqueuedBytes()); break;
+            case "bytePersistDequeues": setValue(name, _queue.getPersistentDequeuedBytes()); break;
+
+            // Flow-to-disk Statistics not implemented in Java Broker
+            // releases & acquires not implemented in Java Broker
+            // discardsTtl (discardsTtlMessages) not implemented in Java Broker
+            // discardsRing not implemented in Java Broker
+            // discardsLvq not implemented in Java Broker
+            // discardsOverflow not implemented in Java Broker
+            // discardsSubscriber not implemented in Java Broker
+            // discardsPurge not implemented in Java Broker
+            // reroutes not implemented in Java Broker
+
+            case "consumerCount": setValue(name, _queue.getConsumerCount()); break;
+            case "bindingCount": setValue(name, _queue.getBindingCount()); break;
+            case "unackedMessages": setValue(name, _queue.getUnacknowledgedMessages()); break;
+
+            case "messageLatency": setValue(name, _latency.getSummary()); break;
+            // flowStopped not implemented in Java Broker
+            // flowStoppedCount not implemented in Java Broker
+            default: break;
+        }
+    }
 
-        // Statistics
-        setValue("msgTotalEnqueues", _queue.getTotalEnqueuedMessages());
-        setValue("msgTotalDequeues", _queue.getTotalDequeuedMessages());
-        // msgTxnEnqueues not implemented in Java Broker
-        // msgTxnDequeues not implemented in Java Broker
-        setValue("msgPersistEnqueues", _queue.getPersistentEnqueuedMessages());
-        setValue("msgPersistDequeues", _queue.getPersistentDequeuedMessages());
-        setValue("msgDepth", _queue.getQueueDepthMessages());
-        setValue("byteDepth", _queue.getQueueDepthBytes());
-        setValue("byteTotalEnqueues", _queue.getTotalEnqueuedBytes());
-        setValue("byteTotalDequeues", _queue.getTotalDequeuedBytes());
-        // byteTxnEnqueues not implemented in Java Broker
-        // byteTxnDequeues not implemented in Java Broker
-        setValue("bytePersistEnqueues", _queue.getPersistentEnqueuedBytes());
-        setValue("bytePersistDequeues", _queue.getPersistentDequeuedBytes());
-
-        // Flow-to-disk Statistics not implemented in Java Broker
-        // releases & acquires not implemented in Java Broker
-        // discardsTtl (discardsTtlMessages) not implemented in Java Broker
-        // discardsRing not implemented in Java Broker
-        // discardsLvq not implemented in Java Broker
-        // discardsOverflow not implemented in Java Broker
-        // discardsSubscriber not implemented in Java Broker
-        // discardsPurge not implemented in Java Broker
-        // reroutes not implemented in Java Broker
-
-        setValue("consumerCount", _queue.getConsumerCount());
-        setValue("bindingCount", _queue.getBindingCount());
-        setValue("unackedMessages", _queue.getUnacknowledgedMessages());
-
-        setValue("messageLatency", "Not yet implemented");
-        // flowStopped not implemented in Java Broker
-        // flowStoppedCount not implemented in Java Broker
-
-        update(); // TODO only update if statistics have actually changed.
+    /**
+     * Sample the enqueue and dequeue counters of the peer org.apache.qpid.server.model.Queue and the age of its oldest
+     * message, which is how long the next message to be delivered has been waiting. This is called once a second by
+     * the QmfManagementAgent and only writes into preallocated arrays, the derived rates and the messageLatency
+     * summary are computed when the Queue is serialised.
+     * @param time the System.nanoTime() of the sample.
+     */
+    public void sample(final long time)
+    {
+        _rates.set(MSG_ENQUEUES, _queue.getTotalEnqueuedMessages());
+        _rates.set(MSG_DEQUEUES, _queue.getTotalDequeuedMessages());
+        _rates.set(BYTE_ENQUEUES, _queue.getTotalEnqueuedBytes());
+        _rates.set(BYTE_DEQUEUES, _queue.getTotalDequeuedBytes());
+        _rates.commit(time);
+        _latency.record(_queue.getOldestMessageAge(), time);
+    }
+
+    /**
+     * This method maps the org.apache.qpid.server.model.Queue to QMF2 broker properties where possible then
+     * serialises into the underlying Map for transmission via AMQP. This method is called by handleQueryRequest()
+     * in the org.apache.qpid.qmf2.agent.Agent class implementing the main QMF2 Agent behaviour.
+     * 
+     * @return the underlying map. 
+     */
+    @Override
+    public Map<String, Object> mapEncode()
+    {
+        long version = getVersion();
+        refreshAlternateExchange();
+        for (String name : STATISTICS)
+        {
+            refreshStatistic(name);
+        }
+        _rates.refresh(this, null);
+
+        if (getVersion() != version)
+        { // Only mark the Queue as updated if a statistic has actually changed value.
+            update();
+        }
         return super.mapEncode();
     }
+
+    /**
+     * This method is called by the Agent when a Console has asked for only some of the Queue's properties, so only
+     * the selected statistics are retrieved from the org.apache.qpid.server.model.Queue before serialising.
+     *
+     * @param query the QmfQuery whose select list is to be applied, may be null.
+     * @return the underlying map containing only the selected properties.
+     */
+    @Override
+    public Map<String, Object> mapEncode(final QmfQuery query)
+    {
+        if (query == null || query.getSelect() == null)
+        {
+            return mapEncode();
+        }
+
+        long version = getVersion();
+        if (query.isSelected("altExchange"))
+        {
+            refreshAlternateExchange();
+        }
+
+        for (String name : STATISTICS)
+        {
+            if (query.isSelected(name))
+            {
+                refreshStatistic(name);
+            }
+        }
+        _rates.refresh(this, query);
+
+        if (getVersion() != version)
+        { // Only mark the Queue as updated if a statistic has actually changed value.
+            update();
+        }
+        return query.applySelect(super.mapEncode());
+    }
 }
@@ -0,0 +1,212 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.server.qmf2.agentdata;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.agent.QmfAgentData;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfQuery;
+import org.apache.qpid.qmf2.common.QmfType;
+import org.apache.qpid.qmf2.common.SchemaObjectClass;
+import org.apache.qpid.qmf2.common.SchemaProperty;
+
+/**
+ * A RateSampler holds a short history of the values of a set of monotonically increasing counters of a broker
+ * object, from which the rate of change of each counter over the last 1, 10 and 60 seconds is derived.
+ * <p>
+ * The QmfManagementAgent samples the counters once a second. The history is held in two preallocated rings of
+ * primitive longs, a fine ring holding the last 11 samples, which covers the 1 and 10 second windows, and a coarse
+ * ring holding every tenth sample for the last 60 seconds, so taking a sample never allocates and each broker object
+ * only needs 18 samples of history rather than 61. Each rate is computed over the actual interval between the newest
+ * sample and the retained sample whose age is closest to the window, so it isn't skewed by scheduling jitter.
+ * <p>
+ * The rates are published as TYPE_FLOAT properties named {@literal <counter>Rate<window>s}, e.g. msgEnqueueRate10s,
+ * and are only computed when the owning QmfAgentData is serialised.
+ */
+final class RateSampler
+{
+    /**
+     * The windows in seconds over which rates are published.
+     */
+    static final int[] WINDOWS = {1, 10, 60};
+
+    private static final int FINE_SLOTS = 11;
+    private static final int COARSE_SLOTS = 7;
+    private static final int COARSE_EVERY = 10;
+
+    private final String[][] _names;
+    private final int _columns;
+    private final long[] _fineTimes = new long[FINE_SLOTS];
+    private final long[] _fine;
+    private final long[] _coarseTimes = new long[COARSE_SLOTS];
+    private final long[] _coarse;
+    private long _fineCount = 0;
+    private long _coarseCount = 0;
+
+    /**
+     * Create the published property names for a set of counters, which should be done once per class and shared by
+     * all RateSampler instances of that class.
+     * @param counters the counter name prefixes, e.g. "msgEnqueue".
+     * @return the property names indexed by counter then by window.
+     */
+    static String[][] createNames(final String... counters)
+    {
+        String[][] names = new String[counters.length][WINDOWS.length];
+        for (int i = 0; i < counters.length; i++)
+        {
+            for (int j = 0; j < WINDOWS.length; j++)
+            {
+                names[i][j] = counters[i] + "Rate" + WINDOWS[j] + "s";
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Declare the published rate properties in a schema.
+     * @param schema the SchemaObjectClass of the broker object.
+     * @param names the property names returned by createNames().
+     */
+    static void addProperties(final SchemaObjectClass schema, final String[][] names) throws QmfException
+    {
+        for (String[] counter : names)
+        {
+            for (String name : counter)
+            {
+                schema.addProperty(new SchemaProperty(name, QmfType.TYPE_FLOAT));
+            }
+        }
+    }
+
+    /**
+     * Construct a RateSampler.
+     * @param names the property names returned by createNames(), one row per counter.
+     */
+    RateSampler(final String[][] names)
+    {
+        _names = names;
+        _columns = names.length;
+        _fine = new long[FINE_SLOTS*_columns];
+        _coarse = new long[COARSE_SLOTS*_columns];
+    }
+
+    /**
+     * Set the value of a counter in the sample currently being taken.
+     * @param column the index of the counter.
+     * @param value the current value of the counter.
+     */
+    synchronized void set(final int column, final long value)
+    {
+        _fine[(int)(_fineCount % FINE_SLOTS)*_columns + column] = value;
+    }
+
+    /**
+     * Complete the sample currently being taken once all of its counters have been set.
+     * @param time the System.nanoTime() at which the sample was taken.
+     */
+    synchronized void commit(final long time)
+    {
+        int slot = (int)(_fineCount % FINE_SLOTS);
+        _fineTimes[slot] = time;
+        if (_fineCount % COARSE_EVERY == 0)
+        {
+            int coarse = (int)(_coarseCount % COARSE_SLOTS);
+            _coarseTimes[coarse] = time;
+            System.arraycopy(_fine, slot*_columns, _coarse, coarse*_columns, _columns);
+            _coarseCount++;
+        }
+        _fineCount++;
+    }
+
+    /**
+     * Return the rate of change per second of a counter over a window.
+     * @param column the index of the counter.
+     * @param window the window in seconds.
+     * @return the rate of change per second, or zero if fewer than two samples have been taken or the counter has
+     *         gone backwards.
+     */
+    synchronized double getRate(final int column, final int window)
+    {
+        if (_fineCount < 2)
+        {
+            return 0.0d;
+        }
+
+        int newest = (int)((_fineCount - 1) % FINE_SLOTS);
+        long newestTime = _fineTimes[newest];
+        long target = newestTime - window*1000000000L;
+
+        // Find the retained sample whose time is closest to the start of the window, checking the fine ring from
+        // the sample before the newest backwards, then the coarse ring.
+        long bestTime = 0;
+        long bestValue = 0;
+        long bestDistance = Long.MAX_VALUE;
+        long count = Math.min(_fineCount, FINE_SLOTS);
+        for (int i = 1; i < count; i++)
+        {
+            int slot = (int)((_fineCount - 1 - i) % FINE_SLOTS);
+            long distance = Math.abs(_fineTimes[slot] - target);
+            if (distance < bestDistance)
+            {
+                bestDistance = distance;
+                bestTime = _fineTimes[slot];
+                bestValue = _fine[slot*_columns + column];
+            }
+        }
+
+        count = Math.min(_coarseCount, COARSE_SLOTS);
+        for (int i = 0; i < count; i++)
+        {
+            int slot = (int)((_coarseCount - 1 - i) % COARSE_SLOTS);
+            long distance = Math.abs(_coarseTimes[slot] - target);
+            if (_coarseTimes[slot] != newestTime && distance < bestDistance)
+            {
+                bestDistance = distance;
+                bestTime = _coarseTimes[slot];
+                bestValue = _coarse[slot*_columns + column];
+            }
+        }
+
+        long delta = _fine[newest*_columns + column] - bestValue;
+        long interval = newestTime - bestTime;
+        return (delta <= 0 || interval <= 0) ? 0.0d : delta*1000000000.0d/interval;
+    }
+
+    /**
+     * Set the published rate properties of a QmfAgentData.
+     * @param data the QmfAgentData that owns this RateSampler.
+     * @param query the QmfQuery whose select list restricts the properties that are set, may be null.
+     */
+    void refresh(final QmfAgentData data, final QmfQuery query)
+    {
+        for (int i = 0; i < _columns; i++)
+        {
+            for (int j = 0; j < WINDOWS.length; j++)
+            {
+                String name = _names[i][j];
+                if (query == null || query.isSelected(name))
+                {
+                    data.setValue(name, getRate(i, WINDOWS[j]));
+                }
+            }
+        }
+    }
+}
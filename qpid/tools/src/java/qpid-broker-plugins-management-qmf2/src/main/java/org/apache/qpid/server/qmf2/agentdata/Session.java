@@ -105,11 +105,15 @@ public class Session extends QmfAgentData
     public Map<String, Object> mapEncode()
     {
         // Statistics
+        long version = getVersion();
         setValue("unackedMessages", _session.getUnacknowledgedMessages());
         setValue("TxnStarts", _session.getLocalTransactionBegins());
         setValue("TxnRejects", _session.getLocalTransactionRollbacks());
 
-        update(); // TODO Only Update if statistics have changes.
+        if (getVersion() != version)
+        { // Only mark the Session as updated if a statistic has actually changed value.
+            update();
+        }
 
         return super.mapEncode();
     }
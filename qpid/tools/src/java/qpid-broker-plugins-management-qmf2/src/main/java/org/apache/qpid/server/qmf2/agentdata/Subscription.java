@@ -37,7 +37,9 @@ import org.apache.qpid.qmf2.common.QmfEvent;
 import org.apache.qpid.qmf2.common.SchemaEventClass;
 //import org.apache.qpid.qmf2.common.SchemaMethod;
 import org.apache.qpid.qmf2.common.SchemaObjectClass;
-//import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfType;
 
 import org.apache.qpid.server.model.ExclusivityPolicy;
 import org.apache.qpid.server.model.Queue;
@@ -97,8 +99,23 @@ public class Subscription extends QmfAgentData
         // Declare the schema for the QMF2 subscription class.
         _schema = new SchemaObjectClass("org.apache.qpid.broker", "subscription");
 
-        // TODO
-        //_schema.addProperty(new SchemaProperty("whatHappened", QmfType.TYPE_STRING));
+        // Declare the properties that Subscription sets, so that they are stored in the compact layout described by the
+        // schema rather than in a HashMap.
+        try
+        {
+            _schema.addProperty(new SchemaProperty("name", QmfType.TYPE_STRING));
+            _schema.addProperty(new SchemaProperty("browsing", QmfType.TYPE_BOOL));
+            _schema.addProperty(new SchemaProperty("acknowledged", QmfType.TYPE_BOOL));
+            _schema.addProperty(new SchemaProperty("exclusive", QmfType.TYPE_BOOL));
+            _schema.addProperty(new SchemaProperty("creditMode", QmfType.TYPE_STRING));
+            _schema.addProperty(new SchemaProperty("sessionRef", QmfType.TYPE_MAP));
+            _schema.addProperty(new SchemaProperty("queueRef", QmfType.TYPE_MAP));
+            _schema.addProperty(new SchemaProperty("delivered", QmfType.TYPE_INT));
+        }
+        catch (QmfException qmfe)
+        { // Only thrown for invalid SchemaProperty options, which aren't used here.
+            _log.info("QmfException {} caught in Subscription static initialiser", qmfe.getMessage());
+        }
 
         // Declare the schema for the QMF2 subscribe Event class.
         _subscribeSchema = new SchemaEventClass("org.apache.qpid.broker", "subscribe");
@@ -201,11 +218,15 @@ public class Subscription extends QmfAgentData
     public Map<String, Object> mapEncode()
     {
         // Statistics 
+        long version = getVersion();
         setValue("delivered", _subscription.getMessagesOut());
 
         setValue("exclusive", _exclusive);
 
-        update(); // TODO Only Update if statistics have changes.
+        if (getVersion() != version)
+        { // Only mark the Subscription as updated if a statistic has actually changed value.
+            update();
+        }
         return super.mapEncode();
     }
 }
@@ -128,6 +128,12 @@ public interface HttpTransaction
      */
     public String getRequestURI();
 
+    /**
+     * Returns the decoded query string that is contained in the request URL after the path.
+     * @return a String containing the query string or null if the URL contains no query string.
+     */
+    public String getQueryString();
+
     /**
      * Sets a response header with the given name and value. If the header had already been set, the new value
      * overwrites the previous one.
@@ -27,6 +27,7 @@ import org.slf4j.LoggerFactory;
 // Misc Imports
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -36,6 +37,9 @@ import java.util.concurrent.ConcurrentHashMap;
 import org.apache.qpid.qmf2.common.ObjectId;
 import org.apache.qpid.qmf2.common.QmfData;
 import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfQuery;
+import org.apache.qpid.qmf2.common.QmfQueryTarget;
+import org.apache.qpid.qmf2.common.SchemaClassId;
 import org.apache.qpid.qmf2.console.Agent;
 import org.apache.qpid.qmf2.console.Console;
 import org.apache.qpid.qmf2.console.MethodResult;
@@ -106,6 +110,10 @@ import static java.net.HttpURLConnection.HTTP_INTERNAL_ERROR;
  *      This is the REST equivalent of Console.getObjects(packageName, className) which searches across all Agents 
  *      for the specified className in the package packageName.
  *
+ *      Both of the above requests may optionally have a query string of the form ?select=&lt;property&gt;,&lt;property&gt;
+ *      e.g. ?select=name,msgDepth,consumerCount in which case only the listed properties of each object are returned.
+ *      This is the REST equivalent of Console.getObjects(query) where query is a QmfQuery with a select list.
+ *
  * GET: &lt;host&gt;:&lt;port&gt;/qpid/connection/&lt;name&gt;/object/&lt;ObjectId&gt;
  *      This method retrieves (as a JSON string) the QmfConsoleData object with the specified &lt;ObjectId&gt;
  *      using the QMF2 Console associated with the Qpid Connection Object with the name &lt;name&gt;.
@@ -192,7 +200,16 @@ public final class QpidServer implements Server
     private void sendGetObjectsResponse(final HttpTransaction tx, final Console console, final String path) throws IOException
     {
         String[] params = path.split("/");
-        if (params.length == 1)
+        List<String> select = getSelect(tx.getQueryString());
+        if (select != null && (params.length == 1 || params.length == 2))
+        { // With a select list we call getObjects(query) with a QmfQuery for the className or packageName, className
+            SchemaClassId classId = (params.length == 1) ? new SchemaClassId(params[0]) :
+                                                           new SchemaClassId(params[0], params[1]);
+            QmfQuery query = new QmfQuery(QmfQueryTarget.OBJECT, classId);
+            query.setSelect(select);
+            tx.sendResponse(HTTP_OK, "application/json", JSON.fromObject(console.getObjects(query)));
+        }
+        else if (params.length == 1)
         { // With one parameter we call getObjects(className)
             tx.sendResponse(HTTP_OK, "application/json", JSON.fromObject(console.getObjects(params[0])));
         }
@@ -210,6 +227,27 @@ public final class QpidServer implements Server
         }
     }
 
+    /**
+     * Extract the list of property names from a "select=name,msgDepth,consumerCount" parameter in a query string.
+     * @param queryString the decoded query string of the request, may be null.
+     * @return the list of property names, or null if the query string has no select parameter.
+     */
+    private static List<String> getSelect(final String queryString)
+    {
+        if (queryString != null)
+        {
+            for (String param : queryString.split("&"))
+            {
+                if (param.startsWith("select="))
+                {
+                    String value = param.substring(7).trim();
+                    return value.length() == 0 ? null : Arrays.asList(value.split("\\s*,\\s*"));
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      * Called by the Web Server to allow a Server to handle a GET request.
      * The HTTP GET URL structure for the REST API is specified above in the overall class documentation.
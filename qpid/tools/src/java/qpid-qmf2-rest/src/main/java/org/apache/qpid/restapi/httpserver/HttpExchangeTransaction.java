@@ -240,6 +240,15 @@ public final class HttpExchangeTransaction implements HttpTransaction
         return _exchange.getRequestURI().getPath();
     }
 
+    /**
+     * Returns the decoded query string that is contained in the request URL after the path.
+     * @return a String containing the query string or null if the URL contains no query string.
+     */
+    public String getQueryString()
+    {
+        return _exchange.getRequestURI().getQuery();
+    }
+
     /**
      * Sets a response header with the given name and value. If the header had already been set, the new value
      * overwrites the previous one.
@@ -0,0 +1,223 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.test;
+
+import javax.jms.Connection;
+
+// Misc Imports
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.agent.QmfAgentData;
+import org.apache.qpid.qmf2.common.QmfEventListener;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfQuery;
+import org.apache.qpid.qmf2.common.QmfQueryTarget;
+import org.apache.qpid.qmf2.common.QmfType;
+import org.apache.qpid.qmf2.common.SchemaObjectClass;
+import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.qmf2.common.WorkItem;
+import org.apache.qpid.qmf2.console.Agent;
+import org.apache.qpid.qmf2.console.Console;
+import org.apache.qpid.qmf2.console.QmfConsoleData;
+import org.apache.qpid.qmf2.console.SubscribeIndication;
+import org.apache.qpid.qmf2.console.SubscribeParams;
+import org.apache.qpid.qmf2.console.SubscriptionIndicationWorkItem;
+import org.apache.qpid.qmf2.util.ConnectionHelper;
+import static org.apache.qpid.qmf2.common.WorkItem.WorkItemType.*;
+
+/**
+ * This class provides a test of Subscriptions created with the "delta" option, where the Agent only sends the
+ * properties of objects that have changed and the Console merges them into its copy of each object.
+ * <p>
+ * The test starts an Agent holding a few "worker" objects and subscribes to the workers whose state is "active".
+ * It then changes each worker's count every round, so after the first indication the Agent only sends the count.
+ * Part way through one worker becomes "idle", so it no longer matches the Subscription's query, and later becomes
+ * "active" again, when the Agent should send it in full once more. Every object passed to the application should
+ * be complete, with the merged count matching the latest value set on the Agent.
+ * <p>
+ * N.B. The Agent and Console talk through a broker, so a broker needs to be running for this test.
+ */
+public final class DeltaSubscriptionTestConsole implements QmfEventListener
+{
+    private static final int WORKERS = 3;
+    private static final int ROUNDS = 10;
+
+    private Console _console;
+    private final Map<String, QmfConsoleData> _workers = new ConcurrentHashMap<String, QmfConsoleData>();
+    private volatile int _incomplete = 0;
+
+    public DeltaSubscriptionTestConsole(String url)
+    {
+        try
+        {
+            System.out.println("** Starting DeltaSubscriptionTestConsole used to test delta Subscriptions **");
+
+            Connection agentConnection = ConnectionHelper.createConnection(url, "{reconnect: true}");
+            org.apache.qpid.qmf2.agent.Agent agent = new org.apache.qpid.qmf2.agent.Agent(null, 5);
+            agent.setVendor("profitron.com");
+            agent.setProduct("delta");
+            SchemaObjectClass schema = new SchemaObjectClass("com.profitron.delta", "worker");
+            schema.addProperty(new SchemaProperty("name", QmfType.TYPE_STRING));
+            schema.addProperty(new SchemaProperty("state", QmfType.TYPE_STRING));
+            schema.addProperty(new SchemaProperty("count", QmfType.TYPE_INT));
+            schema.setIdNames("name");
+            agent.registerObjectClass(schema);
+
+            List<QmfAgentData> workers = new ArrayList<QmfAgentData>();
+            for (int i = 0; i < WORKERS; i++)
+            {
+                QmfAgentData worker = new QmfAgentData(schema);
+                worker.setValue("name", "worker-" + i);
+                worker.setValue("state", "active");
+                worker.setValue("count", 0);
+                agent.addObject(worker);
+                workers.add(worker);
+            }
+            agent.setConnection(agentConnection);
+
+            Connection connection = ConnectionHelper.createConnection(url, "{reconnect: true}");
+            _console = new Console(this);
+            _console.addConnection(connection);
+
+            Agent delta = _console.findAgent(agent.getName(), 10);
+            if (delta == null)
+            {
+                System.out.println("delta Agent not found");
+                System.exit(1);
+            }
+
+            QmfQuery query = new QmfQuery(QmfQueryTarget.OBJECT, "['eq', 'state', ['quote', 'active']]");
+            SubscribeParams params = _console.createSubscription(delta, query, "workers",
+                                                                 "{publishInterval:1, delta:true}");
+            System.out.println("subscriptionId = " + params.getSubscriptionId());
+
+            QmfAgentData changing = workers.get(WORKERS - 1);
+            for (int round = 1; round <= ROUNDS; round++)
+            {
+                if (round == 3)
+                {
+                    System.out.println("Setting " + changing.getStringValue("name") + " idle");
+                    changing.setValue("state", "idle");
+                }
+                else if (round == 6)
+                {
+                    System.out.println("Setting " + changing.getStringValue("name") + " active");
+                    changing.setValue("state", "active");
+                }
+
+                for (QmfAgentData worker : workers)
+                {
+                    worker.setValue("count", round);
+                    worker.update();
+                }
+
+                try
+                {
+                    Thread.sleep(2000);
+                }
+                catch (InterruptedException ie)
+                {
+                }
+            }
+
+            _console.cancelSubscription(params.getSubscriptionId());
+            agent.destroy();
+
+            boolean passed = _incomplete == 0 && _workers.size() == WORKERS;
+            for (QmfConsoleData worker : _workers.values())
+            {
+                long count = worker.getLongValue("count");
+                System.out.println(worker.getStringValue("name") + " state = " + worker.getStringValue("state") +
+                                   ", count = " + count);
+                passed = passed && count == ROUNDS;
+            }
+
+            if (passed)
+            {
+                System.out.println("DeltaSubscriptionTestConsole test passed");
+            }
+            else
+            {
+                System.out.println("DeltaSubscriptionTestConsole test failed, " + _incomplete +
+                                   " incomplete objects received, expected every worker to have count = " + ROUNDS);
+            }
+        }
+        catch (QmfException qmfe)
+        {
+            System.err.println("QmfException " + qmfe.getMessage() + ": DeltaSubscriptionTestConsole failed");
+            System.exit(1);
+        }
+    }
+
+    public void onEvent(WorkItem wi)
+    {
+        if (wi.getType() == SUBSCRIPTION_INDICATION)
+        {
+            SubscriptionIndicationWorkItem item = (SubscriptionIndicationWorkItem)wi;
+            SubscribeIndication indication = item.getSubscribeIndication();
+
+            // The Console should have merged any deltas, so every object should have all of its properties.
+            List<QmfConsoleData> objects = indication.getData();
+            for (QmfConsoleData object : objects)
+            {
+                if (object.hasValue("name") && object.hasValue("state") && object.hasValue("count"))
+                {
+                    String name = object.getStringValue("name");
+                    System.out.println("indication " + name + " count = " + object.getLongValue("count"));
+                    _workers.put(name, object);
+                }
+                else
+                {
+                    System.out.println("indication contained an incomplete object " + object.getObjectId());
+                    _incomplete++;
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        //System.out.println ("Setting log level to FATAL");
+        System.setProperty("amqj.logging.level", "FATAL");
+
+        String url = (args.length == 1) ? args[0] : "localhost";
+        DeltaSubscriptionTestConsole test = new DeltaSubscriptionTestConsole(url);
+
+        BufferedReader commandLine = new BufferedReader(new InputStreamReader(System.in));
+        try
+        { // Blocks here until return is pressed
+            System.out.println("Hit Return to exit");
+            String s = commandLine.readLine();
+            System.exit(0);
+        }
+        catch (IOException e)
+        {
+            System.out.println ("DeltaSubscriptionTestConsole main(): IOException: " + e.getMessage());
+        }
+
+        System.out.println("*** Ending DeltaSubscriptionTestConsole ***");
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.test;
+
+// Misc Imports
+import java.util.Collections;
+import java.util.HashMap;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.ObjectId;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfType;
+import org.apache.qpid.qmf2.common.SchemaObjectClass;
+import org.apache.qpid.qmf2.common.SchemaProperty;
+
+import org.apache.qpid.qmf2.agent.QmfAgentData;
+
+/**
+ * A benchmark for the heap footprint of QmfAgentData objects.
+ * <p>
+ * This creates a large number of QmfAgentData objects (100000 by default) populated like the broker management
+ * plugin's queue objects and measures the heap retained per object, first with the compact storage laid out by
+ * their SchemaObjectClass and then with the properties copied back into a HashMap, as QmfData used to store them.
+ * The difference in the bytes per object is the saving from the compact storage. A third run uses a schema that
+ * declares no properties, which should match the HashMap run as such objects keep using a HashMap.
+ * <p>
+ * The measurement is based on Runtime.totalMemory() - Runtime.freeMemory() after repeated calls to System.gc(), so
+ * it is approximate and best run with a fixed heap, e.g. -Xms1g -Xmx1g.
+ * <p>
+ * Usage: FootprintBenchmark [objectCount]
+ */
+public final class FootprintBenchmark
+{
+    private static final String[] STATISTICS = {
+        "msgTotalEnqueues", "msgTotalDequeues", "msgPersistEnqueues", "msgPersistDequeues", "msgDepth", "byteDepth",
+        "byteTotalEnqueues", "byteTotalDequeues", "bytePersistEnqueues", "bytePersistDequeues", "consumerCount",
+        "bindingCount", "unackedMessages"
+    };
+
+    /**
+     * A QmfAgentData that stores its properties in a HashMap, as QmfData did before it used the schema's layout.
+     */
+    private static final class HashMapAgentData extends QmfAgentData
+    {
+        public HashMapAgentData(final SchemaObjectClass schema)
+        {
+            super(schema);
+            _values = new HashMap<String, Object>(_values);
+        }
+    }
+
+    private final SchemaObjectClass _declared;
+    private final SchemaObjectClass _undeclared;
+
+    public FootprintBenchmark() throws QmfException
+    {
+        _declared = new SchemaObjectClass("org.apache.qpid.broker", "queue");
+        _declared.addProperty(new SchemaProperty("name", QmfType.TYPE_STRING));
+        _declared.addProperty(new SchemaProperty("durable", QmfType.TYPE_BOOL));
+        _declared.addProperty(new SchemaProperty("autoDelete", QmfType.TYPE_BOOL));
+        _declared.addProperty(new SchemaProperty("exclusive", QmfType.TYPE_BOOL));
+        _declared.addProperty(new SchemaProperty("arguments", QmfType.TYPE_MAP));
+        for (String statistic : STATISTICS)
+        {
+            _declared.addProperty(new SchemaProperty(statistic, QmfType.TYPE_INT));
+        }
+        _declared.setIdNames("name");
+
+        _undeclared = new SchemaObjectClass("org.apache.qpid.broker", "queue");
+        _undeclared.setIdNames("name");
+    }
+
+    private static long usedMemory()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++)
+        {
+            System.gc();
+            try
+            {
+                Thread.sleep(50);
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void populate(final QmfAgentData object, final int i)
+    {
+        object.setValue("name", "queue-" + i);
+        object.setValue("durable", (i % 3) == 0);
+        object.setValue("autoDelete", false);
+        object.setValue("exclusive", false);
+        object.setValue("arguments", Collections.EMPTY_MAP);
+        for (int j = 0; j < STATISTICS.length; j++)
+        { // Distinct values outside the Long cache, as real statistics would be.
+            object.setValue(STATISTICS[j], (long)i*STATISTICS.length + j + 1000);
+        }
+        object.setObjectId(new ObjectId("benchmark", "org.apache.qpid.broker:queue:queue-" + i, 0));
+    }
+
+    private double measure(final int objectCount, final String type)
+    {
+        QmfAgentData[] objects = new QmfAgentData[objectCount];
+        long before = usedMemory();
+        for (int i = 0; i < objectCount; i++)
+        {
+            QmfAgentData object = type.equals("hashmap") ? new HashMapAgentData(_declared) :
+                                  new QmfAgentData(type.equals("compact") ? _declared : _undeclared);
+            populate(object, i);
+            objects[i] = object;
+        }
+        long after = usedMemory();
+
+        // Check that the objects encode the same way whichever storage they use, and keep them reachable until now.
+        if (objects[objectCount - 1].mapEncode().size() != 6 ||
+            objects[objectCount - 1].getLongValue("msgDepth") != (long)(objectCount - 1)*STATISTICS.length + 1004)
+        {
+            System.out.println("UNEXPECTED VALUES for " + type);
+        }
+        return (double)(after - before)/objectCount;
+    }
+
+    public void run(final int objectCount)
+    {
+        // Warm up so that class loading and JIT compilation don't skew the first measurement.
+        measure(objectCount/10, "compact");
+        measure(objectCount/10, "hashmap");
+
+        double compact = measure(objectCount, "compact");
+        double hashMap = measure(objectCount, "hashmap");
+        double undeclared = measure(objectCount, "undeclared");
+        System.out.printf("%-40s %12s%n", "storage", "bytes/object");
+        System.out.printf("%-40s %12.0f%n", "HashMap (before)", hashMap);
+        System.out.printf("%-40s %12.0f%n", "compact schema layout (after)", compact);
+        System.out.printf("%-40s %12.0f%n", "schema declaring no properties", undeclared);
+        System.out.printf("saving %.0f bytes/object (%.0f%%)%n", hashMap - compact, 100.0*(hashMap - compact)/hashMap);
+    }
+
+    public static void main(String[] args)
+    {
+        //System.out.println ("Setting log level to FATAL");
+        System.setProperty("amqj.logging.level", "FATAL");
+
+        int objectCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+        System.out.println("*** Starting FootprintBenchmark with " + objectCount + " objects ***");
+        try
+        {
+            FootprintBenchmark benchmark = new FootprintBenchmark();
+            benchmark.run(objectCount);
+        }
+        catch (QmfException qmfe)
+        {
+            System.err.println("QmfException " + qmfe.getMessage() + " caught: FootprintBenchmark failed");
+        }
+
+        System.out.println("*** Ending FootprintBenchmark ***");
+    }
+}
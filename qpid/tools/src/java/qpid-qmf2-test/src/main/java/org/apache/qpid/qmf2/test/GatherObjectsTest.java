@@ -0,0 +1,174 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.test;
+
+import javax.jms.Connection;
+
+// Misc Imports
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.agent.QmfAgentData;
+import org.apache.qpid.qmf2.common.QmfEventListener;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfType;
+import org.apache.qpid.qmf2.common.SchemaClassId;
+import org.apache.qpid.qmf2.common.SchemaObjectClass;
+import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.qmf2.common.WorkItem;
+import org.apache.qpid.qmf2.console.Agent;
+import org.apache.qpid.qmf2.console.Console;
+import org.apache.qpid.qmf2.console.QueryResult;
+import org.apache.qpid.qmf2.util.ConnectionHelper;
+
+/**
+ * This class tests Console.gatherObjects() and Console.getObjectsAsync() when one of the Agents being queried
+ * doesn't respond. It queries the broker ManagementAgent, which is live, together with an Agent that it starts and
+ * then stops responding by removing its connection. The Console still knows about the stopped Agent until its
+ * heartbeat times out, so the query to it expires and it should be reported in the QueryResult's timed out Agents.
+ *
+ * N.B. The Console gets the broker's objects from a live broker so a broker needs to be running for this test.
+ */
+public final class GatherObjectsTest implements QmfEventListener
+{
+    private static final int TIMEOUT = 5;
+
+    private Console _console;
+
+    public GatherObjectsTest(String url)
+    {
+        try
+        {
+            System.out.println("*** Starting GatherObjectsTest used to test queries to live and dead Agents ***");
+
+            // Start an Agent with a long heartbeat interval so that the Console doesn't notice that it has stopped.
+            Connection agentConnection = ConnectionHelper.createConnection(url, "{reconnect: true}");
+            org.apache.qpid.qmf2.agent.Agent deadAgent = new org.apache.qpid.qmf2.agent.Agent(null, 300);
+            deadAgent.setVendor("profitron.com");
+            deadAgent.setProduct("gather");
+            SchemaObjectClass schema = new SchemaObjectClass("com.profitron.gather", "control");
+            schema.addProperty(new SchemaProperty("name", QmfType.TYPE_STRING));
+            schema.setIdNames("name");
+            deadAgent.registerObjectClass(schema);
+            QmfAgentData control = new QmfAgentData(schema);
+            control.setValue("name", "control");
+            deadAgent.addObject(control);
+            deadAgent.setConnection(agentConnection);
+
+            Connection connection = ConnectionHelper.createConnection(url, "{reconnect: true}");
+            _console = new Console(this);
+            _console.addConnection(connection);
+
+            Agent broker = _console.findAgent("broker");
+            Agent dead = _console.findAgent(deadAgent.getName(), 10);
+            if (broker == null || dead == null)
+            {
+                System.out.println("Failed to find the broker and test Agents");
+                System.exit(1);
+            }
+
+            // Stop the Agent responding, the Console won't remove it until its heartbeat times out.
+            deadAgent.removeConnection(agentConnection);
+
+            List<Agent> agents = new ArrayList<Agent>();
+            agents.add(broker);
+            agents.add(dead);
+
+            SchemaClassId query = new SchemaClassId("org.apache.qpid.broker", "broker");
+            QueryResult result = _console.gatherObjects(query, TIMEOUT, agents);
+            check("gatherObjects()", result, dead);
+
+            try
+            {
+                result = _console.getObjectsAsync(query, TIMEOUT, agents).get();
+                check("getObjectsAsync()", result, dead);
+            }
+            catch (InterruptedException ie)
+            {
+                System.out.println("getObjectsAsync() test interrupted");
+            }
+            catch (ExecutionException ee)
+            {
+                System.out.println("getObjectsAsync() test failed: " + ee.getCause().getMessage());
+            }
+
+            deadAgent.destroy();
+        }
+        catch (QmfException qmfe)
+        {
+            System.err.println("QmfException " + qmfe.getMessage() + ": GatherObjectsTest failed");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Check that only the dead Agent is reported as having timed out and that the broker's object was returned.
+     */
+    private void check(final String call, final QueryResult result, final Agent dead)
+    {
+        List<Agent> timedOut = result.getTimedOutAgents();
+        System.out.println(call + " returned " + result.getObjects().size() + " objects, complete = " +
+                           result.isComplete() + ", timed out Agents = " + timedOut.size());
+        for (Agent agent : timedOut)
+        {
+            System.out.println("Timed out Agent: " + agent.getName());
+        }
+
+        if (result.getObjects().size() == 1 && !result.isComplete() && timedOut.size() == 1 && timedOut.get(0) == dead)
+        {
+            System.out.println(call + " test passed");
+        }
+        else
+        {
+            System.out.println(call + " test failed, expected the broker object and the dead Agent to have timed out");
+        }
+    }
+
+    public void onEvent(WorkItem wi)
+    {
+    }
+
+    public static void main(String[] args)
+    {
+        //System.out.println ("Setting log level to FATAL");
+        System.setProperty("amqj.logging.level", "FATAL");
+
+        String url = (args.length == 1) ? args[0] : "localhost";
+        GatherObjectsTest test = new GatherObjectsTest(url);
+
+        BufferedReader commandLine = new BufferedReader(new InputStreamReader(System.in));
+        try
+        { // Blocks here until return is pressed
+            System.out.println("Hit Return to exit");
+            String s = commandLine.readLine();
+            System.exit(0);
+        }
+        catch (IOException e)
+        {
+            System.out.println ("GatherObjectsTest main(): IOException: " + e.getMessage());
+        }
+
+        System.out.println("*** Ending GatherObjectsTest ***");
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.test;
+
+// Misc Imports
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+// Need the following to emulate the way amqp/list messages used to be encoded and decoded
+import org.apache.qpid.transport.codec.BBDecoder;
+import org.apache.qpid.transport.codec.BBEncoder;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.AMQPMessage;
+import org.apache.qpid.qmf2.common.ObjectId;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfType;
+import org.apache.qpid.qmf2.common.SchemaObjectClass;
+import org.apache.qpid.qmf2.common.SchemaProperty;
+
+import org.apache.qpid.qmf2.agent.QmfAgentData;
+
+/**
+ * A microbenchmark for amqp/list encoding and decoding, which dominates the cost of large Query responses such as
+ * those sent by BigPayloadAgentTest.
+ * <p>
+ * For lists of 10, 100, 1000, 10000 and 100000 mapEncoded QmfAgentData objects this times:
+ * <pre>
+ * encode (copy)  - the way setList() used to encode, into a new BBEncoder(1024) that grows as it goes, then copying
+ *                  the encoded segment into a byte[] to pass to BytesMessage.writeBytes().
+ * encode (pool)  - AMQPMessage.encodeList(), which setList() now uses, encoding into a per thread pooled BBEncoder
+ *                  whose buffer is then written without copying.
+ * decode (copy)  - the way getList() used to decode, copying the body into a byte[] (as BytesMessage.readBytes()
+ *                  does) then decoding from that.
+ * decode (view)  - AMQPMessage.decodeList(), which getList() now uses, decoding straight from the body's buffer.
+ * </pre>
+ * As well as the time per list, the bytes allocated per list are shown where the JVM can report them, which shows
+ * the copies that have been eliminated more directly than the timings.
+ * <p>
+ * Usage: ListCodecBenchmark [rounds]
+ */
+public final class ListCodecBenchmark
+{
+    private static final int[] SIZES = {10, 100, 1000, 10000, 100000};
+
+    /**
+     * The number of objects encoded or decoded in each timed run, the number of iterations of each run is chosen
+     * so that small lists get enough iterations to be timed reasonably accurately.
+     */
+    private static final int OBJECTS_PER_RUN = 200000;
+
+    private final com.sun.management.ThreadMXBean _threadMXBean;
+
+    public ListCodecBenchmark()
+    {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean &&
+            ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported())
+        {
+            _threadMXBean = (com.sun.management.ThreadMXBean)bean;
+            _threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        }
+        else
+        {
+            _threadMXBean = null;
+        }
+    }
+
+    /**
+     * Create a list of mapEncoded QmfAgentData objects resembling a Query response for broker queues.
+     */
+    private static List<Map<String, Object>> createList(final int size) throws QmfException
+    {
+        SchemaObjectClass queue = new SchemaObjectClass("org.apache.qpid.broker", "queue");
+        queue.addProperty(new SchemaProperty("name", QmfType.TYPE_STRING));
+        queue.addProperty(new SchemaProperty("durable", QmfType.TYPE_BOOL));
+        queue.addProperty(new SchemaProperty("msgDepth", QmfType.TYPE_INT));
+        queue.addProperty(new SchemaProperty("byteDepth", QmfType.TYPE_INT));
+        queue.addProperty(new SchemaProperty("consumerCount", QmfType.TYPE_INT));
+        queue.setIdNames("name");
+
+        List<Map<String, Object>> list = new ArrayList<Map<String, Object>>(size);
+        for (int i = 0; i < size; i++)
+        {
+            QmfAgentData object = new QmfAgentData(queue);
+            object.setValue("name", "queue-" + i);
+            object.setValue("durable", (i % 3) == 0);
+            object.setValue("msgDepth", (long)(i % 10000));
+            object.setValue("byteDepth", (long)(i % 10000) * 256);
+            object.setValue("consumerCount", i % 5);
+            object.setObjectId(new ObjectId("benchmark", "org.apache.qpid.broker:queue:queue-" + i, 0));
+            list.add(object.mapEncode());
+        }
+        return list;
+    }
+
+    /**
+     * Encode the way that setList() used to, returning the byte[] that would have been written to the Message.
+     */
+    @SuppressWarnings("unchecked")
+    private static byte[] encodeByCopy(final List<?> list)
+    {
+        BBEncoder encoder = new BBEncoder(1024);
+        encoder.writeList((List<Object>)list);
+        ByteBuffer buf = encoder.segment();
+        byte[] data = new byte[buf.limit()];
+        buf.get(data);
+        return data;
+    }
+
+    /**
+     * Decode the way that getList() used to, copying the body before decoding it.
+     */
+    private static List<Object> decodeByCopy(final ByteBuffer body)
+    {
+        byte[] data = new byte[body.remaining()];
+        body.duplicate().get(data);
+        BBDecoder decoder = new BBDecoder();
+        decoder.init(ByteBuffer.wrap(data));
+        return decoder.readList();
+    }
+
+    private long allocatedBytes()
+    {
+        return _threadMXBean == null ? 0 : _threadMXBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * A timing result, the time and bytes allocated per list.
+     */
+    private static final class Result
+    {
+        double micros = Double.MAX_VALUE;
+        long allocated = Long.MAX_VALUE;
+        int check = 0;
+
+        void record(final long nanos, final long bytes, final int iterations)
+        {
+            micros = Math.min(micros, nanos/1000.0/iterations);
+            allocated = Math.min(allocated, bytes/iterations);
+        }
+    }
+
+    public void run(final int rounds) throws QmfException
+    {
+        System.out.printf("%8s %10s %14s %14s %14s %14s %14s %14s %14s %14s%n", "size", "bytes",
+                          "enc copy us", "enc pool us", "dec copy us", "dec view us",
+                          "enc copy B", "enc pool B", "dec copy B", "dec view B");
+        for (int size : SIZES)
+        {
+            List<Map<String, Object>> list = createList(size);
+            ByteBuffer body = ByteBuffer.wrap(encodeByCopy(list));
+            int iterations = Math.max(5, OBJECTS_PER_RUN/size);
+
+            Result encodeCopy = new Result();
+            Result encodePool = new Result();
+            Result decodeCopy = new Result();
+            Result decodeView = new Result();
+
+            // The first round is a warm up, then keep the best of the remaining rounds, alternating the
+            // variants so that the results aren't skewed too much by JIT compilation or GC favouring one of them.
+            for (int round = 0; round <= rounds; round++)
+            {
+                long bytes = allocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < iterations; i++)
+                {
+                    encodeCopy.check += encodeByCopy(list).length;
+                }
+                encodeCopy.record(System.nanoTime() - start, allocatedBytes() - bytes, iterations);
+
+                bytes = allocatedBytes();
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++)
+                {
+                    encodePool.check += AMQPMessage.encodeList(list).remaining();
+                }
+                encodePool.record(System.nanoTime() - start, allocatedBytes() - bytes, iterations);
+
+                bytes = allocatedBytes();
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++)
+                {
+                    decodeCopy.check += decodeByCopy(body).size();
+                }
+                decodeCopy.record(System.nanoTime() - start, allocatedBytes() - bytes, iterations);
+
+                bytes = allocatedBytes();
+                start = System.nanoTime();
+                for (int i = 0; i < iterations; i++)
+                {
+                    decodeView.check += AMQPMessage.decodeList(body).size();
+                }
+                decodeView.record(System.nanoTime() - start, allocatedBytes() - bytes, iterations);
+            }
+
+            String mismatch = (encodeCopy.check == encodePool.check && decodeCopy.check == decodeView.check) ?
+                              "" : " MISMATCH";
+            System.out.printf("%8d %10d %14.1f %14.1f %14.1f %14.1f %14d %14d %14d %14d%s%n", size, body.remaining(),
+                              encodeCopy.micros, encodePool.micros, decodeCopy.micros, decodeView.micros,
+                              encodeCopy.allocated, encodePool.allocated, decodeCopy.allocated, decodeView.allocated,
+                              mismatch);
+        }
+
+        if (_threadMXBean == null)
+        {
+            System.out.println("\nThis JVM can't report allocated bytes, so the allocation columns are all zero");
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        //System.out.println ("Setting log level to FATAL");
+        System.setProperty("amqj.logging.level", "FATAL");
+
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+
+        System.out.println("*** Starting ListCodecBenchmark ***");
+        try
+        {
+            ListCodecBenchmark benchmark = new ListCodecBenchmark();
+            benchmark.run(rounds);
+        }
+        catch (QmfException qmfe)
+        {
+            System.err.println("QmfException " + qmfe.getMessage() + " caught: ListCodecBenchmark failed");
+        }
+
+        System.out.println("*** Ending ListCodecBenchmark ***");
+    }
+}
@@ -40,6 +40,7 @@ import org.apache.qpid.qmf2.common.WorkItem;
 import org.apache.qpid.qmf2.console.Agent;
 import org.apache.qpid.qmf2.console.AgentAddedWorkItem;
 import org.apache.qpid.qmf2.console.Console;
+import org.apache.qpid.qmf2.console.ObjectIterator;
 import org.apache.qpid.qmf2.console.QmfConsoleData;
 import org.apache.qpid.qmf2.util.ConnectionHelper;
 
@@ -113,6 +114,22 @@ public final class PartialGetObjectsTest implements QmfEventListener
                 System.out.println("Queue: " + name);
             }
 
+            // Finally we iterate the queue objects using streamObjects(), which decodes the partial responses lazily
+            // as we iterate, this should return the same number of objects as the previous calls.
+            Agent agent = _console.findAgent("broker");
+            if (agent != null)
+            {
+                int count = 0;
+                ObjectIterator i = _console.streamObjects(new SchemaClassId("org.apache.qpid.broker", "queue"), agent);
+                while (i.hasNext())
+                {
+                    QmfConsoleData queue = i.next();
+                    System.out.println("Queue: " + queue.getStringValue("name"));
+                    count++;
+                }
+                System.out.println("Call 3 Returned " + count + " objects, complete = " + i.isComplete());
+            }
+
         }
         catch (QmfException qmfe)
         {
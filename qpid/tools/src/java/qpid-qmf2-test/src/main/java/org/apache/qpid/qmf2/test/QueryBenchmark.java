@@ -0,0 +1,264 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.test;
+
+// Misc Imports
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.ObjectId;
+import org.apache.qpid.qmf2.common.QmfData;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfQuery;
+import org.apache.qpid.qmf2.common.QmfQueryTarget;
+import org.apache.qpid.qmf2.common.QmfType;
+import org.apache.qpid.qmf2.common.SchemaObjectClass;
+import org.apache.qpid.qmf2.common.SchemaProperty;
+
+import org.apache.qpid.qmf2.agent.QmfAgentData;
+
+/**
+ * A microbenchmark for QmfQuery predicate evaluation.
+ * <p>
+ * This creates a large number of QmfAgentData objects (100000 by default) and times the evaluation of a number of
+ * typical predicates over all of them, first using the compiled Expressions created by QmfQuery and then using a
+ * "String round-trip" evaluator that works the way the Expressions used to, converting every operand to a String
+ * (and parsing it back to a double for comparisons) and falling back to mapEncode() for keys that aren't properties.
+ * Finally the compiled Expressions are evaluated by several threads sharing the same QmfQuery instances to check
+ * that evaluation is reentrant, which should give the same match counts as the single threaded run.
+ * <p>
+ * Usage: QueryBenchmark [objectCount] [iterations] [threads]
+ */
+public final class QueryBenchmark
+{
+    private static final String[][] PREDICATES = {
+        {"['gt', 'msgDepth', 5000]",                        "gt", "msgDepth", "5000"},
+        {"['le', 'consumerCount', 2]",                      "le", "consumerCount", "2"},
+        {"['eq', 'name', ['quote', 'queue-50000']]",        "eq", "name", "queue-50000"},
+        {"['eq', 'durable', ['quote', 'true']]",            "eq", "durable", "true"},
+        {"['lt', 'byteDepth', 1.5e6]",                      "lt", "byteDepth", "1500000.0"},
+        {"['eq', 'missing', 0]",                            "eq", "missing", "0"},
+        {"['eq', '_class_name', ['quote', 'queue']]",       "eq", "_class_name", "queue"}
+    };
+
+    private final List<QmfAgentData> _objects;
+    private final List<QmfQuery> _queries = new ArrayList<QmfQuery>();
+
+    public QueryBenchmark(final int objectCount) throws QmfException
+    {
+        SchemaObjectClass queue = new SchemaObjectClass("org.apache.qpid.broker", "queue");
+        queue.addProperty(new SchemaProperty("name", QmfType.TYPE_STRING));
+        queue.addProperty(new SchemaProperty("durable", QmfType.TYPE_BOOL));
+        queue.addProperty(new SchemaProperty("msgDepth", QmfType.TYPE_INT));
+        queue.addProperty(new SchemaProperty("byteDepth", QmfType.TYPE_INT));
+        queue.addProperty(new SchemaProperty("consumerCount", QmfType.TYPE_INT));
+        queue.setIdNames("name");
+
+        _objects = new ArrayList<QmfAgentData>(objectCount);
+        for (int i = 0; i < objectCount; i++)
+        {
+            QmfAgentData object = new QmfAgentData(queue);
+            object.setValue("name", "queue-" + i);
+            object.setValue("durable", (i % 3) == 0);
+            object.setValue("msgDepth", (long)(i % 10000));
+            object.setValue("byteDepth", (long)(i % 10000) * 256);
+            object.setValue("consumerCount", i % 5);
+            object.setObjectId(new ObjectId("benchmark", "org.apache.qpid.broker:queue:queue-" + i, 0));
+            _objects.add(object);
+        }
+
+        for (String[] predicate : PREDICATES)
+        {
+            _queries.add(new QmfQuery(QmfQueryTarget.OBJECT, predicate[0]));
+        }
+    }
+
+    /**
+     * Look up a value the way that BooleanExpression used to, converting it to a String.
+     */
+    private static String lookupAsString(final QmfAgentData data, final String key)
+    {
+        if (data.hasValue(key))
+        {
+            return data.getStringValue(key);
+        }
+        else if (data.getSchemaClassId().hasValue(key))
+        {
+            return data.getSchemaClassId().getStringValue(key);
+        }
+        Map<String, Object> m = data.mapEncode();
+        return m.containsKey(key) ? QmfData.getString(m.get(key)) : null;
+    }
+
+    /**
+     * Evaluate a simple predicate the way that the Boolean Expressions used to.
+     */
+    private static boolean evaluateAsString(final QmfAgentData data, final String op, final String key,
+                                            final String literal)
+    {
+        String value = lookupAsString(data, key);
+        if (value == null)
+        {
+            return false;
+        }
+        if (op.equals("eq"))
+        {
+            return value.equals(literal);
+        }
+
+        int comparison;
+        try
+        {
+            comparison = Double.compare(Double.parseDouble(value), Double.parseDouble(literal));
+        }
+        catch (NumberFormatException nfe)
+        {
+            comparison = value.compareTo(literal);
+        }
+        return op.equals("gt") ? comparison > 0 : op.equals("lt") ? comparison < 0 : comparison <= 0;
+    }
+
+    private int runCompiled(final int queryIndex)
+    {
+        QmfQuery query = _queries.get(queryIndex);
+        int matches = 0;
+        for (QmfAgentData object : _objects)
+        {
+            if (query.evaluate(object))
+            {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    private int runStringRoundTrip(final int queryIndex)
+    {
+        String[] predicate = PREDICATES[queryIndex];
+        int matches = 0;
+        for (QmfAgentData object : _objects)
+        {
+            if (evaluateAsString(object, predicate[1], predicate[2], predicate[3]))
+            {
+                matches++;
+            }
+        }
+        return matches;
+    }
+
+    public void run(final int iterations, final int threadCount) throws InterruptedException
+    {
+        System.out.printf("%-45s %10s %14s %14s %8s%n", "predicate", "matches", "compiled ms", "string ms", "speedup");
+        for (int i = 0; i < PREDICATES.length; i++)
+        {
+            // Warm up both evaluators, then time them alternately a few times and keep the best time of each so
+            // that the results aren't skewed too much by JIT compilation or GC happening to favour one of them.
+            int matches = runCompiled(i);
+            int expected = runStringRoundTrip(i);
+            double compiled = Double.MAX_VALUE;
+            double string = Double.MAX_VALUE;
+            for (int round = 0; round < 5; round++)
+            {
+                long start = System.nanoTime();
+                for (int j = 0; j < iterations; j++)
+                {
+                    runCompiled(i);
+                }
+                compiled = Math.min(compiled, (System.nanoTime() - start)/1000000.0/iterations);
+
+                start = System.nanoTime();
+                for (int j = 0; j < iterations; j++)
+                {
+                    runStringRoundTrip(i);
+                }
+                string = Math.min(string, (System.nanoTime() - start)/1000000.0/iterations);
+            }
+
+            System.out.printf("%-45s %10d %14.2f %14.2f %7.1fx%s%n", PREDICATES[i][0], matches, compiled, string,
+                              string/compiled, matches == expected ? "" : " MISMATCH " + expected);
+        }
+
+        System.out.println("\nEvaluating the same QmfQuery instances on " + threadCount + " threads");
+        final AtomicInteger failures = new AtomicInteger();
+        final int[] expected = new int[_queries.size()];
+        for (int i = 0; i < expected.length; i++)
+        {
+            expected[i] = runCompiled(i);
+        }
+
+        List<Thread> threads = new ArrayList<Thread>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threadCount; t++)
+        {
+            Thread thread = new Thread()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < expected.length; i++)
+                    {
+                        if (runCompiled(i) != expected[i])
+                        {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        System.out.printf("%d threads evaluated %d queries each in %.2f ms with %d inconsistent results%n",
+                          threadCount, expected.length, (System.nanoTime() - start)/1000000.0, failures.get());
+    }
+
+    public static void main(String[] args)
+    {
+        //System.out.println ("Setting log level to FATAL");
+        System.setProperty("amqj.logging.level", "FATAL");
+
+        int objectCount = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int threadCount = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        System.out.println("*** Starting QueryBenchmark evaluating " + objectCount + " objects ***");
+        try
+        {
+            QueryBenchmark benchmark = new QueryBenchmark(objectCount);
+            benchmark.run(iterations, threadCount);
+        }
+        catch (QmfException qmfe)
+        {
+            System.err.println("QmfException " + qmfe.getMessage() + " caught: QueryBenchmark failed");
+        }
+        catch (InterruptedException ie)
+        {
+            System.err.println("InterruptedException caught: QueryBenchmark failed");
+        }
+
+        System.out.println("*** Ending QueryBenchmark ***");
+    }
+}
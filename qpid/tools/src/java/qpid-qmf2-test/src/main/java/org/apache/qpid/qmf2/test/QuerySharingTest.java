@@ -0,0 +1,234 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.test;
+
+// Misc Imports
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.agent.QmfAgentData;
+import org.apache.qpid.qmf2.agent.RequestLane;
+import org.apache.qpid.qmf2.common.QmfEventListener;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfType;
+import org.apache.qpid.qmf2.common.SchemaClassId;
+import org.apache.qpid.qmf2.common.SchemaObjectClass;
+import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.qmf2.common.WorkItem;
+import org.apache.qpid.qmf2.console.Agent;
+import org.apache.qpid.qmf2.console.Console;
+import org.apache.qpid.qmf2.console.QmfConsoleData;
+import org.apache.qpid.qmf2.console.QmfFuture;
+import org.apache.qpid.qmf2.util.ConnectionHelper;
+
+/**
+ * This class tests the sharing of query responses between Consoles, as set by Agent.setQuerySharing().
+ * <p>
+ * The test starts an Agent holding enough objects that its response to a query is sent in several batches, with
+ * a request thread for each Console so that their queries are handled at the same time. Every Console then sends
+ * the same query at once, so the Consoles whose queries arrive while the first is being evaluated should join it as
+ * followers and be sent each batch as it is encoded. Every Console should receive every object.
+ * <p>
+ * The test then changes an object and queries again within the reuse window, which should return the shared
+ * response without the change, and once more after the reuse window has passed, which should see the change.
+ * <p>
+ * N.B. The Agent and Consoles talk through a broker, so a broker needs to be running for this test.
+ */
+public final class QuerySharingTest implements QmfEventListener
+{
+    private static final int CONSOLES = 4;
+    private static final int ITEMS = 20000;
+    private static final long REUSE_WINDOW = 3000;
+    private static final long MAX_STALENESS = 10000;
+    private static final int TIMEOUT = 30;
+
+    public QuerySharingTest(String url)
+    {
+        try
+        {
+            System.out.println("*** Starting QuerySharingTest used to test sharing query responses ***");
+
+            org.apache.qpid.qmf2.agent.Agent agent = new org.apache.qpid.qmf2.agent.Agent(null, 5);
+            agent.setVendor("profitron.com");
+            agent.setProduct("sharing");
+            agent.setRequestThreads(CONSOLES);
+            agent.setQuerySharing(REUSE_WINDOW, MAX_STALENESS);
+            SchemaObjectClass schema = new SchemaObjectClass("com.profitron.sharing", "item");
+            schema.addProperty(new SchemaProperty("name", QmfType.TYPE_STRING));
+            schema.addProperty(new SchemaProperty("value", QmfType.TYPE_INT));
+            schema.setIdNames("name");
+            agent.registerObjectClass(schema);
+            QmfAgentData changing = null;
+            for (int i = 0; i < ITEMS; i++)
+            {
+                QmfAgentData item = new QmfAgentData(schema);
+                item.setValue("name", "item-" + i);
+                item.setValue("value", 0);
+                agent.addObject(item);
+                if (i == 0)
+                {
+                    changing = item;
+                }
+            }
+            agent.setConnection(ConnectionHelper.createConnection(url, "{reconnect: true}"));
+
+            List<Console> consoles = new ArrayList<Console>();
+            List<Agent> agents = new ArrayList<Agent>();
+            for (int i = 0; i < CONSOLES; i++)
+            {
+                Console console = new Console(this);
+                console.addConnection(ConnectionHelper.createConnection(url, "{reconnect: true}"));
+                Agent sharing = console.findAgent(agent.getName(), 10);
+                if (sharing == null)
+                {
+                    System.out.println("sharing Agent not found");
+                    System.exit(1);
+                }
+                consoles.add(console);
+                agents.add(sharing);
+            }
+
+            SchemaClassId query = new SchemaClassId("com.profitron.sharing", "item");
+
+            // Every Console sends the same query at once.
+            long start = System.currentTimeMillis();
+            List<QmfFuture<List<QmfConsoleData>>> futures = new ArrayList<QmfFuture<List<QmfConsoleData>>>();
+            for (int i = 0; i < CONSOLES; i++)
+            {
+                futures.add(consoles.get(i).getObjectsAsync(query, agents.get(i), TIMEOUT));
+            }
+
+            boolean shared = true;
+            for (int i = 0; i < CONSOLES; i++)
+            {
+                int count = 0;
+                try
+                {
+                    count = futures.get(i).get().size();
+                }
+                catch (InterruptedException ie)
+                {
+                    System.out.println("Console " + i + " query interrupted");
+                }
+                catch (ExecutionException ee)
+                {
+                    System.out.println("Console " + i + " query failed: " + ee.getCause().getMessage());
+                }
+                System.out.println("Console " + i + " received " + count + " objects");
+                shared = shared && count == ITEMS;
+            }
+            System.out.println("Concurrent queries took " + (System.currentTimeMillis() - start) + "ms");
+            System.out.println(RequestLane.QUERY + " " + agent.getRequestStatistics(RequestLane.QUERY));
+
+            if (shared)
+            {
+                System.out.println("Concurrent shared query test passed");
+            }
+            else
+            {
+                System.out.println("Concurrent shared query test failed, expected every Console to receive " +
+                                   ITEMS + " objects");
+            }
+
+            // Within the reuse window the Agent should send the response it has already encoded.
+            changing.setValue("value", 1);
+            long reused = getValue(consoles.get(0), agents.get(0), query, changing.getStringValue("name"));
+            pause(REUSE_WINDOW + 1000);
+            long fresh = getValue(consoles.get(0), agents.get(0), query, changing.getStringValue("name"));
+            System.out.println("value within reuse window = " + reused + ", value after reuse window = " + fresh);
+
+            if (reused == 0 && fresh == 1)
+            {
+                System.out.println("Query reuse test passed");
+            }
+            else
+            {
+                System.out.println("Query reuse test failed, expected the shared response to be reused within " +
+                                   "the reuse window and not after it");
+            }
+
+            agent.destroy();
+        }
+        catch (QmfException qmfe)
+        {
+            System.err.println("QmfException " + qmfe.getMessage() + ": QuerySharingTest failed");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Query all of the objects and return the value of the named object, or -1 if it wasn't returned.
+     */
+    private static long getValue(final Console console, final Agent agent, final SchemaClassId query,
+                                 final String name)
+    {
+        for (QmfConsoleData object : console.getObjects(query, TIMEOUT, Collections.singletonList(agent)))
+        {
+            if (name.equals(object.getStringValue("name")))
+            {
+                return object.getLongValue("value");
+            }
+        }
+        return -1;
+    }
+
+    private static void pause(final long millis)
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException ie)
+        {
+        }
+    }
+
+    public void onEvent(WorkItem wi)
+    {
+    }
+
+    public static void main(String[] args)
+    {
+        //System.out.println ("Setting log level to FATAL");
+        System.setProperty("amqj.logging.level", "FATAL");
+
+        String url = (args.length == 1) ? args[0] : "localhost";
+        QuerySharingTest test = new QuerySharingTest(url);
+
+        BufferedReader commandLine = new BufferedReader(new InputStreamReader(System.in));
+        try
+        { // Blocks here until return is pressed
+            System.out.println("Hit Return to exit");
+            String s = commandLine.readLine();
+            System.exit(0);
+        }
+        catch (IOException e)
+        {
+            System.out.println ("QuerySharingTest main(): IOException: " + e.getMessage());
+        }
+
+        System.out.println("*** Ending QuerySharingTest ***");
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.test;
+
+// Misc Imports
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.agent.AdmissionStatistics;
+import org.apache.qpid.qmf2.agent.QmfAgentData;
+import org.apache.qpid.qmf2.common.QmfEventListener;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfType;
+import org.apache.qpid.qmf2.common.SchemaClassId;
+import org.apache.qpid.qmf2.common.SchemaObjectClass;
+import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.qmf2.common.WorkItem;
+import org.apache.qpid.qmf2.console.Agent;
+import org.apache.qpid.qmf2.console.Console;
+import org.apache.qpid.qmf2.console.QmfConsoleData;
+import org.apache.qpid.qmf2.console.QmfFuture;
+import org.apache.qpid.qmf2.util.ConnectionHelper;
+
+/**
+ * This class tests the request rate limits set by Agent.setRequestRateLimits().
+ * <p>
+ * The test starts an Agent whose request threads are enabled and whose per Console rate limit allows a small burst
+ * of queries. One Console sends a larger burst of asynchronous queries, so the queries beyond the burst should be
+ * rejected with an exception whose "retry_after_ms" property tells the Console when to retry, while a second
+ * Console's query is still admitted as it has a limit of its own. A blocking getObjects() from the first Console
+ * is then rejected too, but should be retried by the Console after the delay the Agent asks for and succeed.
+ * Finally the limit is replaced by a global limit shared by every Console and both Consoles send a burst in turn.
+ * <p>
+ * N.B. The Agent and Consoles talk through a broker, so a broker needs to be running for this test.
+ */
+public final class RateLimitTest implements QmfEventListener
+{
+    private static final int ITEMS = 10;
+    private static final double RATE = 1.0;
+    private static final int BURST = 5;
+    private static final int QUERIES = 20;
+    private static final int TIMEOUT = 10;
+
+    private final SchemaClassId _query = new SchemaClassId("com.profitron.ratelimit", "item");
+    private int _failed = 0;
+
+    public RateLimitTest(String url)
+    {
+        try
+        {
+            System.out.println("*** Starting RateLimitTest used to test Agent request rate limits ***");
+
+            org.apache.qpid.qmf2.agent.Agent agent = new org.apache.qpid.qmf2.agent.Agent(null, 5);
+            agent.setVendor("profitron.com");
+            agent.setProduct("ratelimit");
+            agent.setRequestThreads(2);
+            agent.setRequestRateLimits(RATE, BURST, 0, 0);
+            SchemaObjectClass schema = new SchemaObjectClass("com.profitron.ratelimit", "item");
+            schema.addProperty(new SchemaProperty("name", QmfType.TYPE_STRING));
+            schema.setIdNames("name");
+            agent.registerObjectClass(schema);
+            for (int i = 0; i < ITEMS; i++)
+            {
+                QmfAgentData item = new QmfAgentData(schema);
+                item.setValue("name", "item-" + i);
+                agent.addObject(item);
+            }
+            agent.setConnection(ConnectionHelper.createConnection(url, "{reconnect: true}"));
+
+            Console console = new Console(this);
+            console.addConnection(ConnectionHelper.createConnection(url, "{reconnect: true}"));
+            Console otherConsole = new Console(this);
+            otherConsole.addConnection(ConnectionHelper.createConnection(url, "{reconnect: true}"));
+
+            Agent limited = console.findAgent(agent.getName(), 10);
+            Agent other = otherConsole.findAgent(agent.getName(), 10);
+            if (limited == null || other == null)
+            {
+                System.out.println("ratelimit Agent not found");
+                System.exit(1);
+            }
+
+            AdmissionStatistics statistics = agent.getAdmissionStatistics();
+
+            // Exceed the per Console limit from one Console, the other Console should still be admitted.
+            int rejected = sendBurst("Console", console, limited, QUERIES);
+            int otherRejected = sendBurst("Other Console", otherConsole, other, 1);
+            System.out.println(statistics);
+
+            // A blocking query should be rejected, then retried by the Console once the Agent allows it.
+            long start = System.currentTimeMillis();
+            List<QmfConsoleData> objects = console.getObjects(_query, TIMEOUT, Collections.singletonList(limited));
+            long time = System.currentTimeMillis() - start;
+            System.out.println("Blocking getObjects() returned " + objects.size() + " objects in " + time + "ms");
+            System.out.println(statistics);
+
+            if (_failed == 0 && rejected > 0 && rejected <= QUERIES - BURST && otherRejected == 0 &&
+                statistics.getConsoleRejectedCount() > rejected && objects.size() == ITEMS)
+            {
+                System.out.println("Per Console rate limit test passed");
+            }
+            else
+            {
+                System.out.println("Per Console rate limit test failed, expected the queries beyond the burst " +
+                                   "to be rejected with retry_after_ms and the blocking query to be retried");
+            }
+
+            // Share one limit between both Consoles, which also resets the limits.
+            agent.setRequestRateLimits(0, 0, RATE, BURST);
+            long globalRejected = statistics.getGlobalRejectedCount();
+            rejected = sendBurst("Console", console, limited, QUERIES/2) +
+                       sendBurst("Other Console", otherConsole, other, QUERIES/2);
+            System.out.println(statistics);
+
+            if (_failed == 0 && rejected > 0 && rejected <= QUERIES - BURST &&
+                statistics.getGlobalRejectedCount() - globalRejected == rejected)
+            {
+                System.out.println("Global rate limit test passed");
+            }
+            else
+            {
+                System.out.println("Global rate limit test failed, expected the queries beyond the burst " +
+                                   "from both Consoles together to be rejected with retry_after_ms");
+            }
+
+            agent.destroy();
+        }
+        catch (QmfException qmfe)
+        {
+            System.err.println("QmfException " + qmfe.getMessage() + ": RateLimitTest failed");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Send a number of asynchronous queries at once and wait for them all, returning how many were rejected with
+     * a "retry_after_ms". Queries that fail for any other reason or return the wrong objects are counted in _failed.
+     */
+    private int sendBurst(final String name, final Console console, final Agent agent, final int count)
+    {
+        List<QmfFuture<List<QmfConsoleData>>> futures = new ArrayList<QmfFuture<List<QmfConsoleData>>>();
+        for (int i = 0; i < count; i++)
+        {
+            futures.add(console.getObjectsAsync(_query, agent, TIMEOUT));
+        }
+
+        int completed = 0;
+        int rejected = 0;
+        for (QmfFuture<List<QmfConsoleData>> future : futures)
+        {
+            try
+            {
+                if (future.get().size() == ITEMS)
+                {
+                    completed++;
+                }
+                else
+                {
+                    _failed++;
+                }
+            }
+            catch (InterruptedException ie)
+            {
+                _failed++;
+            }
+            catch (ExecutionException ee)
+            {
+                Throwable cause = ee.getCause();
+                if (cause instanceof QmfException && ((QmfException)cause).getRetryAfter() > 0)
+                {
+                    if (rejected == 0)
+                    {
+                        System.out.println(name + " query rejected: " + cause.getMessage());
+                    }
+                    rejected++;
+                }
+                else
+                {
+                    System.out.println(name + " query failed: " + cause.getMessage());
+                    _failed++;
+                }
+            }
+        }
+        System.out.println(name + " sent " + count + " queries: " + completed + " completed, " + rejected +
+                           " rejected with retry_after_ms");
+        return rejected;
+    }
+
+    public void onEvent(WorkItem wi)
+    {
+    }
+
+    public static void main(String[] args)
+    {
+        //System.out.println ("Setting log level to FATAL");
+        System.setProperty("amqj.logging.level", "FATAL");
+
+        String url = (args.length == 1) ? args[0] : "localhost";
+        RateLimitTest test = new RateLimitTest(url);
+
+        BufferedReader commandLine = new BufferedReader(new InputStreamReader(System.in));
+        try
+        { // Blocks here until return is pressed
+            System.out.println("Hit Return to exit");
+            String s = commandLine.readLine();
+            System.exit(0);
+        }
+        catch (IOException e)
+        {
+            System.out.println ("RateLimitTest main(): IOException: " + e.getMessage());
+        }
+
+        System.out.println("*** Ending RateLimitTest ***");
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.test;
+
+import javax.jms.Connection;
+
+// Misc Imports
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.agent.MethodCallParams;
+import org.apache.qpid.qmf2.agent.MethodCallWorkItem;
+import org.apache.qpid.qmf2.agent.QmfAgentData;
+import org.apache.qpid.qmf2.agent.RequestLane;
+import org.apache.qpid.qmf2.common.QmfData;
+import org.apache.qpid.qmf2.common.QmfEventListener;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfType;
+import org.apache.qpid.qmf2.common.SchemaClassId;
+import org.apache.qpid.qmf2.common.SchemaObjectClass;
+import org.apache.qpid.qmf2.common.SchemaProperty;
+import org.apache.qpid.qmf2.common.WorkItem;
+import org.apache.qpid.qmf2.console.Agent;
+import org.apache.qpid.qmf2.console.Console;
+import org.apache.qpid.qmf2.console.MethodResult;
+import org.apache.qpid.qmf2.console.QmfConsoleData;
+import org.apache.qpid.qmf2.console.QmfFuture;
+import org.apache.qpid.qmf2.util.ConnectionHelper;
+import static org.apache.qpid.qmf2.common.WorkItem.WorkItemType.*;
+
+/**
+ * This class tests an Agent that handles Console requests on request threads, as set by Agent.setRequestThreads().
+ * <p>
+ * The test starts an Agent with a "sleep" method that holds up the request thread it is called on, then calls it
+ * from one Console. While that Console's request thread is asleep a second Console queries the Agent, which should
+ * be answered straight away by another request thread. The first Console then sends more queries than its request
+ * thread can queue, so the excess should be refused with an exception whose "retry_after_ms" property tells the
+ * Console when to retry, and the rest should complete once the method returns.
+ * <p>
+ * Each Console's requests go to the request thread selected by its reply address, so the two Consoles may
+ * occasionally be given the same thread, in which case the second Console's query waits for the method and the
+ * test should simply be run again.
+ * <p>
+ * N.B. The Agent and Consoles talk through a broker, so a broker needs to be running for this test.
+ */
+public final class RequestThreadsTest implements QmfEventListener
+{
+    private static final int REQUEST_THREADS = 8;
+    private static final int ITEMS = 10;
+    private static final long SLEEP = 5000;
+    private static final int TIMEOUT = 30;
+
+    // More than the 1000 requests that the Agent queues on each request thread.
+    private static final int QUERIES = 1100;
+
+    private org.apache.qpid.qmf2.agent.Agent _agent;
+
+    public RequestThreadsTest(String url)
+    {
+        try
+        {
+            System.out.println("*** Starting RequestThreadsTest used to test Agent request threads ***");
+
+            Connection agentConnection = ConnectionHelper.createConnection(url, "{reconnect: true}");
+            _agent = new org.apache.qpid.qmf2.agent.Agent(this, 5);
+            _agent.setVendor("profitron.com");
+            _agent.setProduct("requests");
+            _agent.setRequestThreads(REQUEST_THREADS);
+            SchemaObjectClass schema = new SchemaObjectClass("com.profitron.requests", "item");
+            schema.addProperty(new SchemaProperty("name", QmfType.TYPE_STRING));
+            schema.setIdNames("name");
+            _agent.registerObjectClass(schema);
+            for (int i = 0; i < ITEMS; i++)
+            {
+                QmfAgentData item = new QmfAgentData(schema);
+                item.setValue("name", "item-" + i);
+                _agent.addObject(item);
+            }
+            _agent.setConnection(agentConnection);
+
+            Console busyConsole = new Console(this);
+            busyConsole.addConnection(ConnectionHelper.createConnection(url, "{reconnect: true}"));
+            Console otherConsole = new Console(this);
+            otherConsole.addConnection(ConnectionHelper.createConnection(url, "{reconnect: true}"));
+
+            Agent busy = busyConsole.findAgent(_agent.getName(), 10);
+            Agent other = otherConsole.findAgent(_agent.getName(), 10);
+            if (busy == null || other == null)
+            {
+                System.out.println("requests Agent not found");
+                System.exit(1);
+            }
+
+            SchemaClassId query = new SchemaClassId("com.profitron.requests", "item");
+
+            // Hold up the busy Console's request thread.
+            QmfData inArgs = new QmfData();
+            inArgs.setValue("sleep", SLEEP);
+            QmfFuture<MethodResult> sleep = busy.invokeMethodAsync("sleep", inArgs, TIMEOUT);
+            pause(500);
+
+            // The other Console's query should be handled by another request thread without waiting for the method.
+            long start = System.currentTimeMillis();
+            List<QmfConsoleData> objects = otherConsole.getObjects(query, TIMEOUT, Collections.singletonList(other));
+            long otherTime = System.currentTimeMillis() - start;
+            System.out.println("Other Console's query returned " + objects.size() + " objects in " + otherTime + "ms");
+
+            // Overfill the busy Console's request thread.
+            List<QmfFuture<List<QmfConsoleData>>> futures = new ArrayList<QmfFuture<List<QmfConsoleData>>>();
+            for (int i = 0; i < QUERIES; i++)
+            {
+                futures.add(busyConsole.getObjectsAsync(query, busy, TIMEOUT));
+            }
+
+            MethodResult result = await(sleep);
+            System.out.println("sleep method succeeded = " + result.succeeded());
+
+            int completed = 0;
+            int refused = 0;
+            int failed = 0;
+            for (QmfFuture<List<QmfConsoleData>> future : futures)
+            {
+                try
+                {
+                    if (await(future).size() == ITEMS)
+                    {
+                        completed++;
+                    }
+                    else
+                    {
+                        failed++;
+                    }
+                }
+                catch (QmfException qmfe)
+                {
+                    if (qmfe.getRetryAfter() > 0)
+                    {
+                        refused++;
+                    }
+                    else
+                    {
+                        System.out.println("Query failed: " + qmfe.getMessage());
+                        failed++;
+                    }
+                }
+            }
+            System.out.println("Busy Console's queries: " + completed + " completed, " + refused +
+                               " refused with retry_after_ms, " + failed + " failed");
+
+            for (RequestLane lane : RequestLane.values())
+            {
+                System.out.println(lane + " " + _agent.getRequestStatistics(lane));
+            }
+            long refusedCount = _agent.getRequestStatistics(RequestLane.QUERY).getRefusedCount();
+
+            if (objects.size() == ITEMS && otherTime < SLEEP)
+            {
+                System.out.println("Request thread striping test passed");
+            }
+            else
+            {
+                System.out.println("Request thread striping test failed, the other Console's query waited for " +
+                                   "the method, the Consoles may have been given the same request thread");
+            }
+
+            if (result.succeeded() && failed == 0 && refused >= QUERIES - 1000 && refused == refusedCount)
+            {
+                System.out.println("Request refusal test passed");
+            }
+            else
+            {
+                System.out.println("Request refusal test failed, expected at least " + (QUERIES - 1000) +
+                                   " queries to be refused with retry_after_ms and the rest to complete");
+            }
+
+            _agent.destroy();
+        }
+        catch (QmfException qmfe)
+        {
+            System.err.println("QmfException " + qmfe.getMessage() + ": RequestThreadsTest failed");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Wait for a QmfFuture to complete, throwing its failure as a QmfException.
+     */
+    private static <T> T await(final QmfFuture<T> future) throws QmfException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException ie)
+        {
+            throw new QmfException("Interrupted while waiting for response");
+        }
+        catch (ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+            if (cause instanceof QmfException)
+            {
+                throw (QmfException)cause;
+            }
+            throw new QmfException(cause.getMessage());
+        }
+    }
+
+    private static void pause(final long millis)
+    {
+        try
+        {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException ie)
+        {
+        }
+    }
+
+    public void onEvent(WorkItem wi)
+    {
+        // The Agent passes method calls to us on its request threads.
+        if (wi.getType() == METHOD_CALL)
+        {
+            MethodCallWorkItem item = (MethodCallWorkItem)wi;
+            MethodCallParams methodCallParams = item.getMethodCallParams();
+            String methodName = methodCallParams.getName();
+            if (methodName.equals("sleep"))
+            {
+                pause(methodCallParams.getArgs().getLongValue("sleep"));
+                _agent.methodResponse(methodName, item.getHandle(), new QmfData(), null);
+            }
+            else
+            {
+                QmfData exception = new QmfData();
+                exception.setValue("error_text", "Unknown method " + methodName);
+                _agent.methodResponse(methodName, item.getHandle(), null, exception);
+            }
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        //System.out.println ("Setting log level to FATAL");
+        System.setProperty("amqj.logging.level", "FATAL");
+
+        String url = (args.length == 1) ? args[0] : "localhost";
+        RequestThreadsTest test = new RequestThreadsTest(url);
+
+        BufferedReader commandLine = new BufferedReader(new InputStreamReader(System.in));
+        try
+        { // Blocks here until return is pressed
+            System.out.println("Hit Return to exit");
+            String s = commandLine.readLine();
+            System.exit(0);
+        }
+        catch (IOException e)
+        {
+            System.out.println ("RequestThreadsTest main(): IOException: " + e.getMessage());
+        }
+
+        System.out.println("*** Ending RequestThreadsTest ***");
+    }
+}
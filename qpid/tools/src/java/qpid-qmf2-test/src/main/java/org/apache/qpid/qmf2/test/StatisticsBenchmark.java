@@ -0,0 +1,149 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.test;
+
+// Misc Imports
+import java.util.ArrayList;
+import java.util.List;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.ObjectId;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfType;
+import org.apache.qpid.qmf2.common.SchemaObjectClass;
+import org.apache.qpid.qmf2.common.SchemaProperty;
+
+import org.apache.qpid.qmf2.agent.QmfAgentData;
+
+/**
+ * A microbenchmark for concurrent statistic updates via QmfAgentData.incValue().
+ * <p>
+ * This creates a QmfAgentData whose schema declares msgDepth (TYPE_INT) and byteRate (TYPE_FLOAT) statistics, which
+ * are held in lock-free striped counters, and times a number of threads incrementing them. It then does the same for
+ * properties that aren't declared in the schema, which use the original synchronized read-modify-write of the
+ * underlying Map. Both runs check that no updates were lost, and the threads call mapEncode() periodically to
+ * simulate a Subscription publishing the object while it is being updated.
+ * <p>
+ * Usage: StatisticsBenchmark [threads] [updatesPerThread]
+ */
+public final class StatisticsBenchmark
+{
+    private final QmfAgentData _object;
+
+    public StatisticsBenchmark() throws QmfException
+    {
+        SchemaObjectClass queue = new SchemaObjectClass("org.apache.qpid.broker", "queue");
+        queue.addProperty(new SchemaProperty("name", QmfType.TYPE_STRING));
+        queue.addProperty(new SchemaProperty("msgDepth", QmfType.TYPE_INT));
+        queue.addProperty(new SchemaProperty("byteRate", QmfType.TYPE_FLOAT));
+        queue.setIdNames("name");
+
+        _object = new QmfAgentData(queue);
+        _object.setValue("name", "benchmark");
+        _object.setObjectId(new ObjectId("benchmark", "org.apache.qpid.broker:queue:benchmark", 0));
+    }
+
+    private double time(final int threadCount, final int updates, final String longName, final String doubleName)
+        throws InterruptedException
+    {
+        _object.setValue(longName, 0l);
+        _object.setValue(doubleName, 0.0d);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threadCount; t++)
+        {
+            Thread thread = new Thread()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < updates; i++)
+                    {
+                        _object.incValue(longName, 1);
+                        _object.incValue(doubleName, 1.0d);
+                        if ((i & 0xFFFF) == 0)
+                        {
+                            _object.mapEncode();
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        double ms = (System.nanoTime() - start)/1000000.0;
+
+        long expected = (long)threadCount*updates;
+        long actual = _object.getLongValue(longName);
+        double actualDouble = _object.getDoubleValue(doubleName);
+        if (actual != expected || actualDouble != (double)expected)
+        {
+            System.out.println("LOST UPDATES " + longName + "=" + actual + " " + doubleName + "=" + actualDouble +
+                               " expected " + expected);
+        }
+        return ms;
+    }
+
+    public void run(final int threadCount, final int updates) throws InterruptedException
+    {
+        // Warm up both paths before timing them.
+        time(threadCount, updates/10, "msgDepth", "byteRate");
+        time(threadCount, updates/10, "undeclaredDepth", "undeclaredRate");
+
+        System.out.printf("%-10s %16s %16s %8s%n", "threads", "striped ms", "synchronized ms", "speedup");
+        for (int threads = 1; threads <= threadCount; threads *= 2)
+        {
+            double striped = time(threads, updates, "msgDepth", "byteRate");
+            double locked = time(threads, updates, "undeclaredDepth", "undeclaredRate");
+            System.out.printf("%-10d %16.2f %16.2f %7.1fx%n", threads, striped, locked, locked/striped);
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        //System.out.println ("Setting log level to FATAL");
+        System.setProperty("amqj.logging.level", "FATAL");
+
+        int threadCount = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int updates = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        System.out.println("*** Starting StatisticsBenchmark with up to " + threadCount + " threads ***");
+        try
+        {
+            StatisticsBenchmark benchmark = new StatisticsBenchmark();
+            benchmark.run(threadCount, updates);
+        }
+        catch (QmfException qmfe)
+        {
+            System.err.println("QmfException " + qmfe.getMessage() + " caught: StatisticsBenchmark failed");
+        }
+        catch (InterruptedException ie)
+        {
+            System.err.println("InterruptedException caught: StatisticsBenchmark failed");
+        }
+
+        System.out.println("*** Ending StatisticsBenchmark ***");
+    }
+}
@@ -44,6 +44,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.qpid.qmf2.common.ObjectId;
 import org.apache.qpid.qmf2.common.QmfData;
 import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfQuery;
+import org.apache.qpid.qmf2.common.QmfQueryTarget;
+import org.apache.qpid.qmf2.common.SchemaClassId;
 import org.apache.qpid.qmf2.console.Console;
 import org.apache.qpid.qmf2.console.QmfConsoleData;
 import org.apache.qpid.qmf2.util.ConnectionHelper;
@@ -423,6 +426,32 @@ public final class QpidConfig
         return null;
     }
 
+    /**
+     * Retrieves the broker objects of the given class, or if a name is given only the object with that name. The
+     * name is sent to the broker as a query predicate so that only the named object needs to be returned.
+     *
+     * @param className the class of the objects to retrieve e.g. "queue" or "exchange".
+     * @param name the name of the object to retrieve, if set to "" every object of the class is retrieved.
+     * @return the List of matching QMF Objects.
+     */
+    private List<QmfConsoleData> getObjectsByName(final String className, final String name)
+    {
+        if (!name.equals(""))
+        {
+            try
+            {
+                QmfQuery query = new QmfQuery(QmfQueryTarget.OBJECT,
+                                              new SchemaClassId("org.apache.qpid.broker", className),
+                                              Arrays.asList("eq", "name", Arrays.asList("quote", name)));
+                return _console.getObjects(query);
+            }
+            catch (QmfException qmfe)
+            { // Shouldn't happen as the predicate is well formed, but if it does fall back to retrieving everything.
+            }
+        }
+        return _console.getObjects("org.apache.qpid.broker", className);
+    }
+
     /**
      * Provide a basic overview of the number and type of queues and exchanges.
      */
@@ -479,7 +508,7 @@ public final class QpidConfig
      */
     private void exchangeList(final String filter)
     {
-        List<QmfConsoleData> exchanges = _console.getObjects("org.apache.qpid.broker", "exchange");
+        List<QmfConsoleData> exchanges = getObjectsByName("exchange", filter);
 
         String caption1 = "Type      ";
         String caption2 = "Exchange Name";
@@ -555,7 +584,7 @@ public final class QpidConfig
      */
     private void exchangeListRecurse(final String filter)
     {
-        List<QmfConsoleData> exchanges = _console.getObjects("org.apache.qpid.broker", "exchange");
+        List<QmfConsoleData> exchanges = getObjectsByName("exchange", filter);
         List<QmfConsoleData> bindings = _console.getObjects("org.apache.qpid.broker", "binding");
         List<QmfConsoleData> queues = _console.getObjects("org.apache.qpid.broker", "queue");
 
@@ -612,7 +641,7 @@ public final class QpidConfig
      */
     private void queueList(final String filter)
     {
-        List<QmfConsoleData> queues = _console.getObjects("org.apache.qpid.broker", "queue");
+        List<QmfConsoleData> queues = getObjectsByName("queue", filter);
 
         String caption = "Queue Name";
         int maxNameLen = caption.length();
@@ -754,7 +783,7 @@ for (Map.Entry<String, Object> entry  : args.entrySet()) {
      */
     private void queueListRecurse(final String filter)
     {
-        List<QmfConsoleData> queues = _console.getObjects("org.apache.qpid.broker", "queue");
+        List<QmfConsoleData> queues = getObjectsByName("queue", filter);
         List<QmfConsoleData> bindings = _console.getObjects("org.apache.qpid.broker", "binding");
         List<QmfConsoleData> exchanges = _console.getObjects("org.apache.qpid.broker", "exchange");
 
@@ -28,6 +28,7 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -179,23 +180,51 @@ public final class QpidQueueStats implements QmfEventListener
     }
 
     /**
-     * Create a Subscription to query for all queue objects
+     * Create a Subscription to query for all queue objects, or if a filter has been set for the queue objects whose
+     * names match the filter.
      */
     private void createQueueSubscription()
     {
+        if (!_filter.isEmpty())
+        {   // Send the filter to the broker as a query predicate so it only sends us the queues we want to display.
+            List<Object> predicate = new ArrayList<Object>();
+            predicate.add("or");
+            for (Pattern x : _filter)
+            {
+                predicate.add(Arrays.asList("re_match", "name", Arrays.asList("quote", x.pattern())));
+            }
+
+            try
+            {
+                createQueueSubscription(new QmfQuery(QmfQueryTarget.OBJECT, new SchemaClassId("queue"), predicate));
+                return;
+            }
+            catch (QmfException qmfe)
+            {   // The broker may not support predicates in Subscriptions, so fall back to subscribing to every queue.
+            }
+        }
+
         try
         {   // This QmfQuery simply does an ID query for objects with the className "queue"
-            QmfQuery query = new QmfQuery(QmfQueryTarget.OBJECT, new SchemaClassId("queue"));
-            SubscribeParams params = _console.createSubscription(_broker, query, "queueStatsHandle");
-            _subscriptionId = params.getSubscriptionId();
-            _subscriptionDuration = params.getLifetime() - 10; // Subtract 10 as we want to refresh before it times out
-            _startTime = System.currentTimeMillis();
+            createQueueSubscription(new QmfQuery(QmfQueryTarget.OBJECT, new SchemaClassId("queue")));
         }
         catch (QmfException qmfe)
         {
         }
     }
 
+    /**
+     * Create a Subscription using the supplied QmfQuery.
+     * @param query the QmfQuery to subscribe to.
+     */
+    private void createQueueSubscription(final QmfQuery query) throws QmfException
+    {
+        SubscribeParams params = _console.createSubscription(_broker, query, "queueStatsHandle");
+        _subscriptionId = params.getSubscriptionId();
+        _subscriptionDuration = params.getLifetime() - 10; // Subtract 10 as we want to refresh before it times out
+        _startTime = System.currentTimeMillis();
+    }
+
     /**
      * Main Event handler. Checks if the WorkItem is a SubscriptionIndicationWorkItem, if it is it stores the object
      * in a Map and uses this to maintain state so we can record deltas such as enqueue and dequeue rates.
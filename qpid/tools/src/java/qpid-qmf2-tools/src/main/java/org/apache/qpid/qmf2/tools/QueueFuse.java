@@ -28,6 +28,7 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
@@ -41,6 +42,8 @@ import org.apache.qpid.qmf2.common.QmfData;
 import org.apache.qpid.qmf2.common.QmfEvent;
 import org.apache.qpid.qmf2.common.QmfEventListener;
 import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfQuery;
+import org.apache.qpid.qmf2.common.QmfQueryTarget;
 import org.apache.qpid.qmf2.common.SchemaClassId;
 import org.apache.qpid.qmf2.common.WorkItem;
 import org.apache.qpid.qmf2.console.Agent;
@@ -190,12 +193,38 @@ public final class QueueFuse implements QmfEventListener
     }
 
     /**
-     * Looks up queue objects and stores them in _queueCache keyed by the queue name
+     * Looks up queue objects and stores them in _queueCache keyed by the queue name. If a filter has been set only
+     * the queues whose names match the filter can ever be purged, so the filter is sent to the broker as a query
+     * predicate and only those queues are looked up.
      */
     private void updateQueueCache()
     {
         _queueCache.clear();
-        List<QmfConsoleData> queues = _console.getObjects("org.apache.qpid.broker", "queue");
+        List<QmfConsoleData> queues = null;
+        if (!_filter.isEmpty())
+        {
+            List<Object> predicate = new ArrayList<Object>();
+            predicate.add("or");
+            for (Pattern x : _filter)
+            {
+                predicate.add(Arrays.asList("re_match", "name", Arrays.asList("quote", x.pattern())));
+            }
+
+            try
+            {
+                queues = _console.getObjects(new QmfQuery(QmfQueryTarget.OBJECT,
+                                             new SchemaClassId("org.apache.qpid.broker", "queue"), predicate));
+            }
+            catch (QmfException qmfe)
+            { // Shouldn't happen as the predicate is well formed, but if it does fall back to looking up every queue.
+            }
+        }
+
+        if (queues == null)
+        {
+            queues = _console.getObjects("org.apache.qpid.broker", "queue");
+        }
+
         for (QmfConsoleData queue : queues)
         {
             String queueName = queue.getStringValue("name");
@@ -0,0 +1,122 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.agent;
+
+// Misc Imports
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An AdmissionController applies an Agent's request rate limits (see Agent.setRequestRateLimits()), with a
+ * TokenBucket for each Console, created when it makes its first request, and a TokenBucket shared by all Consoles.
+ * A request must get a token from both to be admitted. The buckets of Consoles that have stopped making requests
+ * are removed by purge() once they have refilled.
+ */
+final class AdmissionController
+{
+    private final double _consoleRate;
+    private final int _consoleBurst;
+    private final TokenBucket _global;
+    private final AdmissionStatistics _statistics;
+    private final ConcurrentHashMap<String, TokenBucket> _consoles = new ConcurrentHashMap<String, TokenBucket>();
+
+    /**
+     * Construct an AdmissionController, a rate of zero means no limit.
+     * @param consoleRate the sustained number of requests per second allowed from each Console.
+     * @param consoleBurst the maximum number of requests that each Console may make at once.
+     * @param globalRate the sustained number of requests per second allowed from all Consoles together.
+     * @param globalBurst the maximum number of requests that all Consoles together may make at once.
+     * @param statistics the AdmissionStatistics that records admitted and rejected requests.
+     */
+    AdmissionController(final double consoleRate, final int consoleBurst,
+                        final double globalRate, final int globalBurst, final AdmissionStatistics statistics)
+    {
+        _consoleRate = consoleRate;
+        _consoleBurst = consoleBurst;
+        _global = (globalRate > 0) ? new TokenBucket(globalRate, globalBurst, System.nanoTime()) : null;
+        _statistics = statistics;
+    }
+
+    /**
+     * Admit or reject a request.
+     * @param console the key identifying the Console that made the request.
+     * @param now the current time from System.nanoTime().
+     * @return zero if the request is admitted, otherwise how long in nanoseconds the Console should wait before
+     * making another request.
+     */
+    long admit(final String console, final long now)
+    {
+        TokenBucket bucket = null;
+        if (_consoleRate > 0)
+        {
+            bucket = _consoles.get(console);
+            if (bucket == null)
+            {
+                TokenBucket newBucket = new TokenBucket(_consoleRate, _consoleBurst, now);
+                bucket = _consoles.putIfAbsent(console, newBucket);
+                if (bucket == null)
+                {
+                    bucket = newBucket;
+                }
+            }
+
+            long wait = bucket.tryAcquire(now);
+            if (wait > 0)
+            {
+                _statistics.recordConsoleRejected();
+                return wait;
+            }
+        }
+
+        if (_global != null)
+        {
+            long wait = _global.tryAcquire(now);
+            if (wait > 0)
+            { // Don't charge the Console for a request that it didn't get to make.
+                if (bucket != null)
+                {
+                    bucket.release();
+                }
+                _statistics.recordGlobalRejected();
+                return wait;
+            }
+        }
+
+        _statistics.recordAdmitted();
+        return 0;
+    }
+
+    /**
+     * Remove the TokenBucket of any Console that hasn't made a request for long enough for it to refill.
+     * @param now the current time from System.nanoTime().
+     */
+    void purge(final long now)
+    {
+        Iterator<TokenBucket> i = _consoles.values().iterator();
+        while (i.hasNext())
+        {
+            if (i.next().isFull(now))
+            {
+                i.remove();
+            }
+        }
+    }
+}
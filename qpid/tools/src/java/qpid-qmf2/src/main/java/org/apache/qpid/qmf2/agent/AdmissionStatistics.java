@@ -0,0 +1,109 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.agent;
+
+// Misc Imports
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AdmissionStatistics records how many of the rate limited requests received by an Agent were admitted and how
+ * many were rejected because the Console that made them, or all Consoles together, had exceeded their request
+ * rate limits (see Agent.setRequestRateLimits()).
+ * <p>
+ * This class isn't part of the QMF2 API.
+ */
+public final class AdmissionStatistics
+{
+    private final AtomicLong _admittedCount = new AtomicLong();
+    private final AtomicLong _consoleRejectedCount = new AtomicLong();
+    private final AtomicLong _globalRejectedCount = new AtomicLong();
+
+    /**
+     * Record a request being admitted.
+     */
+    void recordAdmitted()
+    {
+        _admittedCount.incrementAndGet();
+    }
+
+    /**
+     * Record a request being rejected because its Console had exceeded the per Console rate limit.
+     */
+    void recordConsoleRejected()
+    {
+        _consoleRejectedCount.incrementAndGet();
+    }
+
+    /**
+     * Record a request being rejected because all Consoles together had exceeded the global rate limit.
+     */
+    void recordGlobalRejected()
+    {
+        _globalRejectedCount.incrementAndGet();
+    }
+
+    /**
+     * Return the number of rate limited requests admitted.
+     * @return the number of rate limited requests admitted.
+     */
+    public long getAdmittedCount()
+    {
+        return _admittedCount.get();
+    }
+
+    /**
+     * Return the number of requests rejected by the per Console rate limit.
+     * @return the number of requests rejected by the per Console rate limit.
+     */
+    public long getConsoleRejectedCount()
+    {
+        return _consoleRejectedCount.get();
+    }
+
+    /**
+     * Return the number of requests rejected by the global rate limit.
+     * @return the number of requests rejected by the global rate limit.
+     */
+    public long getGlobalRejectedCount()
+    {
+        return _globalRejectedCount.get();
+    }
+
+    /**
+     * Return the total number of requests rejected.
+     * @return the total number of requests rejected.
+     */
+    public long getRejectedCount()
+    {
+        return _consoleRejectedCount.get() + _globalRejectedCount.get();
+    }
+
+    /**
+     * Return a String representation of the statistics, useful for logging.
+     * @return a String representation of the statistics.
+     */
+    @Override
+    public String toString()
+    {
+        return "admitted = " + getAdmittedCount() + ", rejected by console limit = " + getConsoleRejectedCount() +
+               ", rejected by global limit = " + getGlobalRejectedCount();
+    }
+}
@@ -37,15 +37,26 @@ import org.slf4j.LoggerFactory;
 
 // Misc Imports
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 // QMF2 Imports
 import org.apache.qpid.qmf2.common.AMQPMessage;
@@ -174,11 +185,62 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
 {
     private static final Logger _log = LoggerFactory.getLogger(Agent.class);
 
-    /** 
-     * This TimerTask causes the Agent to sent a Hearbeat when it gets scheduled
+    /**
+     * The default limit on the encoded size of each _query_response message, 256KB.
+     */
+    private static final int DEFAULT_MAX_BATCH_BYTES = 256*1024;
+
+    /**
+     * The maximum number of events that the event sender takes from the queue at a time.
+     */
+    private static final int EVENT_SENDER_BATCH = 1000;
+
+    /**
+     * How long the event sender waits for events before checking whether it has been stopped, in nanoseconds.
+     */
+    private static final long EVENT_SENDER_IDLE = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * How long removeConnection() waits for the event sender to send the events that are still queued.
+     */
+    private static final long EVENT_SENDER_SHUTDOWN_TIMEOUT = 5000;
+
+    /**
+     * The maximum number of requests queued on each request thread, see setRequestThreads().
+     */
+    private static final int REQUEST_QUEUE_CAPACITY = 1000;
+
+    /**
+     * How long a Console whose request was refused because its request thread's queue was full is asked to wait
+     * before retrying, in milliseconds.
+     */
+    private static final long REQUEST_RETRY_AFTER = 100;
+
+    /**
+     * How long removeConnection() waits for the request threads to run the requests that are still queued.
+     */
+    private static final long REQUEST_SHUTDOWN_TIMEOUT = 5000;
+
+    /**
+     * This task causes the Agent to send a Heartbeat when it gets scheduled. Heartbeats run on their own scheduler
+     * thread so that they keep flowing however busy the Subscription scheduler gets, otherwise a Console may decide
+     * that a busy Agent has expired. For the same reason the Heartbeat has its own Session and MessageProducer
+     * rather than waiting for the shared ones guarded by _syncLock.
      */
-    private final class Heartbeat extends TimerTask
+    private final class Heartbeat implements Runnable
     {
+        private final Session _heartbeatSession;
+        private final MessageProducer _heartbeatProducer;
+
+        /**
+         * Construct a Heartbeat, creating its Session and MessageProducer from the Agent's Connection.
+         */
+        Heartbeat() throws JMSException
+        {
+            _heartbeatSession = _connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            _heartbeatProducer = _heartbeatSession.createProducer(null);
+        }
+
         public void run()
         {
             try
@@ -188,7 +250,7 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
                 String instanceKey = _instance.replace(".", "_");
                 String subject = "agent.ind.heartbeat." + vendorKey + "." + productKey + "." + instanceKey;
 
-                MapMessage response = _syncSession.createMapMessage();
+                MapMessage response = _heartbeatSession.createMapMessage();
                 response.setStringProperty("x-amqp-0-10.app-id", "qmf2");
                 response.setStringProperty("method", "indication");
                 response.setStringProperty("qmf.opcode", "_agent_heartbeat_indication");
@@ -199,29 +261,269 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
             
                 // Send heartbeat messages with a Time To Live (in msecs) set to two times the _heartbeatInterval
                 // to prevent stale heartbeats from getting to the consoles.
-                _producer.send(_topicAddress, response, Message.DEFAULT_DELIVERY_MODE,
-                               Message.DEFAULT_PRIORITY, _heartbeatInterval*2000);
+                _heartbeatProducer.send(_topicAddress, response, Message.DEFAULT_DELIVERY_MODE,
+                                        Message.DEFAULT_PRIORITY, _heartbeatInterval*2000);
             }
             catch (JMSException jmse)
             {
                 _log.info("JMSException {} caught in sendHeartbeat()", jmse.getMessage());
             }
+        }
+    }
 
+    /**
+     * This task reaps any QmfAgentData Objects that have been marked as deleted. It used to be done as part of the
+     * Heartbeat but as it walks the whole object store it is now run on the Subscription scheduler. It also removes
+     * the request rate limits of Consoles that have stopped making requests and expired shared query responses.
+     */
+    private final class Reaper implements Runnable
+    {
+        public void run()
+        {
             // Reap any QmfAgentData Objects that have been marked as Deleted
-            // Use the iterator approach rather than foreach as we may want to call iterator.remove() to zap an entry
-            Iterator<QmfAgentData> i = _objectIndex.values().iterator();
-            while (i.hasNext())
+            for (QmfAgentData object : _objectIndex.values())
             {
-                QmfAgentData object = i.next();
                 if (object.isDeleted())
                 {
+                    // Only remove the deleted object, its address may just have been reused by register().
                     _log.debug("Removing deleted QmfAgentData Object from store");
-                    i.remove();
+                    _objectIndex.remove(object.getObjectId(), object);
+                }
+            }
+
+            long now = System.nanoTime();
+            AdmissionController admission = _admissionController;
+            if (admission != null)
+            {
+                admission.purge(now);
+            }
+
+            // Drop the responses to shared queries that may no longer be reused.
+            Iterator<SharedQuery> j = _sharedQueries.values().iterator();
+            while (j.hasNext())
+            {
+                if (!j.next().isReusable(now, _queryReuseWindow, _maxQueryStaleness))
+                {
+                    j.remove();
                 }
             }
         }
     }
 
+    /**
+     * This task sends the events queued by raiseEvent(), taking as many as are available at a time so that events
+     * of the same class and severity raised close together are sent in a single message. It runs on a dedicated
+     * thread started by setConnection() until removeConnection() stops it, once it has sent any events still queued.
+     * JMS Sessions aren't thread safe, so the EventSender has its own Session and MessageProducer rather than sharing
+     * those used by the scheduler and JMS listener threads.
+     */
+    private final class EventSender implements Runnable
+    {
+        private final Session _eventSession;
+        private final MessageProducer _eventProducer;
+        private final Thread _thread;
+
+        /**
+         * Construct an EventSender, creating its Session and MessageProducer from the Agent's Connection.
+         */
+        EventSender() throws JMSException
+        {
+            _eventSession = _connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            _eventProducer = _eventSession.createProducer(null);
+            _thread = new DaemonThreadFactory("QMF2 Agent Event Sender").newThread(this);
+        }
+
+        /**
+         * Return the thread that the EventSender runs on.
+         * @return the thread that the EventSender runs on.
+         */
+        Thread getThread()
+        {
+            return _thread;
+        }
+
+        /**
+         * Close the EventSender's Session once its thread has stopped.
+         */
+        void close()
+        {
+            try
+            {
+                _eventSession.close();
+            }
+            catch (JMSException jmse)
+            {
+                _log.info("JMSException {} caught in EventSender.close()", jmse.getMessage());
+            }
+        }
+
+        public void run()
+        {
+            EventQueue queue = _eventQueue;
+            List<QmfEvent> events = new ArrayList<QmfEvent>();
+            while (true)
+            {
+                // Read the stop flag before draining so that events queued before the flag was set are still sent.
+                boolean stopping = _stopEventSender;
+                queue.drainTo(events, EVENT_SENDER_BATCH);
+                if (events.isEmpty())
+                {
+                    if (stopping)
+                    {
+                        break;
+                    }
+                    queue.await(EVENT_SENDER_IDLE);
+                }
+                else
+                {
+                    sendEvents(events, _eventSession, _eventProducer);
+                    events.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the named daemon threads used by the Agent's schedulers so they won't prevent the JVM exiting.
+     */
+    private static final class DaemonThreadFactory implements ThreadFactory
+    {
+        private final String _name;
+        private final AtomicInteger _count = new AtomicInteger();
+
+        DaemonThreadFactory(final String name)
+        {
+            _name = name;
+        }
+
+        public Thread newThread(final Runnable r)
+        {
+            Thread thread = new Thread(r, _name + " " + _count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * A QueryResponder sends the results of a query back to the Console as a series of _query_response messages.
+     * <p>
+     * Results are encoded one at a time as they are added, and once the current batch has reached the Agent's
+     * batch limits (see setQueryResponseLimits()) it is sent as a partial response as soon as the next result is
+     * added. The final batch, which may be empty, is sent without the "partial" property by complete(). This means
+     * that neither a List of every mapEncoded result nor a single enormous response message ever needs to exist.
+     * <p>
+     * If the query is being shared with other Consoles (see setQuerySharing()) each encoded batch is also added to
+     * the SharedQuery and sent on to the Consoles that have joined it.
+     * <p>
+     * If the results have been filtered by the query's predicate and projected onto its select list the responses
+     * are marked with the "qmf.filtered" property, so that the Console doesn't need to filter them again. Results
+     * supplied by the application, e.g. by an AgentExternal, aren't marked as they may not have been filtered.
+     */
+    final class QueryResponder
+    {
+        private final Handle _handle;
+        private final String _qmfContentType;
+        private final boolean _filtered;
+        private final SharedQuery _shared;
+        private final AMQPMessage.ListBuilder _batch = new AMQPMessage.ListBuilder();
+        private final int _maxObjects = _maxBatchObjects;
+        private final int _maxBytes = _maxBatchBytes;
+        private boolean _failed = false;
+
+        /**
+         * Construct a QueryResponder.
+         * @param handle the reply handle that contains the replyTo Address.
+         * @param qmfContentType the value to be passed to the qmf.content Header.
+         */
+        QueryResponder(final Handle handle, final String qmfContentType)
+        {
+            this(handle, qmfContentType, false, null);
+        }
+
+        /**
+         * Construct a QueryResponder for a query that may be shared with other Consoles.
+         * @param handle the reply handle that contains the replyTo Address.
+         * @param qmfContentType the value to be passed to the qmf.content Header.
+         * @param filtered true if the results have been filtered by the query's predicate and select list.
+         * @param shared the SharedQuery that the response is added to, or null if the query isn't shared.
+         */
+        QueryResponder(final Handle handle, final String qmfContentType, final boolean filtered,
+                       final SharedQuery shared)
+        {
+            _handle = handle;
+            _qmfContentType = qmfContentType;
+            _filtered = filtered;
+            _shared = shared;
+        }
+
+        /**
+         * Add a mapEncoded result, sending the current batch as a partial response first if it is full.
+         * @param result the mapEncoded result.
+         */
+        void add(final Map<String, Object> result)
+        {
+            if ((_maxObjects > 0 && _batch.size() >= _maxObjects) ||
+                (_maxBytes > 0 && _batch.size() > 0 && _batch.getEncodedSize() >= _maxBytes))
+            {
+                send(true);
+
+                // Let any method calls or subscription requests queued on this thread run between the batches.
+                runHigherPriorityRequests();
+            }
+            _batch.add(result);
+        }
+
+        /**
+         * Send the final batch of results.
+         */
+        void complete()
+        {
+            send(false);
+        }
+
+        /**
+         * Send the current batch of results.
+         * @param partial true if more results are to follow.
+         */
+        private void send(final boolean partial)
+        {
+            if (_shared != null)
+            { // The followers still need the batch even if it couldn't be sent to this Console.
+                byte[] batch = _batch.toByteArray();
+                List<SharedQuery.Follower> followers = _shared.add(batch, !partial);
+                if (!_failed)
+                {
+                    _failed = !sendQueryResponses(_handle, _qmfContentType, _filtered,
+                                                  Collections.singletonList(batch), !partial);
+                }
+
+                for (SharedQuery.Follower follower : followers)
+                {
+                    sendQueryResponses(follower.getHandle(), _qmfContentType, _filtered,
+                                       _shared.takeUnsent(follower), !partial);
+                }
+                return;
+            }
+
+            if (_failed)
+            { // If a batch has failed to send there's little point sending the rest as the response is incomplete.
+                return;
+            }
+
+            try
+            {
+                Message response = createQueryResponse(_handle, _qmfContentType, _filtered, partial);
+                _batch.writeTo(response);
+                sendResponse(_handle, response);
+            }
+            catch (JMSException jmse)
+            {
+                _log.info("JMSException {} caught in queryResponse()", jmse.getMessage());
+                _failed = true;
+            }
+        }
+    }
+
     //                                             Attributes
     // ********************************************************************************************************
 
@@ -242,7 +544,27 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
      * _objectIndex is the global index of QmfAgentData objects registered with this Agent.
      * The capacity of 100 is pretty arbitrary but the default of 16 seems too low for most Agents.
      */
-    private Map<ObjectId, QmfAgentData> _objectIndex = new ConcurrentHashMap<ObjectId, QmfAgentData>(100);
+    private ConcurrentMap<ObjectId, QmfAgentData> _objectIndex = new ConcurrentHashMap<ObjectId, QmfAgentData>(100);
+
+    /**
+     * _secondaryIndex indexes the QmfAgentData objects in _objectIndex by SchemaClassId and by any properties
+     * that have been indexed via addIndex(), so that queries don't always need a linear search of _objectIndex.
+     */
+    private SecondaryIndex _secondaryIndex = new SecondaryIndex();
+
+    /**
+     * _changeLog records the QmfAgentData objects that have changed, keyed by the sequence number of their most
+     * recent change, so that Subscriptions only need to evaluate the objects that have changed since they last ran
+     * rather than every object held by the Agent. Each object appears at most once, as its previous entry is removed
+     * when it changes again, and entries that every Subscription has seen are trimmed. Changes are only recorded
+     * when there are Subscriptions, as a new Subscription starts by evaluating its query against all objects.
+     */
+    private ConcurrentSkipListMap<Long, QmfAgentData> _changeLog = new ConcurrentSkipListMap<Long, QmfAgentData>();
+
+    /**
+     * The sequence number of the most recent change recorded in _changeLog.
+     */
+    private AtomicLong _changeSequence = new AtomicLong();
 
     /**
      * This Map is used to look up Subscriptions by SubscriptionId
@@ -297,16 +619,85 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
     private String _domain;
 
     /**
-     * This timer is used to schedule periodic events such as sending Heartbeats and subscription updates
+     * The limits on the number of objects and the encoded size in bytes of each _query_response message, larger
+     * query results are sent as a number of partial responses. A value of zero means no limit.
+     */
+    private volatile int _maxBatchObjects = 0;
+    private volatile int _maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+
+    /**
+     * This single threaded scheduler is used to send Heartbeats.
+     */
+    private ScheduledThreadPoolExecutor _heartbeatScheduler;
+
+    /**
+     * This scheduler is used to run periodic work such as Subscription updates and reaping deleted objects. It may
+     * be supplied by the application via setScheduler(), in which case the Agent won't shut it down, otherwise the
+     * Agent creates a pool of _schedulerThreads daemon threads when setConnection() is called.
+     */
+    private ScheduledExecutorService _scheduler;
+    private ScheduledFuture<?> _reaper;
+    private boolean _ownsScheduler = false;
+    private int _schedulerThreads = 1;
+
+    /**
+     * Record how late Heartbeats and Subscription updates actually run compared with when they were due.
+     */
+    private final TickStatistics _heartbeatStatistics = new TickStatistics();
+    private final TickStatistics _subscriptionStatistics = new TickStatistics();
+
+    /**
+     * Events raised by raiseEvent() are sent synchronously unless a queue has been enabled via setEventQueue(), in
+     * which case they're queued in _eventQueue and sent by _eventSender on its own thread.
+     */
+    private final EventStatistics _eventStatistics = new EventStatistics();
+    private volatile EventQueue _eventQueue = null;
+    private EventSender _eventSender = null;
+    private volatile boolean _stopEventSender = false;
+
+    /**
+     * Requests are run by _requestDispatcher on _requestThreads threads striped by Console, or on the JMS listener
+     * thread if _requestThreads is zero, in which case _requestDispatcher is null. _requestStatistics records how
+     * long the requests in each RequestLane waited to be run.
+     */
+    private int _requestThreads = 0;
+    private volatile RequestDispatcher _requestDispatcher = null;
+    private final Map<RequestLane, RequestStatistics> _requestStatistics =
+        new EnumMap<RequestLane, RequestStatistics>(RequestLane.class);
+
+    /**
+     * _admissionController applies the request rate limits set by setRequestRateLimits(), it is null if there are
+     * no limits. If _rateLimitByUser is true Consoles are identified by the user ID of their requests rather than
+     * by their reply address.
+     */
+    private final AdmissionStatistics _admissionStatistics = new AdmissionStatistics();
+    private volatile AdmissionController _admissionController = null;
+    private volatile boolean _rateLimitByUser = false;
+
+    /**
+     * _sharedQueries holds the responses to recent OBJECT queries, keyed by SharedQuery.getKey(), so that identical
+     * queries can share them (see setQuerySharing()). Sharing is disabled if _maxQueryStaleness is zero, both times
+     * are in nanoseconds.
      */
-    private Timer _timer;
+    private final ConcurrentHashMap<List<Object>, SharedQuery> _sharedQueries =
+        new ConcurrentHashMap<List<Object>, SharedQuery>();
+    private volatile long _queryReuseWindow = 0;
+    private volatile long _maxQueryStaleness = 0;
 
     /**
      * Various JMS related fields
      */
     private Connection _connection = null;
     private Session _asyncSession;
-    private Session _syncSession; 
+
+    /**
+     * _syncSession and _producer are shared by the JMS listener, the scheduler threads and application threads
+     * calling methods such as methodResponse() and raiseEvent(). JMS Sessions must not be used by more than one
+     * thread at a time so every use of them, creating a message or sending it, is made holding _syncLock. The
+     * request threads, the Heartbeat and the EventSender have Sessions of their own.
+     */
+    private final Object _syncLock = new Object();
+    private Session _syncSession;
     private MessageConsumer _locateConsumer;
     private MessageConsumer _mainConsumer;
     // _aliasConsumer is used for the alias address if the Agent is a broker Agent (used in Java Broker QMF plugin)
@@ -336,6 +727,29 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
      * @param message the JMS Message to be sent.
      */
     private final void sendResponse(final Handle handle, final Message message) throws JMSException
+    {
+        RequestDispatcher.Stripe stripe = getCurrentStripe();
+        if (stripe != null)
+        {
+            sendResponse(stripe.getProducer(), handle, message);
+        }
+        else
+        {
+            synchronized(_syncLock)
+            {
+                sendResponse(_producer, handle, message);
+            }
+        }
+    }
+
+    /**
+     * Send a response using the given MessageProducer, see sendResponse(Handle, Message).
+     * @param producer the MessageProducer used to send the response.
+     * @param handle the reply handle that contains the replyTo Address.
+     * @param message the JMS Message to be sent.
+     */
+    private void sendResponse(final MessageProducer producer, final Handle handle, final Message message)
+        throws JMSException
     {
         // Just in case the replyTo issues still exist check if the replyTo starts
         // with qmf.default.topic or qmf.default.direct and if so send to the
@@ -344,15 +758,75 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
         String replyTo = handle.getReplyTo().toString();
         if (replyTo.startsWith(_quotedTopicBase))
         {
-            _producer.send(_topicAddress, message);
+            producer.send(_topicAddress, message);
         }
         else if (replyTo.startsWith(_quotedDirectBase))
         {
-            _producer.send(_directAddress, message);
+            producer.send(_directAddress, message);
         }
         else
         {
-            _producer.send(handle.getReplyTo(), message);
+            producer.send(handle.getReplyTo(), message);
+        }
+    }
+
+    /**
+     * Return the request thread Stripe that the current thread belongs to.
+     * @return the current thread's Stripe, or null if the current thread isn't a request thread.
+     */
+    private RequestDispatcher.Stripe getCurrentStripe()
+    {
+        RequestDispatcher dispatcher = _requestDispatcher;
+        return (dispatcher == null) ? null : dispatcher.getCurrentStripe();
+    }
+
+    /**
+     * Create a MapMessage for a response sent from the current thread. Request threads have a Session of their own
+     * so that they can send responses in parallel, other threads share _syncSession holding _syncLock.
+     * @return the new MapMessage.
+     */
+    private MapMessage createMapMessage() throws JMSException
+    {
+        RequestDispatcher.Stripe stripe = getCurrentStripe();
+        if (stripe != null)
+        {
+            return stripe.getSession().createMapMessage();
+        }
+
+        synchronized(_syncLock)
+        {
+            return _syncSession.createMapMessage();
+        }
+    }
+
+    /**
+     * Create an amqp/list message for a response sent from the current thread, see createMapMessage().
+     * @return the new amqp/list message.
+     */
+    private Message createListMessage() throws JMSException
+    {
+        RequestDispatcher.Stripe stripe = getCurrentStripe();
+        if (stripe != null)
+        {
+            return AMQPMessage.createListMessage(stripe.getSession());
+        }
+
+        synchronized(_syncLock)
+        {
+            return AMQPMessage.createListMessage(_syncSession);
+        }
+    }
+
+    /**
+     * If the current thread is a request thread run any requests queued on it in lanes of higher priority than the
+     * request that it's currently running, for example between the batches of a large query response.
+     */
+    private void runHigherPriorityRequests()
+    {
+        RequestDispatcher.Stripe stripe = getCurrentStripe();
+        if (stripe != null)
+        {
+            stripe.runHigherPriority();
         }
     }
 
@@ -364,7 +838,7 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
     {
         try
         {
-            MapMessage response = _syncSession.createMapMessage();
+            MapMessage response = createMapMessage();
             response.setStringProperty("x-amqp-0-10.app-id", "qmf2");
             response.setStringProperty("method", "indication");
             response.setStringProperty("qmf.opcode", "_agent_locate_response");
@@ -380,6 +854,66 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
         }
     }
 
+    /**
+     * Create a _query_response message for a batch of query results.
+     * @param handle the reply handle that contains the replyTo Address.
+     * @param qmfContentType the value to be passed to the qmf.content Header.
+     * @param filtered true if the results have been filtered by the query's predicate and select list.
+     * @param partial true if more results are to follow.
+     * @return the response message, to which the encoded results must be written.
+     */
+    private Message createQueryResponse(final Handle handle, final String qmfContentType, final boolean filtered,
+                                        final boolean partial) throws JMSException
+    {
+        Message response = createListMessage();
+        response.setJMSCorrelationID(handle.getCorrelationId());
+        response.setStringProperty("x-amqp-0-10.app-id", "qmf2");
+        response.setStringProperty("method", "response");
+        response.setStringProperty("qmf.opcode", "_query_response");
+        response.setStringProperty("qmf.agent", _name);
+        response.setStringProperty("qmf.content", qmfContentType);
+        response.setStringProperty("qpid.subject", handle.getRoutingKey());
+        if (filtered)
+        {
+            response.setBooleanProperty("qmf.filtered", true);
+        }
+        if (partial)
+        {
+            response.setBooleanProperty("partial", true);
+        }
+        return response;
+    }
+
+    /**
+     * Send batches of results encoded by AMQPMessage.ListBuilder.toByteArray() as _query_response messages.
+     * @param handle the reply handle that contains the replyTo Address.
+     * @param qmfContentType the value to be passed to the qmf.content Header.
+     * @param filtered true if the results have been filtered by the query's predicate and select list.
+     * @param batches the encoded batches.
+     * @param complete true if the last of the batches is the final batch of the response.
+     * @return true if the batches were sent, false if one of them failed to send.
+     */
+    private boolean sendQueryResponses(final Handle handle, final String qmfContentType, final boolean filtered,
+                                       final List<byte[]> batches, final boolean complete)
+    {
+        try
+        {
+            int last = batches.size() - 1;
+            for (int i = 0; i <= last; i++)
+            {
+                Message response = createQueryResponse(handle, qmfContentType, filtered, !complete || i < last);
+                AMQPMessage.setEncodedList(response, batches.get(i));
+                sendResponse(handle, response);
+            }
+            return true;
+        }
+        catch (JMSException jmse)
+        {
+            _log.info("JMSException {} caught in sendQueryResponses()", jmse.getMessage());
+            return false;
+        }
+    }
+
     /**
      * Handle the query request and send the response back to the Console.
      * @param handle the reply handle that contains the replyTo Address.
@@ -392,13 +926,13 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
 
         if (target == QmfQueryTarget.SCHEMA_ID)
         {
-            List<Map> results = new ArrayList<Map>(_schemaCache.size());
+            QueryResponder responder = new QueryResponder(handle, "_schema_id");
             // Look up all SchemaClassId objects
             for (SchemaClassId classId : _schemaCache.keySet())
             {
-                results.add(classId.mapEncode());
+                responder.add(classId.mapEncode());
             }
-            queryResponse(handle, results, "_schema_id"); // Send the response back to the Console.
+            responder.complete(); // Send the response back to the Console.
         }
         else if (target == QmfQueryTarget.SCHEMA)
         {
@@ -414,102 +948,299 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
         }
         else if (target == QmfQueryTarget.OBJECT_ID)
         {
-            List<Map> results = new ArrayList<Map>(_objectIndex.size());
-            // Look up all ObjectId objects
-            for (ObjectId objectId : _objectIndex.keySet())
-            {
-                results.add(objectId.mapEncode());
-            }
-            queryResponse(handle, results, "_object_id"); // Send the response back to the Console.
+            QueryResponder responder = new QueryResponder(handle, "_object_id");
+            // Look up all ObjectId objects
+            for (ObjectId objectId : _objectIndex.keySet())
+            {
+                responder.add(objectId.mapEncode());
+            }
+            responder.complete(); // Send the response back to the Console.
+        }
+        else if (target == QmfQueryTarget.OBJECT)
+        {
+            // If this is implementing the AgentExternal model we pass the QmfQuery on in a QueryWorkItem
+            if (this instanceof AgentExternal)
+            {
+                _eventListener.onEvent(new QueryWorkItem(handle, query));
+                return;
+            }
+            else
+            { // If not implementing the AgentExternal model we handle the Query ourself.
+                //qmfContentType = "_data";
+                if (query.getObjectId() != null)
+                {
+                    List<Map> results = new ArrayList<Map>(1);
+                    // Look up a QmfAgentData object by the ObjectId obtained from the query
+                    ObjectId objectId = query.getObjectId();
+                    QmfAgentData object = _objectIndex.get(objectId);
+                    if (object != null && !object.isDeleted())
+                    {
+                        results.add(object.mapEncode(query));
+                    }
+                    queryResponse(handle, results, "_data"); // Send the response back to the Console.
+                }
+                else
+                {
+                    // If query sharing is enabled either join an identical query made by another Console, in which
+                    // case that's all we need to do, or evaluate the query ourself and share the response.
+                    SharedQuery shared = null;
+                    List<Object> key = null;
+                    if (_maxQueryStaleness > 0)
+                    {
+                        key = SharedQuery.getKey(query);
+                        shared = shareQuery(handle, key);
+                        if (shared == null)
+                        {
+                            return;
+                        }
+                    }
+
+                    try
+                    {
+                        sendObjects(handle, query, shared);
+                    }
+                    finally
+                    {
+                        if (shared != null && !shared.isComplete())
+                        {
+                            failSharedQuery(key, shared);
+                        }
+                    }
+                }
+            }
+        }
+        else
+        {
+            raiseException(handle, "Query for _what => '" + target + "' not supported");
+            return;
+        }
+    } // end of handleQueryRequest()
+
+    /**
+     * Evaluate an OBJECT query by SchemaClassId or predicate and send the matching objects back to the Console.
+     * @param handle the reply handle that contains the replyTo Address.
+     * @param query the inbound query from the Console.
+     * @param shared the SharedQuery that the response is added to, or null if the query isn't shared.
+     */
+    @SuppressWarnings("unchecked")
+    private void sendObjects(final Handle handle, final QmfQuery query, final SharedQuery shared)
+    {
+        // Look up QmfAgentData objects by the SchemaClassId or predicate obtained from the query.
+        // Linear searches don't scale brilliantly for Agents managing large numbers of objects, so
+        // getCandidates() uses the secondary indexes to narrow down the objects that we need to evaluate
+        // the query against where it can, only falling back to searching every object if it can't.
+
+        // N.B. the results list declared here holds the matching QmfAgentData objects rather than their
+        // mapEncoded form. If the response items are sortable we need to sort them before doing
+        // mapEncode(), and either way the QueryResponder mapEncodes and encodes them one at a time so that
+        // only a batch of encoded results needs to be held in memory rather than a Map for every result.
+        Collection<QmfAgentData> candidates = getCandidates(query);
+        List<QmfAgentData> results = new ArrayList<QmfAgentData>();
+        // It's unlikely that evaluating this query will return a mixture of sortable and notSortable 
+        // QmfAgentData objects, but it's best to check if that has occurred as they can't be sorted.
+        boolean sortable = false;
+        boolean notSortable = false;
+        for (QmfAgentData object : candidates)
+        {
+            if (!object.isDeleted() && query.evaluate(object))
+            {
+                results.add(object);
+                if (object.isSortable())
+                {
+                    sortable = true;
+                }
+                else
+                {
+                    notSortable = true;
+                }
+            }
+        }
+
+        // If both flags have been set something has gone a bit weird, so we log an error and clear the
+        // results List to avoid sending unconvertable data. Hopefully this condition should never occur.
+        if (sortable && notSortable)
+        {
+            _log.info("Query resulted in inconsistent mixture of sortable and non-sortable data.");
+            results.clear();
+        }
+        else if (sortable)
+        {
+            Collections.sort(results);
+        }
+
+        QueryResponder responder = new QueryResponder(handle, "_data", true, shared);
+        for (QmfAgentData object : results)
+        {
+            responder.add(object.mapEncode(query));
+        }
+        responder.complete(); // Send the response back to the Console.
+    }
+
+    /**
+     * Look for a response to an identical query that may be shared, as set by setQuerySharing(). If there is one
+     * the Console joins it, receiving the response either straight away if it's complete or from the thread still
+     * evaluating it, otherwise a new SharedQuery is registered for the caller to evaluate and respond to.
+     * @param handle the reply handle that contains the replyTo Address.
+     * @param key the key returned by SharedQuery.getKey() for the query.
+     * @return the new SharedQuery that the caller must respond to, or null if the Console has joined another query.
+     */
+    private SharedQuery shareQuery(final Handle handle, final List<Object> key)
+    {
+        long now = System.nanoTime();
+        SharedQuery shared = new SharedQuery(now);
+        while (true)
+        {
+            SharedQuery existing = _sharedQueries.putIfAbsent(key, shared);
+            if (existing == null)
+            {
+                return shared;
+            }
+
+            if (existing.isReusable(now, _queryReuseWindow, _maxQueryStaleness))
+            {
+                List<byte[]> batches = existing.join(handle);
+                if (batches != null)
+                {
+                    sendQueryResponses(handle, "_data", true, batches, true);
+                }
+                return null;
+            }
+
+            if (_sharedQueries.replace(key, existing, shared))
+            {
+                return shared;
+            }
+        }
+    }
+
+    /**
+     * Stop sharing a query whose response couldn't be completed, telling the Consoles that joined it.
+     * @param key the key returned by SharedQuery.getKey() for the query.
+     * @param shared the SharedQuery.
+     */
+    private void failSharedQuery(final List<Object> key, final SharedQuery shared)
+    {
+        _sharedQueries.remove(key, shared);
+        for (SharedQuery.Follower follower : shared.fail())
+        {
+            raiseException(follower.getHandle(), "Query Request failed, the shared query could not be completed");
+        }
+    }
+
+    /**
+     * Return the QmfAgentData objects that might match an OBJECT QmfQuery. Where possible these are obtained from
+     * the secondary indexes, otherwise all of the objects in the internal Object store are returned. In either
+     * case the caller must still evaluate the query against each object and skip any that have been deleted.
+     *
+     * @param query the QmfQuery that is about to be evaluated.
+     * @return the QmfAgentData objects that the query needs to be evaluated against.
+     */
+    private Collection<QmfAgentData> getCandidates(final QmfQuery query)
+    {
+        Collection<QmfAgentData> candidates = _secondaryIndex.getCandidates(query);
+        return candidates == null ? _objectIndex.values() : candidates;
+    }
+
+    /**
+     * Called by QmfAgentData.update() to allow any property indexes to track changes to the object's state and
+     * to record the change in the _changeLog for the benefit of any Subscriptions.
+     * @param object the QmfAgentData object that has been updated.
+     */
+    final void objectUpdated(final QmfAgentData object)
+    {
+        _secondaryIndex.update(object);
+
+        if (!_subscriptions.isEmpty())
+        {
+            // Changes are recorded holding the _changeLog lock so that once a Subscription has read the current
+            // sequence number every change up to that sequence number is guaranteed to be present in the log.
+            synchronized(_changeLog)
+            {
+                long sequence = _changeSequence.incrementAndGet();
+                _changeLog.put(sequence, object);
+                long previous = object.setChangeSequence(sequence);
+                if (previous != 0)
+                {
+                    _changeLog.remove(previous);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called by QmfAgentData.destroy() to remove the destroyed object from the secondary indexes and _changeLog.
+     * The object itself remains in the internal Object store until it is reaped by the Heartbeat.
+     * @param object the QmfAgentData object that has been destroyed.
+     */
+    final void objectDestroyed(final QmfAgentData object)
+    {
+        _secondaryIndex.remove(object);
+
+        synchronized(_changeLog)
+        {
+            long previous = object.setChangeSequence(0);
+            if (previous != 0)
+            {
+                _changeLog.remove(previous);
+            }
+        }
+    }
+
+    /**
+     * Return the sequence number of the most recent change recorded in the _changeLog.
+     * @return the sequence number of the most recent change recorded in the _changeLog.
+     */
+    final long getChangeSequence()
+    {
+        synchronized(_changeLog)
+        {
+            return _changeSequence.get();
+        }
+    }
+
+    /**
+     * Return the QmfAgentData objects whose most recent change has a sequence number in the specified range. This
+     * is used by Subscriptions to find the objects that have changed since they were last run.
+     *
+     * @param after the sequence number that the caller has already seen changes up to.
+     * @param upTo the sequence number, obtained from getChangeSequence(), up to which changes are required.
+     * @return the objects that have changed, in the order of their most recent change.
+     */
+    final Collection<QmfAgentData> getChangedObjects(final long after, final long upTo)
+    {
+        return _changeLog.subMap(after, false, upTo, true).values();
+    }
+
+    /**
+     * Called by a Subscription that is about to evaluate its query against every object, to set its position in the
+     * _changeLog to the most recent change. This is synchronised with trimChangeLog() so that changes made while the
+     * query is being evaluated can't be trimmed before the Subscription has seen them.
+     *
+     * @param subscription the Subscription that is about to evaluate its query against every object.
+     */
+    final void startChangeTracking(final Subscription subscription)
+    {
+        synchronized(_changeLog)
+        {
+            subscription.setChangeCursor(_changeSequence.get());
         }
-        else if (target == QmfQueryTarget.OBJECT)
+    }
+
+    /**
+     * Remove entries from the _changeLog that every Subscription has already seen.
+     */
+    final void trimChangeLog()
+    {
+        synchronized(_changeLog)
         {
-            // If this is implementing the AgentExternal model we pass the QmfQuery on in a QueryWorkItem
-            if (this instanceof AgentExternal)
+            long seen = Long.MAX_VALUE;
+            for (Subscription subscription : _subscriptions.values())
             {
-                _eventListener.onEvent(new QueryWorkItem(handle, query));
-                return;
-            }
-            else
-            { // If not implementing the AgentExternal model we handle the Query ourself.
-                //qmfContentType = "_data";
-                if (query.getObjectId() != null)
-                {
-                    List<Map> results = new ArrayList<Map>(1);
-                    // Look up a QmfAgentData object by the ObjectId obtained from the query
-                    ObjectId objectId = query.getObjectId();
-                    QmfAgentData object = _objectIndex.get(objectId);
-                    if (object != null && !object.isDeleted())
-                    {
-                        results.add(object.mapEncode());
-                    }
-                    queryResponse(handle, results, "_data"); // Send the response back to the Console.
-                }
-                else
-                {
-                    // Look up QmfAgentData objects by the SchemaClassId obtained from the query
-                    // This is implemented by a linear search and allows searches with only the className specified.
-                    // Linear searches clearly don't scale brilliantly, but the number of QmfAgentData objects managed
-                    // by an Agent is generally fairly small, so it should be OK. Note that this is the same approach
-                    // taken by the C++ broker ManagementAgent, so if it's a problem here........
-
-                    // N.B. the results list declared here is a generic List of Objects. We *must* only pass a List of
-                    // Map to queryResponse(), but conversely if the response items are sortable we need to sort them
-                    // before doing mapEncode(). Unfortunately we don't know if the items are sortable a priori so
-                    // we either add a Map or we add a QmfAgentData, then sort then mapEncode() each item. I'm not
-                    // sure of a more elegant way to do this without creating two lists, which might not be so bad
-                    // but we don't know the size of the list a priori either.
-                    List results = new ArrayList(_objectIndex.size());
-                    // It's unlikely that evaluating this query will return a mixture of sortable and notSortable 
-                    // QmfAgentData objects, but it's best to check if that has occurred as accidentally passing a
-                    // List of QmfAgentData instead of a List of Map to queryResponse() will break things.
-                    boolean sortable = false;
-                    boolean notSortable = false;
-                    for (QmfAgentData object : _objectIndex.values())
-                    {
-                        if (!object.isDeleted() && query.evaluate(object))
-                        {
-                            if (object.isSortable())
-                            { // If QmfAgentData is marked sortable we add the QmfAgentData object to the List
-                              // so we can sort first before mapEncoding.
-                                results.add(object);
-                                sortable = true;
-                            }
-                            else
-                            { // If QmfAgentData is not marked sortable we mapEncode immediately and add the Map to List.
-                                results.add(object.mapEncode());
-                                notSortable = true;
-                            }
-                        }
-                    }
-
-                    // If both flags have been set something has gone a bit weird, so we log an error and clear the
-                    // results List to avoid sending unconvertable data. Hopefully this condition should never occur.
-                    if (sortable && notSortable)
-                    {
-                        _log.info("Query resulted in inconsistent mixture of sortable and non-sortable data.");
-                        results.clear();
-                    }
-                    else if (sortable)
-                    {
-                        Collections.sort(results);
-                        int length = results.size();
-                        for (int i = 0; i < length; i++)
-                        {
-                            QmfAgentData object = (QmfAgentData)results.get(i);
-                            results.set(i, object.mapEncode());
-                        }
-                    }
-                    queryResponse(handle, results, "_data"); // Send the response back to the Console.
-                }
+                seen = Math.min(seen, subscription.getChangeCursor());
             }
+            _changeLog.headMap(seen, true).clear();
         }
-        else
-        {
-            raiseException(handle, "Query for _what => '" + target + "' not supported");
-            return;
-        }
-    } // end of handleQueryRequest()
+    }
 
     /**
      * Return a QmfAgentData from the internal Object store given its ObjectId.
@@ -535,25 +1266,34 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
      * @param message the exception message.
      */
     public final void raiseException(final Handle handle, final String message)
+    {
+        QmfData exception = new QmfData();
+        exception.setValue("error_text", message);
+        sendException(handle, exception);
+    }
+
+    /**
+     * Send an exception back to the Console.
+     * @param handle the reply handle that contains the replyTo Address.
+     * @param exception the exception, which should have an "error_text" property.
+     */
+    private final void sendException(final Handle handle, final QmfData exception)
     {
         try
         {
-            MapMessage response = _syncSession.createMapMessage();
+            MapMessage response = createMapMessage();
             response.setJMSCorrelationID(handle.getCorrelationId());
             response.setStringProperty("x-amqp-0-10.app-id", "qmf2");
             response.setStringProperty("method", "response");
             response.setStringProperty("qmf.opcode", "_exception");
             response.setStringProperty("qmf.agent", _name);
             response.setStringProperty("qpid.subject", handle.getRoutingKey());
-
-            QmfData exception = new QmfData();
-            exception.setValue("error_text", message);
             response.setObject("_values", exception.mapEncode());
             sendResponse(handle, response);
         }
         catch (JMSException jmse)
         {
-            _log.info("JMSException {} caught in handleLocateRequest()", jmse.getMessage());
+            _log.info("JMSException {} caught in sendException()", jmse.getMessage());
         }
     }
 
@@ -570,7 +1310,7 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
     {
         try
         {
-            Message response = AMQPMessage.createListMessage(_syncSession);
+            Message response = createListMessage();
             response.setJMSCorrelationID(handle.getCorrelationId());
             response.setStringProperty("x-amqp-0-10.app-id", "qmf2");
             response.setStringProperty("method", "indication");
@@ -595,7 +1335,7 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
      */
     public final List<QmfAgentData> evaluateQuery(final QmfQuery query)
     {
-        List<QmfAgentData> results = new ArrayList<QmfAgentData>(_objectIndex.size());
+        List<QmfAgentData> results = new ArrayList<QmfAgentData>();
         if (query.getTarget() == QmfQueryTarget.OBJECT)
         { // Note that we don't include objects marked as deleted in the results here, because if an object gets
           // destroyed we asynchronously publish its new state to subscribers, see QmfAgentData.destroy() method.
@@ -612,7 +1352,7 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
             else
             {
                 // Look up QmfAgentData objects evaluating the query
-                for (QmfAgentData object : _objectIndex.values())
+                for (QmfAgentData object : getCandidates(query))
                 {
                     if (!object.isDeleted() && query.evaluate(object))
                     {
@@ -634,15 +1374,136 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
         _subscriptions.remove(subscription.getSubscriptionId());
     }
 
+    /**
+     * Schedule a new Subscription's periodic updates.
+     * <p>
+     * The first update is run straight away so the Console receives the initial state of the subscribed objects.
+     * The periodic updates then start after a random delay of between a half and one and a half times the publish
+     * interval so that Subscriptions created together, for example by a Console subscribing to several classes at
+     * start up, don't all fall due at the same instant and compete for the scheduler's threads.
+     *
+     * @param subscription the Subscription to be scheduled.
+     */
+    private void scheduleSubscription(final Subscription subscription)
+    {
+        long interval = subscription.getInterval();
+        long initialDelay = interval/2 + ThreadLocalRandom.current().nextLong(interval);
+        _scheduler.execute(subscription);
+        subscription.setFuture(_scheduler.scheduleWithFixedDelay(
+            new ScheduledTick(subscription, initialDelay, interval, TimeUnit.MILLISECONDS, _subscriptionStatistics),
+            initialDelay, interval, TimeUnit.MILLISECONDS));
+    }
+
     //                                          MessageListener
     // ********************************************************************************************************
 
     /**
      * MessageListener for QMF2 Console requests.
+     * <p>
+     * If request threads have been configured via setRequestThreads() the request is queued on the thread selected
+     * by its reply address, in the RequestLane for its qmf.opcode, otherwise it is handled on the JMS listener thread.
+     * If that thread's queue is full the request is refused with an _exception response rather than making the JMS
+     * listener thread wait. Queries and subscriptions over the limits set by setRequestRateLimits() are rejected
+     * before either happens.
      *
      * @param message the JMS Message passed to the listener.
      */
     public final void onMessage(final Message message)
+    {
+        try
+        {
+            String opcode = QmfData.getString(message.getObjectProperty("qmf.opcode"));
+            AdmissionController admission = _admissionController;
+            if (admission != null && ("_query_request".equals(opcode) || "_subscribe_request".equals(opcode)) &&
+                !admit(admission, message))
+            {
+                return;
+            }
+
+            RequestDispatcher dispatcher = _requestDispatcher;
+            if (dispatcher == null)
+            {
+                handleRequest(message);
+                return;
+            }
+
+            Destination replyTo = message.getJMSReplyTo();
+            RequestLane lane = RequestLane.forOpcode(opcode);
+            boolean dispatched = dispatcher.dispatch(replyTo == null ? "" : replyTo.toString(), lane, new Runnable()
+            {
+                public void run()
+                {
+                    handleRequest(message);
+                }
+            });
+
+            if (!dispatched)
+            {
+                _requestStatistics.get(lane).recordRefused();
+                refuseRequest(message, "Agent busy", REQUEST_RETRY_AFTER);
+            }
+        }
+        catch (JMSException jmse)
+        {
+            _log.info("JMSException {} caught in onMessage()", jmse.getMessage());
+        }
+    } // end of onMessage()
+
+    /**
+     * Apply the request rate limits to a request, sending an exception back to the Console if the request is
+     * rejected. The exception has a "retry_after_ms" property in addition to "error_text" that tells the Console
+     * how long to wait in milliseconds before it makes another request.
+     *
+     * @param admission the AdmissionController that applies the request rate limits.
+     * @param message the JMS Message passed to the listener.
+     * @return true if the request is admitted, false if it has been rejected.
+     */
+    private boolean admit(final AdmissionController admission, final Message message) throws JMSException
+    {
+        Destination replyTo = message.getJMSReplyTo();
+        String console = _rateLimitByUser ? message.getStringProperty("JMSXUserID") : null;
+        if (console == null)
+        {
+            console = (replyTo == null) ? "" : replyTo.toString();
+        }
+
+        long wait = admission.admit(console, System.nanoTime());
+        if (wait == 0)
+        {
+            return true;
+        }
+
+        refuseRequest(message, "Request rate limit exceeded", TimeUnit.NANOSECONDS.toMillis(wait) + 1);
+        return false;
+    }
+
+    /**
+     * Send an exception back to the Console for a request that the Agent has refused to handle for now. The
+     * exception has a "retry_after_ms" property in addition to "error_text" that tells the Console how long to wait
+     * in milliseconds before it makes another request.
+     *
+     * @param message the JMS Message passed to the listener.
+     * @param reason why the request was refused.
+     * @param retryAfter how long the Console should wait before retrying, in milliseconds.
+     */
+    private void refuseRequest(final Message message, final String reason, final long retryAfter) throws JMSException
+    {
+        Destination replyTo = message.getJMSReplyTo();
+        if (replyTo != null)
+        {
+            QmfData exception = new QmfData();
+            exception.setValue("error_text", reason + ", retry after " + retryAfter + "ms");
+            exception.setValue("retry_after_ms", retryAfter);
+            sendException(new Handle(message.getJMSCorrelationID(), replyTo), exception);
+        }
+    }
+
+    /**
+     * Handle a QMF2 Console request, on either the JMS listener thread or one of the request threads.
+     *
+     * @param message the JMS Message passed to the listener.
+     */
+    private void handleRequest(final Message message)
     {
         try
         {
@@ -661,7 +1522,11 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
 
             Handle handle = new Handle(message.getJMSCorrelationID(), message.getJMSReplyTo());
 
-            if (opcode.equals("_agent_locate_request"))
+            if (opcode == null)
+            {
+                _log.info("Ignoring request with no qmf.opcode");
+            }
+            else if (opcode.equals("_agent_locate_request"))
             {
                 handleLocateRequest(handle);
             }
@@ -676,7 +1541,7 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
                 }
                 else
                 {
-                    _log.info("onMessage() Received Method Request message in incorrect format");
+                    _log.info("handleRequest() Received Method Request message in incorrect format");
                 }
             }
             else if (opcode.equals("_query_request"))
@@ -695,7 +1560,7 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
                 }
                 else
                 {
-                    _log.info("onMessage() Received Query Request message in incorrect format");
+                    _log.info("handleRequest() Received Query Request message in incorrect format");
                 }
             }
             else if (opcode.equals("_subscribe_request"))
@@ -715,7 +1580,7 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
                             Subscription subscription = new Subscription(this, subscriptionParams);
                             String subscriptionId = subscription.getSubscriptionId();
                             _subscriptions.put(subscriptionId, subscription);
-                            _timer.schedule(subscription, 0, subscriptionParams.getPublishInterval());
+                            scheduleSubscription(subscription);
                             subscriptionResponse(handle, subscription.getConsoleHandle(), subscriptionId, 
                                                  subscription.getDuration(), subscription.getInterval(), null);
                         }
@@ -727,7 +1592,7 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
                 }
                 else
                 {
-                    _log.info("onMessage() Received Subscribe Request message in incorrect format");
+                    _log.info("handleRequest() Received Subscribe Request message in incorrect format");
                 }
             }
             else if (opcode.equals("_subscribe_refresh_indication"))
@@ -754,7 +1619,7 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
                 }
                 else
                 {
-                    _log.info("onMessage() Received Resubscribe Request message in incorrect format");
+                    _log.info("handleRequest() Received Resubscribe Request message in incorrect format");
                 }
             }
             else if (opcode.equals("_subscribe_cancel_indication"))
@@ -778,15 +1643,15 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
                 }
                 else
                 {
-                    _log.info("onMessage() Received Subscribe Cancel Request message in incorrect format");
+                    _log.info("handleRequest() Received Subscribe Cancel Request message in incorrect format");
                 }
             }
         }
         catch (JMSException jmse)
         {
-            _log.info("JMSException {} caught in onMessage()", jmse.getMessage());
+            _log.info("JMSException {} caught in handleRequest()", jmse.getMessage());
         }
-    } // end of onMessage()
+    } // end of handleRequest()
 
     //                                          QMF API Methods
     // ********************************************************************************************************
@@ -846,111 +1711,371 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
      * The latter is an alternative API that avoids the need for an explicit Notifier thread to be created the
      * EventListener is called from the JMS MessageListener thread.
      * <p>
-     * This API may be simpler and more convenient than the QMF2 Notifier API for many applications.
-     * @param interval is the heartbeat interval in seconds.
+     * This API may be simpler and more convenient than the QMF2 Notifier API for many applications.
+     * @param interval is the heartbeat interval in seconds.
+     */
+    public Agent(final String name, final String domain,
+                 final QmfCallback notifier, final int interval) throws QmfException
+    {
+        if (name != null)
+        {
+            String[] split = name.split(":");
+            if (split.length < 2 || split.length > 3)
+            {
+                throw new QmfException("Agent name must be in the format <vendor>:<product>[:<instance>]");
+            }
+
+            _vendor = split[0];
+            _product = split[1];
+
+            if (split.length == 3)
+            {
+                _instance = split[2];
+            }
+
+            _name = _vendor + ":" + _product + ":" + _instance;
+        }
+
+        _domain = (domain == null) ? "default" : domain;
+
+        if (notifier == null)
+        {
+            _eventListener = new NullQmfEventListener();
+        }
+        else if (notifier instanceof Notifier)
+        {
+            _eventListener = new NotifierWrapper((Notifier)notifier, _workQueue);
+        }
+        else if (notifier instanceof QmfEventListener)
+        {
+            _eventListener = (QmfEventListener)notifier;
+        }
+        else
+        {
+            throw new QmfException("QmfCallback listener must be either a Notifier or QmfEventListener");
+        }
+
+        if (interval > 0)
+        {
+            _heartbeatInterval = interval;
+        }
+
+        for (RequestLane lane : RequestLane.values())
+        {
+            _requestStatistics.put(lane, new RequestStatistics());
+        }
+    }
+
+    /**
+     * Returns the name string of the agent.
+     * @return the name string of the agent.
+     */
+    public final String getName()
+    {
+        return _name;
+    }
+
+    /**
+     * Set the vendor String, must be called before setConnection().
+     * @param vendor the vendor name.
+     */
+    public final void setVendor(final String vendor)
+    {
+        _vendor = vendor;
+        _name = _vendor + ":" + _product + ":" + _instance;
+    }
+
+    /**
+     * Set the product String, must be called before setConnection().
+     * @param product the product name.
+     */
+    public final void setProduct(final String product)
+    {
+        _product = product;
+        _name = _vendor + ":" + _product + ":" + _instance;
+    }
+
+    /**
+     * Set the instance String, must be called before setConnection().
+     * @param instance the instance value.
+     */
+    public final void setInstance(final String instance)
+    {
+        _instance = instance;
+        _name = _vendor + ":" + _product + ":" + _instance;
+    }
+
+    /**
+     * Returns the current epoch value.
+     * @return the current epoch value.
+     */
+    public final int getEpoch()
+    {
+        return _epoch;
+    }
+
+    /**
+     * Set the new epoch value.
+     * @param epoch the new epoch value.
+     */
+    public final void setEpoch(final int epoch)
+    {
+        _epoch = epoch;
+    }
+
+    /**
+     * Set the limits on the size of each _query_response message sent by the Agent.
+     * <p>
+     * This method isn't part of the QMF2 API. If the results of a query exceed either limit they are sent to the
+     * Console as a number of responses, all but the last of which are marked with the "partial" property, which
+     * avoids building a single enormous message for queries that return large numbers of objects. A response
+     * is sent once it reaches maxBytes, so it may exceed maxBytes by the size of its last object. By default there
+     * is no limit on the number of objects and the limit on the size is 256KB.
+     *
+     * @param maxObjects the maximum number of objects in each response, zero means no limit.
+     * @param maxBytes the size in bytes beyond which no more objects are added to a response, zero means no limit.
+     */
+    public final void setQueryResponseLimits(final int maxObjects, final int maxBytes) throws QmfException
+    {
+        if (maxObjects < 0 || maxBytes < 0)
+        {
+            throw new QmfException("Query response limits must not be negative");
+        }
+        _maxBatchObjects = maxObjects;
+        _maxBatchBytes = maxBytes;
+    }
+
+    /**
+     * Set the capacity of the queue of events waiting to be sent and what to do when it's full, must be called
+     * before setConnection().
+     * <p>
+     * This method isn't part of the QMF2 API. By default raiseEvent() sends events on the calling thread as the QMF2
+     * API describes. Once a queue is set raiseEvent() doesn't send events itself but adds them to the queue, which is
+     * drained by a dedicated sender thread so that threads raising events never wait for management I/O. The sender
+     * sends the events that have queued up with the same class and severity together in a single message. If events
+     * are raised faster than they can be sent the queue fills up, at which point the EventOverflowPolicy applies.
+     * A capacity of zero removes the queue.
+     *
+     * @param capacity the maximum number of events held in the queue, zero to send events synchronously.
+     * @param policy what to do with new events when the queue is full.
+     */
+    public final void setEventQueue(final int capacity, final EventOverflowPolicy policy) throws QmfException
+    {
+        if (capacity < 0 || policy == null)
+        {
+            throw new QmfException("The event queue capacity must not be negative and a policy must be supplied");
+        }
+        if (_connection != null)
+        {
+            throw new QmfException("The event queue must be set before setConnection() is called");
+        }
+        _eventQueue = (capacity == 0) ? null : new EventQueue(capacity, policy, _eventStatistics);
+    }
+
+    /**
+     * Set the number of threads used to run Subscription updates, must be called before setConnection().
+     * <p>
+     * This method isn't part of the QMF2 API. By default the Agent runs all Subscription updates on a single thread,
+     * Agents with many Subscriptions or Subscriptions whose queries match large numbers of objects may want more.
+     * Heartbeats always have a thread of their own.
+     *
+     * @param threads the number of threads used to run Subscription updates.
      */
-    public Agent(final String name, final String domain,
-                 final QmfCallback notifier, final int interval) throws QmfException
+    public final void setSchedulerThreads(final int threads) throws QmfException
     {
-        if (name != null)
+        if (threads < 1)
         {
-            String[] split = name.split(":");
-            if (split.length < 2 || split.length > 3)
-            {
-                throw new QmfException("Agent name must be in the format <vendor>:<product>[:<instance>]");
-            }
-
-            _vendor = split[0];
-            _product = split[1];
-
-            if (split.length == 3)
-            {
-                _instance = split[2];
-            }
-
-            _name = _vendor + ":" + _product + ":" + _instance;
+            throw new QmfException("The Agent needs at least one scheduler thread");
         }
+        _schedulerThreads = threads;
+    }
 
-        _domain = (domain == null) ? "default" : domain;
-
-        if (notifier == null)
+    /**
+     * Set the number of threads used to handle Console requests, must be called before setConnection().
+     * <p>
+     * This method isn't part of the QMF2 API. By default requests are handled on the JMS listener thread, so one
+     * Console making an expensive request such as a large OBJECT query holds up the requests of every other Console.
+     * With request threads each Console's requests are handled in order on the thread selected by its reply address,
+     * and each thread sends responses using a JMS Session of its own. Each thread runs method calls first, then
+     * subscription requests, then queries (see RequestLane), even between the batches of a large query response.
+     * Each thread queues up to 1000 requests, further requests for that thread are refused with an _exception whose
+     * "retry_after_ms" property tells the Console when to retry (see getRequestStatistics()).
+     * Note that a QmfEventListener will then be called from the request threads, so it must be thread safe.
+     *
+     * @param threads the number of threads used to handle Console requests, zero to use the JMS listener thread.
+     */
+    public final void setRequestThreads(final int threads) throws QmfException
+    {
+        if (threads < 0)
         {
-            _eventListener = new NullQmfEventListener();
+            throw new QmfException("The number of request threads must not be negative");
         }
-        else if (notifier instanceof Notifier)
+        if (_connection != null)
         {
-            _eventListener = new NotifierWrapper((Notifier)notifier, _workQueue);
+            throw new QmfException("The request threads must be set before setConnection() is called");
         }
-        else if (notifier instanceof QmfEventListener)
+        _requestThreads = threads;
+    }
+
+    /**
+     * Limit the rate of the _query_request and _subscribe_request requests that Consoles may make, as each of them
+     * evaluates a query over the Agent's objects. A rate of zero means no limit, which is the default.
+     * <p>
+     * This method isn't part of the QMF2 API. Each Console may make up to consoleRate requests per second on average
+     * with bursts of up to consoleBurst, and all of the Consoles together may make up to globalRate requests per
+     * second with bursts of up to globalBurst. Requests over either limit are rejected with an _exception response
+     * whose "retry_after_ms" property tells the Console how long to wait before trying again. Method calls, Agent
+     * locate requests and Subscription refreshes and cancellations are never limited. The limits may be changed at
+     * any time, which resets them, and the number of rejected requests may be read from getAdmissionStatistics().
+     *
+     * @param consoleRate the sustained number of requests per second allowed from each Console.
+     * @param consoleBurst the maximum number of requests that each Console may make at once.
+     * @param globalRate the sustained number of requests per second allowed from all Consoles together.
+     * @param globalBurst the maximum number of requests that all Consoles together may make at once.
+     */
+    public final void setRequestRateLimits(final double consoleRate, final int consoleBurst,
+                                           final double globalRate, final int globalBurst) throws QmfException
+    {
+        if (consoleRate < 0 || globalRate < 0 || (consoleRate > 0 && consoleBurst < 1) ||
+            (globalRate > 0 && globalBurst < 1))
         {
-            _eventListener = (QmfEventListener)notifier;
+            throw new QmfException("Request rates must not be negative and bursts must be at least one request");
+        }
+
+        if (consoleRate == 0 && globalRate == 0)
+        {
+            _admissionController = null;
         }
         else
         {
-            throw new QmfException("QmfCallback listener must be either a Notifier or QmfEventListener");
+            _admissionController = new AdmissionController(consoleRate, consoleBurst, globalRate, globalBurst,
+                                                            _admissionStatistics);
         }
+    }
 
-        if (interval > 0)
+    /**
+     * Choose how Consoles are identified for the per Console request rate limit, see setRequestRateLimits().
+     * <p>
+     * This method isn't part of the QMF2 API. By default Consoles are identified by the reply address of their
+     * requests, which is unique to each Console instance. Identifying them by the user ID of their requests
+     * (JMSXUserID) instead applies the limit to all of the Consoles run by each user, requests without a user ID
+     * are still identified by their reply address.
+     *
+     * @param byUser true to identify Consoles by user ID, false to identify them by reply address.
+     */
+    public final void setRateLimitByUser(final boolean byUser)
+    {
+        _rateLimitByUser = byUser;
+    }
+
+    /**
+     * Share the responses to identical OBJECT queries, that is queries with the same target, SchemaClassId,
+     * predicate and projection, between Consoles. Sharing is disabled by default.
+     * <p>
+     * This method isn't part of the QMF2 API. When several Consoles poll the same query at about the same time the
+     * Agent evaluates and encodes it once, then sends the encoded response to each Console with its own correlation
+     * ID. A query made while an identical query is still being evaluated joins it, and a query made within
+     * reuseWindow of an identical query completing receives its response, as long as that response was started no
+     * more than maxStaleness ago, so no Console ever receives results older than maxStaleness. Queries by ObjectId
+     * aren't shared as they are cheap, nor are queries handled by an AgentExternal application. Note that a Console
+     * that joins a query still being evaluated receives the response from the thread evaluating it, so may receive
+     * the responses to its later requests first.
+     *
+     * @param reuseWindow how long in milliseconds the response to a completed query may be reused.
+     * @param maxStaleness the maximum age in milliseconds of a shared response, zero to disable sharing.
+     */
+    public final void setQuerySharing(final long reuseWindow, final long maxStaleness) throws QmfException
+    {
+        if (reuseWindow < 0 || maxStaleness < reuseWindow)
         {
-            _heartbeatInterval = interval;
+            throw new QmfException("The reuse window must not be negative or longer than the maximum staleness");
+        }
+        _queryReuseWindow = TimeUnit.MILLISECONDS.toNanos(reuseWindow);
+        _maxQueryStaleness = TimeUnit.MILLISECONDS.toNanos(maxStaleness);
+        if (maxStaleness == 0)
+        {
+            _sharedQueries.clear();
         }
     }
 
     /**
-     * Returns the name string of the agent.
-     * @return the name string of the agent.
+     * Supply the ScheduledExecutorService used to run Subscription updates, must be called before setConnection().
+     * <p>
+     * This method isn't part of the QMF2 API. It allows an application to share a scheduler between the Agent and
+     * its own periodic tasks. The Agent won't shut down a scheduler supplied in this way, that remains the
+     * application's responsibility.
+     *
+     * @param scheduler the ScheduledExecutorService used to run Subscription updates.
      */
-    public final String getName()
+    public final void setScheduler(final ScheduledExecutorService scheduler) throws QmfException
     {
-        return _name;
+        if (_connection != null)
+        {
+            throw new QmfException("The scheduler must be set before setConnection() is called");
+        }
+        _scheduler = scheduler;
+        _ownsScheduler = false;
     }
 
     /**
-     * Set the vendor String, must be called before setConnection().
-     * @param vendor the vendor name.
+     * Return statistics recording how late Heartbeats have been sent compared with when they were due.
+     * <p>
+     * This method isn't part of the QMF2 API.
+     *
+     * @return statistics recording how late Heartbeats have been sent.
      */
-    public final void setVendor(final String vendor)
+    public final TickStatistics getHeartbeatStatistics()
     {
-        _vendor = vendor;
-        _name = _vendor + ":" + _product + ":" + _instance;
+        return _heartbeatStatistics;
     }
 
     /**
-     * Set the product String, must be called before setConnection().
-     * @param product the product name.
+     * Return statistics recording how late Subscription updates have run compared with when they were due.
+     * <p>
+     * This method isn't part of the QMF2 API.
+     *
+     * @return statistics recording how late Subscription updates have run.
      */
-    public final void setProduct(final String product)
+    public final TickStatistics getSubscriptionStatistics()
     {
-        _product = product;
-        _name = _vendor + ":" + _product + ":" + _instance;
+        return _subscriptionStatistics;
     }
 
     /**
-     * Set the instance String, must be called before setConnection().
-     * @param instance the instance value.
+     * Return statistics recording how long the requests in a RequestLane waited for a request thread.
+     * <p>
+     * This method isn't part of the QMF2 API.
+     *
+     * @param lane the RequestLane.
+     * @return statistics recording how long the requests in the RequestLane waited for a request thread.
      */
-    public final void setInstance(final String instance)
+    public final RequestStatistics getRequestStatistics(final RequestLane lane)
     {
-        _instance = instance;
-        _name = _vendor + ":" + _product + ":" + _instance;
+        return _requestStatistics.get(lane);
     }
 
     /**
-     * Returns the current epoch value.
-     * @return the current epoch value.
+     * Return statistics recording how many rate limited requests have been admitted and rejected.
+     * <p>
+     * This method isn't part of the QMF2 API.
+     *
+     * @return statistics recording how many rate limited requests have been admitted and rejected.
      */
-    public final int getEpoch()
+    public final AdmissionStatistics getAdmissionStatistics()
     {
-        return _epoch;
+        return _admissionStatistics;
     }
 
     /**
-     * Set the new epoch value.
-     * @param epoch the new epoch value.
+     * Return statistics recording what has happened to the events raised by the Agent.
+     * <p>
+     * This method isn't part of the QMF2 API.
+     *
+     * @return statistics recording what has happened to the events raised by the Agent.
      */
-    public final void setEpoch(final int epoch)
+    public final EventStatistics getEventStatistics()
     {
-        _epoch = epoch;
+        return _eventStatistics;
     }
 
     /**
@@ -1038,6 +2163,13 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
             // Create an unidentified MessageProducer for sending to various destinations.
             _producer = _syncSession.createProducer(null);
 
+            // Start the request threads, if any, before the consumers so they are ready for the first request.
+            if (_requestThreads > 0)
+            {
+                _requestDispatcher = new RequestDispatcher(_connection, _requestThreads, REQUEST_QUEUE_CAPACITY,
+                                                           _requestStatistics);
+            }
+
             // TODO it should be possible to bind _locateConsumer, _mainConsumer and _aliasConsumer to the
             // same queue if I can figure out the correct AddressString to use, probably not a big deal though.
 
@@ -1069,9 +2201,31 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
 
             _connection.start();
 
+            // Start the thread that sends the events queued by raiseEvent(), which may already have some queued.
+            if (_eventQueue != null)
+            {
+                _stopEventSender = false;
+                _eventSender = new EventSender();
+                _eventQueue.setConsumer(_eventSender.getThread());
+                _eventSender.getThread().start();
+            }
+
             // Schedule a Heartbeat every _heartbeatInterval seconds sending the first one immediately
-            _timer = new Timer(true);
-            _timer.schedule(new Heartbeat(), 0, _heartbeatInterval*1000);
+            long interval = _heartbeatInterval*1000l;
+            _heartbeatScheduler = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("QMF2 Agent Heartbeat"));
+            _heartbeatScheduler.scheduleWithFixedDelay(new ScheduledTick(new Heartbeat(), 0, interval,
+                                                                         TimeUnit.MILLISECONDS, _heartbeatStatistics),
+                                                       0, interval, TimeUnit.MILLISECONDS);
+
+            if (_scheduler == null)
+            {
+                ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(_schedulerThreads,
+                    new DaemonThreadFactory("QMF2 Agent Scheduler"));
+                scheduler.setRemoveOnCancelPolicy(true); // As Subscriptions get cancelled when they expire.
+                _scheduler = scheduler;
+                _ownsScheduler = true;
+            }
+            _reaper = _scheduler.scheduleWithFixedDelay(new Reaper(), interval, interval, TimeUnit.MILLISECONDS);
         }
         catch (JMSException jmse)
         {
@@ -1093,9 +2247,25 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
             throw new QmfException("Attempt to delete unknown connection");
         }
 
+        stopEventSender();
+
+        RequestDispatcher dispatcher = _requestDispatcher;
+        if (dispatcher != null)
+        {
+            dispatcher.stop(REQUEST_SHUTDOWN_TIMEOUT);
+            _requestDispatcher = null;
+        }
+
         try
         {
-            _timer.cancel();
+            _heartbeatScheduler.shutdownNow();
+            _reaper.cancel(false);
+            if (_ownsScheduler)
+            {
+                _scheduler.shutdownNow();
+                _scheduler = null;
+                _ownsScheduler = false;
+            }
             _connection.close();
         }
         catch (JMSException jmse)
@@ -1105,6 +2275,37 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
         _connection = null;
     }
 
+    /**
+     * Stop the event sender thread, giving it a chance to send the events that are still queued first.
+     */
+    private void stopEventSender()
+    {
+        EventSender eventSender = _eventSender;
+        if (eventSender != null)
+        {
+            Thread sender = eventSender.getThread();
+            _stopEventSender = true;
+            _eventQueue.wakeConsumer();
+            try
+            {
+                sender.join(EVENT_SENDER_SHUTDOWN_TIMEOUT);
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            if (sender.isAlive())
+            {
+                _log.info("Event sender didn't finish within {} ms, {} events not sent", EVENT_SENDER_SHUTDOWN_TIMEOUT,
+                          _eventQueue.size());
+            }
+            _eventQueue.setConsumer(null);
+            eventSender.close();
+            _eventSender = null;
+        }
+    }
+
     /**
      * Register a schema for an object class with the Agent.
      * <p>
@@ -1133,42 +2334,181 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
 
     /**
      * Cause the agent to raise the given event.
+     * <p>
+     * If an event queue has been set (see setEventQueue()) the event is queued and sent by the Agent's event sender
+     * thread, so the event must not be modified once it has been raised.
      *
      * @param event the QmfEvent to be raised
      */
     public final void raiseEvent(final QmfEvent event)
     {
-        try
+        _eventStatistics.recordRaised();
+        EventQueue queue = _eventQueue;
+        if (queue == null)
+        {
+            synchronized(_syncLock)
+            {
+                sendEvents(Collections.singletonList(event), _syncSession, _producer);
+            }
+        }
+        else
         {
-            String packageKey = event.getSchemaClassId().getPackageName().replace(".", "_");
-            String nameKey = event.getSchemaClassId().getClassName().replace(".", "_");
-            String severity = event.getSeverity();
-            String vendorKey = _vendor.replace(".", "_");
-            String productKey = _product.replace(".", "_");
-            String instanceKey = _instance.replace(".", "_");
+            queue.add(event);
+        }
+    }
 
-            String subject = "agent.ind.event." + packageKey + "." + nameKey + "." + severity + "." + vendorKey + "." + 
-                              productKey + "." + instanceKey;
+    /**
+     * Cause the agent to raise a batch of events.
+     * <p>
+     * This method isn't part of the QMF2 API. It has the same effect as calling raiseEvent() for each event, but if
+     * no event queue has been set (see setEventQueue()) the events are still sent in as few messages as possible,
+     * as they are when they're sent by the Agent's event sender thread.
+     *
+     * @param events the QmfEvents to be raised.
+     */
+    public final void raiseEvents(final List<QmfEvent> events)
+    {
+        EventQueue queue = _eventQueue;
+        if (queue == null)
+        {
+            for (int i = 0; i < events.size(); i++)
+            {
+                _eventStatistics.recordRaised();
+            }
+            synchronized(_syncLock)
+            {
+                sendEvents(events, _syncSession, _producer);
+            }
+        }
+        else
+        {
+            for (QmfEvent event : events)
+            {
+                raiseEvent(event);
+            }
+        }
+    }
 
-            Message response = AMQPMessage.createListMessage(_syncSession);
-            response.setStringProperty("x-amqp-0-10.app-id", "qmf2");
-            response.setStringProperty("method", "indication");
-            response.setStringProperty("qmf.opcode", "_data_indication");
-            response.setStringProperty("qmf.content", "_event");
-            response.setStringProperty("qmf.agent", _name);
-            response.setStringProperty("qpid.subject", subject);
+    /**
+     * Send a batch of events.
+     * <p>
+     * Events that are sent with the same subject, in other words events with the same SchemaClassId and severity,
+     * are sent together as a list in a single _data_indication message, which reduces the number of messages that
+     * Consoles have to process when a large number of events are raised at once. Each message is subject to the same
+     * limits as _query_response messages (see setQueryResponseLimits()). The events with a given subject are sent in
+     * the order that they appear in the batch, and subjects are sent in the order that they first appear.
+     *
+     * @param events the QmfEvents to be sent.
+     * @param session the Session used to create the messages, which must only be used by the calling thread.
+     * @param producer the MessageProducer created by session used to send the messages.
+     */
+    private void sendEvents(final List<QmfEvent> events, final Session session, final MessageProducer producer)
+    {
+        Map<String, List<QmfEvent>> eventsBySubject = new LinkedHashMap<String, List<QmfEvent>>();
+        for (QmfEvent event : events)
+        {
+            String subject = getEventSubject(event);
+            List<QmfEvent> subjectEvents = eventsBySubject.get(subject);
+            if (subjectEvents == null)
+            {
+                subjectEvents = new ArrayList<QmfEvent>();
+                eventsBySubject.put(subject, subjectEvents);
+            }
+            subjectEvents.add(event);
+        }
 
-            List<Map> results = new ArrayList<Map>();
-            results.add(event.mapEncode());
-            AMQPMessage.setList(response, results);
-            _producer.send(_topicAddress, response);
+        int maxObjects = _maxBatchObjects;
+        int maxBytes = _maxBatchBytes;
+        int sent = 0;
+        AMQPMessage.ListBuilder batch = new AMQPMessage.ListBuilder();
+        try
+        {
+            for (Map.Entry<String, List<QmfEvent>> entry : eventsBySubject.entrySet())
+            {
+                String subject = entry.getKey();
+                for (QmfEvent event : entry.getValue())
+                {
+                    if ((maxObjects > 0 && batch.size() >= maxObjects) ||
+                        (maxBytes > 0 && batch.size() > 0 && batch.getEncodedSize() >= maxBytes))
+                    {
+                        sent += sendEvents(subject, batch, session, producer);
+                    }
+                    batch.add(event.mapEncode());
+                }
+                sent += sendEvents(subject, batch, session, producer);
+            }
         }
         catch (JMSException jmse)
         {
-            _log.info("JMSException {} caught in raiseEvent()", jmse.getMessage());
+            _log.info("JMSException {} caught in sendEvents()", jmse.getMessage());
+            _eventStatistics.recordFailed(events.size() - sent);
         }
     }
 
+    /**
+     * Send a list of events with the same subject in a single _data_indication message.
+     * @param subject the subject returned by getEventSubject().
+     * @param batch the encoded list of events, which is empty once they have been sent.
+     * @param session the Session used to create the message.
+     * @param producer the MessageProducer used to send the message.
+     * @return the number of events sent.
+     */
+    private int sendEvents(final String subject, final AMQPMessage.ListBuilder batch, final Session session,
+                           final MessageProducer producer) throws JMSException
+    {
+        int count = batch.size();
+        Message response = AMQPMessage.createListMessage(session);
+        response.setStringProperty("x-amqp-0-10.app-id", "qmf2");
+        response.setStringProperty("method", "indication");
+        response.setStringProperty("qmf.opcode", "_data_indication");
+        response.setStringProperty("qmf.content", "_event");
+        response.setStringProperty("qmf.agent", _name);
+        response.setStringProperty("qpid.subject", subject);
+        batch.writeTo(response);
+        producer.send(_topicAddress, response);
+        _eventStatistics.recordSent(count);
+        return count;
+    }
+
+    /**
+     * Return the subject that an event is sent with, which Consoles may use to filter the events they receive.
+     * @param event the QmfEvent to be raised.
+     * @return the subject that the event is sent with.
+     */
+    private String getEventSubject(final QmfEvent event)
+    {
+        String packageKey = event.getSchemaClassId().getPackageName().replace(".", "_");
+        String nameKey = event.getSchemaClassId().getClassName().replace(".", "_");
+        String severity = event.getSeverity();
+        String vendorKey = _vendor.replace(".", "_");
+        String productKey = _product.replace(".", "_");
+        String instanceKey = _instance.replace(".", "_");
+
+        return "agent.ind.event." + packageKey + "." + nameKey + "." + severity + "." + vendorKey + "." + 
+               productKey + "." + instanceKey;
+    }
+
+    /**
+     * Create an index on the named property of the QmfAgentData objects managed by this Agent.
+     * <p>
+     * This method isn't part of the QMF2 API. QmfAgentData objects are always indexed by the package and class
+     * names of their SchemaClassId, which allows queries by SchemaClassId to avoid searching every object held by
+     * the Agent. Agents that manage large numbers of objects and expect to receive queries with predicates such as
+     * ['eq', 'name', ['quote', 'queue1']] can index the properties used in those predicates too. A sorted index also
+     * supports predicates using the "lt", "le", "gt" and "ge" operators with numeric values.
+     * <p>
+     * Indexes are maintained when objects are added and destroyed and when QmfAgentData.update() is called, so if an
+     * indexed property is changed update() <b>must</b> be called for the change to be visible to queries. Indexes
+     * may be created at any time, though it's most efficient to create them before adding any objects.
+     *
+     * @param propertyName the name of the property to be indexed.
+     * @param sorted true if the index should support range predicates as well as equality predicates.
+     */
+    public final void addIndex(final String propertyName, final boolean sorted)
+    {
+        _secondaryIndex.addPropertyIndex(propertyName, sorted, _objectIndex.values());
+    }
+
     /**
      * Passes a reference to an instance of a managed QMF object to the Agent.
      * <p>
@@ -1183,6 +2523,67 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
      * @param object the QmfAgentData object to be added
      */
     public void addObject(final QmfAgentData object) throws QmfException
+    {
+        if (!register(object))
+        {
+            throw new QmfException("Duplicate QmfAgentData Address");
+        }
+        _secondaryIndex.add(object);
+        addToSubscriptions(object);
+    } // end of addObject()
+
+    /**
+     * Passes references to a batch of managed QMF objects to the Agent.
+     * <p>
+     * This method isn't part of the QMF2 API. It is equivalent to calling addObject() for each of the objects, but
+     * adds the batch to the secondary indexes in one pass, so it is cheaper when a large number of objects are
+     * registered at once, for example by an Agent populating itself from an existing system when it starts up.
+     * Objects that have already been deleted are skipped. If any of the objects has a duplicate address the rest
+     * of the batch is still added and a QmfException is thrown once the batch is complete.
+     *
+     * @param objects the QmfAgentData objects to be added.
+     */
+    public void addObjects(final Collection<? extends QmfAgentData> objects) throws QmfException
+    {
+        List<QmfAgentData> added = new ArrayList<QmfAgentData>(objects.size());
+        int duplicates = 0;
+        for (QmfAgentData object : objects)
+        {
+            if (!object.isDeleted())
+            {
+                if (register(object))
+                {
+                    added.add(object);
+                }
+                else
+                {
+                    duplicates++;
+                }
+            }
+        }
+
+        _secondaryIndex.addAll(added);
+        if (!_subscriptions.isEmpty())
+        {
+            for (QmfAgentData object : added)
+            {
+                addToSubscriptions(object);
+            }
+        }
+
+        if (duplicates > 0)
+        {
+            throw new QmfException(duplicates + " Duplicate QmfAgentData Addresses");
+        }
+    }
+
+    /**
+     * Create the ObjectId of a QmfAgentData being added if it doesn't already have one and add it to the internal
+     * Object store, but not yet to the secondary indexes.
+     * @param object the QmfAgentData object to be added.
+     * @return false if an object that hasn't been deleted already has the same address.
+     */
+    private boolean register(final QmfAgentData object)
     {
         // There are some cases where a QmfAgentData Object might have already set its ObjectId, for example where
         // it may need to have a "well known" ObjectId. This is the case with the Java Broker Management Agent
@@ -1221,17 +2622,38 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
             object.setObjectId(addr);
         }
 
-        QmfAgentData foundObject = _objectIndex.get(addr);
-        if (foundObject != null)
+        // Objects may be added by several threads at once so the address is claimed atomically, otherwise two
+        // objects with the same address could both pass the duplicate check and the first would be lost.
+        QmfAgentData foundObject = _objectIndex.putIfAbsent(addr, object);
+        while (foundObject != null)
         {
             // If a duplicate object has actually been Deleted we can reuse the address.
             if (!foundObject.isDeleted())
             {
-                throw new QmfException("Duplicate QmfAgentData Address");
+                return false;
             }
+
+            if (_objectIndex.replace(addr, foundObject, object))
+            {
+                _secondaryIndex.remove(foundObject);
+                break;
+            }
+
+            // Another thread has replaced or reaped the deleted object first, so try again.
+            foundObject = _objectIndex.putIfAbsent(addr, object);
         }
 
-        _objectIndex.put(addr, object);
+        object.setAgent(this);
+        return true;
+    }
+
+    /**
+     * Add a reference to each Subscription that a newly added QmfAgentData matches and publish it.
+     * @param object the QmfAgentData object that has been added.
+     */
+    private void addToSubscriptions(final QmfAgentData object)
+    {
+        ObjectId addr = object.getObjectId();
 
         // Does the new object match any Subscriptions? If so add a reference to the matching Subscription and publish.
         for (Subscription subscription : _subscriptions.values())
@@ -1251,7 +2673,7 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
                 object.publish();
             }
         }
-    } // end of addObject()
+    }
 
     /**
      * Returns the count of pending WorkItems that can be retrieved.
@@ -1348,7 +2770,7 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
     {
         try
         {
-            MapMessage response = _syncSession.createMapMessage();
+            MapMessage response = createMapMessage();
             response.setJMSCorrelationID(handle.getCorrelationId());
             response.setStringProperty("x-amqp-0-10.app-id", "qmf2");
             response.setStringProperty("method", "response");
@@ -1384,30 +2806,21 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
     }
 
     /**
-     * Send the query response back to the Console.
+     * Send the query response back to the Console. Large results are sent as a number of partial responses
+     * according to the limits set by setQueryResponseLimits().
      * @param handle the reply handle that contains the replyTo Address.
      * @param results the list of mapEncoded query results.
      * @param qmfContentType the value to be passed to the qmf.content Header.
      */
+    @SuppressWarnings("unchecked")
     protected final void queryResponse(final Handle handle, List<Map> results, final String qmfContentType)
     {
-        try
-        {
-            Message response = AMQPMessage.createListMessage(_syncSession);
-            response.setJMSCorrelationID(handle.getCorrelationId());
-            response.setStringProperty("x-amqp-0-10.app-id", "qmf2");
-            response.setStringProperty("method", "response");
-            response.setStringProperty("qmf.opcode", "_query_response");
-            response.setStringProperty("qmf.agent", _name);
-            response.setStringProperty("qmf.content", qmfContentType);
-            response.setStringProperty("qpid.subject", handle.getRoutingKey());
-            AMQPMessage.setList(response, results);
-            sendResponse(handle, response);
-        }
-        catch (JMSException jmse)
+        QueryResponder responder = new QueryResponder(handle, qmfContentType);
+        for (Map result : results)
         {
-            _log.info("JMSException {} caught in queryResponse()", jmse.getMessage());
+            responder.add(result);
         }
+        responder.complete();
     }
 
     /**
@@ -1433,7 +2846,7 @@ public class Agent extends QmfData implements MessageListener, SubscribableAgent
     {
         try
         {
-            MapMessage response = _syncSession.createMapMessage();
+            MapMessage response = createMapMessage();
             response.setJMSCorrelationID(handle.getCorrelationId());
             response.setStringProperty("x-amqp-0-10.app-id", "qmf2");
             response.setStringProperty("method", "response");
@@ -193,14 +193,13 @@ public final class AgentExternal extends Agent
         List<QmfAgentData> objects = _queryResults.get(index);
         if (objects != null)
         {
-            List<Map> results = new ArrayList<Map>(objects.size());
+            // Send the response back to the Console, encoding the objects one at a time
+            QueryResponder responder = new QueryResponder(handle, "_data");
             for (QmfAgentData object : objects)
             {
-                results.add(object.mapEncode());
+                responder.add(object.mapEncode());
             }
-
-            // Send the response back to the Console
-            queryResponse(handle, results, "_data");
+            responder.complete();
             _queryResults.remove(index);
         }
     }
@@ -0,0 +1,43 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.agent;
+
+/**
+ * The policies that an Agent may apply when its queue of events waiting to be sent is full (see
+ * Agent.setEventQueue()).
+ * <p>
+ * This enum isn't part of the QMF2 API.
+ */
+public enum EventOverflowPolicy
+{
+    /**
+     * Discard the oldest queued event to make room for the new one, so Consoles see the most recent events.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Don't queue the new event but merge it with the other events of the same class and severity raised while the
+     * queue is full. The most recent of the merged events is sent once there is room, with an additional
+     * "aggregatedCount" property giving the number of events that it stands for, so Consoles can tell how many
+     * events they have missed.
+     */
+    AGGREGATE
+}
@@ -0,0 +1,232 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.agent;
+
+// Misc Imports
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.QmfEvent;
+import org.apache.qpid.qmf2.common.SchemaClassId;
+
+/**
+ * An EventQueue holds the events raised by an Agent until its event sender thread sends them, so that the threads
+ * raising events never wait for management I/O, which for the broker's management Agent would otherwise stall the
+ * broker's own operations whenever the management exchange was slow or flow controlled.
+ * <p>
+ * Any number of threads may add events, but only the sender thread takes them. Events are held in a lock-free
+ * ConcurrentLinkedQueue whose size is bounded by a separate counter, and the sender thread parks when the queue is
+ * empty and is unparked by the thread that adds the next event. When the queue is full the EventOverflowPolicy
+ * either discards the oldest event or merges the new event into an aggregated event for its class and severity.
+ */
+final class EventQueue
+{
+    /**
+     * An aggregated event, the most recent of the events merged into it and how many events were merged.
+     */
+    private static final class Aggregate
+    {
+        private QmfEvent _latest;
+        private int _count = 0;
+        private boolean _taken = false;
+    }
+
+    private final ConcurrentLinkedQueue<QmfEvent> _queue = new ConcurrentLinkedQueue<QmfEvent>();
+    private final AtomicInteger _size = new AtomicInteger();
+    private final ConcurrentHashMap<String, Aggregate> _aggregates = new ConcurrentHashMap<String, Aggregate>();
+    private final int _capacity;
+    private final EventOverflowPolicy _policy;
+    private final EventStatistics _statistics;
+    private volatile Thread _consumer = null;
+
+    /**
+     * Construct an EventQueue.
+     * @param capacity the maximum number of events held in the queue.
+     * @param policy what to do with new events when the queue is full.
+     * @param statistics the EventStatistics that records dropped and aggregated events.
+     */
+    EventQueue(final int capacity, final EventOverflowPolicy policy, final EventStatistics statistics)
+    {
+        _capacity = capacity;
+        _policy = policy;
+        _statistics = statistics;
+    }
+
+    /**
+     * Set the thread that takes events from the queue, which is unparked when events are added to an empty queue.
+     * @param consumer the thread that takes events from the queue.
+     */
+    void setConsumer(final Thread consumer)
+    {
+        _consumer = consumer;
+    }
+
+    /**
+     * Add an event to the queue, applying the overflow policy if the queue is full.
+     * @param event the event to be added.
+     */
+    void add(final QmfEvent event)
+    {
+        if (_policy == EventOverflowPolicy.AGGREGATE)
+        {
+            // Once a class of event is being aggregated carry on aggregating it until the aggregated event has been
+            // taken, so that the aggregated event isn't sent after events that were raised later.
+            String key = getKey(event);
+            if ((_size.get() >= _capacity || (!_aggregates.isEmpty() && _aggregates.containsKey(key))) &&
+                aggregate(key, event))
+            {
+                _statistics.recordAggregated();
+                wakeConsumer();
+                return;
+            }
+        }
+        else if (_size.get() >= _capacity && _queue.poll() != null)
+        {
+            _size.decrementAndGet();
+            _statistics.recordDropped();
+        }
+
+        _queue.offer(event);
+        if (_size.getAndIncrement() == 0)
+        {
+            wakeConsumer();
+        }
+    }
+
+    /**
+     * Move up to max events from the queue to a List, followed by any aggregated events if there's room.
+     * @param events the List that the events are added to.
+     * @param max the maximum number of events to add.
+     */
+    void drainTo(final List<QmfEvent> events, final int max)
+    {
+        while (events.size() < max)
+        {
+            QmfEvent event = _queue.poll();
+            if (event == null)
+            {
+                break;
+            }
+            _size.decrementAndGet();
+            events.add(event);
+        }
+
+        if (!_aggregates.isEmpty())
+        {
+            Iterator<Aggregate> i = _aggregates.values().iterator();
+            while (i.hasNext() && events.size() < max)
+            {
+                Aggregate aggregate = i.next();
+                i.remove();
+                synchronized(aggregate)
+                {
+                    aggregate._taken = true;
+                    if (aggregate._count > 0)
+                    { // The count is zero if the Aggregate was taken before the event that created it was merged.
+                        aggregate._latest.setValue("aggregatedCount", aggregate._count);
+                        events.add(aggregate._latest);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Park the calling thread, which must be the consumer, until events are added or the timeout expires.
+     * @param timeout the maximum time to wait in nanoseconds.
+     */
+    void await(final long timeout)
+    {
+        if (_size.get() == 0 && _aggregates.isEmpty())
+        {
+            LockSupport.parkNanos(this, timeout);
+        }
+    }
+
+    /**
+     * Unpark the consumer thread, e.g. so that it notices it has been asked to stop.
+     */
+    void wakeConsumer()
+    {
+        Thread consumer = _consumer;
+        if (consumer != null)
+        {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Return the number of events in the queue, not counting aggregated events.
+     * @return the number of events in the queue.
+     */
+    int size()
+    {
+        return _size.get();
+    }
+
+    /**
+     * Merge an event into the aggregated event for its class and severity.
+     * @param key the key returned by getKey().
+     * @param event the event to be merged.
+     * @return false if the aggregated event was taken by the consumer concurrently, in which case the event should
+     *         be queued as normal.
+     */
+    private boolean aggregate(final String key, final QmfEvent event)
+    {
+        Aggregate aggregate = _aggregates.get(key);
+        if (aggregate == null)
+        {
+            aggregate = new Aggregate();
+            Aggregate existing = _aggregates.putIfAbsent(key, aggregate);
+            if (existing != null)
+            {
+                aggregate = existing;
+            }
+        }
+
+        synchronized(aggregate)
+        {
+            if (aggregate._taken)
+            {
+                return false;
+            }
+            aggregate._latest = event;
+            aggregate._count++;
+            return true;
+        }
+    }
+
+    /**
+     * Return the key used to aggregate an event, which combines its class and severity.
+     * @param event the event.
+     * @return the key used to aggregate the event.
+     */
+    private static String getKey(final QmfEvent event)
+    {
+        SchemaClassId classId = event.getSchemaClassId();
+        return classId.getPackageName() + ":" + classId.getClassName() + ":" + event.getSeverity();
+    }
+}
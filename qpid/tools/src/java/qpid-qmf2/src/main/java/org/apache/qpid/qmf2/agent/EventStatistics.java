@@ -0,0 +1,167 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.agent;
+
+// Misc Imports
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * EventStatistics records what has happened to the events raised by an Agent, which are queued by raiseEvent() and
+ * sent by a dedicated thread, several at a time where possible (see Agent.setEventQueue()).
+ * <p>
+ * A non-zero dropped or aggregated count means that events were being raised faster than they could be sent, so
+ * the queue capacity may need to be increased, and the ratio of sent events to messages shows how effectively
+ * events are being batched.
+ * <p>
+ * This class isn't part of the QMF2 API.
+ */
+public final class EventStatistics
+{
+    private final AtomicLong _raisedCount = new AtomicLong();
+    private final AtomicLong _sentCount = new AtomicLong();
+    private final AtomicLong _messageCount = new AtomicLong();
+    private final AtomicLong _batchedCount = new AtomicLong();
+    private final AtomicLong _droppedCount = new AtomicLong();
+    private final AtomicLong _aggregatedCount = new AtomicLong();
+    private final AtomicLong _failedCount = new AtomicLong();
+
+    /**
+     * Record an event being raised.
+     */
+    void recordRaised()
+    {
+        _raisedCount.incrementAndGet();
+    }
+
+    /**
+     * Record a message being sent.
+     * @param events the number of events in the message.
+     */
+    void recordSent(final int events)
+    {
+        _messageCount.incrementAndGet();
+        _sentCount.addAndGet(events);
+        if (events > 1)
+        {
+            _batchedCount.addAndGet(events);
+        }
+    }
+
+    /**
+     * Record an event being dropped because the queue was full.
+     */
+    void recordDropped()
+    {
+        _droppedCount.incrementAndGet();
+    }
+
+    /**
+     * Record an event being merged into an aggregated event because the queue was full.
+     */
+    void recordAggregated()
+    {
+        _aggregatedCount.incrementAndGet();
+    }
+
+    /**
+     * Record events that couldn't be sent.
+     * @param events the number of events that couldn't be sent.
+     */
+    void recordFailed(final int events)
+    {
+        _failedCount.addAndGet(events);
+    }
+
+    /**
+     * Return the number of events raised.
+     * @return the number of events raised.
+     */
+    public long getRaisedCount()
+    {
+        return _raisedCount.get();
+    }
+
+    /**
+     * Return the number of events sent, where an aggregated event counts as one event.
+     * @return the number of events sent.
+     */
+    public long getSentCount()
+    {
+        return _sentCount.get();
+    }
+
+    /**
+     * Return the number of messages used to send the events.
+     * @return the number of messages used to send the events.
+     */
+    public long getMessageCount()
+    {
+        return _messageCount.get();
+    }
+
+    /**
+     * Return the number of events that were sent in a message together with other events.
+     * @return the number of events that were sent in a message together with other events.
+     */
+    public long getBatchedCount()
+    {
+        return _batchedCount.get();
+    }
+
+    /**
+     * Return the number of events discarded by the DROP_OLDEST overflow policy.
+     * @return the number of events discarded by the DROP_OLDEST overflow policy.
+     */
+    public long getDroppedCount()
+    {
+        return _droppedCount.get();
+    }
+
+    /**
+     * Return the number of events merged into aggregated events by the AGGREGATE overflow policy.
+     * @return the number of events merged into aggregated events by the AGGREGATE overflow policy.
+     */
+    public long getAggregatedCount()
+    {
+        return _aggregatedCount.get();
+    }
+
+    /**
+     * Return the number of events that couldn't be sent due to a JMSException.
+     * @return the number of events that couldn't be sent due to a JMSException.
+     */
+    public long getFailedCount()
+    {
+        return _failedCount.get();
+    }
+
+    /**
+     * Return a String representation of the statistics, useful for logging.
+     * @return a String representation of the statistics.
+     */
+    @Override
+    public String toString()
+    {
+        return "raised = " + getRaisedCount() + ", sent = " + getSentCount() + " in " + getMessageCount() +
+               " messages, batched = " + getBatchedCount() + ", dropped = " + getDroppedCount() +
+               ", aggregated = " + getAggregatedCount() + ", failed = " + getFailedCount();
+    }
+}
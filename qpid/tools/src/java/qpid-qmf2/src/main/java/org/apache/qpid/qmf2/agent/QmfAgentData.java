@@ -21,17 +21,19 @@
 package org.apache.qpid.qmf2.agent;
 
 // Misc Imports
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 // QMF2 Imports
 import org.apache.qpid.qmf2.common.ObjectId;
 import org.apache.qpid.qmf2.common.QmfException;
 import org.apache.qpid.qmf2.common.QmfManaged;
+import org.apache.qpid.qmf2.common.QmfQuery;
+import org.apache.qpid.qmf2.common.QmfType;
+import org.apache.qpid.qmf2.common.SchemaClassId;
 import org.apache.qpid.qmf2.common.SchemaObjectClass;
 
 /**
@@ -65,6 +67,20 @@ import org.apache.qpid.qmf2.common.SchemaObjectClass;
  * possible that an update indication could get sent part way through setting an object's overall state.
  * Similarly calling the publish() method directly from setValue() would force an update indication on partial changes
  * of state, which is generally not the desired behaviour.
+ * <p>
+ * The properties of a QmfAgentData are held in a compact, array-backed Map laid out by its SchemaObjectClass, with
+ * the values of TYPE_INT and TYPE_FLOAT properties held unboxed, as Agents may manage very large numbers of objects.
+ * <p>
+ * Properties declared in the SchemaObjectClass with a type of TYPE_INT or TYPE_FLOAT are treated as statistics. The
+ * first time that incValue() or decValue() is called for one, its value is moved into a striped counter, so that
+ * those methods can then be called concurrently by many threads without locking and without allocating a new Long
+ * or Double for each update. The counters are only boxed when the property is read by getValue() or when mapEncode()
+ * builds the underlying Map. Properties that aren't declared in the schema keep the original synchronized behaviour.
+ * <p>
+ * Each QmfAgentData has a version that is incremented whenever setValue() changes the value of a property, whenever
+ * update() is called and whenever mapEncode() finds that a statistic's striped counter has changed. The result of
+ * mapEncode() is cached against the version, so the Agent's query responses and the Subscriptions of any number of
+ * Consoles reuse the same encoded Map until the object actually changes.
  * @author Fraser Adams
  */
 public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
@@ -74,11 +90,68 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
     private long _deleteTimestamp;
     private String _compareKey = null;
 
+    /**
+     * The Agent that this object has been added to, used to keep the Agent's indexes up to date.
+     */
+    private volatile Agent _agent = null;
+
+    /**
+     * The sequence number of this object's entry in the Agent's change log, or zero if it doesn't have one.
+     */
+    private volatile long _changeSequence = 0;
+
+    /**
+     * The sequence number of the change most recently sent to all of this object's Subscriptions by publish().
+     */
+    private volatile long _publishedSequence = 0;
+
     /**
      * This Map is used to look up Subscriptions that are interested in this data by SubscriptionId
      */
     private Map<String, Subscription> _subscriptions = new ConcurrentHashMap<String, Subscription>();
 
+    /**
+     * The striped counters holding the values of the integer and floating point properties declared in the schema
+     * that have been updated by incValue() or decValue(), keyed by property name. This is created when first needed.
+     */
+    private volatile Map<String, StripedCounter> _counters = null;
+
+    private static final AtomicLongFieldUpdater<QmfAgentData> VERSION =
+        AtomicLongFieldUpdater.newUpdater(QmfAgentData.class, "_version");
+
+    /**
+     * The version of this object's state, see getVersion().
+     */
+    private volatile long _version = 0;
+
+    /**
+     * The result of the most recent mapEncode() together with the version and identity it was encoded with.
+     */
+    private volatile Encoded _encoded = null;
+
+    /**
+     * An immutable record of a cached mapEncode() result, which is replaced as a whole so that the cache is never
+     * seen in a half updated state.
+     */
+    private static final class Encoded
+    {
+        private final long _version;
+        private final SchemaClassId _schemaId;
+        private final ObjectId _objectId;
+        private final Map<String, String> _subtypes;
+        private final Map<String, Object> _map;
+
+        Encoded(final long version, final SchemaClassId schemaId, final ObjectId objectId,
+                final Map<String, String> subtypes, final Map<String, Object> map)
+        {
+            _version = version;
+            _schemaId = schemaId;
+            _objectId = objectId;
+            _subtypes = subtypes;
+            _map = map;
+        }
+    }
+
     /**
      * Construct a QmfAgentData object of the type described by the given SchemaObjectClass.
      *
@@ -91,6 +164,7 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
         _createTimestamp = currentTime;
         _deleteTimestamp = 0;
         setSchemaClassId(schema.getClassId());
+        setSchemaLayout(schema);
     }
 
     /**
@@ -141,8 +215,136 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
     {
         _deleteTimestamp = System.currentTimeMillis()*1000000l;
         _updateTimestamp = System.currentTimeMillis()*1000000l;
+        VERSION.incrementAndGet(this);
         publish();
         _subscriptions.clear();
+
+        Agent agent = _agent;
+        if (agent != null)
+        {
+            agent.objectDestroyed(this);
+        }
+    }
+
+    /**
+     * Return the striped counter holding the named property, optionally creating it if the property is an integer or
+     * floating point property declared in the schema and is either absent or has a Number value.
+     *
+     * @param name the name of the property.
+     * @param create true if the counter should be created if it doesn't already exist.
+     * @return the striped counter holding the named property, or null.
+     */
+    private StripedCounter getCounter(final String name, final boolean create)
+    {
+        Map<String, StripedCounter> counters = _counters;
+        StripedCounter counter = (counters == null || name == null) ? null : counters.get(name);
+        if (counter != null || !create)
+        {
+            return counter;
+        }
+
+        QmfType type = getSchemaType(name);
+        if (type != QmfType.TYPE_INT && type != QmfType.TYPE_FLOAT)
+        {
+            return null;
+        }
+
+        synchronized(this)
+        {
+            if (_counters == null)
+            {
+                _counters = new ConcurrentHashMap<String, StripedCounter>();
+            }
+
+            counter = _counters.get(name);
+            if (counter == null)
+            {
+                Object value = super.getValue(name);
+                if (value != null && !(value instanceof Number))
+                {
+                    return null;
+                }
+
+                counter = new StripedCounter(type == QmfType.TYPE_FLOAT);
+                counter.set(value == null ? 0 : (Number)value);
+                super.setValue(name, counter.getValue());
+                _counters.put(name, counter);
+            }
+            return counter;
+        }
+    }
+
+    /**
+     * Accessor method to return a named property as an Object. Statistics held in a striped counter are returned as
+     * the counter's current value, boxed as a Long or Double.
+     *
+     * @param name of the property to return as an Object.
+     * @return value of property as an Object.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getValue(final String name)
+    {
+        StripedCounter counter = getCounter(name, false);
+        if (counter != null)
+        {
+            return (T)counter.getValue();
+        }
+        return super.<T>getValue(name);
+    }
+
+    /**
+     * Mutator method to set a named Object property. Setting a statistic held in a striped counter to a Number sets
+     * the counter, which like LongAdder.reset() isn't atomic with respect to concurrent calls to incValue() and
+     * decValue(). Setting it to anything else discards the counter.
+     *
+     * @param name the name of the property to set.
+     * @param value the value of the property to set.
+     */
+    @Override
+    public void setValue(final String name, final Object value)
+    {
+        StripedCounter counter = getCounter(name, false);
+        if (counter == null)
+        {
+            Object previous = super.getValue(name);
+            super.setValue(name, value);
+            if (previous == null || !previous.equals(value))
+            {
+                VERSION.incrementAndGet(this);
+            }
+            return;
+        }
+
+        synchronized(this)
+        {
+            if (value instanceof Number)
+            {
+                counter.set((Number)value);
+            }
+            else
+            {
+                _counters.remove(name);
+            }
+            super.setValue(name, value);
+        }
+        VERSION.incrementAndGet(this);
+    }
+
+    /**
+     * Return the version of this object's state. The version is incremented whenever setValue() changes the value of
+     * a property, whenever update() is called and whenever mapEncode() finds that the value of a statistic updated
+     * by incValue() or decValue() has changed, so two calls of mapEncode() that are followed by the same version
+     * return the same state. Subclasses that modify the underlying Map directly rather than via setValue() must call
+     * update() for their changes to be seen.
+     * <p>
+     * This method isn't part of the QMF2 API.
+     *
+     * @return the version of this object's state.
+     */
+    public final long getVersion()
+    {
+        return _version;
     }
 
     /**
@@ -151,11 +353,21 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
      * @param name the name of the property being modified.
      * @param delta the value being added to the property.
      */
-    public final synchronized void incValue(final String name, final long delta)
+    public final void incValue(final String name, final long delta)
     {
-        long value = getLongValue(name);
-        value += delta;
-        setValue(name, value);
+        StripedCounter counter = getCounter(name, true);
+        if (counter != null)
+        {
+            counter.add(delta);
+            return;
+        }
+
+        synchronized(this)
+        {
+            long value = getLongValue(name);
+            value += delta;
+            setValue(name, value);
+        }
     }
 
     /**
@@ -164,11 +376,21 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
      * @param name the name of the property being modified.
      * @param delta the value being added to the property.
      */
-    public final synchronized void incValue(final String name, final double delta)
+    public final void incValue(final String name, final double delta)
     {
-        double value = getDoubleValue(name);
-        value += delta;
-        setValue(name, value);
+        StripedCounter counter = getCounter(name, true);
+        if (counter != null)
+        {
+            counter.add(delta);
+            return;
+        }
+
+        synchronized(this)
+        {
+            double value = getDoubleValue(name);
+            value += delta;
+            setValue(name, value);
+        }
     }
 
     /**
@@ -177,11 +399,9 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
      * @param name the name of the property being modified.
      * @param delta the value being subtracted from the property.
      */
-    public final synchronized void decValue(final String name, final long delta)
+    public final void decValue(final String name, final long delta)
     {
-        long value = getLongValue(name);
-        value -= delta;
-        setValue(name, value);
+        incValue(name, -delta);
     }
 
     /**
@@ -190,16 +410,47 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
      * @param name the name of the property being modified.
      * @param delta the value being subtracted from the property.
      */
-    public final synchronized void decValue(final String name, final double delta)
+    public final void decValue(final String name, final double delta)
     {
-        double value = getDoubleValue(name);
-        value -= delta;
-        setValue(name, value);
+        incValue(name, -delta);
     }
 
     // The following methods aren't in the QMF2 API per se, but they are used to manage the association between
     // a managed object and any subscriptions that might be interested in it.
 
+    /**
+     * Set the Agent that this object has been added to, called by Agent.addObject().
+     * @param agent the Agent that this object has been added to.
+     */
+    final void setAgent(final Agent agent)
+    {
+        _agent = agent;
+    }
+
+    /**
+     * Set the sequence number of this object's entry in the Agent's change log, called by the Agent while holding
+     * the change log's lock.
+     * @param sequence the sequence number of this object's most recent change.
+     * @return the sequence number of this object's previous entry in the change log, or zero if it had none.
+     */
+    final long setChangeSequence(final long sequence)
+    {
+        long previous = _changeSequence;
+        _changeSequence = sequence;
+        return previous;
+    }
+
+    /**
+     * Return true if this object's most recent change has already been sent to all of its Subscriptions by
+     * publish(), in which case a Subscription needn't send it again.
+     * @return true if this object's most recent change has already been published.
+     */
+    final boolean isPublished()
+    {
+        long sequence = _changeSequence;
+        return sequence != 0 && sequence == _publishedSequence;
+    }
+
     /**
      * Return the Subscription with the specified ID.
      * @return the Subscription with the specified ID.
@@ -245,6 +496,13 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
     public final void update()
     {
         _updateTimestamp = System.currentTimeMillis()*1000000l;
+        VERSION.incrementAndGet(this);
+
+        Agent agent = _agent;
+        if (agent != null)
+        {
+            agent.objectUpdated(this);
+        }
     }
 
     /**
@@ -268,13 +526,15 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
             return;
         }
 
-        List<Map> results = new ArrayList<Map>();
-        results.add(mapEncode());
+        // Note the change recorded by update() so that Subscriptions don't send it again when they next run.
+        long sequence = _changeSequence;
+        Map<String, Object> encoded = mapEncode();
         for (Map.Entry<String, Subscription> entry : _subscriptions.entrySet())
         {
             Subscription subscription = entry.getValue();
-            subscription.publish(results);
+            subscription.publish(this, encoded);
         }
+        _publishedSequence = sequence;
     }
 
     /**
@@ -285,26 +545,78 @@ public class QmfAgentData extends QmfManaged implements Comparable<QmfAgentData>
      * setting the underlying Map properties via setValue() etc. when the object needs to be "serialised". This would
      * most obviously be done by extending the mapEncode() method (noting that it's important to call QmfAgentData's
      * mapEncode() first via super.mapEncode(); as this will set the state of the underlying QmfData).
+     * <p>
+     * The returned Map is cached and returned again until the object's version changes, so it must not be modified.
      *
      * @return the underlying map. 
      */
     @Override
     public Map<String, Object> mapEncode()
     {
+        Map<String, StripedCounter> counters = _counters;
+        if (counters != null)
+        { // Box the current values of the statistics into the underlying Map if they have changed.
+            for (Map.Entry<String, StripedCounter> entry : counters.entrySet())
+            {
+                Object value = entry.getValue().getValue();
+                if (!value.equals(super.getValue(entry.getKey())))
+                {
+                    super.setValue(entry.getKey(), value);
+                    VERSION.incrementAndGet(this);
+                }
+            }
+        }
+
+        // The version is read before encoding, so a change made while encoding invalidates the cached result.
+        long version = _version;
+        SchemaClassId schemaId = getSchemaClassId();
+        ObjectId objectId = getObjectId();
+        Map<String, String> subtypes = _subtypes;
+        Encoded encoded = _encoded;
+        if (encoded != null && encoded._version == version && encoded._schemaId == schemaId &&
+            encoded._objectId == objectId && encoded._subtypes == subtypes)
+        {
+            return encoded._map;
+        }
+
         Map<String, Object> map = new HashMap<String, Object>();
         map.put("_values", super.mapEncode());
-        if (_subtypes != null)
+        if (subtypes != null)
         {
-            map.put("_subtypes", _subtypes);
+            map.put("_subtypes", subtypes);
         }
-        map.put("_schema_id", getSchemaClassId().mapEncode());
-        map.put("_object_id", getObjectId().mapEncode());
+        map.put("_schema_id", schemaId.mapEncode());
+        map.put("_object_id", objectId.mapEncode());
         map.put("_update_ts", _updateTimestamp);
         map.put("_create_ts", _createTimestamp);
         map.put("_delete_ts", _deleteTimestamp);
+        _encoded = new Encoded(version, schemaId, objectId, subtypes, map);
         return map;
     }
 
+    /**
+     * Return the underlying map containing only the properties selected by the supplied QmfQuery. This is used by
+     * the Agent to encode query results and Subscription updates for Consoles that have specified a "_select" list.
+     * <p>
+     * This default implementation projects the result of mapEncode(), which reduces the size of the response but
+     * not the cost of encoding. Subclasses whose mapEncode() does significant work to refresh their properties may
+     * override this method to only refresh the properties for which query.isSelected() returns true, before
+     * returning query.applySelect(super.mapEncode()).
+     * <p>
+     * This method isn't part of the QMF2 API.
+     *
+     * @param query the QmfQuery whose select list is to be applied, may be null.
+     * @return the underlying map containing only the selected properties.
+     */
+    public Map<String, Object> mapEncode(final QmfQuery query)
+    {
+        if (query == null || query.getSelect() == null)
+        {
+            return mapEncode();
+        }
+        return query.applySelect(mapEncode());
+    }
+
     /**
      * Helper/debug method to list the QMF Object properties and their type.
      */
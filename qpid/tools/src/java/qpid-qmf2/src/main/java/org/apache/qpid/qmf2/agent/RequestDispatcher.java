@@ -0,0 +1,394 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.agent;
+
+// JMS Imports
+import javax.jms.Connection;
+import javax.jms.JMSException;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+// Simple Logging Facade 4 Java
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Misc Imports
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A RequestDispatcher runs the requests received by an Agent on a number of threads, so that one Console making an
+ * expensive request, such as a large OBJECT query, doesn't hold up the requests made by every other Console.
+ * <p>
+ * Requests are striped across the threads by their reply address, so all of the requests from a given Console are
+ * run one at a time on the same thread. Each thread has its own JMS Session and MessageProducer, as JMS Sessions
+ * may not be used by more than one thread at a time, so that responses can be sent in parallel. The request queue
+ * of each thread is bounded, and a request that arrives when its thread's queue is full is refused rather than
+ * making the JMS listener thread wait for space, which would hold up the requests from every other Console.
+ * <p>
+ * Each thread's queue is divided into RequestLanes. The thread runs the oldest request from the highest priority
+ * lane that has any, so the requests from a Console in the same lane are run in order, and a thread sending a large
+ * query response in batches runs any higher priority requests that have been queued between the batches.
+ */
+final class RequestDispatcher
+{
+    private static final Logger _log = LoggerFactory.getLogger(RequestDispatcher.class);
+
+    private static final RequestLane[] LANES = RequestLane.values();
+
+    /**
+     * A queued request, the lane it was queued in and when it was queued.
+     */
+    private static final class Request
+    {
+        private final Runnable _task;
+        private final RequestLane _lane;
+        private final long _queueTime = System.nanoTime();
+
+        Request(final Runnable task, final RequestLane lane)
+        {
+            _task = task;
+            _lane = lane;
+        }
+    }
+
+    /**
+     * A Stripe is a thread with its own request queue, divided into lanes, and its own JMS Session and
+     * MessageProducer.
+     */
+    final class Stripe implements Runnable
+    {
+        private final ReentrantLock _lock = new ReentrantLock();
+        private final Condition _notEmpty = _lock.newCondition();
+        private final List<ArrayDeque<Request>> _lanes = new ArrayList<ArrayDeque<Request>>(LANES.length);
+        private final int _capacity;
+        private int _size = 0;
+        private boolean _stopping = false;
+        private RequestLane _running = null;
+
+        private final Session _session;
+        private final MessageProducer _producer;
+        private final Thread _thread;
+
+        /**
+         * Construct a Stripe.
+         * @param name the name of the Stripe's thread.
+         * @param capacity the maximum number of requests queued on the Stripe across all of its lanes.
+         */
+        Stripe(final String name, final int capacity) throws JMSException
+        {
+            for (int i = 0; i < LANES.length; i++)
+            {
+                _lanes.add(new ArrayDeque<Request>());
+            }
+            _capacity = capacity;
+            _session = _connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            _producer = _session.createProducer(null);
+            _thread = new Thread(this, name);
+            _thread.setDaemon(true);
+        }
+
+        /**
+         * Return the JMS Session used to create responses to the requests run by this Stripe.
+         * @return the JMS Session used to create responses to the requests run by this Stripe.
+         */
+        Session getSession()
+        {
+            return _session;
+        }
+
+        /**
+         * Return the MessageProducer used to send responses to the requests run by this Stripe.
+         * @return the MessageProducer used to send responses to the requests run by this Stripe.
+         */
+        MessageProducer getProducer()
+        {
+            return _producer;
+        }
+
+        public void run()
+        {
+            _currentStripe.set(this);
+            try
+            {
+                Request request;
+                while ((request = take()) != null)
+                {
+                    run(request, false);
+                }
+            }
+            catch (InterruptedException ie)
+            {
+                _log.info("Request thread {} interrupted, {} requests not run", _thread.getName(), _size);
+            }
+        }
+
+        /**
+         * Run any requests queued in lanes of higher priority than the request currently running on this Stripe.
+         */
+        void runHigherPriority()
+        {
+            RequestLane running = _running;
+            if (running == null)
+            {
+                return;
+            }
+
+            Request request;
+            while ((request = poll(running.ordinal())) != null)
+            {
+                run(request, true);
+            }
+            _running = running;
+        }
+
+        /**
+         * Run a request, recording how long it waited.
+         * @param request the request.
+         * @param preempting true if the request is being run between the batches of a lower priority request.
+         */
+        private void run(final Request request, final boolean preempting)
+        {
+            _statistics.get(request._lane).record(System.nanoTime() - request._queueTime, preempting);
+            _running = request._lane;
+            try
+            {
+                request._task.run();
+            }
+            catch (RuntimeException re)
+            { // Don't let one bad request kill the thread and strand every other request on this Stripe.
+                _log.info("RuntimeException {} caught in RequestDispatcher.run()", re.getMessage());
+            }
+        }
+
+        /**
+         * Queue a request if there is space.
+         * @param request the request.
+         * @return true if the request was queued, false if the queue is full or the Stripe is stopping.
+         */
+        private boolean offer(final Request request)
+        {
+            _lock.lock();
+            try
+            {
+                if (_size >= _capacity || _stopping)
+                {
+                    return false;
+                }
+
+                _lanes.get(request._lane.ordinal()).add(request);
+                _size++;
+                _notEmpty.signal();
+                return true;
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+
+        /**
+         * Take the oldest request from the highest priority lane, waiting for one to be queued if necessary.
+         * @return the request, or null once the queue is empty and the Stripe is stopping.
+         */
+        private Request take() throws InterruptedException
+        {
+            _lock.lockInterruptibly();
+            try
+            {
+                while (_size == 0)
+                {
+                    if (_stopping)
+                    {
+                        return null;
+                    }
+                    _notEmpty.await();
+                }
+                return remove(LANES.length);
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+
+        /**
+         * Take the oldest request from the highest priority lane above the given lane without waiting.
+         * @param lanes the number of lanes to look in, starting with the highest priority.
+         * @return the request, or null if there are no requests in those lanes.
+         */
+        private Request poll(final int lanes)
+        {
+            _lock.lock();
+            try
+            {
+                return remove(lanes);
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+
+        /**
+         * Remove the oldest request from the highest priority lane that has any, called with the lock held.
+         * @param lanes the number of lanes to look in, starting with the highest priority.
+         * @return the request, or null if there are no requests in those lanes.
+         */
+        private Request remove(final int lanes)
+        {
+            for (int i = 0; i < lanes; i++)
+            {
+                Request request = _lanes.get(i).poll();
+                if (request != null)
+                {
+                    _size--;
+                    return request;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Tell the Stripe's thread to exit once it has run the requests already queued.
+         */
+        private void stop()
+        {
+            _lock.lock();
+            try
+            {
+                _stopping = true;
+                _notEmpty.signal();
+            }
+            finally
+            {
+                _lock.unlock();
+            }
+        }
+    }
+
+    private final Connection _connection;
+    private final Map<RequestLane, RequestStatistics> _statistics;
+    private final Stripe[] _stripes;
+    private final ThreadLocal<Stripe> _currentStripe = new ThreadLocal<Stripe>();
+    private volatile boolean _stopped = false;
+
+    /**
+     * Construct a RequestDispatcher and start its threads.
+     * @param connection the JMS Connection used to create each thread's Session.
+     * @param threads the number of threads.
+     * @param capacity the maximum number of requests queued on each thread.
+     * @param statistics the RequestStatistics for each lane.
+     */
+    RequestDispatcher(final Connection connection, final int threads, final int capacity,
+                      final Map<RequestLane, RequestStatistics> statistics) throws JMSException
+    {
+        _connection = connection;
+        _statistics = statistics;
+        _stripes = new Stripe[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            _stripes[i] = new Stripe("QMF2 Agent Request " + (i + 1), capacity);
+        }
+
+        for (Stripe stripe : _stripes)
+        {
+            stripe._thread.start();
+        }
+    }
+
+    /**
+     * Queue a request to be run on the thread selected by its reply address. This never waits, if that thread's
+     * queue is full or the RequestDispatcher has been stopped the request isn't queued and the caller should refuse
+     * it, so that one Console flooding its thread can't hold up the requests from Consoles on the other threads.
+     * @param replyTo the reply address of the Console that made the request.
+     * @param lane the lane of the request.
+     * @param task the request.
+     * @return true if the request was queued, false if it wasn't.
+     */
+    boolean dispatch(final String replyTo, final RequestLane lane, final Runnable task)
+    {
+        int h = replyTo.hashCode()*0x9E3779B9;
+        Stripe stripe = _stripes[((h ^ (h >>> 16)) & 0x7fffffff) % _stripes.length];
+        if (_stopped)
+        {
+            _log.info("RequestDispatcher stopped, request from {} discarded", replyTo);
+            return false;
+        }
+        return stripe.offer(new Request(task, lane));
+    }
+
+    /**
+     * Return the Stripe whose thread is the current thread.
+     * @return the Stripe whose thread is the current thread, or null if the current thread isn't a request thread.
+     */
+    Stripe getCurrentStripe()
+    {
+        return _currentStripe.get();
+    }
+
+    /**
+     * Stop the threads once they have run the requests already queued, interrupting any still running after the
+     * timeout, then close their Sessions.
+     * @param timeout how long in milliseconds to wait for the queued requests to be run.
+     */
+    void stop(final long timeout)
+    {
+        _stopped = true;
+        for (Stripe stripe : _stripes)
+        {
+            stripe.stop();
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        try
+        {
+            for (Stripe stripe : _stripes)
+            {
+                stripe._thread.join(Math.max(1, deadline - System.currentTimeMillis()));
+                if (stripe._thread.isAlive())
+                {
+                    stripe._thread.interrupt();
+                }
+            }
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Stripe stripe : _stripes)
+        {
+            try
+            {
+                stripe._session.close();
+            }
+            catch (JMSException jmse)
+            {
+                _log.info("JMSException {} caught in RequestDispatcher.stop()", jmse.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.agent;
+
+/**
+ * The lanes into which an Agent's request threads classify Console requests by their qmf.opcode (see
+ * Agent.setRequestThreads()), in priority order. A request thread always runs the queued request from the highest
+ * priority lane first, and runs any higher priority requests between the batches of a large query response, so
+ * method calls and subscription requests don't wait for bulk queries.
+ * <p>
+ * This enum isn't part of the QMF2 API.
+ */
+public enum RequestLane
+{
+    /**
+     * _method_request and _agent_locate_request, which are usually cheap and often urgent, for example purging a
+     * queue that is about to overflow.
+     */
+    METHOD,
+
+    /**
+     * _subscribe_request, _subscribe_refresh_indication and _subscribe_cancel_indication, a late refresh may cause
+     * the Agent to expire a Subscription.
+     */
+    SUBSCRIPTION,
+
+    /**
+     * _query_request and any other requests, including requests without a qmf.opcode.
+     */
+    QUERY;
+
+    /**
+     * Return the lane for a request.
+     * @param opcode the qmf.opcode of the request, may be null.
+     * @return the lane for the request.
+     */
+    static RequestLane forOpcode(final String opcode)
+    {
+        if (opcode == null)
+        {
+            return QUERY;
+        }
+        else if (opcode.equals("_method_request") || opcode.equals("_agent_locate_request"))
+        {
+            return METHOD;
+        }
+        else if (opcode.startsWith("_subscribe_"))
+        {
+            return SUBSCRIPTION;
+        }
+        else
+        {
+            return QUERY;
+        }
+    }
+}
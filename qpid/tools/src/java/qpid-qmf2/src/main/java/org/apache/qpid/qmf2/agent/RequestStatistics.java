@@ -0,0 +1,149 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.agent;
+
+// Misc Imports
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * RequestStatistics records how long the requests in one RequestLane waited in an Agent's request queues before
+ * they were run (see Agent.setRequestThreads()), how many of them were run between the batches of a lower
+ * priority query response rather than waiting for it to complete, and how many were refused because the queue
+ * they were for was full.
+ * <p>
+ * Long waits in the METHOD or SUBSCRIPTION lanes mean that the request threads are busy with requests from the
+ * same lane, so more request threads may be needed, whereas long waits in the QUERY lane alone are expected when
+ * Consoles make many large queries. Requests handled on the JMS listener thread aren't queued and aren't recorded.
+ * <p>
+ * This class isn't part of the QMF2 API.
+ */
+public final class RequestStatistics
+{
+    private final AtomicLong _requestCount = new AtomicLong();
+    private final AtomicLong _preemptCount = new AtomicLong();
+    private final AtomicLong _refusedCount = new AtomicLong();
+    private final AtomicLong _totalWait = new AtomicLong();
+    private final AtomicLong _maxWait = new AtomicLong();
+    private volatile long _lastWait = 0;
+
+    /**
+     * Record a request being run.
+     * @param wait the time in nanoseconds that the request was queued.
+     * @param preempting true if the request was run between the batches of a lower priority query response.
+     */
+    void record(long wait, final boolean preempting)
+    {
+        if (wait < 0)
+        {
+            wait = 0;
+        }
+
+        _requestCount.incrementAndGet();
+        if (preempting)
+        {
+            _preemptCount.incrementAndGet();
+        }
+        _totalWait.addAndGet(wait);
+        _lastWait = wait;
+
+        long max = _maxWait.get();
+        while (wait > max && !_maxWait.compareAndSet(max, wait))
+        {
+            max = _maxWait.get();
+        }
+    }
+
+    /**
+     * Record a request being refused because its request queue was full.
+     */
+    void recordRefused()
+    {
+        _refusedCount.incrementAndGet();
+    }
+
+    /**
+     * Return the number of requests run.
+     * @return the number of requests run.
+     */
+    public long getRequestCount()
+    {
+        return _requestCount.get();
+    }
+
+    /**
+     * Return the number of requests run between the batches of a lower priority query response.
+     * @return the number of requests run between the batches of a lower priority query response.
+     */
+    public long getPreemptCount()
+    {
+        return _preemptCount.get();
+    }
+
+    /**
+     * Return the number of requests refused because their request queue was full.
+     * @return the number of requests refused because their request queue was full.
+     */
+    public long getRefusedCount()
+    {
+        return _refusedCount.get();
+    }
+
+    /**
+     * Return how long the most recent request waited.
+     * @return how long the most recent request waited in milliseconds.
+     */
+    public long getLastWait()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(_lastWait);
+    }
+
+    /**
+     * Return the mean time that requests waited.
+     * @return the mean time that requests waited in milliseconds.
+     */
+    public double getMeanWait()
+    {
+        long count = _requestCount.get();
+        return count == 0 ? 0.0 : _totalWait.get()/(count*1000000.0);
+    }
+
+    /**
+     * Return the longest time that a request waited.
+     * @return the longest time that a request waited in milliseconds.
+     */
+    public long getMaxWait()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(_maxWait.get());
+    }
+
+    /**
+     * Return a String representation of the statistics, useful for logging.
+     * @return a String representation of the statistics.
+     */
+    @Override
+    public String toString()
+    {
+        return "requests = " + getRequestCount() + ", preempting = " + getPreemptCount() + ", refused = " +
+               getRefusedCount() + ", last wait = " + getLastWait() + "ms, mean wait = " +
+               String.format("%.2f", getMeanWait()) + "ms, max wait = " + getMaxWait() + "ms";
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.agent;
+
+// Simple Logging Facade 4 Java
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Misc Imports
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A ScheduledTick wraps a periodic task that the Agent runs with a fixed delay on a ScheduledExecutorService. It
+ * records how late each run of the task started in a TickStatistics, and stops RuntimeExceptions thrown by the task
+ * from silently cancelling it, which is what a ScheduledExecutorService would otherwise do.
+ */
+final class ScheduledTick implements Runnable
+{
+    private static final Logger _log = LoggerFactory.getLogger(ScheduledTick.class);
+
+    private final Runnable _task;
+    private final long _delay;
+    private final TickStatistics _statistics;
+    private volatile long _due;
+
+    /**
+     * Construct a ScheduledTick.
+     * @param task the periodic task.
+     * @param initialDelay the delay before the first run of the task.
+     * @param delay the delay between the end of one run of the task and the start of the next.
+     * @param unit the time unit of the initialDelay and delay parameters.
+     * @param statistics the TickStatistics used to record the lateness of each run.
+     */
+    ScheduledTick(final Runnable task, final long initialDelay, final long delay, final TimeUnit unit,
+                  final TickStatistics statistics)
+    {
+        _task = task;
+        _delay = unit.toNanos(delay);
+        _statistics = statistics;
+        _due = System.nanoTime() + unit.toNanos(initialDelay);
+    }
+
+    public void run()
+    {
+        _statistics.record(System.nanoTime() - _due);
+        try
+        {
+            _task.run();
+        }
+        catch (RuntimeException re)
+        {
+            _log.info("RuntimeException {} caught in scheduled task {}", re.getMessage(), _task);
+        }
+        _due = System.nanoTime() + _delay;
+    }
+}
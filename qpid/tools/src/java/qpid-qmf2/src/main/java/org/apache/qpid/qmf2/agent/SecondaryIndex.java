@@ -0,0 +1,607 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.agent;
+
+// Misc Imports
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.BooleanEquals;
+import org.apache.qpid.qmf2.common.BooleanExpression;
+import org.apache.qpid.qmf2.common.BooleanGreaterEqual;
+import org.apache.qpid.qmf2.common.BooleanGreaterThan;
+import org.apache.qpid.qmf2.common.BooleanLessEqual;
+import org.apache.qpid.qmf2.common.BooleanLessThan;
+import org.apache.qpid.qmf2.common.Expression;
+import org.apache.qpid.qmf2.common.LogicalAnd;
+import org.apache.qpid.qmf2.common.LogicalOr;
+import org.apache.qpid.qmf2.common.QmfQuery;
+import org.apache.qpid.qmf2.common.SchemaClassId;
+
+/**
+ * SecondaryIndex maintains indexes over the QmfAgentData objects registered with an Agent so that queries don't
+ * always need to perform a linear search of the Agent's object store.
+ * <p>
+ * Objects are always indexed by the class name and package name of their SchemaClassId, which covers the most
+ * common queries such as "all queues" or "all objects in package org.apache.qpid.broker". In addition an Agent may
+ * ask for individual properties to be indexed using Agent.addIndex(), in which case a hash index is used for
+ * "eq" predicates and, optionally, a sorted index is used for "lt", "le", "gt" and "ge" predicates.
+ * <p>
+ * The candidates returned by getCandidates() are always a <b>superset</b> of the objects that match the query,
+ * so callers must still evaluate the query against each candidate. This keeps the index simple: it only has to
+ * narrow the search down, it never has to reproduce the exact semantics of the predicate Expressions.
+ * <p>
+ * Property indexes reflect the values that an object's properties held when it was added or when it last called
+ * QmfAgentData.update(), so applications that change an indexed property <b>must</b> call update() afterwards, as
+ * they are already expected to do in order for Subscriptions to notice the change.
+ */
+final class SecondaryIndex
+{
+    /**
+     * The objects indexed by the class name of their SchemaClassId.
+     */
+    private final ConcurrentMap<String, Set<QmfAgentData>> _classNameIndex =
+        new ConcurrentHashMap<String, Set<QmfAgentData>>();
+
+    /**
+     * The objects indexed by the package name of their SchemaClassId.
+     */
+    private final ConcurrentMap<String, Set<QmfAgentData>> _packageNameIndex =
+        new ConcurrentHashMap<String, Set<QmfAgentData>>();
+
+    /**
+     * The optional property indexes, keyed by property name.
+     */
+    private final Map<String, PropertyIndex> _propertyIndexes = new ConcurrentHashMap<String, PropertyIndex>();
+
+    /**
+     * Create a new concurrent Set to be used as an index bucket.
+     * @return a new concurrent Set.
+     */
+    private static Set<QmfAgentData> newBucket()
+    {
+        return Collections.newSetFromMap(new ConcurrentHashMap<QmfAgentData, Boolean>());
+    }
+
+    /**
+     * Add an object to the bucket with the specified key, creating the bucket if necessary.
+     */
+    private static <K> void addToBucket(final ConcurrentMap<K, Set<QmfAgentData>> index, final K key,
+                                        final QmfAgentData object)
+    {
+        Set<QmfAgentData> bucket = index.get(key);
+        if (bucket == null)
+        {
+            Set<QmfAgentData> newBucket = newBucket();
+            bucket = index.putIfAbsent(key, newBucket);
+            if (bucket == null)
+            {
+                bucket = newBucket;
+            }
+        }
+        bucket.add(object);
+    }
+
+    /**
+     * Remove an object from the bucket with the specified key. Empty buckets are left in place as they are likely
+     * to be reused and removing them safely would require locking out concurrent additions.
+     */
+    private static <K> void removeFromBucket(final Map<K, Set<QmfAgentData>> index, final K key,
+                                             final QmfAgentData object)
+    {
+        Set<QmfAgentData> bucket = index.get(key);
+        if (bucket != null)
+        {
+            bucket.remove(object);
+        }
+    }
+
+    /**
+     * Return the bucket with the specified key, or an empty Set if there isn't one.
+     */
+    private static <K> Set<QmfAgentData> getBucket(final Map<K, Set<QmfAgentData>> index, final K key)
+    {
+        Set<QmfAgentData> bucket = index.get(key);
+        return bucket == null ? Collections.<QmfAgentData>emptySet() : bucket;
+    }
+
+    /**
+     * Return the union of two candidate Sets.
+     */
+    private static Set<QmfAgentData> union(final Set<QmfAgentData> a, final Set<QmfAgentData> b)
+    {
+        if (a.isEmpty())
+        {
+            return b;
+        }
+        if (b.isEmpty())
+        {
+            return a;
+        }
+        Set<QmfAgentData> result = new HashSet<QmfAgentData>(a);
+        result.addAll(b);
+        return result;
+    }
+
+    /**
+     * Add a QmfAgentData object to all of the indexes.
+     * @param object the QmfAgentData object being added.
+     */
+    void add(final QmfAgentData object)
+    {
+        SchemaClassId classId = object.getSchemaClassId();
+        addToBucket(_classNameIndex, classId.getClassName(), object);
+        addToBucket(_packageNameIndex, classId.getPackageName(), object);
+        for (PropertyIndex index : _propertyIndexes.values())
+        {
+            index.add(object);
+        }
+    }
+
+    /**
+     * Add a batch of QmfAgentData objects to all of the indexes, locking each property index once for the whole
+     * batch rather than once per object.
+     * @param objects the QmfAgentData objects being added.
+     */
+    void addAll(final Collection<QmfAgentData> objects)
+    {
+        for (QmfAgentData object : objects)
+        {
+            SchemaClassId classId = object.getSchemaClassId();
+            addToBucket(_classNameIndex, classId.getClassName(), object);
+            addToBucket(_packageNameIndex, classId.getPackageName(), object);
+        }
+        for (PropertyIndex index : _propertyIndexes.values())
+        {
+            index.addAll(objects);
+        }
+    }
+
+    /**
+     * Remove a QmfAgentData object from all of the indexes.
+     * @param object the QmfAgentData object being removed.
+     */
+    void remove(final QmfAgentData object)
+    {
+        SchemaClassId classId = object.getSchemaClassId();
+        removeFromBucket(_classNameIndex, classId.getClassName(), object);
+        removeFromBucket(_packageNameIndex, classId.getPackageName(), object);
+        for (PropertyIndex index : _propertyIndexes.values())
+        {
+            index.remove(object);
+        }
+    }
+
+    /**
+     * Re-index the properties of a QmfAgentData object whose state has changed.
+     * @param object the QmfAgentData object that has been updated.
+     */
+    void update(final QmfAgentData object)
+    {
+        if (_propertyIndexes.isEmpty())
+        {
+            return;
+        }
+        for (PropertyIndex index : _propertyIndexes.values())
+        {
+            index.update(object);
+        }
+    }
+
+    /**
+     * Create an index on the named property and populate it with the existing objects.
+     * @param name the name of the property to be indexed.
+     * @param sorted true if the index should also support range ("lt", "le", "gt", "ge") predicates.
+     * @param objects the objects currently registered with the Agent.
+     */
+    synchronized void addPropertyIndex(final String name, final boolean sorted, final Collection<QmfAgentData> objects)
+    {
+        PropertyIndex index = _propertyIndexes.get(name);
+        if (index == null || (sorted && !index.isSorted()))
+        {
+            // The new index is registered before it is populated so that it also sees any objects added while it
+            // is being populated, but it isn't used by getCandidates() until it's ready.
+            index = new PropertyIndex(name, sorted);
+            _propertyIndexes.put(name, index);
+            for (QmfAgentData object : objects)
+            {
+                if (!object.isDeleted())
+                {
+                    index.add(object);
+                }
+            }
+            index.setReady();
+        }
+    }
+
+    /**
+     * Return the candidate objects that might match the specified OBJECT query, or null if the query can't be
+     * answered by any of the indexes, in which case the caller should fall back to searching all objects.
+     * <p>
+     * The candidates are a superset of the matching objects and may include objects that have been deleted, so
+     * the caller must still check isDeleted() and evaluate the query against each candidate.
+     *
+     * @param query the QmfQuery to find candidates for.
+     * @return the candidate objects or null if all objects need to be searched.
+     */
+    Set<QmfAgentData> getCandidates(final QmfQuery query)
+    {
+        // A query may have both a SchemaClassId and a predicate, in which case objects must match both so either
+        // set of candidates will do and we use the smaller.
+        Set<QmfAgentData> classCandidates = null;
+        SchemaClassId classId = query.getSchemaClassId();
+        if (classId != null)
+        {
+            // QmfQuery.evaluate() wildcards the package name if it's empty and the class name if it's empty. If a
+            // class name has been specified a match requires the class name to be equal whichever way round the
+            // wildcarding is done, otherwise a match requires either an equal package name or an empty class name.
+            String className = classId.getClassName();
+            if (className.length() > 0)
+            {
+                classCandidates = getBucket(_classNameIndex, className);
+            }
+            else
+            {
+                classCandidates = union(getBucket(_packageNameIndex, classId.getPackageName()),
+                                        getBucket(_classNameIndex, ""));
+            }
+        }
+
+        Set<QmfAgentData> predicateCandidates = null;
+        if (query.getPredicate() != null && query.getPredicate().size() > 0)
+        {
+            predicateCandidates = plan(query.getExpression());
+        }
+
+        if (classCandidates == null)
+        {
+            return predicateCandidates;
+        }
+        else if (predicateCandidates == null || classCandidates.size() <= predicateCandidates.size())
+        {
+            return classCandidates;
+        }
+        else
+        {
+            return predicateCandidates;
+        }
+    }
+
+    /**
+     * Recursively work out the candidate objects for an Expression, returning null if it can't be indexed.
+     * <p>
+     * For "and" the smallest candidate Set of any indexable sub-expression will do, as each of the other
+     * sub-expressions is checked when the query is finally evaluated. For "or" every sub-expression must be
+     * indexable and the result is the union of their candidates. Everything else, including "not", falls back
+     * to a full search.
+     */
+    private Set<QmfAgentData> plan(final Expression expression)
+    {
+        if (expression instanceof LogicalAnd)
+        {
+            Set<QmfAgentData> best = null;
+            for (Expression subExpression : ((LogicalAnd)expression).getSubExpressions())
+            {
+                Set<QmfAgentData> candidates = plan(subExpression);
+                if (candidates != null && (best == null || candidates.size() < best.size()))
+                {
+                    best = candidates;
+                }
+            }
+            return best;
+        }
+        else if (expression instanceof LogicalOr)
+        {
+            List<Expression> subExpressions = ((LogicalOr)expression).getSubExpressions();
+            if (subExpressions.isEmpty())
+            {
+                return null;
+            }
+
+            Set<QmfAgentData> result = Collections.<QmfAgentData>emptySet();
+            for (Expression subExpression : subExpressions)
+            {
+                Set<QmfAgentData> candidates = plan(subExpression);
+                if (candidates == null)
+                {
+                    return null;
+                }
+                result = union(result, candidates);
+            }
+            return result;
+        }
+        else if (expression instanceof BooleanExpression)
+        {
+            BooleanExpression booleanExpression = (BooleanExpression)expression;
+            if (booleanExpression.getOperandCount() != 2)
+            {
+                return null;
+            }
+
+            // Find which operand is the property key and which is the literal, an expression comparing two
+            // properties or two literals can't be indexed.
+            int keyIndex = booleanExpression.getKey(0) != null ? 0 : 1;
+            String key = booleanExpression.getKey(keyIndex);
+            String literal = booleanExpression.getLiteral(1 - keyIndex);
+            if (key == null || literal == null)
+            {
+                return null;
+            }
+
+            if (expression instanceof BooleanEquals)
+            {
+                return planEquals(key, literal);
+            }
+
+            // The comparison operators are written with the key on the left, so if the literal is on the left
+            // the sense of the comparison is reversed e.g. ["lt", 5, "x"] is equivalent to ["gt", "x", 5].
+            boolean keyOnLeft = keyIndex == 0;
+            if (expression instanceof BooleanLessThan || expression instanceof BooleanLessEqual)
+            {
+                return planRange(key, literal, keyOnLeft);
+            }
+            else if (expression instanceof BooleanGreaterThan || expression instanceof BooleanGreaterEqual)
+            {
+                return planRange(key, literal, !keyOnLeft);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Return the candidates for an "eq" predicate, or null if the key isn't indexed.
+     */
+    private Set<QmfAgentData> planEquals(final String key, final String literal)
+    {
+        PropertyIndex index = _propertyIndexes.get(key);
+        if (index != null && index.isReady())
+        {
+            return index.getEqual(literal);
+        }
+        else if (key.equals("_class_name"))
+        {
+            return getBucket(_classNameIndex, literal);
+        }
+        else if (key.equals("_package_name"))
+        {
+            return getBucket(_packageNameIndex, literal);
+        }
+        return null;
+    }
+
+    /**
+     * Return the candidates for a range predicate, or null if the key doesn't have a sorted index.
+     *
+     * @param key the property name.
+     * @param literal the value that the property is being compared with.
+     * @param below true if we want values below the literal, false if we want values above it.
+     */
+    private Set<QmfAgentData> planRange(final String key, final String literal,
+                                        final boolean below)
+    {
+        PropertyIndex index = _propertyIndexes.get(key);
+        if (index == null || !index.isReady() || !index.isSorted())
+        {
+            return null;
+        }
+        return index.getRange(literal, below);
+    }
+
+    /**
+     * A PropertyIndex indexes QmfAgentData objects by the value of a single named property.
+     * <p>
+     * The "eq" Expression compares property values in their String form, so the hash index is keyed by
+     * QmfData.getString() of the value. The comparison operators compare numerically if both operands are
+     * numeric and lexicographically otherwise, so the sorted index only holds the numeric values and any objects
+     * whose value is non-numeric are always included in the candidates of a numeric range query.
+     * <p>
+     * Objects that don't have the property at all are always included in the candidates too, as the Expressions
+     * will fall back to looking the key up in the object's metadata.
+     */
+    private static final class PropertyIndex
+    {
+        private static final Object ABSENT = new Object();
+
+        private final String _name;
+        private final boolean _sorted;
+        private volatile boolean _ready = false;
+
+        /**
+         * The key that each object is currently indexed under, either its String value or ABSENT.
+         */
+        private final Map<QmfAgentData, Object> _keys = new ConcurrentHashMap<QmfAgentData, Object>();
+        private final ConcurrentMap<String, Set<QmfAgentData>> _values = new ConcurrentHashMap<String, Set<QmfAgentData>>();
+        private final ConcurrentSkipListMap<Double, Set<QmfAgentData>> _numericValues;
+        private final Set<QmfAgentData> _nonNumeric = newBucket();
+        private final Set<QmfAgentData> _absent = newBucket();
+
+        PropertyIndex(final String name, final boolean sorted)
+        {
+            _name = name;
+            _sorted = sorted;
+            _numericValues = sorted ? new ConcurrentSkipListMap<Double, Set<QmfAgentData>>() : null;
+        }
+
+        boolean isSorted()
+        {
+            return _sorted;
+        }
+
+        boolean isReady()
+        {
+            return _ready;
+        }
+
+        void setReady()
+        {
+            _ready = true;
+        }
+
+        /**
+         * Parse a value as a double in the same way as the comparison Expressions, returning null if the value
+         * isn't numeric. Negative zero is normalised as it compares equal to zero numerically but not as a Double.
+         */
+        private static Double parse(final String value)
+        {
+            try
+            {
+                return Double.parseDouble(value) + 0.0;
+            }
+            catch (NumberFormatException nfe)
+            {
+                return null;
+            }
+        }
+
+        /**
+         * Return the key that the object should be indexed under given its current state.
+         */
+        private Object keyOf(final QmfAgentData object)
+        {
+            return object.hasValue(_name) ? object.getStringValue(_name) : ABSENT;
+        }
+
+        private void index(final QmfAgentData object, final Object key)
+        {
+            _keys.put(object, key);
+            if (key == ABSENT)
+            {
+                _absent.add(object);
+                return;
+            }
+
+            String value = (String)key;
+            addToBucket(_values, value, object);
+            if (_sorted)
+            {
+                Double number = parse(value);
+                if (number == null)
+                {
+                    _nonNumeric.add(object);
+                }
+                else
+                {
+                    addToBucket(_numericValues, number, object);
+                }
+            }
+        }
+
+        private void unindex(final QmfAgentData object, final Object key)
+        {
+            if (key == ABSENT)
+            {
+                _absent.remove(object);
+                return;
+            }
+
+            String value = (String)key;
+            removeFromBucket(_values, value, object);
+            if (_sorted)
+            {
+                Double number = parse(value);
+                if (number == null)
+                {
+                    _nonNumeric.remove(object);
+                }
+                else
+                {
+                    removeFromBucket(_numericValues, number, object);
+                }
+            }
+        }
+
+        synchronized void add(final QmfAgentData object)
+        {
+            Object oldKey = _keys.get(object);
+            if (oldKey != null)
+            {
+                unindex(object, oldKey);
+            }
+            index(object, keyOf(object));
+        }
+
+        synchronized void addAll(final Collection<QmfAgentData> objects)
+        {
+            for (QmfAgentData object : objects)
+            {
+                add(object);
+            }
+        }
+
+        synchronized void remove(final QmfAgentData object)
+        {
+            Object oldKey = _keys.remove(object);
+            if (oldKey != null)
+            {
+                unindex(object, oldKey);
+            }
+        }
+
+        synchronized void update(final QmfAgentData object)
+        {
+            Object oldKey = _keys.get(object);
+            if (oldKey != null)
+            { // Only re-index objects that are already in the index, so we don't resurrect removed objects.
+                Object newKey = keyOf(object);
+                if (!newKey.equals(oldKey))
+                {
+                    unindex(object, oldKey);
+                    index(object, newKey);
+                }
+            }
+        }
+
+        Set<QmfAgentData> getEqual(final String literal)
+        {
+            return union(getBucket(_values, literal), _absent);
+        }
+
+        Set<QmfAgentData> getRange(final String literal, final boolean below)
+        {
+            Double number = parse(literal);
+            if (number == null)
+            { // A non-numeric literal means that every comparison is lexicographic, which isn't indexed.
+                return null;
+            }
+
+            // The range always includes the bound itself. Integer values are compared exactly as longs, which
+            // may distinguish values that are equal once converted to the doubles that the index is keyed by.
+            NavigableMap<Double, Set<QmfAgentData>> range = below ? _numericValues.headMap(number, true) :
+                                                                    _numericValues.tailMap(number, true);
+            Set<QmfAgentData> result = new HashSet<QmfAgentData>(_nonNumeric);
+            result.addAll(_absent);
+            for (Set<QmfAgentData> bucket : range.values())
+            {
+                result.addAll(bucket);
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.agent;
+
+// Misc Imports
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.Handle;
+import org.apache.qpid.qmf2.common.QmfQuery;
+
+/**
+ * A SharedQuery holds the encoded response to an OBJECT query so that identical queries from other Consoles, made
+ * while it is being evaluated or shortly afterwards, can be answered without evaluating and encoding it again (see
+ * Agent.setQuerySharing()).
+ * <p>
+ * The thread evaluating the query, the leader, adds each batch of the response as it is encoded. A Console whose
+ * query arrives while the leader is still working joins as a follower, and the leader sends it every batch that it
+ * has missed each time it adds a batch, so followers receive the whole response in order without their own request
+ * threads having to wait. Once the response is complete joining simply returns all of the batches for the caller to
+ * send itself.
+ */
+final class SharedQuery
+{
+    /**
+     * A Console waiting for the response and how many of its batches have been sent to it so far, which is only
+     * updated by the leader.
+     */
+    static final class Follower
+    {
+        private final Handle _handle;
+        private int _sent = 0;
+
+        Follower(final Handle handle)
+        {
+            _handle = handle;
+        }
+
+        Handle getHandle()
+        {
+            return _handle;
+        }
+    }
+
+    private final long _startTime;
+    private final List<byte[]> _batches = new ArrayList<byte[]>();
+    private final List<Follower> _followers = new ArrayList<Follower>();
+    private boolean _complete = false;
+    private boolean _failed = false;
+    private long _completeTime = 0;
+
+    /**
+     * Construct a SharedQuery.
+     * @param startTime the time from System.nanoTime() when the leader started evaluating the query.
+     */
+    SharedQuery(final long startTime)
+    {
+        _startTime = startTime;
+    }
+
+    /**
+     * Return the key under which a query is shared, identical queries have equal keys.
+     * @param query the query.
+     * @return the key for the query's target, schema id, predicate and projection.
+     */
+    static List<Object> getKey(final QmfQuery query)
+    {
+        return Arrays.asList(query.getTarget(), query.getSchemaClassId(), query.getPredicate(), query.getSelect());
+    }
+
+    /**
+     * Return true if the response may be shared with a new query, that is if it isn't older than maxStaleness and
+     * is either still being evaluated or was completed no more than reuseWindow ago.
+     * @param now the current time from System.nanoTime().
+     * @param reuseWindow how long in nanoseconds a completed response may be reused.
+     * @param maxStaleness the maximum age in nanoseconds of a shared response.
+     * @return true if the response may be shared with a new query.
+     */
+    synchronized boolean isReusable(final long now, final long reuseWindow, final long maxStaleness)
+    {
+        return !_failed && now - _startTime <= maxStaleness && (!_complete || now - _completeTime <= reuseWindow);
+    }
+
+    /**
+     * Join the query, either as a follower if the leader is still evaluating it, or by taking the complete response.
+     * @param handle the reply handle of the Console joining the query.
+     * @return all of the batches of the response if it is complete, otherwise null as the leader will send them.
+     */
+    synchronized List<byte[]> join(final Handle handle)
+    {
+        if (_complete)
+        {
+            return new ArrayList<byte[]>(_batches);
+        }
+        _followers.add(new Follower(handle));
+        return null;
+    }
+
+    /**
+     * Add a batch of the response, called by the leader.
+     * @param batch the encoded batch.
+     * @param last true if this is the final batch of the response.
+     * @return the followers, to which the leader should now send the batches that they haven't yet been sent.
+     */
+    synchronized List<Follower> add(final byte[] batch, final boolean last)
+    {
+        _batches.add(batch);
+        if (last)
+        {
+            _complete = true;
+            _completeTime = System.nanoTime();
+        }
+        return new ArrayList<Follower>(_followers);
+    }
+
+    /**
+     * Return the batches that the leader hasn't yet sent to a follower and record them as sent.
+     * @param follower the follower.
+     * @return the batches that haven't yet been sent to the follower.
+     */
+    synchronized List<byte[]> takeUnsent(final Follower follower)
+    {
+        List<byte[]> unsent = new ArrayList<byte[]>(_batches.subList(follower._sent, _batches.size()));
+        follower._sent = _batches.size();
+        return unsent;
+    }
+
+    /**
+     * Return true if the response is complete.
+     * @return true if the response is complete.
+     */
+    synchronized boolean isComplete()
+    {
+        return _complete;
+    }
+
+    /**
+     * Mark the query as failed if the leader couldn't complete the response, so that no one else joins it.
+     * @return the followers, which won't now receive a complete response.
+     */
+    synchronized List<Follower> fail()
+    {
+        _failed = true;
+        return new ArrayList<Follower>(_followers);
+    }
+}
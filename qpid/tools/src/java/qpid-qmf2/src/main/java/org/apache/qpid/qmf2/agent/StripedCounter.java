@@ -0,0 +1,244 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.agent;
+
+// Misc Imports
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * A StripedCounter holds the value of an integer or floating point statistic property of a QmfAgentData, allowing
+ * it to be updated by incValue() and decValue() without locking and without boxing a new Long or Double each time.
+ * <p>
+ * This follows the design of the Java 8 LongAdder and DoubleAdder classes, which aren't available in Java 7. Updates
+ * are normally applied to a single base value by compare-and-set, but once two threads have collided the counter
+ * allocates a set of cells, each on its own cache line, and threads then update the cell selected by a hash of their
+ * thread ID. The value of the counter is the sum of the base value and all of the cells, so counters that are never
+ * contended never pay for the cells. Floating point values are held as the raw long bits of a double.
+ * <p>
+ * As with LongAdder, reading the value while it is being updated returns a value that reflects some but not
+ * necessarily all of the concurrent updates, and set() is not atomic with respect to concurrent updates.
+ */
+final class StripedCounter
+{
+    /**
+     * The number of longs between cells, so that each cell is on its own 64 byte cache line.
+     */
+    private static final int PADDING = 8;
+
+    /**
+     * The number of cells, the next power of two at or above the number of processors.
+     */
+    private static final int STRIPES =
+        Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+
+    private static final AtomicLongFieldUpdater<StripedCounter> BASE =
+        AtomicLongFieldUpdater.newUpdater(StripedCounter.class, "_base");
+
+    private final boolean _floatingPoint;
+    private volatile long _base = 0;
+    private volatile AtomicLongArray _cells = null;
+
+    /**
+     * Construct a StripedCounter.
+     * @param floatingPoint true if the counter holds a floating point rather than an integer value.
+     */
+    StripedCounter(final boolean floatingPoint)
+    {
+        _floatingPoint = floatingPoint;
+    }
+
+    /**
+     * Return true if the counter holds a floating point rather than an integer value.
+     * @return true if the counter holds a floating point rather than an integer value.
+     */
+    boolean isFloatingPoint()
+    {
+        return _floatingPoint;
+    }
+
+    /**
+     * Add an integer delta to the counter, which is converted to a double for floating point counters.
+     * @param delta the value to add.
+     */
+    void add(final long delta)
+    {
+        if (_floatingPoint)
+        {
+            add((double)delta);
+            return;
+        }
+
+        AtomicLongArray cells = _cells;
+        if (cells == null)
+        {
+            long base = _base;
+            if (BASE.compareAndSet(this, base, base + delta))
+            {
+                return;
+            }
+            cells = getCells();
+        }
+        cells.getAndAdd(index(), delta);
+    }
+
+    /**
+     * Add a floating point delta to the counter, which is truncated to a long for integer counters.
+     * @param delta the value to add.
+     */
+    void add(final double delta)
+    {
+        if (!_floatingPoint)
+        {
+            add((long)delta);
+            return;
+        }
+
+        AtomicLongArray cells = _cells;
+        if (cells == null)
+        {
+            long base = _base;
+            long next = Double.doubleToRawLongBits(Double.longBitsToDouble(base) + delta);
+            if (BASE.compareAndSet(this, base, next))
+            {
+                return;
+            }
+            cells = getCells();
+        }
+
+        int i = index();
+        while (true)
+        {
+            long bits = cells.get(i);
+            long next = Double.doubleToRawLongBits(Double.longBitsToDouble(bits) + delta);
+            if (cells.compareAndSet(i, bits, next))
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Set the value of the counter.
+     * @param value the new value, converted to a long or double as appropriate.
+     */
+    void set(final Number value)
+    {
+        AtomicLongArray cells = _cells;
+        if (cells != null)
+        {
+            long zero = _floatingPoint ? Double.doubleToRawLongBits(0.0d) : 0;
+            for (int i = 0; i < STRIPES; i++)
+            {
+                cells.set(i*PADDING, zero);
+            }
+        }
+        _base = _floatingPoint ? Double.doubleToRawLongBits(value.doubleValue()) : value.longValue();
+    }
+
+    /**
+     * Return the value of an integer counter.
+     * @return the sum of the base value and all of the cells.
+     */
+    long longValue()
+    {
+        if (_floatingPoint)
+        {
+            return (long)doubleValue();
+        }
+
+        long sum = _base;
+        AtomicLongArray cells = _cells;
+        if (cells != null)
+        {
+            for (int i = 0; i < STRIPES; i++)
+            {
+                sum += cells.get(i*PADDING);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Return the value of a floating point counter.
+     * @return the sum of the base value and all of the cells.
+     */
+    double doubleValue()
+    {
+        if (!_floatingPoint)
+        {
+            return longValue();
+        }
+
+        double sum = Double.longBitsToDouble(_base);
+        AtomicLongArray cells = _cells;
+        if (cells != null)
+        {
+            for (int i = 0; i < STRIPES; i++)
+            {
+                sum += Double.longBitsToDouble(cells.get(i*PADDING));
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Return the value of the counter boxed as a Long or Double, which is only done when the value is read.
+     * @return the value of the counter boxed as a Long or Double.
+     */
+    Object getValue()
+    {
+        return _floatingPoint ? (Object)Double.valueOf(doubleValue()) : (Object)Long.valueOf(longValue());
+    }
+
+    /**
+     * Return the cells, creating them if this is the first time that updates have collided.
+     * @return the cells.
+     */
+    private AtomicLongArray getCells()
+    {
+        AtomicLongArray cells = _cells;
+        if (cells == null)
+        {
+            synchronized(this)
+            {
+                cells = _cells;
+                if (cells == null)
+                { // Zero is also the raw bits of 0.0d so new cells are zero for both types of counter.
+                    cells = new AtomicLongArray(STRIPES*PADDING);
+                    _cells = cells;
+                }
+            }
+        }
+        return cells;
+    }
+
+    /**
+     * Return the index of the cell to be updated by the current thread.
+     * @return the index of the cell to be updated by the current thread.
+     */
+    private static int index()
+    {
+        long id = Thread.currentThread().getId();
+        int h = (int)(id ^ (id >>> 32))*0x9E3779B9;
+        return ((h ^ (h >>> 16)) & (STRIPES - 1))*PADDING;
+    }
+}
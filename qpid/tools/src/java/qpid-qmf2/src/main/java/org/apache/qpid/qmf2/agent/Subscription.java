@@ -25,13 +25,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TimerTask;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
 
 // QMF2 Imports
 import org.apache.qpid.qmf2.common.Handle;
+import org.apache.qpid.qmf2.common.ObjectId;
 import org.apache.qpid.qmf2.common.QmfException;
 import org.apache.qpid.qmf2.common.QmfQuery;
 import org.apache.qpid.qmf2.common.QmfQueryTarget;
@@ -43,6 +50,17 @@ import org.apache.qpid.qmf2.common.QmfQueryTarget;
  * the _subscriptions Map when the Subscription expires. The timer also causes QmfAgenData that have been updated
  * since the last interval to be published.
  * <p>
+ * The Agent runs Subscriptions on a ScheduledExecutorService rather than a Timer, but Subscription remains a TimerTask
+ * (and hence a Runnable) so that other SubscribableAgents may continue to schedule them on their own Timers.
+ * <p>
+ * If the Console asks for delta encoding (see SubscriptionParams.isDelta()) the Subscription remembers the property
+ * values that it last sent for each object. Objects new to the Subscription, and deleted objects, are sent in full
+ * but after that only the properties that have changed are sent, in an object Map with "_delta" set to true, which
+ * the Console merges into its copy of the object. Objects with no changed properties aren't sent at all. The values
+ * are forgotten once an object is deleted or no longer matches the Query, so it is sent in full if it matches again.
+ * As large numbers of objects tend to have a few frequently changing statistics this can greatly reduce the size
+ * of Subscription indications.
+ * <p>
  * The following diagram illustrates the Subscription relationships with the Agent and QmfAgentData.
  * <p>
  * <img alt="" src="doc-files/Subscriptions.png">
@@ -70,6 +88,40 @@ public final class Subscription extends TimerTask
     private long _duration = 0;
     private long _interval = 0;
 
+    /**
+     * The property values last sent to the Console for each object, indexed by ObjectId, if the Console has asked
+     * for delta encoding, otherwise null.
+     */
+    private final Map<ObjectId, Published> _lastPublished;
+
+    /**
+     * The property values last sent to the Console for an object together with the object's version at the time.
+     */
+    private static final class Published
+    {
+        private final long _version;
+        private final Map<String, Object> _values;
+
+        Published(final long version, final Map<String, Object> values)
+        {
+            _version = version;
+            _values = values;
+        }
+    }
+
+    /**
+     * The sequence number of the most recent change in the Agent's change log that this Subscription has seen, or
+     * -1 if it hasn't run yet. Only used if the SubscribableAgent is an Agent, which records changes to its objects.
+     */
+    private volatile long _changeCursor = -1;
+
+    /**
+     * The ScheduledFuture of the periodic task running this Subscription if it has been scheduled by an Agent's
+     * ScheduledExecutorService, which needs to be cancelled as well as the TimerTask when the Subscription ends.
+     */
+    private volatile ScheduledFuture<?> _future = null;
+    private volatile boolean _cancelled = false;
+
     /**
      * Tells the SubscribableAgent to send the results to the Console via a subscription indicate message.
      *
@@ -82,6 +134,120 @@ public final class Subscription extends TimerTask
         _lastUpdate = System.currentTimeMillis()*1000000l;
     }
 
+    /**
+     * Publish a list of mapEncoded results. SubscribableAgent.sendSubscriptionIndicate() takes a raw List<Map>
+     * so this is the one place that the typed results get passed to the untyped API.
+     *
+     * @param results the list of mapEncoded QmfAgentData to send to the Console.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private void publishResults(final List<Map<String, Object>> results)
+    {
+        publish((List)results);
+    }
+
+    /**
+     * Publish the new state of an object to the Console, called by QmfAgentData.publish(). The mapEncoded object
+     * is projected onto the Query's select list and delta encoded if the Console has asked for that.
+     *
+     * @param object the QmfAgentData being published.
+     * @param encoded the result of calling mapEncode() on the object.
+     */
+    void publish(final QmfAgentData object, final Map<String, Object> encoded)
+    {
+        Map<String, Object> result = encode(object, _query.applySelect(encoded));
+        if (result != null)
+        {
+            List<Map<String, Object>> results = new ArrayList<Map<String, Object>>(1);
+            results.add(result);
+            publishResults(results);
+        }
+    }
+
+    /**
+     * Return the encoded form of an object to be sent to the Console. If the Console hasn't asked for delta
+     * encoding this is just the object's mapEncode(), projected onto the Query's select list.
+     *
+     * @param object the QmfAgentData to be sent.
+     * @return the encoded object, or null if it hasn't changed since it was last sent.
+     */
+    private Map<String, Object> encode(final QmfAgentData object)
+    {
+        return encode(object, object.mapEncode(_query));
+    }
+
+    /**
+     * Delta encode an already mapEncoded object if the Console has asked for delta encoding.
+     *
+     * @param object the QmfAgentData to be sent.
+     * @param encoded the mapEncoded (and projected) object.
+     * @return the encoded object, a delta containing only its changed properties, or null if no properties have
+     *         changed since the object was last sent.
+     */
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> encode(final QmfAgentData object, final Map<String, Object> encoded)
+    {
+        if (_lastPublished == null)
+        {
+            return encoded;
+        }
+
+        ObjectId objectId = object.getObjectId();
+        Map<String, Object> values = (Map<String, Object>)encoded.get("_values");
+        if (object.isDeleted())
+        {
+            _lastPublished.remove(objectId);
+            return encoded;
+        }
+
+        // Nothing can have changed if the object's version is the one last sent, so there's no need to compare.
+        // The version is read after the object was encoded, so a later change always leads to a different version.
+        long version = object.getVersion();
+        Published published = _lastPublished.get(objectId);
+        if (published != null && published._version == version)
+        {
+            return null;
+        }
+
+        // Copy the values, as in many cases encoded holds the object's own property Map.
+        Map<String, Object> current = new HashMap<String, Object>(values);
+        synchronized(_lastPublished)
+        {
+            published = _lastPublished.put(objectId, new Published(version, current));
+            Map<String, Object> last = (published == null) ? null : published._values;
+            if (last == null || !current.keySet().containsAll(last.keySet()))
+            { // The object is new to the Console, or has lost properties, so send it in full.
+                return encoded;
+            }
+
+            Map<String, Object> changed = new HashMap<String, Object>();
+            for (Map.Entry<String, Object> entry : current.entrySet())
+            {
+                Object value = entry.getValue();
+                Object previous = last.get(entry.getKey());
+                if (value == null ? previous != null : !value.equals(previous))
+                {
+                    changed.put(entry.getKey(), value);
+                }
+            }
+
+            if (changed.isEmpty())
+            {
+                return null;
+            }
+
+            Map<String, Object> delta = new HashMap<String, Object>();
+            delta.put("_values", changed);
+            delta.put("_schema_id", encoded.get("_schema_id"));
+            delta.put("_object_id", encoded.get("_object_id"));
+            delta.put("_update_ts", encoded.get("_update_ts"));
+            delta.put("_create_ts", encoded.get("_create_ts"));
+            delta.put("_delete_ts", encoded.get("_delete_ts"));
+            delta.put("_delta", Boolean.TRUE);
+            return delta;
+        }
+    }
+
     /**
      * Construct a new Subscription.
      * @param agent the SubscribableAgent to which this Subscription is associated.
@@ -93,6 +259,7 @@ public final class Subscription extends TimerTask
         _subscriptionId = UUID.randomUUID().toString();
         _consoleHandle = params.getConsoleHandle();
         _query = params.getQuery();
+        _lastPublished = params.isDelta() ? new ConcurrentHashMap<ObjectId, Published>() : null;
         setDuration(params.getLifetime());
         setInterval(params.getPublishInterval());
 
@@ -104,11 +271,23 @@ public final class Subscription extends TimerTask
      * <p>
      * First a check is made to see if the Subscription has expired, if it has then it is cancelled.
      * <p>
-     * If the Subscription isn't cancelled the Query gets evaluated against all registered objects and any that match
-     * which are new to the Subscription or have changed since the last update get published.
+     * If the Subscription isn't cancelled any matching objects which are new to the Subscription or have changed
+     * since the last update get published. When the Subscription first runs its Query gets evaluated against all
+     * registered objects. After that, if the SubscribableAgent is an Agent, only the objects recorded in the Agent's
+     * change log since the Subscription last ran need to be evaluated, so a Subscription costs next to nothing
+     * while nothing is changing however many objects the Agent holds. Other SubscribableAgents have the Query
+     * evaluated against all of their objects every time.
+     * <p>
+     * This method is synchronized as an Agent with several scheduler threads could otherwise run the first update
+     * and the first periodic update of a Subscription concurrently.
      */
-    public void run()
+    public synchronized void run()
     {
+        if (_cancelled)
+        {
+            return;
+        }
+
         long elapsed = (long)Math.round((System.currentTimeMillis() - _startTime)/1000.0f);
         if (elapsed >= _duration)
         {
@@ -116,17 +295,28 @@ public final class Subscription extends TimerTask
             // The Subscription has expired so cancel it
             cancel();
         }
+        else if (_agent instanceof Agent && _changeCursor >= 0)
+        {
+            publishChanges((Agent)_agent);
+        }
         else
         {
+            // Note the position in the change log before evaluating the query, so that any changes made while it's
+            // being evaluated will be picked up by the next run.
+            if (_agent instanceof Agent)
+            {
+                ((Agent)_agent).startChangeTracking(this);
+            }
+
             List<QmfAgentData> objects = _agent.evaluateQuery(_query);
-            List<Map> results = new ArrayList<Map>(objects.size());
+            List<Map<String, Object>> results = new ArrayList<Map<String, Object>>(objects.size());
             for (QmfAgentData object : objects)
             {
                 if (object.getSubscription(_subscriptionId) == null)
                 {
                     // The object is new to this Subscription so publish it
                     object.addSubscription(_subscriptionId, this);
-                    results.add(object.mapEncode());
+                    addResult(results, object);
                 }
                 else
                 {
@@ -136,16 +326,126 @@ public final class Subscription extends TimerTask
                     // the Console.
                     if (object.getUpdateTime() > _lastUpdate)
                     {
-                        results.add(object.mapEncode());
+                        addResult(results, object);
                     }
                 }
             }
 
+            // Stop holding on to the values last sent for any objects that no longer match the Query.
+            if (_lastPublished != null && !_lastPublished.isEmpty())
+            {
+                Set<ObjectId> matching = new HashSet<ObjectId>(objects.size()*2);
+                for (QmfAgentData object : objects)
+                {
+                    matching.add(object.getObjectId());
+                }
+                _lastPublished.keySet().retainAll(matching);
+            }
+
             if (results.size() > 0)
             {
-                publish(results);
+                publishResults(results);
+            }
+        }
+    }
+
+    /**
+     * Publish the objects that match the Query and have changed since the Subscription last ran, using the Agent's
+     * change log to find them.
+     *
+     * @param agent the Agent that this Subscription is associated with.
+     */
+    private void publishChanges(final Agent agent)
+    {
+        long upTo = agent.getChangeSequence();
+        Collection<QmfAgentData> changed = agent.getChangedObjects(_changeCursor, upTo);
+        List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+        for (QmfAgentData object : changed)
+        {
+            // Deleted objects have already been published to their Subscriptions by QmfAgentData.destroy().
+            if (object.isDeleted())
+            {
+                continue;
+            }
+
+            if (object.getSubscription(_subscriptionId) == null)
+            {
+                // The object has changed such that it is new to this Subscription so publish it
+                if (_query.evaluate(object))
+                {
+                    object.addSubscription(_subscriptionId, this);
+                    addResult(results, object);
+                }
+            }
+            else if (!_query.evaluate(object))
+            {
+                // The object has changed such that it no longer matches the Query so stop holding on to the
+                // values last sent for it, if it matches again it will be sent in full.
+                forget(object.getObjectId());
+            }
+            else if (!object.isPublished())
+            {
+                // The object has had update() called since the last Subscription update and its new state
+                // hasn't already been sent by a call to publish() so publish it.
+                addResult(results, object);
             }
         }
+
+        _changeCursor = upTo;
+        agent.trimChangeLog();
+
+        if (results.size() > 0)
+        {
+            publishResults(results);
+        }
+    }
+
+    /**
+     * Forget the property values last sent for an object that no longer matches the Query, if the Console has asked
+     * for delta encoding.
+     * @param objectId the ObjectId of the object.
+     */
+    private void forget(final ObjectId objectId)
+    {
+        if (_lastPublished != null)
+        {
+            _lastPublished.remove(objectId);
+        }
+    }
+
+    /**
+     * Add the encoded form of an object to the results to be published, unless it is a delta with no changes.
+     * @param results the results to be published.
+     * @param object the QmfAgentData to be published.
+     */
+    private void addResult(final List<Map<String, Object>> results, final QmfAgentData object)
+    {
+        Map<String, Object> result = encode(object);
+        if (result != null)
+        {
+            results.add(result);
+        }
+    }
+
+    /**
+     * Return the sequence number of the most recent change in the Agent's change log that this Subscription has
+     * seen, used by the Agent to work out which changes every Subscription has seen.
+     * @return the sequence number of the most recent change seen, or Long.MAX_VALUE if the Subscription hasn't
+     * run yet, as it will then evaluate its Query against all objects rather than using the change log.
+     */
+    long getChangeCursor()
+    {
+        long cursor = _changeCursor;
+        return cursor < 0 ? Long.MAX_VALUE : cursor;
+    }
+
+    /**
+     * Set the sequence number of the most recent change in the Agent's change log that this Subscription has seen.
+     * @param cursor the sequence number of the most recent change seen.
+     */
+    void setChangeCursor(final long cursor)
+    {
+        _changeCursor = cursor;
     }
 
     /**
@@ -168,6 +468,13 @@ public final class Subscription extends TimerTask
     public boolean cancel()
     {
         _log.debug("Cancelling Subscription {}", _subscriptionId);
+        _cancelled = true;
+        ScheduledFuture<?> future = _future;
+        if (future != null)
+        {
+            future.cancel(false);
+        }
+
         // This Subscription is about to be deleted, remove it from any Objects that may be referencing it.
         List<QmfAgentData> objects = _agent.evaluateQuery(_query);
         for (QmfAgentData object : objects)
@@ -175,10 +482,30 @@ public final class Subscription extends TimerTask
             object.removeSubscription(_subscriptionId);
         }
 
+        if (_lastPublished != null)
+        {
+            _lastPublished.clear();
+        }
+
         _agent.removeSubscription(this);
         return super.cancel(); // Cancel the TimerTask
     }
 
+    /**
+     * Record the ScheduledFuture of the periodic task that runs this Subscription so that it may be cancelled
+     * when the Subscription is cancelled.
+     *
+     * @param future the ScheduledFuture of the periodic task that runs this Subscription.
+     */
+    void setFuture(final ScheduledFuture<?> future)
+    {
+        _future = future;
+        if (_cancelled)
+        {
+            future.cancel(false);
+        }
+    }
+
     /**
      * Return the SubscriptionId of this subscription.
      * @return the SubscriptionId of this subscription.
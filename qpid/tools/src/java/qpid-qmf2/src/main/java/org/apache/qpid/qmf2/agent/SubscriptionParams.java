@@ -88,6 +88,20 @@ public final class SubscriptionParams extends QmfData
         return getLongValue("_duration");
     }
 
+    /**
+     * Return true if the Console has asked for delta-encoded Subscription indications, where objects that have
+     * already been sent to the Console are sent again with only the properties that have changed.
+     * <p>
+     * This method isn't part of the QMF2 API, Consoles request delta encoding by setting "_delta" in the
+     * subscribe request, which other Agents ignore.
+     *
+     * @return true if the Console has asked for delta-encoded Subscription indications.
+     */
+    public boolean isDelta()
+    {
+        return hasValue("_delta") && getBooleanValue("_delta");
+    }
+
     /**
      * Return authenticated user id of caller if present, else null.
      * @return authenticated user id of caller if present, else null.
@@ -0,0 +1,114 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.agent;
+
+// Misc Imports
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TickStatistics records how late the periodic tasks run by an Agent, such as Heartbeats and Subscription updates,
+ * actually ran compared with when they were due.
+ * <p>
+ * Lateness is mostly caused by other tasks hogging the scheduler's threads, for example a Subscription whose query
+ * matches a very large number of objects, so these statistics are useful for sizing the Agent's scheduler pool
+ * (see Agent.setSchedulerThreads()) and for spotting when Heartbeats are at risk of arriving too late for Consoles,
+ * which would then consider the Agent to have expired.
+ * <p>
+ * This class isn't part of the QMF2 API.
+ */
+public final class TickStatistics
+{
+    private final AtomicLong _tickCount = new AtomicLong();
+    private final AtomicLong _totalLateness = new AtomicLong();
+    private final AtomicLong _maxLateness = new AtomicLong();
+    private volatile long _lastLateness = 0;
+
+    /**
+     * Record a tick.
+     * @param lateness the time in nanoseconds between when the tick was due and when it actually ran.
+     */
+    void record(long lateness)
+    {
+        if (lateness < 0)
+        {
+            lateness = 0;
+        }
+
+        _tickCount.incrementAndGet();
+        _totalLateness.addAndGet(lateness);
+        _lastLateness = lateness;
+
+        long max = _maxLateness.get();
+        while (lateness > max && !_maxLateness.compareAndSet(max, lateness))
+        {
+            max = _maxLateness.get();
+        }
+    }
+
+    /**
+     * Return the number of ticks recorded.
+     * @return the number of ticks recorded.
+     */
+    public long getTickCount()
+    {
+        return _tickCount.get();
+    }
+
+    /**
+     * Return how late the most recent tick ran.
+     * @return how late the most recent tick ran in milliseconds.
+     */
+    public long getLastLateness()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(_lastLateness);
+    }
+
+    /**
+     * Return the mean lateness of all of the recorded ticks.
+     * @return the mean lateness of all of the recorded ticks in milliseconds.
+     */
+    public double getMeanLateness()
+    {
+        long count = _tickCount.get();
+        return count == 0 ? 0.0 : _totalLateness.get()/(count*1000000.0);
+    }
+
+    /**
+     * Return the lateness of the latest of the recorded ticks.
+     * @return the lateness of the latest of the recorded ticks in milliseconds.
+     */
+    public long getMaxLateness()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(_maxLateness.get());
+    }
+
+    /**
+     * Return a String representation of the statistics, useful for logging.
+     * @return a String representation of the statistics.
+     */
+    @Override
+    public String toString()
+    {
+        return "ticks = " + getTickCount() + ", last lateness = " + getLastLateness() + "ms, mean lateness = " +
+               String.format("%.2f", getMeanLateness()) + "ms, max lateness = " + getMaxLateness() + "ms";
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.agent;
+
+// Misc Imports
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A TokenBucket limits the rate of requests to a sustained number per second while allowing short bursts. The
+ * bucket holds up to burst tokens and is refilled at rate tokens per second, and each request takes a token or is
+ * rejected if there are none.
+ */
+final class TokenBucket
+{
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final double _rate;
+    private final double _burst;
+    private double _tokens;
+    private long _lastRefill;
+
+    /**
+     * Construct a TokenBucket, which starts full.
+     * @param rate the sustained number of requests per second.
+     * @param burst the maximum number of requests that may be made at once.
+     * @param now the current time from System.nanoTime().
+     */
+    TokenBucket(final double rate, final int burst, final long now)
+    {
+        _rate = rate;
+        _burst = burst;
+        _tokens = burst;
+        _lastRefill = now;
+    }
+
+    /**
+     * Take a token if there is one.
+     * @param now the current time from System.nanoTime().
+     * @return zero if a token was taken, otherwise how long in nanoseconds until there will be a token.
+     */
+    synchronized long tryAcquire(final long now)
+    {
+        refill(now);
+        if (_tokens >= 1.0)
+        {
+            _tokens -= 1.0;
+            return 0;
+        }
+        return (long)Math.ceil((1.0 - _tokens)*NANOS_PER_SECOND/_rate);
+    }
+
+    /**
+     * Return a token taken by tryAcquire() for a request that was then rejected for another reason.
+     */
+    synchronized void release()
+    {
+        _tokens = Math.min(_burst, _tokens + 1.0);
+    }
+
+    /**
+     * Return true if the bucket has refilled completely, meaning that no requests have been made for a while.
+     * @param now the current time from System.nanoTime().
+     * @return true if the bucket has refilled completely.
+     */
+    synchronized boolean isFull(final long now)
+    {
+        refill(now);
+        return _tokens >= _burst;
+    }
+
+    /**
+     * Add the tokens accumulated since the last refill.
+     * @param now the current time from System.nanoTime().
+     */
+    private void refill(final long now)
+    {
+        long elapsed = now - _lastRefill;
+        if (elapsed > 0)
+        {
+            _tokens = Math.min(_burst, _tokens + elapsed*_rate/NANOS_PER_SECOND);
+            _lastRefill = now;
+        }
+    }
+}
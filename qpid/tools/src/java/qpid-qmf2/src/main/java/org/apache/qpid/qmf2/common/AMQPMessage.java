@@ -30,10 +30,13 @@ import javax.jms.Session;
 
 // Misc Imports
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.Iterator;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 // Need the following to decode and encode amqp/list messages
 import java.nio.ByteBuffer;
@@ -59,6 +62,39 @@ import org.apache.qpid.qmf2.common.QmfData;
  */
 public final class AMQPMessage
 {
+    /**
+     * The initial capacity of the buffer used to encode amqp/list messages, the buffer grows as necessary.
+     */
+    private static final int INITIAL_ENCODER_CAPACITY = 1024;
+
+    /**
+     * Encoders whose buffer has grown beyond this capacity aren't kept for reuse, so encoding the occasional very
+     * large list doesn't leave every thread that did so holding on to a very large buffer.
+     */
+    private static final int MAX_POOLED_ENCODER_CAPACITY = 1024*1024;
+
+    /**
+     * Each thread keeps the BBEncoder it last used to encode an amqp/list so that its buffer, which will by then
+     * have grown to a size suitable for the lists that thread encodes, may be reused rather than growing a new
+     * buffer from INITIAL_ENCODER_CAPACITY every time. If the encoder was too big to keep the size of the last
+     * list is remembered instead, so the next encoder can be created with a buffer big enough to hold a similar
+     * list without having to grow.
+     */
+    private static final class EncoderCache
+    {
+        BBEncoder encoder = null;
+        int lastSize = INITIAL_ENCODER_CAPACITY;
+    }
+
+    private static final ThreadLocal<EncoderCache> _encoderCache = new ThreadLocal<EncoderCache>()
+    {
+        @Override
+        protected EncoderCache initialValue()
+        {
+            return new EncoderCache();
+        }
+    };
+
     /**
      * Make constructor private at this class provides a set of static helper methods and doesn't need instantiated.
      */
@@ -201,6 +237,9 @@ public final class AMQPMessage
      * <p>
      * Trivia: This block of code from Gordon Sim is the seed that spawned the whole of this Java QMF2 API
      * implementation - cheers Gordon.
+     * <p>
+     * Large Query responses can be many megabytes so rather than copying the body into a byte[] via the JMS API
+     * the list is decoded straight from the Message's own buffer, see getBody().
      *
      * @param message amqp/list encoded JMS Message
      * @return a java.util.List decoded from Message
@@ -214,14 +253,7 @@ public final class AMQPMessage
         }
         else if (message instanceof BytesMessage)
         {
-            BytesMessage msg = (BytesMessage)message;
-
-            //only handles responses up to 2^31-1 bytes long
-            byte[] data = new byte[(int) msg.getBodyLength()];
-            msg.readBytes(data);
-            BBDecoder decoder = new BBDecoder();
-            decoder.init(ByteBuffer.wrap(data));
-            return (List<T>)decoder.readList();
+            return decodeList(getBody((BytesMessage)message));
         }
         else if (message instanceof MapMessage)
         {   /*
@@ -248,6 +280,313 @@ public final class AMQPMessage
         }
     }
 
+    /**
+     * JMS QMF returns amqp/list types as a BytesMessage this method returns an Iterator that decodes the elements
+     * of the list lazily, one element per call to next(), rather than decoding the whole list up front as getList()
+     * does. This means that only the encoded Message body and the current element need to be held in memory, which
+     * matters when a Message holds the results of a Query for tens of thousands of objects.
+     * <p>
+     * Lazy decoding is supported for lists whose elements are maps or lists, which covers the responses to QMF
+     * requests. Any other element type causes next() to throw an IllegalStateException. Messages exposed as a
+     * MapMessage (see getList()) are decoded up front as there's no encoded form to decode lazily.
+     * <p>
+     * This method isn't part of the QMF2 API.
+     *
+     * @param message amqp/list encoded JMS Message
+     * @return an Iterator over the elements of the list encoded in the Message, or null if the Message isn't a
+     *         BytesMessage or MapMessage.
+     */
+    public static <T> Iterator<T> getListIterator(final Message message) throws JMSException
+    {
+        if (message == null)
+        {
+            throw new MessageFormatException("Attempting to do AMQPMessage.getListIterator() on null Message");
+        }
+        else if (message instanceof BytesMessage)
+        {
+            return new LazyListDecoder<T>(getBody((BytesMessage)message));
+        }
+        else if (message instanceof MapMessage)
+        {
+            List<T> list = getList(message);
+            return list.iterator();
+        }
+        else
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Return the body of a BytesMessage. Rather than copying the body into a byte[] via the JMS API this returns
+     * the Message's own buffer, which evil hackery obtains from AbstractJMSMessage. The JMS API is only used as a
+     * fallback for Messages that don't expose a buffer holding exactly the body.
+     *
+     * @param message a JMS BytesMessage.
+     * @return a ByteBuffer holding the body of the Message.
+     */
+    private static ByteBuffer getBody(final BytesMessage message) throws JMSException
+    {
+        ByteBuffer data = null;
+        if (message instanceof org.apache.qpid.client.message.AbstractJMSMessage)
+        {
+            data = ((org.apache.qpid.client.message.AbstractJMSMessage)message).getData();
+        }
+
+        if (data == null || data.remaining() != message.getBodyLength())
+        {
+            //only handles responses up to 2^31-1 bytes long
+            byte[] bytes = new byte[(int) message.getBodyLength()];
+            message.readBytes(bytes);
+            data = ByteBuffer.wrap(bytes);
+        }
+        return data;
+    }
+
+    /**
+     * An Iterator that decodes the elements of an amqp/list encoded ByteBuffer one at a time.
+     * <p>
+     * An amqp/list is encoded as a 32 bit size and a 32 bit element count followed by each element's type code
+     * and value. Maps and lists are decoded using the BBDecoder's readMap() and readList(), other element types
+     * aren't supported as BBDecoder doesn't expose a way to decode an arbitrary value given its type code.
+     */
+    private static final class LazyListDecoder<T> implements Iterator<T>
+    {
+        private static final short TYPE_MAP = 0xa8;
+        private static final short TYPE_LIST = 0xa9;
+
+        private final BBDecoder _decoder = new BBDecoder();
+        private long _remaining = 0;
+
+        LazyListDecoder(final ByteBuffer buffer)
+        {
+            _decoder.init(buffer.duplicate());
+            long size = _decoder.readUint32();
+            if (size != 0)
+            {
+                _remaining = _decoder.readUint32();
+            }
+        }
+
+        public boolean hasNext()
+        {
+            return _remaining > 0;
+        }
+
+        @SuppressWarnings("unchecked")
+        public T next()
+        {
+            if (_remaining == 0)
+            {
+                throw new NoSuchElementException();
+            }
+
+            _remaining--;
+            short type = _decoder.readUint8();
+            if (type == TYPE_MAP)
+            {
+                return (T)_decoder.readMap();
+            }
+            else if (type == TYPE_LIST)
+            {
+                return (T)_decoder.readList();
+            }
+            else
+            {
+                _remaining = 0;
+                throw new IllegalStateException("Can't lazily decode amqp/list element of type " + type);
+            }
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Decodes a java.util.List from an amqp/list encoded ByteBuffer, reading directly from the buffer without
+     * copying it. The buffer's position is left unchanged.
+     * <p>
+     * This method isn't part of the QMF2 API, it's the decoding half of getList() exposed for use by tools and
+     * benchmarks that have amqp/list encoded data that didn't arrive in a JMS Message.
+     *
+     * @param buffer the amqp/list encoded ByteBuffer, decoding starts at its position.
+     * @return a java.util.List decoded from buffer.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> List<T> decodeList(final ByteBuffer buffer)
+    {
+        BBDecoder decoder = new BBDecoder();
+        decoder.init(buffer.duplicate());
+        return (List<T>)decoder.readList();
+    }
+
+    /**
+     * Encodes a java.util.List into an amqp/list encoded ByteBuffer.
+     * <p>
+     * This method isn't part of the QMF2 API, it's the encoding half of setList() exposed for use by tools and
+     * benchmarks. The list is encoded using a BBEncoder that is pooled per thread, so that once a thread has
+     * encoded a list its buffer doesn't need to grow again to encode a list of similar size, and the returned
+     * ByteBuffer is a view of the pooled buffer rather than a copy of it. This means that the returned ByteBuffer
+     * is <b>only</b> valid until the calling thread next calls encodeList() or setList(), so it must be consumed
+     * or copied before then.
+     *
+     * @param list the java.util.List to encode.
+     * @return an amqp/list encoded ByteBuffer, valid until the calling thread's next encodeList() or setList().
+     */
+    @SuppressWarnings("unchecked")
+    public static ByteBuffer encodeList(final List<?> list)
+    {
+        EncoderCache cache = _encoderCache.get();
+        BBEncoder encoder = cache.encoder;
+        if (encoder == null)
+        {
+            // Leave a little headroom so a slightly bigger list than last time doesn't double the buffer.
+            encoder = new BBEncoder(cache.lastSize + (cache.lastSize >> 3));
+        }
+        else
+        {
+            encoder.init();
+        }
+
+        // Don't hold on to the encoder while it's in use in case writeList() throws and leaves it in a bad state.
+        cache.encoder = null;
+        encoder.writeList((List<Object>)list);
+        ByteBuffer buf = encoder.segment();
+
+        // The segment is a slice starting at the beginning of the encoder's buffer, so its capacity is the
+        // capacity of the whole buffer.
+        cache.lastSize = buf.remaining();
+        cache.encoder = buf.capacity() > MAX_POOLED_ENCODER_CAPACITY ? null : encoder;
+        return buf;
+    }
+
+    /**
+     * A ListBuilder encodes an amqp/list of maps incrementally, one map at a time, so that a list may be built up and
+     * written to a Message without the java.util.List of maps that it encodes ever needing to exist, and so that the
+     * size of the encoded list is known as it grows.
+     * <p>
+     * This is used by the Agent to split large Query responses into a number of partial responses of a bounded size.
+     * The encoded bytes are held by the ListBuilder until writeTo() or toByteArray() is called, after which the
+     * ListBuilder is empty and may be reused.
+     * <p>
+     * This class isn't part of the QMF2 API.
+     */
+    public static final class ListBuilder
+    {
+        private static final short TYPE_MAP = 0xa8;
+
+        private final BBEncoder _encoder = new BBEncoder(INITIAL_ENCODER_CAPACITY);
+        private byte[] _entries = new byte[INITIAL_ENCODER_CAPACITY];
+        private int _length = 0;
+        private int _count = 0;
+
+        /**
+         * Encode a map and append it to the list.
+         *
+         * @param map the map to append.
+         */
+        public void add(final Map<String, Object> map)
+        {
+            _encoder.init();
+            _encoder.writeUint8(TYPE_MAP);
+            _encoder.writeMap(map);
+            ByteBuffer entry = _encoder.segment();
+
+            int size = entry.remaining();
+            if (_length + size > _entries.length)
+            {
+                _entries = Arrays.copyOf(_entries, Math.max(_entries.length*2, _length + size));
+            }
+            entry.get(_entries, _length, size);
+            _length += size;
+            _count++;
+        }
+
+        /**
+         * Return the number of maps in the list.
+         * @return the number of maps in the list.
+         */
+        public int size()
+        {
+            return _count;
+        }
+
+        /**
+         * Return the size in bytes of the encoded list.
+         * @return the size in bytes of the encoded list.
+         */
+        public int getEncodedSize()
+        {
+            return _length + 8; // Allow for the list's size and count.
+        }
+
+        /**
+         * Write the encoded list to an amqp/list encoded BytesMessage, then empty the ListBuilder.
+         *
+         * @param message amqp/list encoded JMS BytesMessage
+         */
+        public void writeTo(final Message message) throws JMSException
+        {
+            if (message == null)
+            {
+                throw new MessageFormatException("Attempting to do ListBuilder.writeTo() on null Message");
+            }
+            else if (!getContentType(message).equals("amqp/list") || !(message instanceof BytesMessage))
+            {
+                throw new MessageFormatException("Can only do ListBuilder.writeTo() on amqp/list encoded Message");
+            }
+
+            // An amqp/list is encoded as the size in bytes of what follows, the element count then the elements,
+            // the JMS writeInt() writes the sizes high byte first as AMQP requires.
+            BytesMessage msg = (BytesMessage)message;
+            msg.writeInt(_length + 4);
+            msg.writeInt(_count);
+            msg.writeBytes(_entries, 0, _length);
+            _length = 0;
+            _count = 0;
+        }
+
+        /**
+         * Return a copy of the encoded list, exactly as writeTo() would write it, then empty the ListBuilder. The
+         * copy may be written to any number of Messages with setEncodedList().
+         *
+         * @return the encoded list.
+         */
+        public byte[] toByteArray()
+        {
+            ByteBuffer buf = ByteBuffer.allocate(_length + 8); // ByteBuffers are big-endian, as AMQP requires.
+            buf.putInt(_length + 4);
+            buf.putInt(_count);
+            buf.put(_entries, 0, _length);
+            _length = 0;
+            _count = 0;
+            return buf.array();
+        }
+    }
+
+    /**
+     * Write a list encoded by ListBuilder.toByteArray() to an amqp/list encoded BytesMessage.
+     * <p>
+     * This allows the same encoded list to be sent in several Messages without encoding it again each time.
+     *
+     * @param message amqp/list encoded JMS BytesMessage
+     * @param encoded the encoded list returned by ListBuilder.toByteArray()
+     */
+    public static void setEncodedList(final Message message, final byte[] encoded) throws JMSException
+    {
+        if (message == null)
+        {
+            throw new MessageFormatException("Attempting to do AMQPMessage.setEncodedList() on null Message");
+        }
+        else if (!getContentType(message).equals("amqp/list") || !(message instanceof BytesMessage))
+        {
+            throw new MessageFormatException("Can only do setEncodedList() on amqp/list encoded Message");
+        }
+        ((BytesMessage)message).writeBytes(encoded);
+    }
+
     /**
      * Creates an amqp/list encoded Message out of a BytesMessage.
      * <p>
@@ -271,7 +610,8 @@ public final class AMQPMessage
      * This is somewhat of a dirty hack that needs to be monitored as qpid versions change.
      * <p>
      * This method uses the org.apache.qpid.transport.codec.BBEncoder writeList() method to encode
-     * a List into a ByteBuffer then writes the bytes from the buffer into a JMS BytesMessage.
+     * a List into a ByteBuffer then writes the bytes from the buffer into a JMS BytesMessage. The BBEncoder
+     * is pooled per thread (see encodeList()) and the bytes are written straight from its buffer.
      *
      * @param message amqp/list encoded JMS BytesMessage
      * @param list to encode into JMS Message
@@ -291,12 +631,17 @@ public final class AMQPMessage
         }
         else if (message instanceof BytesMessage)
         {
-            BBEncoder encoder = new BBEncoder(1024);
-            encoder.writeList(list);
-            ByteBuffer buf = encoder.segment();
-            byte[] data = new byte[buf.limit()];
-            buf.get(data);
-            ((BytesMessage)message).writeBytes(data);
+            ByteBuffer buf = encodeList(list);
+            if (buf.hasArray())
+            {
+                ((BytesMessage)message).writeBytes(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            }
+            else
+            {
+                byte[] data = new byte[buf.remaining()];
+                buf.get(data);
+                ((BytesMessage)message).writeBytes(data);
+            }
         }
         else
         {
@@ -58,15 +58,13 @@ public final class BooleanExists extends BooleanExpression
 
     /**
      * Evaluate "exists" expression against a QmfData instance.
-     * N.B. to avoid complexities with types this class treats operands as Strings performing an appropriate evaluation
-     * of the String that makes sense for a given expression e.g. parsing as a double for {@literal >, >=, <, <= }
      *
      * @param data the object to evaluate the expression against
-     * @return true if query matches the QmfData instance, else false.
+     * @return true if the operand is a literal or is a key that can be found in the QmfData instance, else false.
      */    
     public boolean evaluate(final QmfData data)
     {
-        return _operands[0] != null;
+        return hasOperand(0, data);
     }
 }
 
@@ -21,7 +21,6 @@
 package org.apache.qpid.qmf2.common;
 
 // Misc Imports
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -29,14 +28,27 @@ import java.util.Map;
 
 /**
  * This class represents the base class for all Boolean Expressions created by expanding the Query predicate.
+ * <p>
+ * BooleanExpressions are compiled when they are created: each operand is either a literal, whose String and
+ * numeric forms are worked out once up front, or a key, for which an accessor is chosen that knows where in a
+ * QmfData object the key's value may be found. Evaluation then works directly on the typed property values, so
+ * numeric properties are compared as long or double values without ever being converted to Strings.
+ * <p>
+ * BooleanExpressions hold no state that changes during evaluation, so a single QmfQuery may safely be evaluated
+ * by many threads at once.
  *
  * @author Fraser Adams
  */
 public abstract class BooleanExpression extends Expression
 {
+    /**
+     * Returned by compareOperands() if the operands can't be compared, either because one of them is missing or
+     * because one of them is NaN. All of the comparison operators evaluate to false in this case.
+     */
+    protected static final int UNORDERED = Integer.MIN_VALUE;
+
     private static Map<String, BooleanExpression> _factories = new HashMap<String, BooleanExpression>();
-    protected String[] _operands;
-    private String[] _keys;
+    private final Operand[] _operands;
 
     /**
      * Initialise the _factories Map, which contains the prototype instances of each concrete BooleanExpression
@@ -56,6 +68,198 @@ public abstract class BooleanExpression extends Expression
         _factories.put("false", new BooleanFalse());
     }
 
+    //                                         Compiled Operands
+    // ********************************************************************************************************
+
+    /**
+     * An Operand is either a Literal or a Key. Resolving an Operand against a QmfData object returns its value,
+     * which is null if a Key can't be found. Property values that are present but null resolve to an empty String,
+     * which is how they have always been presented to the Expressions.
+     */
+    private abstract static class Operand
+    {
+        /**
+         * Return the value of this Operand for the given QmfData object, or null if it can't be found.
+         */
+        abstract Object resolve(final QmfData data);
+
+        /**
+         * Return the numeric form of a value previously returned by resolve(), or null if it isn't numeric.
+         */
+        abstract Number toNumber(final Object value);
+    }
+
+    /**
+     * A literal operand. If the literal is the canonical String form of a long it is held as a Long so that it
+     * may be compared directly with integer properties, otherwise it is held as a String. Its numeric form, if it
+     * has one, is parsed once here rather than on every evaluation.
+     */
+    private static final class Literal extends Operand
+    {
+        private final String _string;
+        private final Object _value;
+        private final Number _number;
+
+        Literal(final String string)
+        {
+            _string = string;
+            Number number = null;
+            try
+            {
+                long l = Long.parseLong(string);
+                if (Long.toString(l).equals(string))
+                {
+                    number = l;
+                }
+            }
+            catch (NumberFormatException nfe)
+            { // Not a long, it may still be a double.
+            }
+
+            if (number == null)
+            {
+                try
+                {
+                    number = Double.parseDouble(string);
+                }
+                catch (NumberFormatException nfe)
+                { // Not numeric at all.
+                }
+            }
+
+            _number = number;
+            _value = number instanceof Long ? number : string;
+        }
+
+        Object resolve(final QmfData data)
+        {
+            return _value;
+        }
+
+        Number toNumber(final Object value)
+        {
+            return _number;
+        }
+    }
+
+    /**
+     * A key operand, used to look up a property of the QmfData object at evaluation time.
+     * <p>
+     * The key is first looked up in the object's properties. Keys starting with an underscore may also refer to
+     * the metadata of a QmfManaged object: _schema_id, _object_id or any of the SchemaClassId properties such as
+     * _package_name and _class_name, and failing that to an entry in the object's mapEncoded form such as
+     * _update_ts. The mapEncoded form is expensive to create, but every entry in it other than the properties has
+     * a key starting with an underscore so there's no need to look there for any other keys.
+     */
+    private static final class Key extends Operand
+    {
+        private static final int PROPERTY = 0;
+        private static final int METADATA = 1;
+        private static final int SCHEMA_ID = 2;
+        private static final int OBJECT_ID = 3;
+
+        private final String _key;
+        private final int _kind;
+
+        Key(final String key)
+        {
+            _key = key;
+            if (key.equals("_schema_id"))
+            {
+                _kind = SCHEMA_ID;
+            }
+            else if (key.equals("_object_id"))
+            {
+                _kind = OBJECT_ID;
+            }
+            else
+            {
+                _kind = key.startsWith("_") ? METADATA : PROPERTY;
+            }
+        }
+
+        Object resolve(final QmfData data)
+        {
+            Object value;
+            if (_kind == PROPERTY)
+            { // Properties are normally present, so look the value up first and only check hasValue() if it's null.
+                value = data.getValue(_key);
+                if (value != null)
+                {
+                    return value;
+                }
+                return data.hasValue(_key) ? "" : null;
+            }
+
+            // Metadata keys are normally absent from the properties so check hasValue() first.
+            if (data.hasValue(_key))
+            {
+                value = data.getValue(_key);
+                return value == null ? "" : value;
+            }
+
+            if (data instanceof QmfManaged)
+            {
+                QmfManaged managedData = (QmfManaged)data;
+                if (_kind == SCHEMA_ID)
+                {
+                    return managedData.getSchemaClassId().toString();
+                }
+                else if (_kind == OBJECT_ID)
+                {
+                    return managedData.getObjectId().toString();
+                }
+
+                // If it's not _schema_id or _object_id check the SchemaClassId properties e.g.
+                // _package_name, _class_name, _type or _hash
+                SchemaClassId classId = managedData.getSchemaClassId();
+                if (classId.hasValue(_key))
+                {
+                    value = classId.getValue(_key);
+                    return value == null ? "" : value;
+                }
+            }
+
+            // If a value still can't be found for the key check if it's available in the mapEncoded form
+            Map m = data.mapEncode();
+            if (m.containsKey(_key))
+            {
+                value = m.get(_key);
+                return value == null ? "" : value;
+            }
+            return null;
+        }
+
+        Number toNumber(final Object value)
+        {
+            if (value instanceof Number)
+            {
+                return (Number)value;
+            }
+
+            // A String (or other) property might still hold a number, e.g. "42", as might the SchemaClassId _hash.
+            try
+            {
+                return Double.parseDouble(QmfData.getString(value));
+            }
+            catch (NumberFormatException nfe)
+            {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Return true if the value is one of the integer types that may be compared exactly as a long.
+     */
+    private static boolean isIntegral(final Object value)
+    {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+    }
+
+    //                                       BooleanExpression API
+    // ********************************************************************************************************
+
     /**
      * Factory method to create concrete Expression instances based on the operator name extracted from the expression List.
      * This method will create a BooleanExpression from an "eq", "ne", "lt" etc. operator using the prototype 
@@ -93,14 +297,15 @@ public abstract class BooleanExpression extends Expression
      */
     protected BooleanExpression()
     {
+        _operands = new Operand[0];
     }
 
     /**
-     * Main Constructor, used to populate unevaluated operands. This loops through the input expression list. If the
+     * Main Constructor, used to compile the operands. This loops through the input expression list. If the
      * Object is a String is is treated as a key such that when the expression is evaluated the key will be used to
      * obtain a propery from the QmfData object. If the Object is a sub-List it is checked to see if it's a quoted
-     * String, if it is the quoted String is stored as the operand. If it's neither of these the actual object from
-     * the expression List is used as the operand.
+     * String, if it is the quoted String is stored as a literal operand. If it's neither of these the String form
+     * of the actual object from the expression List is used as a literal operand.
      *
      * @param operandCount the number of operands in this Expression, the value is generally passed by the subclass.
      * @param expr the List of Expressions extracted by parsing the Query predicate
@@ -110,8 +315,7 @@ public abstract class BooleanExpression extends Expression
         Iterator iter = expr.listIterator();
         String op = (String)iter.next(); // We've already tested for hasNext() in the factory
 
-        _operands = new String[operandCount];
-        _keys = new String[operandCount];
+        _operands = new Operand[operandCount];
 
         for (int i = 0; i < operandCount; i++)
         {
@@ -121,12 +325,12 @@ public abstract class BooleanExpression extends Expression
             }
 
             Object object = iter.next();
-            _operands[i] = object.toString();
+            String literal = object.toString();
 
             if (object instanceof String)
             {
-                _keys[i] = _operands[i];
-                _operands[i] = null;
+                _operands[i] = new Key(literal);
+                continue;
             }
             else if (object instanceof List)
             {
@@ -137,7 +341,7 @@ public abstract class BooleanExpression extends Expression
                 {
                     if (subiter.hasNext())
                     {
-                        _operands[i] = subiter.next().toString();
+                        literal = subiter.next().toString();
                         if (subiter.hasNext())
                         {
                              throw new QmfException("Extra tokens at end of 'quote'");
@@ -149,6 +353,7 @@ public abstract class BooleanExpression extends Expression
                     throw new QmfException("Expected '[quote, <token>]'");
                 }
             }
+            _operands[i] = new Literal(literal);
         }
 
         if (iter.hasNext())
@@ -158,57 +363,136 @@ public abstract class BooleanExpression extends Expression
     }
 
     /**
-     * Populates operands that are obtained at evaluation time. In other words operands that are obtained by using
-     * the key obtained from the static operand evaluation to look up an associated property from the QmfData object.
-     * @param data the object to extract the operand(s) from
+     * Return the number of operands of this Expression.
+     * @return the number of operands of this Expression.
+     */
+    public final int getOperandCount()
+    {
+        return _operands.length;
+    }
+
+    /**
+     * Return the key of the specified operand. This and getLiteral() allow an Expression to be examined, for example
+     * by an Agent wishing to use an index rather than evaluating the Expression against every object that it holds.
+     * @param index the index of the operand.
+     * @return the property name used to look up the operand at evaluation time, or null if the operand is a literal.
+     */
+    public final String getKey(final int index)
+    {
+        Operand operand = _operands[index];
+        return operand instanceof Key ? ((Key)operand)._key : null;
+    }
+
+    /**
+     * Return the literal value of the specified operand in String form.
+     * @param index the index of the operand.
+     * @return the literal value of the operand, or null if the operand is a key.
+     */
+    public final String getLiteral(final int index)
+    {
+        Operand operand = _operands[index];
+        return operand instanceof Literal ? ((Literal)operand)._string : null;
+    }
+
+    /**
+     * Return the value of the specified operand for the given QmfData object. Literals resolve to their value and
+     * keys resolve to the value of the property (or metadata) of that name.
+     * @param index the index of the operand.
+     * @param data the object to extract the operand from.
+     * @return the value of the operand, or null if a key can't be found.
      */
-    protected void populateOperands(final QmfData data)
+    protected final Object getOperand(final int index, final QmfData data)
     {
-        for (int i = 0; i < _operands.length; i++)
+        return _operands[index].resolve(data);
+    }
+
+    /**
+     * Return true if the specified operand can be found for the given QmfData object.
+     * @param index the index of the operand.
+     * @param data the object to extract the operand from.
+     * @return true if the operand is a literal or is a key that can be found.
+     */
+    protected final boolean hasOperand(final int index, final QmfData data)
+    {
+        return _operands[index].resolve(data) != null;
+    }
+
+    /**
+     * Compare the two operands for equality. Equality has always been defined in terms of the String form of the
+     * operands so this is retained, but integer properties are compared directly with integer literals as the
+     * result is the same and avoids creating a String on every evaluation.
+     * @param data the object to extract the operands from.
+     * @return Boolean.TRUE or Boolean.FALSE, or null if either operand can't be found.
+     */
+    protected final Boolean equalOperands(final QmfData data)
+    {
+        Object l = _operands[0].resolve(data);
+        Object r = _operands[1].resolve(data);
+        if (l == null || r == null)
         {
-            String key = _keys[i];
-            if (key != null)
-            {
-                String value = null;
+            return null;
+        }
 
-                if (data.hasValue(key))
-                { // If there's a property of the data object named key look it up as a String
-                    value = data.getStringValue(key);
-                }
-                else
-                { // If there's no property of the data object named key look up its Described/Managed metadata
-                    if (data instanceof QmfManaged)
-                    {
-                        QmfManaged managedData = (QmfManaged)data;
-                        if (key.equals("_schema_id"))
-                        {
-                            value = managedData.getSchemaClassId().toString();
-                        }
-                        else if (key.equals("_object_id"))
-                        {
-                            value = managedData.getObjectId().toString();
-                        }
-                        else if (managedData.getSchemaClassId().hasValue(key))
-                        { // If it's not _schema_id or _object_id check the SchemaClassId properties e.g. 
-                          // _package_name, _class_name, _type or _hash
-                            value = managedData.getSchemaClassId().getStringValue(key);
-                        }
-                    }
+        if (isIntegral(l) && isIntegral(r))
+        {
+            return ((Number)l).longValue() == ((Number)r).longValue();
+        }
+        else if (l instanceof String && r instanceof String)
+        {
+            return l.equals(r);
+        }
+        else
+        {
+            return QmfData.getString(l).equals(QmfData.getString(r));
+        }
+    }
 
-                    if (value == null)
-                    { // If a value still can't be found for the key check if it's available in the mapEncoded form
-                        Map m = data.mapEncode();
-                        if (m.containsKey(key))
-                        {
-                            value = QmfData.getString(m.get(key));
-                        }
-                    }
-                }
+    /**
+     * Compare the two operands for ordering. If both operands are numeric they are compared numerically, exactly
+     * as longs if they are both integers and as doubles otherwise. If either isn't numeric the String forms of the
+     * operands are compared lexicographically.
+     * @param data the object to extract the operands from.
+     * @return a negative integer, zero, or a positive integer as the first operand is less than, equal to, or
+     * greater than the second, or UNORDERED if either operand can't be found or is NaN.
+     */
+    protected final int compareOperands(final QmfData data)
+    {
+        Object l = _operands[0].resolve(data);
+        Object r = _operands[1].resolve(data);
+        if (l == null || r == null)
+        {
+            return UNORDERED;
+        }
 
-                _operands[i] = value;
-            }
-//System.out.println("key: " + key + ", operand = " + _operands[i]);
+        Number ln = _operands[0].toNumber(l);
+        Number rn = ln == null ? null : _operands[1].toNumber(r);
+        if (rn == null)
+        { // If either operand isn't numeric do a lexicographic comparison
+            return QmfData.getString(l).compareTo(QmfData.getString(r));
         }
+
+        if (isIntegral(ln) && isIntegral(rn))
+        {
+            long lv = ln.longValue();
+            long rv = rn.longValue();
+            return lv < rv ? -1 : (lv > rv ? 1 : 0);
+        }
+
+        double lv = ln.doubleValue();
+        double rv = rn.doubleValue();
+        if (lv < rv)
+        {
+            return -1;
+        }
+        else if (lv > rv)
+        {
+            return 1;
+        }
+        else if (lv == rv)
+        {
+            return 0;
+        }
+        return UNORDERED; // One of them is NaN
     }
 
     /**
@@ -218,4 +502,3 @@ public abstract class BooleanExpression extends Expression
      */
     public abstract boolean evaluate(final QmfData data);
 }
-
@@ -58,32 +58,16 @@ public final class BooleanGreaterThan extends BooleanExpression
 
     /**
      * Evaluate "greater than" expression against a QmfData instance.
-     * N.B. to avoid complexities with types this class treats operands as Strings performing an appropriate evaluation
-     * of the String that makes sense for a given expression e.g. parsing as a double for {@literal >, >=, <, <= }
+     * N.B. numeric operands are compared numerically, otherwise the String forms of the operands are compared
+     * lexicographically.
      *
      * @param data the object to evaluate the expression against
      * @return true if query matches the QmfData instance, else false.
      */    
     public boolean evaluate(QmfData data)
     {
-        populateOperands(data);
-
-        if (_operands[0] == null || _operands[1] == null)
-        {
-            return false;
-        }
-
-        try
-        {
-            double l = Double.parseDouble(_operands[0]);
-            double r = Double.parseDouble(_operands[1]);
-            return l > r;
-        }
-        catch (NumberFormatException nfe)
-        {
-            // If converting to double fails try a lexicographic comparison
-            return _operands[0].compareTo(_operands[1]) > 0;
-        }
+        int comparison = compareOperands(data);
+        return comparison != UNORDERED && comparison > 0;
     }
 }
 
@@ -58,22 +58,15 @@ public final class BooleanNotEquals extends BooleanExpression
 
     /**
      * Evaluate "not equal to" expression against a QmfData instance.
-     * N.B. to avoid complexities with types this class treats operands as Strings performing an appropriate evaluation
-     * of the String that makes sense for a given expression e.g. parsing as a double for {@literal >, >=, <, <= }
+     * N.B. operands are considered equal if their String forms are equal.
      *
      * @param data the object to evaluate the expression against
      * @return true if query matches the QmfData instance, else false.
      */    
     public boolean evaluate(final QmfData data)
     {
-        populateOperands(data);
-
-        if (_operands[0] == null || _operands[1] == null)
-        {
-            return false;
-        }
-
-        return !_operands[0].equals(_operands[1]);
+        Boolean equal = equalOperands(data);
+        return equal != null && !equal;
     }
 }
 
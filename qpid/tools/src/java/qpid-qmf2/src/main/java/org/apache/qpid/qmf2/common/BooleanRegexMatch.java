@@ -61,9 +61,15 @@ public final class BooleanRegexMatch extends BooleanExpression
     {
         super(2, expr);
 
+        String regex = getLiteral(1);
+        if (regex == null)
+        {
+            throw new QmfException("The regular expression of re_match must be a quoted String");
+        }
+
         try
         {
-            _pattern = Pattern.compile(_operands[1]);
+            _pattern = Pattern.compile(regex);
         }
         catch (PatternSyntaxException pse)
         {
@@ -73,22 +79,21 @@ public final class BooleanRegexMatch extends BooleanExpression
     
     /**
      * Evaluate "regex match" expression against a QmfData instance.
-     * N.B. to avoid complexities with types this class treats operands as Strings performing an appropriate evaluation
-     * of the String that makes sense for a given expression e.g. parsing as a double for {@literal >, >=, <, <= }
+     * N.B. the regular expression is matched against the String form of the first operand.
      *
      * @param data the object to evaluate the expression against
      * @return true if query matches the QmfData instance, else false.
      */
     public boolean evaluate(final QmfData data)
     {
-        populateOperands(data);
-
-        if (_operands[0] == null || _operands[1] == null || _pattern == null)
+        Object value = getOperand(0, data);
+        if (value == null || _pattern == null)
         {
             return false;
         }
 
-        Matcher matcher = _pattern.matcher(_operands[0]);
+        // Matchers aren't thread safe but Patterns are, so a new Matcher is needed for each evaluation.
+        Matcher matcher = _pattern.matcher(QmfData.getString(value));
         return matcher.find();
     }
 }
@@ -0,0 +1,391 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.common;
+
+// Misc Imports
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A CompactValueMap is the array-backed Map used to hold the properties of a QmfData whose class has a
+ * SchemaObjectClass, in place of the HashMap used by other QmfData.
+ * <p>
+ * Each property declared by the schema is stored at its ordinal in the shared PropertyLayout, so each object only
+ * holds an array slot per property rather than a hash table entry, and the property names are held once by the
+ * layout. Values of TYPE_INT and TYPE_FLOAT properties that are Long, Integer, Double or Float are stored unboxed
+ * in a primitive column, with a per-slot state recording which boxed type to return, so that getting a value
+ * returns an instance of the same class that was put. Properties that aren't declared by the schema are held in an
+ * overflow HashMap, which is only created when one is first put.
+ * <p>
+ * Iteration returns the declared properties in schema order followed by any overflow properties. Like HashMap a
+ * CompactValueMap isn't synchronized, however put() of a key that is already present only writes to the arrays.
+ */
+final class CompactValueMap extends AbstractMap<String, Object>
+{
+    private static final byte ABSENT = 0;
+    private static final byte OBJECT = 1;
+    private static final byte LONG = 2;
+    private static final byte INTEGER = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+
+    private final PropertyLayout _layout;
+    private final Object[] _objects;
+    private final long[] _primitives;
+    private final byte[] _states;
+    private Map<String, Object> _overflow = null;
+    private int _size = 0;
+    private Set<Map.Entry<String, Object>> _entrySet = null;
+
+    /**
+     * Construct an empty CompactValueMap.
+     *
+     * @param layout the PropertyLayout of the SchemaObjectClass of the object whose properties are being stored.
+     */
+    CompactValueMap(final PropertyLayout layout)
+    {
+        _layout = layout;
+        _objects = new Object[layout.size()];
+        _primitives = layout.getColumnCount() == 0 ? null : new long[layout.getColumnCount()];
+        _states = new byte[layout.size()];
+    }
+
+    /**
+     * Return the PropertyLayout used by this CompactValueMap.
+     * @return the PropertyLayout used by this CompactValueMap.
+     */
+    PropertyLayout getLayout()
+    {
+        return _layout;
+    }
+
+    /**
+     * Return the value stored at the given ordinal, boxing it if it is held in a primitive column.
+     */
+    private Object get(final int ordinal)
+    {
+        switch (_states[ordinal])
+        {
+            case LONG:
+                return Long.valueOf(_primitives[_layout.getColumn(ordinal)]);
+            case INTEGER:
+                return Integer.valueOf((int)_primitives[_layout.getColumn(ordinal)]);
+            case DOUBLE:
+                return Double.valueOf(Double.longBitsToDouble(_primitives[_layout.getColumn(ordinal)]));
+            case FLOAT:
+                return Float.valueOf((float)Double.longBitsToDouble(_primitives[_layout.getColumn(ordinal)]));
+            default:
+                return _objects[ordinal];
+        }
+    }
+
+    /**
+     * Store the value at the given ordinal, in its primitive column if it has one and the value is a suitable Number.
+     */
+    private Object put(final int ordinal, final Object value)
+    {
+        Object previous = get(ordinal);
+        if (_states[ordinal] == ABSENT)
+        {
+            _size++;
+        }
+
+        int column = _layout.getColumn(ordinal);
+        byte state = OBJECT;
+        if (column >= 0 && value != null)
+        {
+            if (_layout.getType(ordinal) == QmfType.TYPE_INT)
+            {
+                if (value instanceof Long)
+                {
+                    _primitives[column] = (Long)value;
+                    state = LONG;
+                }
+                else if (value instanceof Integer)
+                {
+                    _primitives[column] = (Integer)value;
+                    state = INTEGER;
+                }
+            }
+            else
+            {
+                if (value instanceof Double)
+                {
+                    _primitives[column] = Double.doubleToRawLongBits((Double)value);
+                    state = DOUBLE;
+                }
+                else if (value instanceof Float)
+                {
+                    _primitives[column] = Double.doubleToRawLongBits((Float)value);
+                    state = FLOAT;
+                }
+            }
+        }
+
+        _objects[ordinal] = (state == OBJECT) ? value : null;
+        _states[ordinal] = state;
+        return previous;
+    }
+
+    /**
+     * Remove the value stored at the given ordinal.
+     */
+    private Object remove(final int ordinal)
+    {
+        Object previous = get(ordinal);
+        if (_states[ordinal] != ABSENT)
+        {
+            _objects[ordinal] = null;
+            _states[ordinal] = ABSENT;
+            _size--;
+        }
+        return previous;
+    }
+
+    @Override
+    public int size()
+    {
+        return _overflow == null ? _size : _size + _overflow.size();
+    }
+
+    @Override
+    public boolean containsKey(final Object key)
+    {
+        int ordinal = _layout.getOrdinal(key);
+        if (ordinal >= 0)
+        {
+            return _states[ordinal] != ABSENT;
+        }
+        return _overflow != null && _overflow.containsKey(key);
+    }
+
+    @Override
+    public Object get(final Object key)
+    {
+        int ordinal = _layout.getOrdinal(key);
+        if (ordinal >= 0)
+        {
+            return get(ordinal);
+        }
+        return _overflow == null ? null : _overflow.get(key);
+    }
+
+    @Override
+    public Object put(final String key, final Object value)
+    {
+        int ordinal = _layout.getOrdinal(key);
+        if (ordinal >= 0)
+        {
+            return put(ordinal, value);
+        }
+        if (_overflow == null)
+        {
+            _overflow = new HashMap<String, Object>();
+        }
+        return _overflow.put(key, value);
+    }
+
+    @Override
+    public Object remove(final Object key)
+    {
+        int ordinal = _layout.getOrdinal(key);
+        if (ordinal >= 0)
+        {
+            return remove(ordinal);
+        }
+        return _overflow == null ? null : _overflow.remove(key);
+    }
+
+    @Override
+    public void clear()
+    {
+        for (int i = 0; i < _states.length; i++)
+        {
+            _objects[i] = null;
+            _states[i] = ABSENT;
+        }
+        _size = 0;
+        _overflow = null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet()
+    {
+        if (_entrySet == null)
+        {
+            _entrySet = new AbstractSet<Map.Entry<String, Object>>()
+            {
+                @Override
+                public Iterator<Map.Entry<String, Object>> iterator()
+                {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size()
+                {
+                    return CompactValueMap.this.size();
+                }
+
+                @Override
+                public void clear()
+                {
+                    CompactValueMap.this.clear();
+                }
+            };
+        }
+        return _entrySet;
+    }
+
+    /**
+     * A Map.Entry for a declared property, which reads and writes through to the CompactValueMap.
+     */
+    private final class Entry implements Map.Entry<String, Object>
+    {
+        private final int _ordinal;
+
+        Entry(final int ordinal)
+        {
+            _ordinal = ordinal;
+        }
+
+        public String getKey()
+        {
+            return _layout.getName(_ordinal);
+        }
+
+        public Object getValue()
+        {
+            return get(_ordinal);
+        }
+
+        public Object setValue(final Object value)
+        {
+            return put(_ordinal, value);
+        }
+
+        @Override
+        public boolean equals(final Object o)
+        {
+            if (!(o instanceof Map.Entry))
+            {
+                return false;
+            }
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>)o;
+            Object value = getValue();
+            return getKey().equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            Object value = getValue();
+            return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString()
+        {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+    /**
+     * Iterates the declared properties in schema order then the overflow properties.
+     */
+    private final class EntryIterator implements Iterator<Map.Entry<String, Object>>
+    {
+        private static final int OVERFLOW = -2;
+
+        private int _next = 0;
+        private int _last = -1;
+        private Iterator<Map.Entry<String, Object>> _overflowIterator = null;
+
+        EntryIterator()
+        {
+            advance();
+        }
+
+        private void advance()
+        {
+            while (_next < _states.length && _states[_next] == ABSENT)
+            {
+                _next++;
+            }
+        }
+
+        public boolean hasNext()
+        {
+            if (_next < _states.length)
+            {
+                return true;
+            }
+            if (_overflowIterator == null)
+            {
+                if (_overflow == null)
+                {
+                    return false;
+                }
+                _overflowIterator = _overflow.entrySet().iterator();
+            }
+            return _overflowIterator.hasNext();
+        }
+
+        public Map.Entry<String, Object> next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+            if (_overflowIterator != null)
+            {
+                _last = OVERFLOW;
+                return _overflowIterator.next();
+            }
+            _last = _next++;
+            advance();
+            return new Entry(_last);
+        }
+
+        public void remove()
+        {
+            if (_last == OVERFLOW)
+            {
+                _overflowIterator.remove();
+                _last = -1;
+            }
+            else if (_last >= 0)
+            {
+                CompactValueMap.this.remove(_last);
+                _last = -1;
+            }
+            else
+            {
+                throw new IllegalStateException();
+            }
+        }
+    }
+}
@@ -60,5 +60,13 @@ public abstract class LogicalExpression extends Expression
             }
         }
     }
-}
 
+    /**
+     * Return the sub-expressions of this Logical Expression.
+     * @return the sub-expressions of this Logical Expression.
+     */
+    public final List<Expression> getSubExpressions()
+    {
+        return _subExpressions;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.common;
+
+// Misc Imports
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A PropertyLayout maps the property names declared by a SchemaObjectClass to the ordinals used to index the arrays
+ * of a CompactValueMap. It is created once per SchemaObjectClass and shared by every object of that class, so the
+ * property names are held (interned) once in the layout rather than once per object.
+ * <p>
+ * Properties declared as TYPE_INT or TYPE_FLOAT are also given a primitive column, so that their values can be held
+ * as a long rather than as a boxed Number.
+ * <p>
+ * A PropertyLayout is immutable, if properties are added to the SchemaObjectClass after it has been created then
+ * a new layout is created for objects constructed afterwards, and the values of any properties missing from an
+ * existing object's layout are simply held in that object's overflow Map.
+ */
+final class PropertyLayout
+{
+    private final Map<String, Integer> _ordinals = new HashMap<String, Integer>();
+    private final String[] _names;
+    private final QmfType[] _types;
+    private final int[] _columns;
+    private final int _columnCount;
+
+    /**
+     * Construct a PropertyLayout from the properties declared by a SchemaObjectClass.
+     *
+     * @param properties the properties declared by the SchemaObjectClass.
+     */
+    PropertyLayout(final List<SchemaProperty> properties)
+    {
+        int size = properties.size();
+        String[] names = new String[size];
+        QmfType[] types = new QmfType[size];
+        int[] columns = new int[size];
+        int ordinal = 0;
+        int columnCount = 0;
+        for (SchemaProperty property : properties)
+        {
+            String name = property.getName();
+            if (name == null || _ordinals.containsKey(name))
+            {
+                continue;
+            }
+
+            name = name.intern();
+            QmfType type = property.getType();
+            names[ordinal] = name;
+            types[ordinal] = type;
+            columns[ordinal] = (type == QmfType.TYPE_INT || type == QmfType.TYPE_FLOAT) ? columnCount++ : -1;
+            _ordinals.put(name, ordinal++);
+        }
+
+        _names = ordinal == size ? names : Arrays.copyOf(names, ordinal);
+        _types = ordinal == size ? types : Arrays.copyOf(types, ordinal);
+        _columns = ordinal == size ? columns : Arrays.copyOf(columns, ordinal);
+        _columnCount = columnCount;
+    }
+
+    /**
+     * Return the number of properties in the layout.
+     * @return the number of properties in the layout.
+     */
+    int size()
+    {
+        return _names.length;
+    }
+
+    /**
+     * Return the number of primitive columns in the layout.
+     * @return the number of primitive columns in the layout.
+     */
+    int getColumnCount()
+    {
+        return _columnCount;
+    }
+
+    /**
+     * Return the ordinal of the named property.
+     * @param name the name of the property.
+     * @return the ordinal of the named property, or -1 if it isn't declared by the schema.
+     */
+    int getOrdinal(final Object name)
+    {
+        Integer ordinal = _ordinals.get(name);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /**
+     * Return the interned name of the property with the given ordinal.
+     * @param ordinal the ordinal of the property.
+     * @return the interned name of the property.
+     */
+    String getName(final int ordinal)
+    {
+        return _names[ordinal];
+    }
+
+    /**
+     * Return the declared type of the property with the given ordinal.
+     * @param ordinal the ordinal of the property.
+     * @return the declared type of the property.
+     */
+    QmfType getType(final int ordinal)
+    {
+        return _types[ordinal];
+    }
+
+    /**
+     * Return the primitive column of the property with the given ordinal.
+     * @param ordinal the ordinal of the property.
+     * @return the primitive column of the property, or -1 if it isn't a TYPE_INT or TYPE_FLOAT property.
+     */
+    int getColumn(final int ordinal)
+    {
+        return _columns[ordinal];
+    }
+}
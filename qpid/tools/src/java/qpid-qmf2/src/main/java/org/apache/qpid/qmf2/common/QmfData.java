@@ -83,6 +83,49 @@ public class QmfData
         }   
     }
 
+    /**
+     * Switch the underlying Map to the compact, array-backed storage described by the given SchemaObjectClass, in
+     * which each property declared by the schema is held in an array slot indexed by its ordinal in the schema, with
+     * the values of TYPE_INT and TYPE_FLOAT properties held unboxed. Any existing properties are copied across. The
+     * underlying Map is left unchanged if the schema doesn't declare any properties.
+     * <p>
+     * This is used by QmfAgentData, whose objects are often very numerous, to reduce their heap footprint and
+     * isn't part of the QMF2 API.
+     *
+     * @param schema the SchemaObjectClass describing the properties of this QmfData.
+     */
+    protected final void setSchemaLayout(final SchemaObjectClass schema)
+    {
+        PropertyLayout layout = schema.getLayout();
+        if (layout.size() == 0)
+        { // There's nothing to gain if the schema doesn't declare any properties.
+            return;
+        }
+
+        CompactValueMap values = new CompactValueMap(layout);
+        values.putAll(_values);
+        _values = values;
+    }
+
+    /**
+     * Return the type that the SchemaObjectClass passed to setSchemaLayout() declares for the named property.
+     * <p>
+     * This method isn't part of the QMF2 API.
+     *
+     * @param name the name of the property.
+     * @return the declared type of the property, or null if it isn't declared or setSchemaLayout() hasn't been called.
+     */
+    protected final QmfType getSchemaType(final String name)
+    {
+        if (_values instanceof CompactValueMap)
+        {
+            PropertyLayout layout = ((CompactValueMap)_values).getLayout();
+            int ordinal = layout.getOrdinal(name);
+            return ordinal < 0 ? null : layout.getType(ordinal);
+        }
+        return null;
+    }
+
     /**
      * Get the state of the _subtypes Map, (generally used when serialising method request/response arguments.
      *
@@ -257,7 +300,7 @@ public class QmfData
      * @return value of property as an Object.
      */
     @SuppressWarnings("unchecked")
-    public final <T> T getValue(final String name)
+    public <T> T getValue(final String name)
     {
         return (T)_values.get(name);
     }
@@ -268,7 +311,7 @@ public class QmfData
      * @param name the name of the property to set.
      * @param value the value of the property to set.
      */
-    public final void setValue(final String name, final Object value)
+    public void setValue(final String name, final Object value)
     {
         _values.put(name, value);
     }
@@ -29,13 +29,42 @@ public class QmfException extends Exception
 {
     private static final long serialVersionUID = 7526471155622776147L;
 
+    private final long _retryAfter;
+
     /**
      * Create a QmfException with a given message String.
      * @param message the message String.
      */
     public QmfException(String message)
+    {
+        this(message, 0);
+    }
+
+    /**
+     * Create a QmfException with a given message String for a request that may be retried after a delay.
+     * <p>
+     * This constructor isn't part of the QMF2 API. It's used when an Agent rejects a request because the Console
+     * has exceeded the Agent's request rate limits.
+     *
+     * @param message the message String.
+     * @param retryAfter the time in milliseconds to wait before retrying the request, zero if it shouldn't be retried.
+     */
+    public QmfException(String message, long retryAfter)
     {
         super(message);
+        _retryAfter = retryAfter;
+    }
+
+    /**
+     * Return the time in milliseconds to wait before retrying the request that failed, zero if it shouldn't be retried.
+     * <p>
+     * This method isn't part of the QMF2 API.
+     *
+     * @return the time in milliseconds to wait before retrying the request that failed.
+     */
+    public long getRetryAfter()
+    {
+        return _retryAfter;
     }
 }
 
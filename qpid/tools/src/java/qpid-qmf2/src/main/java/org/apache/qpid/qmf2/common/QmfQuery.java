@@ -22,10 +22,13 @@ package org.apache.qpid.qmf2.common;
 
 // Misc Imports
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 // Reuse this class as it provides a handy mechanism to parse an predicate String into a Map
 import org.apache.qpid.messaging.util.AddressParser;
@@ -84,6 +87,20 @@ import org.apache.qpid.messaging.util.AddressParser;
  * <p>
  * The Expression structure is illustrated below in the context of its relationship with QmfQuery. 
  * <img alt="" src="doc-files/QmfQuery.png">
+ * <p>
+ * <b>Projection</b>
+ * <p>
+ * As an extension to the QMF2 API an "OBJECT" QmfQuery may also specify the names of the properties that the Console
+ * is actually interested in by calling setSelect(), which is sent to the Agent as a "_select" list. An Agent that
+ * supports "_select" only encodes and returns the selected properties of each matching object (together with its
+ * _object_id, _schema_id and timestamps), which can hugely reduce the size of the responses when, for example, a
+ * dashboard only wants the name, msgDepth and consumerCount of thousands of queues:
+ * <pre>
+ * QmfQuery query = new QmfQuery(QmfQueryTarget.OBJECT, new SchemaClassId("queue"));
+ * query.setSelect(Arrays.asList("name", "msgDepth", "consumerCount"));
+ * List&lt;QmfConsoleData&gt; queues = console.getObjects(query);
+ * </pre>
+ * Agents that don't support "_select" simply ignore it and return complete objects.
  *
  *
  * @author Fraser Adams
@@ -100,6 +117,8 @@ public final class QmfQuery extends QmfData
     private ObjectId       _objectId;
     private List           _predicate;
     private Expression     _expression;
+    private List<String>   _select;
+    private Set<String>    _selectSet;
 
     /**
      * This Constructor is only used to construct the ID and PREDICATE objects
@@ -152,22 +171,74 @@ public final class QmfQuery extends QmfData
      * @param predicateString the predicate to evaluate against
      */
     public QmfQuery(final QmfQueryTarget target, final String predicateString) throws QmfException
+    {
+        this(target, null, parsePredicate(predicateString));
+    }
+
+    /**
+     * Construct a PREDICATE QmfQuery from a QmfQueryTarget, SchemaClassId and predicate String. Only objects of the
+     * class identified by the SchemaClassId that also match the predicate satisfy the QmfQuery.
+     * <p>
+     * This constructor is an extension to the QMF2 API, it allows queries such as "queues with a msgDepth greater
+     * than 1000" to be expressed without needing to add a ['eq', '_class_name', ['quote', 'queue']] term to the
+     * predicate, which also allows an Agent to use the SchemaClassId to narrow down the objects it evaluates.
+     *
+     * @param target the query target
+     * @param classId the SchemaClassId to evaluate against, may be null
+     * @param predicateString the predicate to evaluate against
+     */
+    public QmfQuery(final QmfQueryTarget target, final SchemaClassId classId, final String predicateString)
+        throws QmfException
+    {
+        this(target, classId, parsePredicate(predicateString));
+    }
+
+    /**
+     * Construct a PREDICATE QmfQuery from a QmfQueryTarget, SchemaClassId and a predicate that has already been
+     * parsed into its List form, which is useful where the predicate is built programmatically, as literal values
+     * don't then need to be escaped.
+     * <p>
+     * This constructor is an extension to the QMF2 API.
+     *
+     * @param target the query target
+     * @param classId the SchemaClassId to evaluate against, may be null
+     * @param predicate the predicate to evaluate against e.g. Arrays.asList("gt", "msgDepth", 1000)
+     */
+    public QmfQuery(final QmfQueryTarget target, final SchemaClassId classId, final List<?> predicate)
+        throws QmfException
     {
         _target = target;
+        _predicate = predicate;
+        _expression = Expression.createExpression(_predicate);
+        setValue("_what", _target.toString());
 
+        if (classId != null)
+        {
+            _classId = classId;
+            _packageName = _classId.getPackageName();
+            _className = _classId.getClassName();
+            setValue("_schema_id", _classId.mapEncode());
+        }
+
+        setValue("_where", _predicate);
+    }
+
+    /**
+     * Parse a predicate String into its List form.
+     * @param predicateString the predicate String e.g. "['gt', 'msgDepth', 1000]"
+     * @return the List form of the predicate.
+     */
+    private static List<?> parsePredicate(final String predicateString) throws QmfException
+    {
         if (predicateString.charAt(0) == '[')
         {
             Map predicateMap = new AddressParser("{'_where': " + predicateString + "}").map();
-            _predicate = (List)predicateMap.get("_where");
-            _expression = Expression.createExpression(_predicate);
+            return (List<?>)predicateMap.get("_where");
         }
         else
         {
             throw new QmfException("Invalid predicate format");
         }
-
-        setValue("_what", _target.toString());
-        setValue("_where", _predicate);
     }
 
     /**
@@ -197,6 +268,16 @@ public final class QmfQuery extends QmfData
             _predicate = (List)getValue("_where");
             _expression = Expression.createExpression(_predicate);
         }
+
+        if (hasValue("_select"))
+        {
+            List<String> select = new ArrayList<String>();
+            for (Object name : (List)getValue("_select"))
+            {
+                select.add(QmfData.getString(name));
+            }
+            setSelect(select);
+        }
     }
 
     /**
@@ -246,6 +327,15 @@ public final class QmfQuery extends QmfData
         return _predicate;
     }
 
+    /**
+     * Return the Expression created from the predicate if selector type is QmfQuery.PREDICATE
+     * @return the Expression created from the predicate if selector type is QmfQuery.PREDICATE
+     */
+    public Expression getExpression()
+    {
+        return _expression;
+    }
+
     /**
      * Return the SchemaClassId if selector type is QmfQuery.ID
      * @return the SchemaClassId if selector type is QmfQuery.ID
@@ -264,47 +354,129 @@ public final class QmfQuery extends QmfData
         return _objectId;
     }
 
+    /**
+     * Set the names of the properties that an Agent should return for each object matching this QmfQuery. Objects
+     * are always returned with their _object_id, _schema_id and timestamps, only the properties are projected.
+     * <p>
+     * This method is an extension to the QMF2 API, Agents that don't support it return complete objects.
+     *
+     * @param properties the names of the properties to return, or null to return every property.
+     */
+    public void setSelect(final List<String> properties)
+    {
+        if (properties == null)
+        {
+            _select = null;
+            _selectSet = null;
+            _values.remove("_select");
+        }
+        else
+        {
+            _select = Collections.unmodifiableList(new ArrayList<String>(properties));
+            _selectSet = new HashSet<String>(_select);
+            setValue("_select", _select);
+        }
+    }
+
+    /**
+     * Return the names of the properties that an Agent should return for each object matching this QmfQuery.
+     * <p>
+     * This method is an extension to the QMF2 API.
+     *
+     * @return the names of the properties to return, or null if every property should be returned.
+     */
+    public List<String> getSelect()
+    {
+        return _select;
+    }
+
+    /**
+     * Return true if the named property is to be returned for objects matching this QmfQuery, which it is if the
+     * QmfQuery has no select list or the property is in it. This allows Agents that compute properties on demand to
+     * skip those that haven't been selected.
+     * <p>
+     * This method is an extension to the QMF2 API.
+     *
+     * @param name the name of the property.
+     * @return true if the named property is to be returned for objects matching this QmfQuery.
+     */
+    public boolean isSelected(final String name)
+    {
+        return _selectSet == null || _selectSet.contains(name);
+    }
+
+    /**
+     * Project a mapEncoded QmfData or QmfAgentData so that its "_values" (and "_subtypes") only contain the
+     * properties selected by this QmfQuery. Everything else in the encoded Map, such as the _object_id, is retained.
+     * The encoded Map itself is not modified.
+     * <p>
+     * This method is an extension to the QMF2 API.
+     *
+     * @param encoded the mapEncoded object.
+     * @return the projected Map, or the encoded Map itself if this QmfQuery has no select list.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> applySelect(final Map<String, Object> encoded)
+    {
+        if (_selectSet == null)
+        {
+            return encoded;
+        }
+
+        Map<String, Object> values = (Map<String, Object>)encoded.get("_values");
+        if (values == null)
+        { // A plain QmfData is encoded as just its properties.
+            return project(encoded);
+        }
+
+        Map<String, Object> projected = new HashMap<String, Object>(encoded);
+        projected.put("_values", project(values));
+        Map<String, Object> subtypes = (Map<String, Object>)encoded.get("_subtypes");
+        if (subtypes != null)
+        {
+            projected.put("_subtypes", project(subtypes));
+        }
+        return projected;
+    }
+
+    /**
+     * Return a copy of the supplied Map containing only the entries whose keys are selected by this QmfQuery.
+     * @param m the Map to project.
+     * @return a copy of the Map containing only the selected entries.
+     */
+    private Map<String, Object> project(final Map<String, Object> m)
+    {
+        Map<String, Object> projected = new HashMap<String, Object>(_selectSet.size()*2);
+        for (String name : _select)
+        {
+            Object value = m.get(name);
+            if (value != null)
+            {
+                projected.put(name, value);
+            }
+        }
+        return projected;
+    }
+
     /**
      * Evaluate query against a QmfData instance.
+     * <p>
+     * If the QmfQuery has both an ObjectId or SchemaClassId and a predicate the QmfData instance must match both.
      * @return true if query matches the QmfData instance, else false.
      */
     public boolean evaluate(final QmfData data)
     {
         if (_predicate == null)
         {
-            if (data instanceof QmfManaged)
-            {
-                QmfManaged managedData = (QmfManaged)data;
-                // Evaluate an ID query on Managed Data
-                if (_objectId != null && _objectId.equals(managedData.getObjectId()))
-                {
-                    return true;
-                }
-                else if (_classId != null)
-                {
-                    SchemaClassId dataClassId = managedData.getSchemaClassId();
-                    String dataClassName = dataClassId.getClassName();
-                    String dataPackageName = dataClassId.getPackageName();
-
-                    // Wildcard the package name if it hasn't been specified when checking class name
-                    if (_className.equals(dataClassName) &&
-                        (_packageName.length() == 0 || _packageName.equals(dataPackageName)))
-                    {
-                        return true;
-                    }
-
-                    // Wildcard the class name if it hasn't been specified when checking package name
-                    if (_packageName.equals(dataPackageName) &&
-                        (_className.length() == 0 || _className.equals(dataClassName)))
-                    {
-                        return true;
-                    }
-                }
-            }
-            return false;
+            return evaluateId(data);
         }
         else
         {
+            if ((_objectId != null || _classId != null) && !evaluateId(data))
+            {
+                return false;
+            }
+
             // Evaluate a PREDICATE query by evaluating against the expression created from the predicate
             if (_predicate.size() == 0)
             {
@@ -315,6 +487,44 @@ public final class QmfQuery extends QmfData
         }
     }
 
+    /**
+     * Evaluate the ObjectId or SchemaClassId of the query against a QmfData instance.
+     * @return true if the ObjectId or SchemaClassId of the query matches the QmfData instance, else false.
+     */
+    private boolean evaluateId(final QmfData data)
+    {
+        if (data instanceof QmfManaged)
+        {
+            QmfManaged managedData = (QmfManaged)data;
+            // Evaluate an ID query on Managed Data
+            if (_objectId != null && _objectId.equals(managedData.getObjectId()))
+            {
+                return true;
+            }
+            else if (_classId != null)
+            {
+                SchemaClassId dataClassId = managedData.getSchemaClassId();
+                String dataClassName = dataClassId.getClassName();
+                String dataPackageName = dataClassId.getPackageName();
+
+                // Wildcard the package name if it hasn't been specified when checking class name
+                if (_className.equals(dataClassName) &&
+                    (_packageName.length() == 0 || _packageName.equals(dataPackageName)))
+                {
+                    return true;
+                }
+
+                // Wildcard the class name if it hasn't been specified when checking package name
+                if (_packageName.equals(dataPackageName) &&
+                    (_className.length() == 0 || _className.equals(dataClassName)))
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * Helper/debug method to list the QMF Object properties and their type.
      */
@@ -338,6 +548,10 @@ public final class QmfQuery extends QmfData
             System.out.println("selector: QmfQuery.ID");
             System.out.println(_objectId);
         }
+        if (_select != null)
+        {
+            System.out.println("select: " + _select);
+        }
     }
 }
 
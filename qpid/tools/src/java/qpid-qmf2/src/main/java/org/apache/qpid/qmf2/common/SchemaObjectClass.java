@@ -52,6 +52,12 @@ public final class SchemaObjectClass extends SchemaClass
     private List<SchemaProperty> _properties = new ArrayList<SchemaProperty>();
     private String[]             _idNames = {};
 
+    /**
+     * The PropertyLayout shared by the QmfAgentData objects of this class, created when first needed and discarded
+     * when a property is added.
+     */
+    private volatile PropertyLayout _layout = null;
+
     /**
      * The main constructor, taking a java.util.Map as a parameter.
      *
@@ -250,6 +256,7 @@ public final class SchemaObjectClass extends SchemaClass
     {
         value.setValue("_name", name);
         _properties.add(value);
+        _layout = null;
     }
 
     /**
@@ -260,6 +267,23 @@ public final class SchemaObjectClass extends SchemaClass
     public void addProperty(final SchemaProperty value)
     {
         _properties.add(value);
+        _layout = null;
+    }
+
+    /**
+     * Return the PropertyLayout used to store the properties of objects of this class in a CompactValueMap.
+     *
+     * @return the PropertyLayout for the properties currently declared by this SchemaObjectClass.
+     */
+    PropertyLayout getLayout()
+    {
+        PropertyLayout layout = _layout;
+        if (layout == null)
+        {
+            layout = new PropertyLayout(_properties);
+            _layout = layout;
+        }
+        return layout;
     }
 
     /**
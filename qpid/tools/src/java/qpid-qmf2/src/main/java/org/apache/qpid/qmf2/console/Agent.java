@@ -217,6 +217,26 @@ public final class Agent extends QmfData
         }
     }
 
+    /**
+     * Request that the Agent updates the value of this object's contents, returning a QmfFuture that completes with
+     * the refreshed object.
+     *
+     * @param objectId the ObjectId being queried for..
+     * @param timeout the maximum time to wait for a response, overrides default replyTimeout.
+     * @return a QmfFuture for the refreshed object.
+     */    
+    public QmfFuture<QmfConsoleData> refreshAsync(final ObjectId objectId, final int timeout) throws QmfException
+    {
+        if (isActive())
+        {
+            return _proxy.refreshAsync(this, objectId, timeout);
+        }
+        else
+        {
+            throw new QmfException("Agent.refreshAsync() called from deactivated Agent");
+        }
+    }
+
     /**
      * Helper method to create a Map containing a QMF method request.
      *
@@ -290,6 +310,29 @@ public final class Agent extends QmfData
         }
     }
 
+    /**
+     * Sends a method request to the Agent, returning a QmfFuture for the MethodResult. Delegates to the AgentProxy
+     * to actually send the method as it's the AgentProxy that knows about connections, sessions and messages.
+     *
+     * @param objectId the objectId of the remote object.
+     * @param name the remote method name.
+     * @param inArgs the formal parameters of the remote method name.
+     * @param timeout the maximum time to wait for a response, overrides default replyTimeout.
+     * @return a QmfFuture for the MethodResult.
+     */
+    protected QmfFuture<MethodResult> invokeMethodAsync(final ObjectId objectId, final String name,
+                                                        final QmfData inArgs, final int timeout) throws QmfException
+    {
+        if (isActive())
+        {
+            return _proxy.invokeMethodAsync(this, createRequest(objectId, name, inArgs), timeout);
+        }
+        else
+        {
+            throw new QmfException("Agent.invokeMethodAsync() called from deactivated Agent");
+        }
+    }
+
     /**
      * Sends a method request to the Agent. Delegates to the AgentProxy to actually send the method as it's the
      * AgentProxy that knows about connections, sessions and messages.
@@ -330,6 +373,34 @@ public final class Agent extends QmfData
         invokeMethod(null, name, inArgs, replyHandle);
     }
 
+    /**
+     * Sends a method request to the Agent, returning a QmfFuture for the MethodResult. Delegates to the AgentProxy
+     * to actually send the method as it's the AgentProxy that knows about connections, sessions and messages.
+     *
+     * @param name the remote method name.
+     * @param inArgs the formal parameters of the remote method name.
+     * @return a QmfFuture for the MethodResult.
+     */
+    public QmfFuture<MethodResult> invokeMethodAsync(final String name, final QmfData inArgs) throws QmfException
+    {
+        return invokeMethodAsync(null, name, inArgs, -1);
+    }
+
+    /**
+     * Sends a method request to the Agent, returning a QmfFuture for the MethodResult. Delegates to the AgentProxy
+     * to actually send the method as it's the AgentProxy that knows about connections, sessions and messages.
+     *
+     * @param name the remote method name.
+     * @param inArgs the formal parameters of the remote method name.
+     * @param timeout the maximum time to wait for a response, overrides default replyTimeout.
+     * @return a QmfFuture for the MethodResult.
+     */
+    public QmfFuture<MethodResult> invokeMethodAsync(final String name, final QmfData inArgs, final int timeout)
+        throws QmfException
+    {
+        return invokeMethodAsync(null, name, inArgs, timeout);
+    }
+
     /**
      * Remove a Subscription. Delegates to the AgentProxy to actually remove the Subscription as it's the AgentProxy
      * that really knows about subscriptions.
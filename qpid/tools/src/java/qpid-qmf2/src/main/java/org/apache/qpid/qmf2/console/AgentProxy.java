@@ -75,6 +75,26 @@ public interface AgentProxy
      */
     public MethodResult invokeMethod(Agent agent, Map<String, Object> content, String replyHandle, int timeout) throws QmfException;
 
+    /**
+     * Request that the Agent update the value of an object's contents, returning a QmfFuture for the refreshed object.
+     *
+     * @param agent the Agent to get the refresh from.
+     * @param objectId the ObjectId being queried for.
+     * @param timeout the maximum time to wait for a response, overrides default replyTimeout.
+     * @return a QmfFuture for the refreshed object.
+     */
+    public QmfFuture<QmfConsoleData> refreshAsync(Agent agent, ObjectId objectId, int timeout);
+
+    /**
+     * Invoke the named method on the named Agent, returning a QmfFuture for the MethodResult.
+     *
+     * @param agent the Agent to invoke the method on.
+     * @param content an unordered set of key/value pairs comprising the method arguments.
+     * @param timeout the maximum time to wait for a response, overrides default replyTimeout.
+     * @return a QmfFuture for the MethodResult.
+     */
+    public QmfFuture<MethodResult> invokeMethodAsync(Agent agent, Map<String, Object> content, int timeout);
+
     /**
      * Remove a Subscription.
      *
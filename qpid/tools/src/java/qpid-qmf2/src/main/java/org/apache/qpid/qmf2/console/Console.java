@@ -42,12 +42,19 @@ import org.slf4j.LoggerFactory;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 // QMF2 Imports
 import org.apache.qpid.qmf2.common.AMQPMessage;
@@ -290,12 +297,28 @@ public final class Console implements MessageListener, AgentProxy
      */
     private Timer _timer;
 
+    /**
+     * This scheduler enforces the timeouts of requests made via the asynchronous QmfFuture based API, it is also
+     * used to enforce the timeouts of the blocking methods, which are implemented in terms of the asynchronous ones.
+     */
+    private ScheduledThreadPoolExecutor _scheduler;
+
+    /**
+     * Requests are tagged with a unique correlationId built from this prefix and counter. Responses are routed back
+     * to the PendingRequest registered against their correlationId by the ResponseDispatcher, which allows many
+     * requests to be in flight at the same time.
+     */
+    private final String _correlationPrefix = UUID.randomUUID().toString() + ":";
+    private final AtomicLong _correlationCounter = new AtomicLong();
+    private final Map<String, PendingRequest<?>> _pendingRequests = new ConcurrentHashMap<String, PendingRequest<?>>();
+
     /**
      * Various JMS related fields
      */
     private Connection      _connection = null;
     private Session         _asyncSession;
-    private Session         _syncSession; 
+    private Session         _syncSession;
+    private Session         _responseSession;
     private MessageConsumer _eventConsumer;
     private MessageConsumer _responder; 
     private MessageConsumer _asyncResponder;
@@ -304,9 +327,462 @@ public final class Console implements MessageListener, AgentProxy
     private Destination     _replyAddress;
     private Destination     _asyncReplyAddress;
 
+    /**
+     * The ResponseDispatcher is the MessageListener for the synchronous reply address. It delivers each response to
+     * the PendingRequest whose correlationId matches that of the response. Responses that arrive after their request
+     * has timed out no longer have a PendingRequest registered and are simply discarded, so unlike the previous
+     * approach of calling receive() on a shared consumer they can never be mistaken for the response to a later request.
+     */
+    private final class ResponseDispatcher implements MessageListener
+    {
+        public void onMessage(final Message message)
+        {
+            PendingRequest<?> request = null;
+            try
+            {
+                String correlationId = message.getJMSCorrelationID();
+                request = (correlationId == null) ? null : _pendingRequests.get(correlationId);
+                if (request == null)
+                {
+                    _log.debug("Discarding response with unknown or expired correlationId {}", correlationId);
+                }
+                else
+                {
+                    request.deliver(message);
+                }
+            }
+            catch (JMSException jmse)
+            {
+                _log.info("JMSException {} caught in ResponseDispatcher.onMessage()", jmse.getMessage());
+                if (request != null)
+                {
+                    request.fail(new QmfException(jmse.getMessage()));
+                }
+            }
+        }
+    }
+
+    /**
+     * An ObjectQuery is the PendingRequest for an "OBJECT" query. Agents may return the results of a query as a
+     * number of partial responses, these are decoded and merged as they arrive and the ObjectQuery completes when
+     * the final response arrives. If the timeout expires first the ObjectQuery completes with the data retrieved
+     * to date, which is consistent with the blocking getObjects() methods. If the Agent returns an exception, for
+     * example because the Console has exceeded the Agent's request rate limits, the ObjectQuery fails with a
+     * QmfException so that the rejection can't be mistaken for a query that matched no objects.
+     * <p>
+     * If the query has a predicate the results are filtered by it as they arrive, as an Agent that doesn't support
+     * predicates may return every object matching the query's SchemaClassId. Similarly if the query has a select
+     * list the results are projected onto it if the Agent has returned complete objects. Responses that the Agent
+     * has marked with the "qmf.filtered" property have already been filtered and projected, so are used as they are.
+     */
+    private final class ObjectQuery extends PendingRequest<List<QmfConsoleData>>
+    {
+        private final Agent _agent;
+        private final QmfQuery _filter;
+        private final List<QmfConsoleData> _partials = new ArrayList<QmfConsoleData>();
+        private boolean _timedOut = false;
+
+        public ObjectQuery(final Agent agent, final QmfQuery filter)
+        {
+            super(nextCorrelationId(), _pendingRequests);
+            _agent = agent;
+            _filter = filter;
+        }
+
+        Agent getAgent()
+        {
+            return _agent;
+        }
+
+        boolean hasTimedOut()
+        {
+            synchronized(_partials)
+            {
+                return _timedOut;
+            }
+        }
+
+        void deliver(final Message response) throws JMSException
+        {
+            boolean lastResult = !response.propertyExists("partial");
+            List<Map<String, Object>> mapResults = Collections.emptyList();
+            if (AMQPMessage.isAMQPList(response))
+            {
+                mapResults = AMQPMessage.getList(response);
+            }
+            else if (AMQPMessage.isAMQPMap(response))
+            { // Error responses are returned as MapMessages.
+                fail(createException(response));
+                return;
+            }
+            else
+            {
+                _log.info("getObjects() Received response message in incorrect format");
+            }
+
+            synchronized(_partials)
+            {
+                if (isDone())
+                {
+                    return;
+                }
+
+                QmfQuery filter = response.propertyExists("qmf.filtered") ? null : _filter;
+                for (Map<String, Object> content : mapResults)
+                {
+                    QmfConsoleData object = decodeResult(filter, content, _agent);
+                    if (object != null)
+                    {
+                        _partials.add(object);
+                    }
+                }
+
+                if (lastResult)
+                {
+                    complete(_partials);
+                }
+            }
+        }
+
+        void expire()
+        {
+            _log.info("No response received in getObjects() from Agent {}", _agent.getName());
+            synchronized(_partials)
+            {
+                // Set _timedOut before completing as complete() runs the callbacks, which may ask hasTimedOut().
+                _timedOut = true;
+                if (!complete(_partials))
+                {
+                    _timedOut = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * A StreamingObjectQuery is the PendingRequest for an "OBJECT" query whose results are iterated by an
+     * ObjectIterator. Rather than decoding responses as they arrive it passes them to the ObjectIterator in their
+     * encoded form, the ObjectIterator decodes them lazily as the application iterates. The StreamingObjectQuery
+     * completes with TRUE when the final response arrives, or FALSE if the timeout expires first. If the Agent
+     * returns an exception the StreamingObjectQuery fails with a QmfException.
+     */
+    private final class StreamingObjectQuery extends PendingRequest<Boolean>
+    {
+        private final ObjectIterator _iterator;
+
+        public StreamingObjectQuery(final ObjectIterator iterator)
+        {
+            super(nextCorrelationId(), _pendingRequests);
+            _iterator = iterator;
+        }
+
+        void deliver(final Message response) throws JMSException
+        {
+            if (AMQPMessage.isAMQPList(response))
+            {
+                _iterator.add(response);
+            }
+            else if (AMQPMessage.isAMQPMap(response))
+            { // Error responses are returned as MapMessages.
+                fail(createException(response));
+                return;
+            }
+            else
+            {
+                _log.info("streamObjects() Received response message in incorrect format");
+            }
+
+            if (!response.propertyExists("partial"))
+            {
+                complete(Boolean.TRUE);
+            }
+        }
+
+        void expire()
+        {
+            _log.info("No response received in streamObjects() from Agent {}", _iterator.getAgent().getName());
+            complete(Boolean.FALSE);
+        }
+    }
+
+    /**
+     * A MethodCall is the PendingRequest for a method invocation. It fails if the Agent returns an exception or if
+     * the timeout expires before the response is received.
+     */
+    private final class MethodCall extends PendingRequest<MethodResult>
+    {
+        public MethodCall()
+        {
+            super(nextCorrelationId(), _pendingRequests);
+        }
+
+        void deliver(final Message response) throws JMSException
+        {
+            MethodResult result = new MethodResult(AMQPMessage.getMap(response));
+            QmfException exception = result.getQmfException();
+            if (exception == null)
+            {
+                complete(result);
+            }
+            else
+            {
+                fail(exception);
+            }
+        }
+
+        void expire()
+        {
+            _log.info("No response received in invokeMethod()");
+            fail(new QmfException("No response received for Console.invokeMethod()"));
+        }
+    }
+
+    /**
+     * A SchemaQuery is the PendingRequest for a "SCHEMA" query. On receipt of the response the schema is cached
+     * in the Agent. If the timeout expires first the SchemaQuery completes with an empty List, if the Agent returns
+     * an exception it fails with a QmfException.
+     */
+    private final class SchemaQuery extends PendingRequest<List<SchemaClass>>
+    {
+        private final Agent _agent;
+        private final SchemaClassId _schemaClassId;
+
+        public SchemaQuery(final Agent agent, final SchemaClassId schemaClassId)
+        {
+            super(nextCorrelationId(), _pendingRequests);
+            _agent = agent;
+            _schemaClassId = schemaClassId;
+        }
+
+        void deliver(final Message response) throws JMSException
+        {
+            List<SchemaClass> results = new ArrayList<SchemaClass>();
+            if (AMQPMessage.isAMQPList(response))
+            {
+                List<Map> mapResults = AMQPMessage.getList(response);
+                for (Map content : mapResults)
+                {
+                    SchemaClass schema = new SchemaObjectClass(content);
+                    if (schema.getClassId().getType().equals("_event"))
+                    {
+                        schema = new SchemaEventClass(content);
+                    }
+//schema.listValues();
+                    results.add(schema);
+                }
+            }
+            else if (AMQPMessage.isAMQPMap(response))
+            { // Error responses are returned as MapMessages, the Agent's schema isn't cached if it returns one.
+                fail(createException(response));
+                return;
+            }
+            else
+            {
+                _log.info("getSchema() Received response message in incorrect format");
+            }
+            _agent.setSchema(_schemaClassId, results);
+            complete(results);
+        }
+
+        void expire()
+        {
+            _log.info("No response received in getSchema()");
+            complete(Collections.<SchemaClass>emptyList());
+        }
+    }
+
+    /**
+     * A ClassQuery is the PendingRequest for a "SCHEMA_ID" query. On receipt of the response the classes are cached
+     * in the Agent. If the timeout expires first the ClassQuery completes with an empty List, if the Agent returns
+     * an exception it fails with a QmfException.
+     */
+    private final class ClassQuery extends PendingRequest<List<SchemaClassId>>
+    {
+        private final Agent _agent;
+
+        public ClassQuery(final Agent agent)
+        {
+            super(nextCorrelationId(), _pendingRequests);
+            _agent = agent;
+        }
+
+        void deliver(final Message response) throws JMSException
+        {
+            List<SchemaClassId> results = new ArrayList<SchemaClassId>();
+            if (AMQPMessage.isAMQPList(response))
+            {
+                List<Map> mapResults = AMQPMessage.getList(response);
+                for (Map content : mapResults)
+                {
+//new SchemaClassId(content).listValues();
+                    results.add(new SchemaClassId(content));
+                }
+            }
+            else if (AMQPMessage.isAMQPMap(response))
+            { // Error responses are returned as MapMessages, the Agent's classes aren't cached if it returns one.
+                fail(createException(response));
+                return;
+            }
+            else
+            {
+                _log.info("getClasses() Received response message in incorrect format");
+            }
+            _agent.setClasses(results);
+            complete(results);
+        }
+
+        void expire()
+        {
+            _log.info("No response received in getClasses()");
+            complete(Collections.<SchemaClassId>emptyList());
+        }
+    }
+
+    /**
+     * A MessageRequest is a PendingRequest that simply completes with the raw response Message, or with null if the
+     * timeout expires before the response is received.
+     */
+    private final class MessageRequest extends PendingRequest<Message>
+    {
+        public MessageRequest()
+        {
+            super(nextCorrelationId(), _pendingRequests);
+        }
+
+        void deliver(final Message response)
+        {
+            complete(response);
+        }
+
+        void expire()
+        {
+            complete(null);
+        }
+    }
+
     //                                  private implementation methods
     // ********************************************************************************************************
 
+    /**
+     * Return a new unique correlationId used to tie a request to its responses.
+     *
+     * @return a new unique correlationId.
+     */
+    private String nextCorrelationId()
+    {
+        return _correlationPrefix + _correlationCounter.incrementAndGet();
+    }
+
+    /**
+     * Send a request Message to the QMF direct address. Requests are no longer serialised with their responses so
+     * we only hold the lock for the duration of the send() itself, as JMS MessageProducers aren't thread safe.
+     *
+     * @param request the request Message to send.
+     */
+    private void sendRequest(final Message request) throws JMSException
+    {
+        synchronized(_requester)
+        {
+            _requester.send(request);
+        }
+    }
+
+    /**
+     * Send a request whose response(s) will be delivered to the supplied PendingRequest, and schedule the expiry of
+     * the PendingRequest should no final response arrive before the timeout. If the request can't be sent the
+     * PendingRequest fails with a QmfException.
+     *
+     * @param request the request Message, its JMSReplyTo is set to the synchronous reply address.
+     * @param pending the PendingRequest that will receive the response(s).
+     * @param timeout the time in seconds to wait for the final response.
+     */
+    private void submitRequest(final Message request, final PendingRequest<?> pending, final int timeout)
+    {
+        try
+        {
+            pending.setExpiry(_scheduler.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    pending.expire();
+                }
+            }, timeout, TimeUnit.SECONDS));
+
+            request.setJMSReplyTo(_replyAddress);
+            request.setJMSCorrelationID(pending.getCorrelationId());
+            sendRequest(request);
+        }
+        catch (JMSException jmse)
+        {
+            _log.info("JMSException {} caught in submitRequest()", jmse.getMessage());
+            pending.fail(new QmfException(jmse.getMessage()));
+        }
+    }
+
+    /**
+     * Create the QmfException for an _exception response to a query. If the Agent rejected the query because the
+     * Console has exceeded the Agent's request rate limits the response has a "retry_after_ms" property, which is
+     * returned by the QmfException's getRetryAfter().
+     *
+     * @param response the _exception response Message.
+     * @return the QmfException describing the Agent's exception.
+     */
+    private static QmfException createException(final Message response) throws JMSException
+    {
+        QmfData exception = new QmfData(AMQPMessage.getMap(response));
+        String errorText = exception.hasValue("error_text") ? exception.getStringValue("error_text") :
+                                                              "Agent returned an exception";
+        long retryAfter = exception.hasValue("retry_after_ms") ? exception.getLongValue("retry_after_ms") : 0;
+        return new QmfException(errorText, retryAfter);
+    }
+
+    /**
+     * Wait before retrying a blocking request that an Agent rejected because the Console has exceeded the Agent's
+     * request rate limits. The request is only retried if the wait the Agent asked for ends before the deadline.
+     *
+     * @param qmfe the QmfException the request failed with.
+     * @param deadline the time in milliseconds by which the blocking request must have completed.
+     * @return the time in seconds remaining before the deadline once the wait has ended, or zero if the request
+     *         shouldn't be retried.
+     */
+    private static int awaitRetry(final QmfException qmfe, final long deadline)
+    {
+        long retryAfter = qmfe.getRetryAfter();
+        if (retryAfter <= 0 || System.currentTimeMillis() + retryAfter >= deadline)
+        {
+            return 0;
+        }
+
+        try
+        {
+            Thread.sleep(retryAfter);
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            return 0;
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        return (remaining <= 0) ? 0 : (int)Math.max(1, TimeUnit.MILLISECONDS.toSeconds(remaining + 999));
+    }
+
+    /**
+     * Create a MapMessage containing the standard QMF2 request properties.
+     *
+     * @param opcode the QMF2 opcode of the request.
+     * @param agent the Agent the request is addressed to.
+     * @return a MapMessage which the caller populates with the request content.
+     */
+    private MapMessage createRequest(final String opcode, final Agent agent) throws JMSException
+    {
+        MapMessage request = _syncSession.createMapMessage();
+        request.setStringProperty("x-amqp-0-10.app-id", "qmf2");
+        request.setStringProperty("method", "request");
+        request.setStringProperty("qmf.opcode", opcode);
+        request.setStringProperty("qpid.subject", agent.getName());
+        return request;
+    }
+
     /**
      * Send an asynchronous _agent_locate_request to the topic broadcast address with the subject
      * "console.request.agent_locate". This should cause all active Agents to respond on the async
@@ -561,13 +1037,16 @@ public final class Console implements MessageListener, AgentProxy
                 if (AMQPMessage.isAMQPList(message))
                 {
                     String consoleHandle = handle.getCorrelationId();
-                    if (consoleHandle != null && _subscriptionByHandle.containsKey(consoleHandle))
+                    SubscriptionManager target =
+                        (consoleHandle == null) ? null : _subscriptionByHandle.get(consoleHandle);
+                    if (target != null)
                     { // If we have a valid consoleHandle the data has come from a "real" Subscription.
                         List<Map> list = AMQPMessage.getList(message);
                         List<QmfConsoleData> resultList = new ArrayList<QmfConsoleData>(list.size());
                         for (Map m : list)
-                        {
-                            resultList.add(new QmfConsoleData(m, agent));
+                        { // Objects from Subscriptions created with the "delta" option may only have changed properties.
+                            boolean delta = m.containsKey("_delta") && QmfData.getBoolean(m.get("_delta"));
+                            resultList.add(target.merge(new QmfConsoleData(m, agent), delta));
                         }
                         _eventListener.onEvent(
                             new SubscriptionIndicationWorkItem(new SubscribeIndication(consoleHandle, resultList))
@@ -685,7 +1164,9 @@ public final class Console implements MessageListener, AgentProxy
     /**
      * Perform a query for QmfConsoleData objects. Returns a list (possibly empty) of matching objects.
      * If replyHandle is null this method will block until the agent replies, or the timeout expires.
-     * Once the timeout expires, all data retrieved to date is returned. If replyHandle is non-null an
+     * Once the timeout expires, all data retrieved to date is returned. If the Agent rejects a blocking query
+     * because the Console has exceeded the Agent's request rate limits the query is retried after the delay the
+     * Agent asks for, provided that ends before the timeout. If replyHandle is non-null an
      * asynchronous request is performed
      * 
      * @param agent the Agent being queried
@@ -695,76 +1176,263 @@ public final class Console implements MessageListener, AgentProxy
      * @return a List of QMF Objects describing that class
      */
     private List<QmfConsoleData> getObjects(final Agent agent, final QmfData query,
-                                            final String replyHandle, int timeout)
+                                            final String replyHandle, final int timeout)
     {
-        String agentName = agent.getName();
-        timeout = (timeout < 1) ? _replyTimeout : timeout;
-        List<QmfConsoleData> results = Collections.emptyList();
+        if (replyHandle == null)
+        { // Blocking requests are implemented in terms of the equivalent asynchronous request.
+            int remaining = (timeout < 1) ? _replyTimeout : timeout;
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(remaining);
+            while (true)
+            {
+                try
+                {
+                    return getObjectsAsync(query, agent, remaining).getResult();
+                }
+                catch (QmfException qmfe)
+                { // If the Agent has rate limited the query retry it after the time that the Agent asked for.
+                    remaining = awaitRetry(qmfe, deadline);
+                    if (remaining == 0)
+                    {
+                        _log.info("QmfException {} caught in getObjects()", qmfe.getMessage());
+                        return Collections.emptyList();
+                    }
+                }
+            }
+        }
+
         try
         {
-            Destination destination = (replyHandle == null) ? _replyAddress : _asyncReplyAddress;
-            MapMessage request = _syncSession.createMapMessage();
-            request.setJMSReplyTo(destination);
+            MapMessage request = createObjectQuery(agent, query);
+            request.setJMSReplyTo(_asyncReplyAddress);
             request.setJMSCorrelationID(replyHandle);
-            request.setStringProperty("x-amqp-0-10.app-id", "qmf2");
-            request.setStringProperty("method", "request");
-            request.setStringProperty("qmf.opcode", "_query_request");
-            request.setStringProperty("qpid.subject", agentName);
+            sendRequest(request);
+        }
+        catch (JMSException jmse)
+        {
+            _log.info("JMSException {} caught in getObjects()", jmse.getMessage());
+        }
+        return Collections.emptyList();
+    }
 
-            // Create a QMF Query for an "OBJECT" target using either a schema ID or object ID
+    /**
+     * Send a query for QmfConsoleData objects to an Agent, returning the ObjectQuery that will collect the results.
+     *
+     * @param query the ObjectId or SchemaClassId being queried for.
+     * @param agent the Agent being queried.
+     * @param timeout the time to wait for a reply from the Agent, a value of -1 means use the default timeout
+     * @return the ObjectQuery that will collect the results.
+     */
+    private ObjectQuery submitObjectQuery(final QmfData query, final Agent agent, final int timeout)
+    {
+        ObjectQuery pending = new ObjectQuery(agent, getFilter(query));
+        if (!isObjectQuery(query))
+        {
+            pending.fail(new QmfException("getObjects() requires a QmfQuery with an OBJECT target"));
+            return pending;
+        }
+
+        try
+        {
+            submitRequest(createObjectQuery(agent, query), pending, (timeout < 1) ? _replyTimeout : timeout);
+        }
+        catch (JMSException jmse)
+        {
+            _log.info("JMSException {} caught in getObjects()", jmse.getMessage());
+            pending.fail(new QmfException(jmse.getMessage()));
+        }
+        return pending;
+    }
+
+    /**
+     * Send an "OBJECT" query to the specified Agent, returning an ObjectIterator over its results.
+     *
+     * @param query the ObjectId or SchemaClassId being queried for.
+     * @param agent the Agent being queried.
+     * @param timeout the time to wait for the final response from the Agent, a value of -1 means use the default.
+     * @return an ObjectIterator over the results of the query.
+     */
+    private ObjectIterator submitStreamingObjectQuery(final QmfData query, final Agent agent, final int timeout)
+    {
+        final ObjectIterator iterator = new ObjectIterator(agent, getFilter(query));
+        StreamingObjectQuery pending = new StreamingObjectQuery(iterator);
+        iterator.setRequest(pending);
+        pending.addCallback(new QmfFutureCallback<Boolean>()
+        {
+            public void onSuccess(final Boolean complete)
+            {
+                iterator.end(complete);
+            }
+
+            public void onFailure(final QmfException cause)
+            {
+                iterator.fail(cause);
+            }
+        });
+
+        if (!isObjectQuery(query))
+        {
+            _log.info("streamObjects() requires a QmfQuery with an OBJECT target");
+            pending.fail(new QmfException("streamObjects() requires a QmfQuery with an OBJECT target"));
+            return iterator;
+        }
+
+        try
+        {
+            submitRequest(createObjectQuery(agent, query), pending, (timeout < 1) ? _replyTimeout : timeout);
+        }
+        catch (JMSException jmse)
+        {
+            _log.info("JMSException {} caught in streamObjects()", jmse.getMessage());
+            pending.fail(new QmfException(jmse.getMessage()));
+        }
+        return iterator;
+    }
+
+    /**
+     * Create a _query_request Message for an "OBJECT" target.
+     *
+     * @param agent the Agent being queried
+     * @param query the ObjectId or SchemaClassId being queried for.
+     * @return the request Message.
+     */
+    private MapMessage createObjectQuery(final Agent agent, final QmfData query) throws JMSException
+    {
+        MapMessage request = createRequest("_query_request", agent);
+
+        if (query instanceof QmfQuery)
+        { // Send the whole QmfQuery, including any _where predicate, so the Agent only returns matching objects.
+            for (Map.Entry<String, Object> entry : query.mapEncode().entrySet())
+            {
+                request.setObject(entry.getKey(), entry.getValue());
+            }
+        }
+        else
+        { // Create a QMF Query for an "OBJECT" target using either a schema ID or object ID
             String queryType = (query instanceof SchemaClassId) ? "_schema_id" : "_object_id";
             request.setObject("_what", "OBJECT");
             request.setObject(queryType, query.mapEncode());
+        }
+        return request;
+    }
 
-            // Wrap request & response in synchronized block in case any other threads invoke a request
-            // it would be somewhat unfortunate if their response got interleaved with ours!!
-            synchronized(this)
+    /**
+     * Check that a query passed to getObjects() and friends is a SchemaClassId, ObjectId or a QmfQuery with an
+     * "OBJECT" target.
+     *
+     * @param query the query passed to getObjects().
+     * @return true if the query is suitable for getObjects().
+     */
+    private static boolean isObjectQuery(final QmfData query)
+    {
+        return !(query instanceof QmfQuery) || ((QmfQuery)query).getTarget() == QmfQueryTarget.OBJECT;
+    }
+
+    /**
+     * Return the QmfQuery that the results of a query should be filtered by on arrival, which is the query itself if
+     * it's a QmfQuery with a predicate or a select list. An Agent that supports predicates will only return matching
+     * objects anyway, but one that doesn't may return all of the objects of the query's SchemaClassId, or even all
+     * of its objects. Similarly an Agent that doesn't support select lists will return complete objects.
+     *
+     * @param query the query passed to getObjects().
+     * @return the QmfQuery to filter the results by, or null if the results don't need to be filtered.
+     */
+    private static QmfQuery getFilter(final QmfData query)
+    {
+        if (query instanceof QmfQuery)
+        {
+            QmfQuery filter = (QmfQuery)query;
+            if (filter.getPredicate() != null || filter.getSelect() != null)
             {
-                _requester.send(request);
-                if (replyHandle == null)
-                {
-                    boolean lastResult = true;
-                    ArrayList<QmfConsoleData> partials = new ArrayList<QmfConsoleData>();
-                    do
-                    { // Wrap in a do/while loop to cater for the case where the Agent may send partial results.
-                        Message response = _responder.receive(timeout*1000);
-                        if (response == null)
-                        {
-                            _log.info("No response received in getObjects()");
-                            return partials;
-                        }
+                return filter;
+            }
+        }
+        return null;
+    }
 
-                        lastResult = !response.propertyExists("partial");
+    /**
+     * Decode a mapEncoded query result into a QmfConsoleData, returning null if it doesn't match the filter.
+     * <p>
+     * The filter is null for responses that the Agent has marked with the "qmf.filtered" property, which have been
+     * filtered and projected by the Agent. Any other Agent may have ignored the predicate and select list, so the
+     * result is filtered by the predicate and then projected onto the select list. The only time the predicate
+     * isn't evaluated is if the result appears to have been projected, in other words the query has a select list
+     * and the result only contains selected properties, and a property that the predicate refers to is missing, as
+     * the predicate can't be evaluated without it.
+     *
+     * @param filter the QmfQuery returned by getFilter(), may be null.
+     * @param content the mapEncoded query result.
+     * @param agent the Agent that returned the result.
+     * @return the QmfConsoleData, or null if it doesn't match the filter.
+     */
+    @SuppressWarnings("unchecked")
+    static QmfConsoleData decodeResult(final QmfQuery filter, final Map<String, Object> content, final Agent agent)
+    {
+        if (filter == null)
+        {
+            return new QmfConsoleData(content, agent);
+        }
 
-                        if (AMQPMessage.isAMQPList(response))
-                        {
-                            List<Map> mapResults = AMQPMessage.getList(response);
-                            partials.ensureCapacity(partials.size() + mapResults.size());
-                            for (Map content : mapResults)
-                            {
-                                partials.add(new QmfConsoleData(content, agent));
-                            }
-                        }
-                        else if (AMQPMessage.isAMQPMap(response))
-                        {
-                            // Error responses are returned as MapMessages, though they are being ignored here.
-                            //QmfData exception = new QmfData(AMQPMessage.getMap(response));
-                            //System.out.println(agentName + " " + exception.getStringValue("error_text"));
-                        }
-                        else
-                        {
-                            _log.info("getObjects() Received response message in incorrect format");
-                        }
-                    } while (!lastResult);
-                    results = partials;
-                }
+        QmfConsoleData object = new QmfConsoleData(content, agent);
+        if (filter.getPredicate() != null && !filter.evaluate(object))
+        {
+            Map<String, Object> values = (Map<String, Object>)content.get("_values");
+            if (values == null || filter.getSelect() == null || !isProjected(filter, values) ||
+                values.keySet().containsAll(getPredicateProperties(filter.getPredicate(), new HashSet<String>())))
+            {
+                return null;
             }
         }
-        catch (JMSException jmse)
+        return filter.getSelect() == null ? object : new QmfConsoleData(filter.applySelect(content), agent);
+    }
+
+    /**
+     * Return true if every property in a result's "_values" is in the query's select list.
+     * @param filter the QmfQuery with the select list.
+     * @param values the "_values" of the mapEncoded result.
+     * @return true if every property in the result is in the select list.
+     */
+    private static boolean isProjected(final QmfQuery filter, final Map<String, Object> values)
+    {
+        for (String name : values.keySet())
         {
-            _log.info("JMSException {} caught in getObjects()", jmse.getMessage());
+            if (!filter.isSelected(name))
+            {
+                return false;
+            }
         }
-        return results;
+        return true;
+    }
+
+    /**
+     * Add the names of the properties that a predicate refers to, which are the operands that are Strings other
+     * than the metadata keys starting with an underscore, to a Set.
+     * @param predicate the predicate, or a sub-expression of it.
+     * @param properties the Set that the property names are added to.
+     * @return the Set that the property names were added to.
+     */
+    private static Set<String> getPredicateProperties(final List<?> predicate, final Set<String> properties)
+    {
+        if (predicate.isEmpty() || "quote".equals(predicate.get(0)))
+        {
+            return properties;
+        }
+
+        for (Object operand : predicate.subList(1, predicate.size()))
+        {
+            if (operand instanceof String)
+            {
+                String name = (String)operand;
+                if (!name.startsWith("_"))
+                {
+                    properties.add(name);
+                }
+            }
+            else if (operand instanceof List)
+            {
+                getPredicateProperties((List<?>)operand, properties);
+            }
+        }
+        return properties;
     }
 
     //                                methods implementing AgentProxy interface
@@ -812,60 +1480,111 @@ public final class Console implements MessageListener, AgentProxy
      * @return the method response Arguments in Map form
      */
     public MethodResult invokeMethod(final Agent agent, final Map<String, Object> content,
-                                     final String replyHandle, int timeout) throws QmfException
+                                     final String replyHandle, final int timeout) throws QmfException
     {
         if (!agent.isActive())
         {
             throw new QmfException("Called invokeMethod() with inactive agent");
         }
-        String agentName = agent.getName();
-        timeout = (timeout < 1) ? _replyTimeout : timeout;
+
+        if (replyHandle == null)
+        { // Blocking requests are implemented in terms of the equivalent asynchronous request.
+            return invokeMethodAsync(agent, content, timeout).getResult();
+        }
+
         try
         {
-            Destination destination = (replyHandle == null) ? _replyAddress : _asyncReplyAddress;
-            MapMessage request = _syncSession.createMapMessage();
-            request.setJMSReplyTo(destination);
+            MapMessage request = createMethodRequest(agent, content);
+            request.setJMSReplyTo(_asyncReplyAddress);
             request.setJMSCorrelationID(replyHandle);
-            request.setStringProperty("x-amqp-0-10.app-id", "qmf2");
-            request.setStringProperty("method", "request");
-            request.setStringProperty("qmf.opcode", "_method_request");
-            request.setStringProperty("qpid.subject", agentName);
+            sendRequest(request);
+            // If this is an asynchronous request return without waiting for a response
+            return null;
+        }
+        catch (JMSException jmse)
+        {
+            _log.info("JMSException {} caught in invokeMethod()", jmse.getMessage());
+            throw new QmfException(jmse.getMessage());
+        }
+    }
 
-            for (Map.Entry<String, Object> entry : content.entrySet())
+    /**
+     * Request that the Agent update the value of an object's contents, returning a QmfFuture that completes with
+     * the refreshed object, or with null if the object no longer exists or no response arrives before the timeout.
+     * <p>
+     * Intended to by called by the AgentProxy. Shouldn't generally be called directly by Console applications.
+     *
+     * @param agent the Agent to get the refresh from.
+     * @param objectId the ObjectId being queried for
+     * @param timeout the time to wait for a reply from the Agent, a value of -1 means use the default timeout
+     * @return a QmfFuture for the refreshed object.
+     */
+    public QmfFuture<QmfConsoleData> refreshAsync(final Agent agent, final ObjectId objectId, final int timeout)
+    {
+        final QmfFuture<QmfConsoleData> future = new QmfFuture<QmfConsoleData>();
+        getObjectsAsync(objectId, agent, timeout).addCallback(new QmfFutureCallback<List<QmfConsoleData>>()
+        {
+            public void onSuccess(final List<QmfConsoleData> objects)
             {
-                request.setObject(entry.getKey(), entry.getValue());
+                future.complete((objects.size() == 0) ? null : objects.get(0));
             }
 
-            // Wrap request & response in synchronized block in case any other threads invoke a request
-            // it would be somewhat unfortunate if their response got interleaved with ours!!
-            synchronized(this)
+            public void onFailure(final QmfException cause)
             {
-                _requester.send(request);
-                if (replyHandle == null)
-                { // If this is a synchronous request get the response
-                    Message response = _responder.receive(timeout*1000);
-                    if (response == null)
-                    {
-                        _log.info("No response received in invokeMethod()");
-                        throw new QmfException("No response received for Console.invokeMethod()");
-                    }
-                    MethodResult result = new MethodResult(AMQPMessage.getMap(response));
-                    QmfException exception = result.getQmfException();
-                    if (exception != null)
-                    {
-                        throw exception;
-                    }
-                    return result;
-                }
+                future.fail(cause);
             }
-            // If this is an asynchronous request return without waiting for a response
-            return null;
+        });
+        return future;
+    }
+
+    /**
+     * Invoke the named method on the named Agent, returning a QmfFuture that completes with the MethodResult. The
+     * QmfFuture fails if the Agent returns an exception or if no response arrives before the timeout.
+     * <p>
+     * Intended to by called by the AgentProxy. Shouldn't generally be called directly by Console applications.
+     *
+     * @param agent the Agent to invoke the method on.
+     * @param content an unordered set of key/value pairs comprising the method arguments.
+     * @param timeout the time to wait for a reply from the Agent, a value of -1 means use the default timeout
+     * @return a QmfFuture for the MethodResult.
+     */
+    public QmfFuture<MethodResult> invokeMethodAsync(final Agent agent, final Map<String, Object> content,
+                                                     final int timeout)
+    {
+        MethodCall pending = new MethodCall();
+        if (!agent.isActive())
+        {
+            pending.fail(new QmfException("Called invokeMethodAsync() with inactive agent"));
+            return pending;
+        }
+
+        try
+        {
+            submitRequest(createMethodRequest(agent, content), pending, (timeout < 1) ? _replyTimeout : timeout);
         }
         catch (JMSException jmse)
         {
-            _log.info("JMSException {} caught in invokeMethod()", jmse.getMessage());
-            throw new QmfException(jmse.getMessage());
+            _log.info("JMSException {} caught in invokeMethodAsync()", jmse.getMessage());
+            pending.fail(new QmfException(jmse.getMessage()));
+        }
+        return pending;
+    }
+
+    /**
+     * Create a _method_request Message.
+     *
+     * @param agent the Agent to invoke the method on.
+     * @param content an unordered set of key/value pairs comprising the method arguments.
+     * @return the request Message.
+     */
+    private MapMessage createMethodRequest(final Agent agent, final Map<String, Object> content) throws JMSException
+    {
+        MapMessage request = createRequest("_method_request", agent);
+        for (Map.Entry<String, Object> entry : content.entrySet())
+        {
+            request.setObject(entry.getKey(), entry.getValue());
         }
+        return request;
     }
 
     /**
@@ -1083,6 +1802,18 @@ public final class Console implements MessageListener, AgentProxy
                 }
             }
 
+            // Scheduler used to enforce request timeouts, uses a daemon thread so it won't prevent the JVM exiting.
+            _scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+            {
+                public Thread newThread(final Runnable r)
+                {
+                    Thread thread = new Thread(r, "QMF2 Console Request Timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            _scheduler.setRemoveOnCancelPolicy(true); // As most requests complete before they time out.
+
             String topicBase  = "qmf." + _domain + ".topic";
             _syncSession = _connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
 
@@ -1119,9 +1850,12 @@ public final class Console implements MessageListener, AgentProxy
                 Destination directAddress = _syncSession.createQueue("qmf." + _domain + ".direct");
                 _requester = _syncSession.createProducer(directAddress);
 
-                // Create the JMSReplyTo _replyAddress and MessageConsumer
-                _replyAddress = _syncSession.createQueue(_address + syncReplyAddressOptions);
-                _responder = _syncSession.createConsumer(_replyAddress);
+                // Create the JMSReplyTo _replyAddress and MessageConsumer. The MessageConsumer uses its own Session
+                // as it has a MessageListener that routes responses to the PendingRequest that they correlate with.
+                _responseSession = _connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+                _replyAddress = _responseSession.createQueue(_address + syncReplyAddressOptions);
+                _responder = _responseSession.createConsumer(_replyAddress);
+                _responder.setMessageListener(new ResponseDispatcher());
 
                 _connection.start();
 
@@ -1200,6 +1934,13 @@ public final class Console implements MessageListener, AgentProxy
         {
             throw new QmfException("Failed to remove connection, caught JMSException " + jmse.getMessage());
         }
+        // Any responses still outstanding can no longer be delivered so fail any outstanding requests, which
+        // unblocks any threads that are waiting for them.
+        for (PendingRequest<?> pending : _pendingRequests.values())
+        {
+            pending.fail(new QmfException("Connection removed"));
+        }
+        _scheduler.shutdownNow();
         _connection = null;
     }
 
@@ -1527,162 +2268,148 @@ public final class Console implements MessageListener, AgentProxy
             return results;
         }
 
-        String agentName = agent.getName();
-        results = new ArrayList<SchemaClassId>();
-        try
+        int remaining = _replyTimeout;
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(remaining);
+        while (remaining > 0)
         {
-            MapMessage request = _syncSession.createMapMessage();
-            request.setJMSReplyTo(_replyAddress);
-            request.setStringProperty("x-amqp-0-10.app-id", "qmf2");
-            request.setStringProperty("method", "request");
-            request.setStringProperty("qmf.opcode", "_query_request");
-            request.setStringProperty("qpid.subject", agentName);
+            ClassQuery pending = new ClassQuery(agent);
+            try
+            {
+                MapMessage request = createRequest("_query_request", agent);
 
-            // Create a QMF Query for an "SCHEMA_ID" target
-            request.setObject("_what", "SCHEMA_ID");
-            // Wrap request & response in synchronized block in case any other threads invoke a request
-            // it would be somewhat unfortunate if their response got interleaved with ours!!
-            synchronized(this) 
+                // Create a QMF Query for an "SCHEMA_ID" target
+                request.setObject("_what", "SCHEMA_ID");
+                submitRequest(request, pending, remaining);
+                return pending.getResult();
+            }
+            catch (JMSException jmse)
             {
-                _requester.send(request);
-                Message response = _responder.receive(_replyTimeout*1000);
-                if (response == null)
+                _log.info("JMSException {} caught in getClasses()", jmse.getMessage());
+                remaining = 0;
+            }
+            catch (QmfException qmfe)
+            { // If the Agent has rate limited the query retry it after the time that the Agent asked for.
+                remaining = awaitRetry(qmfe, deadline);
+                if (remaining == 0)
                 {
-                    _log.info("No response received in getClasses()");
-                    return Collections.emptyList();
+                    _log.info("QmfException {} caught in getClasses()", qmfe.getMessage());
                 }
+            }
+            finally
+            {
+                pending.cancel(false); // A no-op if the request has completed, otherwise deregisters it.
+            }
+        }
+        return Collections.emptyList();
+    }
 
-                if (AMQPMessage.isAMQPList(response))
-                {
-                    List<Map> mapResults = AMQPMessage.getList(response);
-                    for (Map content : mapResults)
-                    {
-//new SchemaClassId(content).listValues();
-                        results.add(new SchemaClassId(content));
-                    }
-                }
-                else if (AMQPMessage.isAMQPMap(response))
-                {
-                    // Error responses are returned as MapMessages, though they are being ignored here.
-                    //System.out.println("Console.getClasses() no results for " + agentName);
-                    //QmfData exception = new QmfData(AMQPMessage.getMap(response));
-                    //System.out.println(agentName + " " + exception.getStringValue("error_text"));
-                }
-                else
+    /**
+     * Return a list of all available class SchemaClass across all known Agents. If an optional Agent is
+     * provided, restrict the returned schema to those supported by that Agent.
+     * <p>
+     * This call will return cached information if it is available.  If not, it will send a query message
+     * to the remote agent and block waiting for a response. The timeout argument specifies the maximum time
+     * to wait for a response from the agent.
+     *
+     * @param schemaClassId the SchemaClassId we wish to return schema information for.
+     */
+    public List<SchemaClass> getSchema(final SchemaClassId schemaClassId)
+    {
+        List<SchemaClass> results = new ArrayList<SchemaClass>();
+        List<Agent> agentList = getAgents();
+        for (Agent agent : agentList)
+        {
+            results.addAll(getSchema(schemaClassId, agent));
+        }
+        return results;
+    }
+
+    /**
+     * Return a list of all available class SchemaClass from a specified Agent.
+     * <p>
+     * This call will return cached information if it is available.  If not, it will send a query message
+     * to the remote agent and block waiting for a response. The timeout argument specifies the maximum time
+     * to wait for a response from the agent.
+     *
+     * @param schemaClassId the SchemaClassId we wish to return schema information for.
+     * @param agent the Agent we want to retrieve the schema from
+     */
+    public List<SchemaClass> getSchema(final SchemaClassId schemaClassId, final Agent agent)
+    {
+        int remaining = _replyTimeout;
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(remaining);
+        while (true)
+        {
+            try
+            { // Blocking requests are implemented in terms of the equivalent asynchronous request.
+                return getSchemaAsync(schemaClassId, agent, remaining).getResult();
+            }
+            catch (QmfException qmfe)
+            { // If the Agent has rate limited the query retry it after the time that the Agent asked for.
+                remaining = awaitRetry(qmfe, deadline);
+                if (remaining == 0)
                 {
-                    _log.info("getClasses() Received response message in incorrect format");
+                    _log.info("QmfException {} caught in getSchema()", qmfe.getMessage());
+                    return Collections.emptyList();
                 }
             }
         }
-        catch (JMSException jmse)
-        {
-            _log.info("JMSException {} caught in getClasses()", jmse.getMessage());
-        }
-        agent.setClasses(results);
-        return results;
     }
 
     /**
-     * Return a list of all available class SchemaClass across all known Agents. If an optional Agent is
-     * provided, restrict the returned schema to those supported by that Agent.
+     * Return a QmfFuture for the List of SchemaClass for a specified SchemaClassId from a specified Agent.
      * <p>
-     * This call will return cached information if it is available.  If not, it will send a query message
-     * to the remote agent and block waiting for a response. The timeout argument specifies the maximum time
-     * to wait for a response from the agent.
+     * The QmfFuture completes immediately if cached information is available. If not, a query message is sent
+     * to the remote agent and the QmfFuture completes when the response arrives, or with an empty List if no
+     * response arrives before the default reply timeout.
      *
      * @param schemaClassId the SchemaClassId we wish to return schema information for.
+     * @param agent the Agent we want to retrieve the schema from
+     * @return a QmfFuture for the List of SchemaClass.
      */
-    public List<SchemaClass> getSchema(final SchemaClassId schemaClassId)
+    public QmfFuture<List<SchemaClass>> getSchemaAsync(final SchemaClassId schemaClassId, final Agent agent)
     {
-        List<SchemaClass> results = new ArrayList<SchemaClass>();
-        List<Agent> agentList = getAgents();
-        for (Agent agent : agentList)
-        {
-            results.addAll(getSchema(schemaClassId, agent));
-        }
-        return results;
+        return getSchemaAsync(schemaClassId, agent, _replyTimeout);
     }
 
     /**
-     * Return a list of all available class SchemaClass from a specified Agent.
+     * Return a QmfFuture for the List of SchemaClass for a specified SchemaClassId from a specified Agent.
      * <p>
-     * This call will return cached information if it is available.  If not, it will send a query message
-     * to the remote agent and block waiting for a response. The timeout argument specifies the maximum time
-     * to wait for a response from the agent.
+     * The QmfFuture completes immediately if cached information is available. If not, a query message is sent
+     * to the remote agent and the QmfFuture completes when the response arrives, or with an empty List if no
+     * response arrives before the timeout.
      *
      * @param schemaClassId the SchemaClassId we wish to return schema information for.
      * @param agent the Agent we want to retrieve the schema from
+     * @param timeout the time to wait for a reply from the Agent, a value of -1 means use the default timeout
+     * @return a QmfFuture for the List of SchemaClass.
      */
-    public List<SchemaClass> getSchema(final SchemaClassId schemaClassId, final Agent agent)
+    public QmfFuture<List<SchemaClass>> getSchemaAsync(final SchemaClassId schemaClassId, final Agent agent,
+                                                       final int timeout)
     {
         // First look to see if there are cached results and if there are return those.
         List<SchemaClass> results = agent.getSchema(schemaClassId);
         if (results.size() > 0)
         {
-            return results;
+            return new QmfFuture<List<SchemaClass>>(results);
         }
 
-        String agentName = agent.getName();
-//System.out.println("getSchema for agent " + agentName);
-        results = new ArrayList<SchemaClass>();
+        SchemaQuery pending = new SchemaQuery(agent, schemaClassId);
         try
         {
-            MapMessage request = _syncSession.createMapMessage();
-            request.setJMSReplyTo(_replyAddress);
-            request.setStringProperty("x-amqp-0-10.app-id", "qmf2");
-            request.setStringProperty("method", "request");
-            request.setStringProperty("qmf.opcode", "_query_request");
-            request.setStringProperty("qpid.subject", agentName);
+            MapMessage request = createRequest("_query_request", agent);
 
             // Create a QMF Query for an "SCHEMA" target
             request.setObject("_what", "SCHEMA");
             request.setObject("_schema_id", schemaClassId.mapEncode());
-
-            // Wrap request & response in synchronized block in case any other threads invoke a request
-            // it would be somewhat unfortunate if their response got interleaved with ours!!
-            synchronized(this)
-            {
-                _requester.send(request);
-                Message response = _responder.receive(_replyTimeout*1000);
-                if (response == null)
-                {
-                    _log.info("No response received in getSchema()");
-                    return Collections.emptyList();
-                }
-
-                if (AMQPMessage.isAMQPList(response))
-                {
-                    List<Map> mapResults = AMQPMessage.getList(response);
-                    for (Map content : mapResults)
-                    {
-                        SchemaClass schema = new SchemaObjectClass(content);
-                        if (schema.getClassId().getType().equals("_event"))
-                        {
-                            schema = new SchemaEventClass(content);
-                        }
-//schema.listValues();
-                        results.add(schema);
-                    }
-                }
-                else if (AMQPMessage.isAMQPMap(response))
-                {
-                    // Error responses are returned as MapMessages, though they are being ignored here.
-                    //System.out.println("Console.getSchema() no results for " + agentName);
-                    //QmfData exception = new QmfData(AMQPMessage.getMap(response));
-                    //System.out.println(agentName + " " + exception.getStringValue("error_text"));
-                }
-                else
-                {
-                    _log.info("getSchema() Received response message in incorrect format");
-                }
-            }
+            submitRequest(request, pending, (timeout < 1) ? _replyTimeout : timeout);
         }
         catch (JMSException jmse)
         {
-            _log.info("JMSException {} caught in getSchema()", jmse.getMessage());
+            _log.info("JMSException {} caught in getSchemaAsync()", jmse.getMessage());
+            pending.fail(new QmfException(jmse.getMessage()));
         }
-        agent.setSchema(schemaClassId, results);
-        return results;
+        return pending;
     }
 
     /**
@@ -1855,12 +2582,293 @@ public final class Console implements MessageListener, AgentProxy
      */
     public List<QmfConsoleData> getObjects(final QmfData query, final int timeout, final List<Agent> agentList)
     {
-        List<QmfConsoleData> results = new ArrayList<QmfConsoleData>();
+        return gatherObjects(query, timeout, agentList).getObjects();
+    }
+
+    /**
+     * Perform a blocking query for QmfConsoleData objects using a QmfQuery. Returns a list (possibly empty) of
+     * matching objects. This method will block until all known Agents reply, or the timeout expires. Once the timeout
+     * expires, all data retrieved to date is returned.
+     * <p>
+     * This is an extension to the QMF2 API. The QmfQuery is sent to the Agents as it is, so if it has a predicate
+     * the predicate is evaluated by the Agents and only the matching objects are returned. For example the following
+     * retrieves only the queues with more than 1000 messages rather than retrieving every queue and filtering them:
+     * <pre>
+     * QmfQuery query = new QmfQuery(QmfQueryTarget.OBJECT, new SchemaClassId("queue"), "['gt', 'msgDepth', 1000]");
+     * List&lt;QmfConsoleData&gt; queues = console.getObjects(query);
+     * </pre>
+     * Not every Agent supports predicates, so the returned objects are also checked against the predicate by the
+     * Console, which means that the results are correct either way. The QmfQuery must have an "OBJECT" target.
+     * <p>
+     * If the QmfQuery has a select list (see QmfQuery.setSelect()) only the selected properties of each object are
+     * returned, which is much cheaper for both the Agent and the Console when only a few properties are needed.
+     *
+     * @param query the QmfQuery, which may have an ObjectId or SchemaClassId and/or a predicate.
+     * @return a List of QMF Objects matching the query.
+     */
+    public List<QmfConsoleData> getObjects(final QmfQuery query)
+    {
+        return getObjects((QmfData)query, _replyTimeout, getAgents());
+    }
+
+    /**
+     * Perform a blocking query for QmfConsoleData objects using a QmfQuery. Returns a list (possibly empty) of
+     * matching objects. This method will block until all known Agents reply, or the timeout expires. Once the timeout
+     * expires, all data retrieved to date is returned.
+     * <p>
+     * This is an extension to the QMF2 API. The QmfQuery is sent to the Agents as it is, so if it has a predicate
+     * the predicate is evaluated by the Agents and only the matching objects are returned. For example the following
+     * retrieves only the queues with more than 1000 messages rather than retrieving every queue and filtering them:
+     * <pre>
+     * QmfQuery query = new QmfQuery(QmfQueryTarget.OBJECT, new SchemaClassId("queue"), "['gt', 'msgDepth', 1000]");
+     * List&lt;QmfConsoleData&gt; queues = console.getObjects(query);
+     * </pre>
+     * Not every Agent supports predicates, so the returned objects are also checked against the predicate by the
+     * Console, which means that the results are correct either way. The QmfQuery must have an "OBJECT" target.
+     *
+     * @param query the QmfQuery, which may have an ObjectId or SchemaClassId and/or a predicate.
+     * @param timeout overrides the default replyTimeout.
+     * @return a List of QMF Objects matching the query.
+     */
+    public List<QmfConsoleData> getObjects(final QmfQuery query, final int timeout)
+    {
+        return getObjects((QmfData)query, timeout, getAgents());
+    }
+
+    /**
+     * Perform a blocking query for QmfConsoleData objects using a QmfQuery. Returns a list (possibly empty) of
+     * matching objects. This method will block until all the Agents reply, or the timeout expires. Once the timeout
+     * expires, all data retrieved to date is returned.
+     * <p>
+     * This is an extension to the QMF2 API. The QmfQuery is sent to the Agents as it is, so if it has a predicate
+     * the predicate is evaluated by the Agents and only the matching objects are returned. For example the following
+     * retrieves only the queues with more than 1000 messages rather than retrieving every queue and filtering them:
+     * <pre>
+     * QmfQuery query = new QmfQuery(QmfQueryTarget.OBJECT, new SchemaClassId("queue"), "['gt', 'msgDepth', 1000]");
+     * List&lt;QmfConsoleData&gt; queues = console.getObjects(query);
+     * </pre>
+     * Not every Agent supports predicates, so the returned objects are also checked against the predicate by the
+     * Console, which means that the results are correct either way. The QmfQuery must have an "OBJECT" target.
+     *
+     * @param query the QmfQuery, which may have an ObjectId or SchemaClassId and/or a predicate.
+     * @param agentList if this parameter is supplied then the query is sent to only those Agents.
+     * @return a List of QMF Objects matching the query.
+     */
+    public List<QmfConsoleData> getObjects(final QmfQuery query, final List<Agent> agentList)
+    {
+        return getObjects((QmfData)query, _replyTimeout, agentList);
+    }
+
+    /**
+     * Perform a blocking query for QmfConsoleData objects using a QmfQuery. Returns a list (possibly empty) of
+     * matching objects. This method will block until all the Agents reply, or the timeout expires. Once the timeout
+     * expires, all data retrieved to date is returned.
+     * <p>
+     * This is an extension to the QMF2 API. The QmfQuery is sent to the Agents as it is, so if it has a predicate
+     * the predicate is evaluated by the Agents and only the matching objects are returned. For example the following
+     * retrieves only the queues with more than 1000 messages rather than retrieving every queue and filtering them:
+     * <pre>
+     * QmfQuery query = new QmfQuery(QmfQueryTarget.OBJECT, new SchemaClassId("queue"), "['gt', 'msgDepth', 1000]");
+     * List&lt;QmfConsoleData&gt; queues = console.getObjects(query);
+     * </pre>
+     * Not every Agent supports predicates, so the returned objects are also checked against the predicate by the
+     * Console, which means that the results are correct either way. The QmfQuery must have an "OBJECT" target.
+     *
+     * @param query the QmfQuery, which may have an ObjectId or SchemaClassId and/or a predicate.
+     * @param timeout overrides the default replyTimeout.
+     * @param agentList if this parameter is supplied then the query is sent to only those Agents.
+     * @return a List of QMF Objects matching the query.
+     */
+    public List<QmfConsoleData> getObjects(final QmfQuery query, final int timeout, final List<Agent> agentList)
+    {
+        return getObjects((QmfData)query, timeout, agentList);
+    }
+
+    /**
+     * Perform a blocking query for QmfConsoleData objects on a number of Agents at once. The query is sent to every
+     * Agent before any replies are collected so the Agents are queried concurrently. This method will block until
+     * all of the Agents reply, or the timeout expires, so the overall time taken is bounded by the timeout however
+     * many Agents are unresponsive.
+     * <p>
+     * The returned QueryResult contains all of the data retrieved before the timeout together with the list of any
+     * Agents that didn't respond in time.
+     *
+     * @param query the SchemaClassId, ObjectId or QmfQuery (see getObjects(QmfQuery)) we're looking up objects for.
+     * @param timeout the overall deadline in seconds for all of the Agents to reply, overrides the default replyTimeout.
+     * @param agentList the Agents that the query is sent to.
+     * @return a QueryResult containing the QMF Objects returned and any Agents that timed out.
+     */
+    public QueryResult gatherObjects(final QmfData query, final int timeout, final List<Agent> agentList)
+    {
+        try
+        {
+            return getObjectsAsync(query, timeout, agentList).getResult();
+        }
+        catch (QmfException qmfe)
+        {
+            _log.info("QmfException {} caught in gatherObjects()", qmfe.getMessage());
+            return new QueryResult(Collections.<QmfConsoleData>emptyList(), agentList);
+        }
+    }
+
+    /**
+     * Perform an asynchronous query for QmfConsoleData objects on a number of Agents at once, returning a QmfFuture
+     * that completes once all of the Agents have replied, or the timeout expires.
+     * <p>
+     * The query is sent to every Agent immediately and every Agent's request shares the same deadline. Replies are
+     * collected concurrently as they arrive so no thread is tied up while the query is in progress. Cancelling the
+     * returned QmfFuture cancels the outstanding requests to every Agent.
+     *
+     * @param query the SchemaClassId, ObjectId or QmfQuery (see getObjects(QmfQuery)) we're looking up objects for.
+     * @param timeout the overall deadline in seconds for all of the Agents to reply, a value of -1 means use the
+     *        default timeout.
+     * @param agentList the Agents that the query is sent to.
+     * @return a QmfFuture for a QueryResult containing the QMF Objects returned and any Agents that timed out.
+     */
+    public QmfFuture<QueryResult> getObjectsAsync(final QmfData query, final int timeout, final List<Agent> agentList)
+    {
+        final List<ObjectQuery> queries = new ArrayList<ObjectQuery>(agentList.size());
+        final QmfFuture<QueryResult> future = new QmfFuture<QueryResult>()
+        {
+            @Override
+            void done()
+            {
+                if (isCancelled())
+                {
+                    for (ObjectQuery pending : queries)
+                    {
+                        pending.cancel(false);
+                    }
+                }
+            }
+        };
+
+        // Scatter the query to all of the Agents before collecting any of the results.
         for (Agent agent : agentList)
         {
-            results.addAll(getObjects(agent, query, null, timeout));
+            queries.add(submitObjectQuery(query, agent, timeout));
         }
-        return results;
+
+        if (queries.isEmpty())
+        {
+            future.complete(new QueryResult(Collections.<QmfConsoleData>emptyList(), Collections.<Agent>emptyList()));
+            return future;
+        }
+
+        // Gather the results, the last request to complete assembles the QueryResult and completes the future.
+        final AtomicInteger outstanding = new AtomicInteger(queries.size());
+        QmfFutureCallback<List<QmfConsoleData>> gatherer = new QmfFutureCallback<List<QmfConsoleData>>()
+        {
+            public void onSuccess(final List<QmfConsoleData> objects)
+            {
+                if (outstanding.decrementAndGet() == 0)
+                {
+                    gather();
+                }
+            }
+
+            public void onFailure(final QmfException cause)
+            {
+                onSuccess(null);
+            }
+
+            private void gather()
+            {
+                List<QmfConsoleData> objects = new ArrayList<QmfConsoleData>();
+                List<Agent> timedOutAgents = new ArrayList<Agent>();
+                for (ObjectQuery pending : queries)
+                {
+                    try
+                    {
+                        objects.addAll(pending.getResult());
+                        if (pending.hasTimedOut())
+                        {
+                            timedOutAgents.add(pending.getAgent());
+                        }
+                    }
+                    catch (QmfException qmfe)
+                    {
+                        timedOutAgents.add(pending.getAgent());
+                    }
+                }
+                future.complete(new QueryResult(objects, timedOutAgents));
+            }
+        };
+
+        for (ObjectQuery pending : queries)
+        {
+            pending.addCallback(gatherer);
+        }
+        return future;
+    }
+
+    /**
+     * Perform an asynchronous query for QmfConsoleData objects on a specified Agent, returning a QmfFuture that
+     * completes with a List (possibly empty) of matching objects.
+     * <p>
+     * Partial responses from the Agent are merged as they arrive. The QmfFuture completes when the final response
+     * arrives or when the default reply timeout expires, in which case it completes with the data retrieved to date.
+     *
+     * @param query the ObjectId or SchemaClassId being queried for.
+     * @param agent the Agent being queried.
+     * @return a QmfFuture for the List of QMF Objects matching the query.
+     */
+    public QmfFuture<List<QmfConsoleData>> getObjectsAsync(final QmfData query, final Agent agent)
+    {
+        return getObjectsAsync(query, agent, _replyTimeout);
+    }
+
+    /**
+     * Perform an asynchronous query for QmfConsoleData objects on a specified Agent, returning a QmfFuture that
+     * completes with a List (possibly empty) of matching objects.
+     * <p>
+     * Partial responses from the Agent are merged as they arrive. The QmfFuture completes when the final response
+     * arrives or when the timeout expires, in which case it completes with the data retrieved to date.
+     *
+     * @param query the ObjectId or SchemaClassId being queried for.
+     * @param agent the Agent being queried.
+     * @param timeout the time to wait for a reply from the Agent, a value of -1 means use the default timeout
+     * @return a QmfFuture for the List of QMF Objects matching the query.
+     */
+    public QmfFuture<List<QmfConsoleData>> getObjectsAsync(final QmfData query, final Agent agent, final int timeout)
+    {
+        return submitObjectQuery(query, agent, timeout);
+    }
+
+    /**
+     * Perform a query for QmfConsoleData objects on a specified Agent, returning an ObjectIterator that decodes the
+     * objects lazily as they are iterated rather than returning a List of every object at once.
+     * <p>
+     * This is an extension to the QMF2 API intended for Agents such as the broker that may return very large
+     * numbers of objects, see ObjectIterator for details. The ObjectIterator completes when the final response
+     * arrives or when the default reply timeout expires.
+     *
+     * @param query the ObjectId, SchemaClassId or QmfQuery (see getObjects(QmfQuery)) being queried for.
+     * @param agent the Agent being queried.
+     * @return an ObjectIterator over the QMF Objects matching the query.
+     */
+    public ObjectIterator streamObjects(final QmfData query, final Agent agent)
+    {
+        return streamObjects(query, agent, _replyTimeout);
+    }
+
+    /**
+     * Perform a query for QmfConsoleData objects on a specified Agent, returning an ObjectIterator that decodes the
+     * objects lazily as they are iterated rather than returning a List of every object at once.
+     * <p>
+     * This is an extension to the QMF2 API intended for Agents such as the broker that may return very large
+     * numbers of objects, see ObjectIterator for details. The ObjectIterator completes when the final response
+     * arrives or when the timeout expires.
+     *
+     * @param query the ObjectId, SchemaClassId or QmfQuery (see getObjects(QmfQuery)) being queried for.
+     * @param agent the Agent being queried.
+     * @param timeout the time to wait for the final response from the Agent, a value of -1 means use the default
+     *        timeout.
+     * @return an ObjectIterator over the QMF Objects matching the query.
+     */
+    public ObjectIterator streamObjects(final QmfData query, final Agent agent, final int timeout)
+    {
+        return submitStreamingObjectQuery(query, agent, timeout);
     }
 
     /**
@@ -1906,13 +2914,16 @@ public final class Console implements MessageListener, AgentProxy
      * @param consoleHandle an application-provided handle that will accompany each subscription update sent
      *        from the Agent.
      * @param options a String representation of a Map containing the options in the form
-     *        <pre>"{lifetime:&lt;value&gt;, publishInterval:&lt;value&gt;, replyHandle:&lt;value&gt;, timeout:&lt;value&gt;}"</pre>
+     *        <pre>"{lifetime:&lt;value&gt;, publishInterval:&lt;value&gt;, replyHandle:&lt;value&gt;, timeout:&lt;value&gt;, delta:&lt;value&gt;}"</pre>
      *        they are optional and may appear in any order.
      * <pre>
      *        <b>lifetime</b> the requested time interval in seconds for which this subscription should remain in effect.
      *        <b>publishInterval</b> the requested time interval in seconds on which the Agent should publish updates
      *        <b>replyHandle</b> the correlation handle used to tie asynchronous method requests with responses.
      *        <b>timeout</b> the time to wait for a reply from the Agent.
+     *        <b>delta</b> if true ask the Agent to only send the properties of objects that have changed since they
+     *        were last sent (an extension to the QMF2 API that other Agents ignore). The Console merges the changes
+     *        into its copy of each object, so SUBSCRIPTION_INDICATION WorkItems still contain complete objects.
      * </pre>
      */
     public synchronized SubscribeParams createSubscription(final Agent agent, final QmfQuery query,
@@ -1941,6 +2952,7 @@ public final class Console implements MessageListener, AgentProxy
         long publishInterval = 10000;
         long timeout = _replyTimeout;
         String replyHandle = null;
+        boolean delta = false;
 
         if (options != null)
         { // We wrap the Map in a QmfData object to avoid potential class cast issues with the parsed options
@@ -1965,6 +2977,17 @@ public final class Console implements MessageListener, AgentProxy
             {
                 replyHandle = optMap.getStringValue("replyHandle");
             }
+
+            if (optMap.hasValue("delta"))
+            {
+                delta = optMap.getBooleanValue("delta");
+            }
+        }
+
+        // Subscriptions emulated on the Console never receive deltas.
+        if (_subscriptionEmulationEnabled && agentName.equals(_brokerAgentName))
+        {
+            delta = false;
         }
 
         try
@@ -1980,9 +3003,13 @@ public final class Console implements MessageListener, AgentProxy
             request.setObject("_query", query.mapEncode());
             request.setObject("_interval", publishInterval);
             request.setObject("_duration", lifetime);
+            if (delta)
+            {
+                request.setObject("_delta", Boolean.TRUE);
+            }
 
             SubscriptionManager subscription =
-                new SubscriptionManager(agent, query, consoleHandle, replyHandle, publishInterval, lifetime);
+                new SubscriptionManager(agent, query, consoleHandle, replyHandle, publishInterval, lifetime, delta);
             _subscriptionByHandle.put(consoleHandle, subscription);
             _timer.schedule(subscription, 0, publishInterval);
 
@@ -2011,7 +3038,7 @@ public final class Console implements MessageListener, AgentProxy
                 return null;
             }
 
-            _requester.send(request);
+            sendRequest(request);
             if (replyHandle == null)
             { // If this is an synchronous request get the response
                 subscription.await(timeout*1000);
@@ -2111,73 +3138,65 @@ public final class Console implements MessageListener, AgentProxy
 
         try
         {
-            Destination destination = (replyHandle == null) ? _replyAddress : _asyncReplyAddress;
-            MapMessage request = _syncSession.createMapMessage();
-            request.setJMSReplyTo(destination);
-            request.setJMSCorrelationID(replyHandle);
-            request.setStringProperty("x-amqp-0-10.app-id", "qmf2");
-            request.setStringProperty("method", "request");
-            request.setStringProperty("qmf.opcode", "_subscribe_refresh_indication");
-            request.setStringProperty("qpid.subject", agentName);
+            if (_subscriptionEmulationEnabled && agentName.equals(_brokerAgentName))
+            { // If the Agent is the broker Agent we emulate the Subscription on the Console
+                subscription.refresh();
+                final SubscribeParams params = new SubscribeParams(consoleHandle, subscription.mapEncode());
+                if (replyHandle == null)
+                {
+                    return params;
+                }
+                else
+                {
+                    final String handle = replyHandle;
+                    Thread thread = new Thread()
+                    {
+                        public void run()
+                        {
+                            _eventListener.onEvent(new SubscribeResponseWorkItem(new Handle(handle), params));
+                        }
+                    };
+                    thread.start();
+                }
+                return null;
+            }
 
+            MapMessage request = createRequest("_subscribe_refresh_indication", agent);
             request.setObject("_subscription_id", subscriptionId);
             if (lifetime > 0)
             {
                 request.setObject("_duration", lifetime);
             }
 
-            // Wrap request & response in synchronized block in case any other threads invoke a request
-            // it would be somewhat unfortunate if their response got interleaved with ours!!
-            synchronized(this)
-            {
-                if (_subscriptionEmulationEnabled && agentName.equals(_brokerAgentName))
-                { // If the Agent is the broker Agent we emulate the Subscription on the Console
-                    subscription.refresh();
-                    final SubscribeParams params = new SubscribeParams(consoleHandle, subscription.mapEncode());
-                    if (replyHandle == null)
-                    {
-                        return params;
-                    }
-                    else
-                    {
-                        final String handle = replyHandle;
-                        Thread thread = new Thread()
-                        {
-                            public void run()
-                            {
-                                _eventListener.onEvent(new SubscribeResponseWorkItem(new Handle(handle), params));
-                            }
-                        };
-                        thread.start();
-                    }
-                    return null;
+            if (replyHandle == null)
+            { // If this is an synchronous request get the response
+                MessageRequest pending = new MessageRequest();
+                submitRequest(request, pending, (int)timeout);
+                Message response = pending.getResult();
+                if (response == null)
+                {
+                    subscription.cancel();
+                    _log.info("No response received in refreshSubscription()");
+                    throw new QmfException("No response received for Console.refreshSubscription()");
                 }
-
-                _requester.send(request);
-                if (replyHandle == null)
-                { // If this is an synchronous request get the response
-                    Message response = _responder.receive(timeout*1000);
-                    if (response == null)
-                    {
-                        subscription.cancel();
-                        _log.info("No response received in refreshSubscription()");
-                        throw new QmfException("No response received for Console.refreshSubscription()");
-                    }
-                    SubscribeParams result = new SubscribeParams(consoleHandle, AMQPMessage.getMap(response));
-                    subscriptionId = result.getSubscriptionId();
-                    if (subscriptionId == null)
-                    {
-                        subscription.cancel();
-                    }
-                    else
-                    {
-                        subscription.setDuration(result.getLifetime());
-                        subscription.refresh();
-                    }
-                    return result;
+                SubscribeParams result = new SubscribeParams(consoleHandle, AMQPMessage.getMap(response));
+                subscriptionId = result.getSubscriptionId();
+                if (subscriptionId == null)
+                {
+                    subscription.cancel();
+                }
+                else
+                {
+                    subscription.setDuration(result.getLifetime());
+                    subscription.refresh();
                 }
+                return result;
             }
+
             // If this is an asynchronous request return without waiting for a response
+            request.setJMSReplyTo(_asyncReplyAddress);
+            request.setJMSCorrelationID(replyHandle);
+            sendRequest(request);
             return null;
         }
         catch (JMSException jmse)
@@ -2220,12 +3239,9 @@ public final class Console implements MessageListener, AgentProxy
             request.setStringProperty("qpid.subject", agentName);
             request.setObject("_subscription_id", subscriptionId);
 
-            synchronized(this)
+            if (!_subscriptionEmulationEnabled || !agentName.equals(_brokerAgentName))
             {
-                if (!_subscriptionEmulationEnabled || !agentName.equals(_brokerAgentName))
-                {
-                    _requester.send(request);
-                }
+                sendRequest(request);
             }
             subscription.cancel();
         }
@@ -0,0 +1,333 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.console;
+
+// JMS Imports
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+// Simple Logging Facade 4 Java
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Misc Imports
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.concurrent.Future;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.AMQPMessage;
+import org.apache.qpid.qmf2.common.QmfException;
+import org.apache.qpid.qmf2.common.QmfQuery;
+
+/**
+ * An ObjectIterator iterates over the results of a query for QmfConsoleData objects as they arrive from an Agent,
+ * it is returned by Console.streamObjects().
+ * <p>
+ * This is an extension to the QMF2 API. The getObjects() methods decode every response from the Agent into a List
+ * of Maps and wrap every Map in a QmfConsoleData before returning, so for an Agent holding tens of thousands of
+ * objects the Console ends up holding several copies of every object at once. An ObjectIterator instead holds on to
+ * the responses in their encoded form as they arrive and only decodes each object when next() is called, so only
+ * the objects that the application itself retains stay in memory.
+ * <p>
+ * At most MAX_BUFFERED_RESPONSES (eight) responses are held waiting to be iterated, and as each response is
+ * limited by the Agent's batch limits (see Agent.setQueryResponseLimits(), 256KB by default) the memory used is
+ * bounded however many objects the query returns. If the application falls that far behind the Console's response
+ * MessageListener waits for it to catch up, leaving further responses on the Console's reply queue. As all of the
+ * Console's responses are delivered by that one thread this holds back the responses to its other requests too,
+ * so an application shouldn't make blocking Console calls while it is part way through iterating a large query.
+ * Time spent waiting for the application counts towards the query's timeout, so the timeout passed to
+ * Console.streamObjects() must allow for the time the application takes to iterate the results.
+ * <p>
+ * hasNext() blocks until the next object arrives or the query completes. A query completes when the Agent's final
+ * response arrives, when the query times out or when the ObjectIterator is closed. Once hasNext() has returned
+ * false isComplete() indicates whether the Agent's final response arrived, if not the objects returned are
+ * the data retrieved to date, which is consistent with the getObjects() methods.
+ * <p>
+ * An ObjectIterator should be closed if it is abandoned before hasNext() returns false, which cancels the query so
+ * that any further responses are discarded rather than buffered, and releases the Console's MessageListener if it
+ * is waiting for the application to catch up. It's AutoCloseable, so may be used in a try-with-resources statement.
+ * <p>
+ * An ObjectIterator is intended to be used by a single application thread. Like the blocking Console methods it
+ * <b>must not</b> be used from a QmfFutureCallback, as the responses it waits for can't be delivered until the
+ * callback has returned.
+ */
+public final class ObjectIterator implements Iterator<QmfConsoleData>, AutoCloseable
+{
+    private static final Logger _log = LoggerFactory.getLogger(ObjectIterator.class);
+
+    /**
+     * The maximum number of responses held waiting to be iterated.
+     */
+    private static final int MAX_BUFFERED_RESPONSES = 8;
+
+    private final Agent _agent;
+    private final QmfQuery _filter;
+
+    /**
+     * The responses that have arrived from the Agent but that haven't been iterated yet, guarded by this.
+     */
+    private final Queue<Message> _responses = new ArrayDeque<Message>(MAX_BUFFERED_RESPONSES);
+
+    /**
+     * Set when the query completes so that late responses aren't queued, guarded by this.
+     */
+    private boolean _ended = false;
+    private volatile boolean _complete = false;
+    private volatile QmfException _exception = null;
+    private volatile Future<?> _request = null;
+
+    // These are only accessed by the thread doing the iterating.
+    private Iterator<Map<String, Object>> _current = Collections.<Map<String, Object>>emptyList().iterator();
+    private QmfQuery _currentFilter = null;
+    private QmfConsoleData _next = null;
+    private boolean _finished = false;
+
+    /**
+     * ObjectIterators are only created by the Console.
+     *
+     * @param agent the Agent being queried.
+     * @param filter the QmfQuery that objects must match to be returned, or null to return every object. This is
+     *        used to filter and project the results of a query with a predicate or select list in case the Agent
+     *        doesn't support them.
+     */
+    ObjectIterator(final Agent agent, final QmfQuery filter)
+    {
+        _agent = agent;
+        _filter = filter;
+    }
+
+    /**
+     * Record the request whose responses are being iterated, so that it may be cancelled by close().
+     *
+     * @param request the request whose responses are being iterated.
+     */
+    void setRequest(final Future<?> request)
+    {
+        _request = request;
+    }
+
+    /**
+     * Queue a response from the Agent, called by the Console's response MessageListener thread. If there are
+     * already MAX_BUFFERED_RESPONSES responses waiting to be iterated this waits until the application has
+     * iterated one of them or the query has ended.
+     *
+     * @param response an amqp/list response Message containing mapEncoded QmfConsoleData.
+     */
+    synchronized void add(final Message response)
+    {
+        while (!_ended && _responses.size() >= MAX_BUFFERED_RESPONSES)
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        if (!_ended)
+        {
+            _responses.add(response);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Take the next response to be iterated, blocking until one arrives or the query ends.
+     *
+     * @return the next response, or null if the query has ended and every response has been taken.
+     */
+    private synchronized Message take() throws InterruptedException
+    {
+        while (!_ended && _responses.isEmpty())
+        {
+            wait();
+        }
+
+        Message response = _responses.poll();
+        notifyAll(); // Wake the MessageListener if it's waiting for space.
+        return response;
+    }
+
+    /**
+     * Mark the end of the responses from the Agent, called by the Console when the query completes.
+     *
+     * @param complete true if the Agent's final response arrived.
+     */
+    synchronized void end(final boolean complete)
+    {
+        if (!_ended)
+        {
+            _ended = true;
+            _complete = complete;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Mark the end of the responses from the Agent because the query failed, called by the Console if the Agent
+     * returns an exception.
+     *
+     * @param cause the QmfException describing why the query failed.
+     */
+    synchronized void fail(final QmfException cause)
+    {
+        if (!_ended)
+        {
+            _exception = cause;
+            end(false);
+        }
+    }
+
+    /**
+     * Return the Agent being queried.
+     * @return the Agent being queried.
+     */
+    public Agent getAgent()
+    {
+        return _agent;
+    }
+
+    /**
+     * Return true if the Agent's final response arrived, only meaningful once hasNext() has returned false.
+     * @return true if the Agent's final response arrived.
+     */
+    public boolean isComplete()
+    {
+        return _complete;
+    }
+
+    /**
+     * Return the QmfException the query failed with if the Agent returned an exception, for example because the
+     * Console has exceeded the Agent's request rate limits, in which case getRetryAfter() returns the time in
+     * milliseconds the Agent asked the Console to wait before retrying. Only meaningful once hasNext() has returned
+     * false.
+     *
+     * @return the QmfException the query failed with, or null if it didn't fail.
+     */
+    public QmfException getQmfException()
+    {
+        return _exception;
+    }
+
+    /**
+     * Return true if there are more objects, blocking until the next object arrives or the query completes.
+     * If the waiting thread is interrupted the query is cancelled and the interrupt status is restored.
+     *
+     * @return true if there are more objects.
+     */
+    public boolean hasNext()
+    {
+        while (_next == null)
+        {
+            if (_current.hasNext())
+            {
+                _next = Console.decodeResult(_currentFilter, _current.next(), _agent);
+            }
+            else if (_finished)
+            {
+                return false;
+            }
+            else
+            {
+                try
+                {
+                    Message message = take();
+                    if (message == null)
+                    {
+                        _finished = true;
+                    }
+                    else
+                    {
+                        Iterator<Map<String, Object>> i = AMQPMessage.getListIterator(message);
+                        _current = (i == null) ? Collections.<Map<String, Object>>emptyList().iterator() : i;
+
+                        // Responses marked "qmf.filtered" have already been filtered and projected by the Agent.
+                        _currentFilter = message.propertyExists("qmf.filtered") ? null : _filter;
+                    }
+                }
+                catch (JMSException jmse)
+                {
+                    _log.info("JMSException {} caught in ObjectIterator.hasNext()", jmse.getMessage());
+                }
+                catch (InterruptedException ie)
+                {
+                    Thread.currentThread().interrupt();
+                    close();
+                    _finished = true;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the next object, blocking until it arrives.
+     * @return the next object.
+     */
+    public QmfConsoleData next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        QmfConsoleData next = _next;
+        _next = null;
+        return next;
+    }
+
+    /**
+     * Not supported, objects can't be removed from query results.
+     */
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stop iterating, cancelling the query if it is still in progress and discarding any responses that haven't
+     * been iterated.
+     */
+    public void close()
+    {
+        Future<?> request = _request;
+        if (request != null)
+        {
+            request.cancel(false);
+        }
+        synchronized(this)
+        {
+            end(false);
+            _responses.clear();
+        }
+        _current = Collections.<Map<String, Object>>emptyList().iterator();
+        _next = null;
+        _finished = true;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.console;
+
+// JMS Imports
+import javax.jms.JMSException;
+import javax.jms.Message;
+
+// Misc Imports
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * A PendingRequest represents a request sent by the Console that is still awaiting its response(s).
+ * <p>
+ * Each request is tagged with a unique JMSCorrelationID and registered with the Console before it is sent. The
+ * MessageListener on the Console's reply address looks up the PendingRequest by the correlationId of each response
+ * and calls deliver(), so responses are only ever seen by the request that they belong to. This allows any number
+ * of requests to be in flight at the same time rather than serialising every request/response pair.
+ * <p>
+ * Subclasses decode responses in deliver() (which may be called several times as an Agent may return the results
+ * of a query as a number of partial responses, all of which carry the same correlationId) and complete the
+ * PendingRequest once the final response has arrived. If no final response arrives before the request's timeout
+ * the Console calls expire(), which completes the PendingRequest with whatever is appropriate for the request.
+ * <p>
+ * However a PendingRequest completes it is deregistered and its timeout cancelled, so any late responses are
+ * simply discarded.
+ *
+ * @param <T> the type of the result of the request.
+ */
+abstract class PendingRequest<T> extends QmfFuture<T>
+{
+    private final String _correlationId;
+    private final Map<String, PendingRequest<?>> _registry;
+    private volatile ScheduledFuture<?> _expiry = null;
+
+    /**
+     * Construct a PendingRequest and register it so that responses may be routed to it.
+     *
+     * @param correlationId the unique correlationId used to tie responses back to this request.
+     * @param registry the Map of PendingRequests, indexed by correlationId, used to route responses.
+     */
+    PendingRequest(final String correlationId, final Map<String, PendingRequest<?>> registry)
+    {
+        _correlationId = correlationId;
+        _registry = registry;
+        _registry.put(correlationId, this);
+    }
+
+    /**
+     * Return the correlationId of this request.
+     * @return the correlationId of this request.
+     */
+    final String getCorrelationId()
+    {
+        return _correlationId;
+    }
+
+    /**
+     * Record the scheduled task that will expire this request so it may be cancelled once the request completes.
+     *
+     * @param expiry the scheduled task that calls expire().
+     */
+    final void setExpiry(final ScheduledFuture<?> expiry)
+    {
+        _expiry = expiry;
+        if (isDone())
+        {
+            expiry.cancel(false);
+        }
+    }
+
+    /**
+     * Deregister the request and cancel its timeout once it has completed.
+     */
+    @Override
+    final void done()
+    {
+        _registry.remove(_correlationId);
+        ScheduledFuture<?> expiry = _expiry;
+        if (expiry != null)
+        {
+            expiry.cancel(false);
+        }
+    }
+
+    /**
+     * Deliver a response to this request, called by the Console's response MessageListener thread. If a
+     * JMSException is thrown while decoding the response the request fails.
+     *
+     * @param response the response Message.
+     */
+    abstract void deliver(Message response) throws JMSException;
+
+    /**
+     * Called by the Console if the request's timeout expires before it has completed.
+     */
+    abstract void expire();
+}
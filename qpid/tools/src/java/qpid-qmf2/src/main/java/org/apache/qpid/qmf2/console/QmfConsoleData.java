@@ -110,6 +110,24 @@ public class QmfConsoleData extends QmfManaged
         _deleteTimestamp = rhs._deleteTimestamp;
     }
 
+    /**
+     * Merge a delta-encoded Subscription update of this object, which contains only the properties that have
+     * changed, into this object. The property Map is replaced rather than modified, so a thread that is reading
+     * this object's properties while the merge takes place sees either their old or their new values.
+     * <p>
+     * This method isn't part of the QMF2 API, it is used by the Console to maintain its copy of the objects of
+     * Subscriptions created with the "delta" option.
+     *
+     * @param delta the delta-encoded update of this object.
+     */
+    public final void merge(final QmfConsoleData delta)
+    {
+        Map<String, Object> values = new HashMap<String, Object>(_values);
+        values.putAll(delta._values);
+        _values = values;
+        _updateTimestamp = delta._updateTimestamp;
+    }
+
     /**
      * Return a list of timestamps describing the lifecycle of the object.
      * @return a list of timestamps describing the lifecycle of the object.
@@ -182,7 +200,16 @@ public class QmfConsoleData extends QmfManaged
         {
             throw new QmfException("QmfConsoleData.refresh() called with null Agent");
         }
-        QmfConsoleData newContents = _agent.refresh(getObjectId(), null, timeout);
+        refreshed(_agent.refresh(getObjectId(), null, timeout));
+    }
+
+    /**
+     * Update this object's contents with the results of a refresh.
+     *
+     * @param newContents the refreshed object, null if the object no longer exists on the Agent.
+     */
+    private void refreshed(final QmfConsoleData newContents)
+    {
         if (newContents == null)
         {
             _deleteTimestamp = System.currentTimeMillis()*1000000l;
@@ -199,6 +226,48 @@ public class QmfConsoleData extends QmfManaged
         }
     }
 
+    /**
+     * Request that the Agent updates the value of this object's contents, returning a QmfFuture that completes
+     * with this object once its contents have been updated.
+     *
+     * @return a QmfFuture that completes with this object once it has been refreshed.
+     */    
+    public final QmfFuture<QmfConsoleData> refreshAsync() throws QmfException
+    {
+        return refreshAsync(-1);
+    }
+
+    /**
+     * Request that the Agent updates the value of this object's contents, returning a QmfFuture that completes
+     * with this object once its contents have been updated.
+     *
+     * @param timeout the maximum time in seconds to wait for a response, overrides default replyTimeout.
+     * @return a QmfFuture that completes with this object once it has been refreshed.
+     */    
+    public final QmfFuture<QmfConsoleData> refreshAsync(final int timeout) throws QmfException
+    {
+        if (_agent == null)
+        {
+            throw new QmfException("QmfConsoleData.refreshAsync() called with null Agent");
+        }
+
+        final QmfFuture<QmfConsoleData> future = new QmfFuture<QmfConsoleData>();
+        _agent.refreshAsync(getObjectId(), timeout).addCallback(new QmfFutureCallback<QmfConsoleData>()
+        {
+            public void onSuccess(final QmfConsoleData newContents)
+            {
+                refreshed(newContents);
+                future.complete(QmfConsoleData.this);
+            }
+
+            public void onFailure(final QmfException cause)
+            {
+                future.fail(cause);
+            }
+        });
+        return future;
+    }
+
     /**
      * Request that the Agent updates the value of this object's contents asynchronously.
      *
@@ -246,6 +315,36 @@ public class QmfConsoleData extends QmfManaged
         return _agent.invokeMethod(getObjectId(), name, inArgs, timeout);
     }
 
+    /**
+     * Invoke the named method on this instance, returning a QmfFuture for the MethodResult.
+     *
+     * @param name name of the method to invoke.
+     * @param inArgs inArgs an unordered set of key/value pairs comprising the method arguments.
+     * @return a QmfFuture for the MethodResult.
+     */    
+    public final QmfFuture<MethodResult> invokeMethodAsync(final String name, final QmfData inArgs) throws QmfException
+    {
+        return invokeMethodAsync(name, inArgs, -1);
+    }
+
+    /**
+     * Invoke the named method on this instance, returning a QmfFuture for the MethodResult.
+     *
+     * @param name name of the method to invoke.
+     * @param inArgs inArgs an unordered set of key/value pairs comprising the method arguments.
+     * @param timeout the maximum time in seconds to wait for a response, overrides default replyTimeout.
+     * @return a QmfFuture for the MethodResult.
+     */    
+    public final QmfFuture<MethodResult> invokeMethodAsync(final String name, final QmfData inArgs,
+                                                           final int timeout) throws QmfException
+    {
+        if (_agent == null)
+        {
+            throw new QmfException("QmfConsoleData.invokeMethodAsync() called with null Agent");
+        }
+        return _agent.invokeMethodAsync(getObjectId(), name, inArgs, timeout);
+    }
+
     /**
      * Invoke the named method asynchronously on this instance.
      *
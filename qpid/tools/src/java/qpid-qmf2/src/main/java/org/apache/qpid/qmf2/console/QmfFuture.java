@@ -0,0 +1,332 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.console;
+
+// Simple Logging Facade 4 Java
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Misc Imports
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.QmfException;
+
+/**
+ * A QmfFuture represents the pending result of an asynchronous Console request such as getObjectsAsync() or
+ * invokeMethodAsync().
+ * <p>
+ * This is an extension to the QMF2 API. The traditional QMF2 way of making asynchronous requests is to supply a
+ * replyHandle and to retrieve the response as a WorkItem from the Console's WorkQueue, which works fine for the odd
+ * request but makes it fairly painful to fan out large numbers of requests and tie the results back together again.
+ * <p>
+ * A QmfFuture implements java.util.concurrent.Future so results may simply be retrieved using get(), alternatively a
+ * QmfFutureCallback may be added using addCallback() to be notified without needing a thread to block on the result.
+ * <p>
+ * Failures (including timeouts for requests where a timeout is an error, such as method invocations) are reported
+ * by get() as an ExecutionException whose cause is a QmfException, and are passed to QmfFutureCallback.onFailure().
+ * <p>
+ * Timeouts are enforced by the Console, so a QmfFuture is always guaranteed to complete one way or another.
+ *
+ * @param <T> the type of the result of the request.
+ */
+public class QmfFuture<T> implements Future<T>
+{
+    private static final Logger _log = LoggerFactory.getLogger(QmfFuture.class);
+
+    private T _result = null;
+    private QmfException _exception = null;
+    private boolean _done = false;
+    private boolean _cancelled = false;
+    private List<QmfFutureCallback<T>> _callbacks = null;
+
+    /**
+     * QmfFutures are only created by the Console.
+     */
+    QmfFuture()
+    {
+    }
+
+    /**
+     * Create a QmfFuture that has already completed, used where a result is available without making a request,
+     * for example if the result is present in a cache.
+     *
+     * @param result the result of the request.
+     */
+    QmfFuture(final T result)
+    {
+        _result = result;
+        _done = true;
+    }
+
+    /**
+     * Complete the QmfFuture successfully. Only the first call to complete(), fail() or cancel() has any effect.
+     *
+     * @param result the result of the request.
+     * @return true if this call completed the QmfFuture, false if it had already completed.
+     */
+    boolean complete(final T result)
+    {
+        synchronized(this)
+        {
+            if (_done)
+            {
+                return false;
+            }
+            _result = result;
+            _done = true;
+            notifyAll();
+        }
+        done();
+        runCallbacks();
+        return true;
+    }
+
+    /**
+     * Complete the QmfFuture with a failure. Only the first call to complete(), fail() or cancel() has any effect.
+     *
+     * @param exception the QmfException describing the failure.
+     * @return true if this call completed the QmfFuture, false if it had already completed.
+     */
+    boolean fail(final QmfException exception)
+    {
+        synchronized(this)
+        {
+            if (_done)
+            {
+                return false;
+            }
+            _exception = exception;
+            _done = true;
+            notifyAll();
+        }
+        done();
+        runCallbacks();
+        return true;
+    }
+
+    /**
+     * Called exactly once when the QmfFuture completes, however it completes. Subclasses may override this
+     * to release any resources associated with the request.
+     */
+    void done()
+    {
+    }
+
+    /**
+     * Wait for the QmfFuture to complete and return its result. This is used to implement the blocking Console
+     * methods in terms of the asynchronous ones and is more convenient than get() as failures are thrown directly
+     * as QmfExceptions.
+     *
+     * @return the result of the request.
+     * @throws QmfException if the request failed or the waiting thread was interrupted.
+     */
+    synchronized T getResult() throws QmfException
+    {
+        while (!_done)
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                throw new QmfException("Interrupted while waiting for response");
+            }
+        }
+
+        if (_exception != null)
+        {
+            throw _exception;
+        }
+        return _result;
+    }
+
+    /**
+     * Invoke any registered callbacks, called once the QmfFuture has completed.
+     */
+    private void runCallbacks()
+    {
+        List<QmfFutureCallback<T>> callbacks;
+        synchronized(this)
+        {
+            callbacks = _callbacks;
+            _callbacks = null;
+        }
+
+        if (callbacks != null)
+        {
+            for (QmfFutureCallback<T> callback : callbacks)
+            {
+                runCallback(callback);
+            }
+        }
+    }
+
+    /**
+     * Invoke a single callback with the outcome of this QmfFuture. Exceptions thrown by the callback are logged
+     * rather than being allowed to propagate into the Console's internal threads.
+     *
+     * @param callback the QmfFutureCallback to invoke.
+     */
+    private void runCallback(final QmfFutureCallback<T> callback)
+    {
+        try
+        {
+            if (_exception == null)
+            {
+                callback.onSuccess(_result);
+            }
+            else
+            {
+                callback.onFailure(_exception);
+            }
+        }
+        catch (RuntimeException re)
+        {
+            _log.info("RuntimeException {} caught in QmfFutureCallback", re.getMessage());
+        }
+    }
+
+    /**
+     * Add a QmfFutureCallback to be notified when this QmfFuture completes. If it has already completed the
+     * callback is invoked immediately by the calling thread.
+     *
+     * @param callback the QmfFutureCallback to be notified.
+     */
+    public void addCallback(final QmfFutureCallback<T> callback)
+    {
+        synchronized(this)
+        {
+            if (!_done)
+            {
+                if (_callbacks == null)
+                {
+                    _callbacks = new ArrayList<QmfFutureCallback<T>>(1);
+                }
+                _callbacks.add(callback);
+                return;
+            }
+        }
+        runCallback(callback);
+    }
+
+    /**
+     * Attempt to cancel the request. Any response subsequently received for the request will be discarded.
+     *
+     * @param mayInterruptIfRunning ignored, as there is no thread running the request to interrupt.
+     * @return false if the QmfFuture had already completed, true otherwise.
+     */
+    public boolean cancel(final boolean mayInterruptIfRunning)
+    {
+        synchronized(this)
+        {
+            if (_done)
+            {
+                return false;
+            }
+            _exception = new QmfException("Request cancelled");
+            _cancelled = true;
+            _done = true;
+            notifyAll();
+        }
+        done();
+        runCallbacks();
+        return true;
+    }
+
+    /**
+     * @return true if the request was cancelled before it completed.
+     */
+    public synchronized boolean isCancelled()
+    {
+        return _cancelled;
+    }
+
+    /**
+     * @return true if the request has completed, whether successfully, by failing or by being cancelled.
+     */
+    public synchronized boolean isDone()
+    {
+        return _done;
+    }
+
+    /**
+     * Wait if necessary for the request to complete, then return its result.
+     *
+     * @return the result of the request.
+     */
+    public synchronized T get() throws InterruptedException, ExecutionException
+    {
+        while (!_done)
+        {
+            wait();
+        }
+        return report();
+    }
+
+    /**
+     * Wait if necessary for at most the given time for the request to complete, then return its result.
+     *
+     * @param timeout the maximum time to wait.
+     * @param unit the time unit of the timeout argument.
+     * @return the result of the request.
+     */
+    public synchronized T get(final long timeout, final TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException
+    {
+        long remaining = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + remaining;
+        while (!_done)
+        {
+            if (remaining <= 0)
+            {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            remaining = deadline - System.nanoTime();
+        }
+        return report();
+    }
+
+    /**
+     * Return the result of a completed QmfFuture in the form required by get().
+     */
+    private T report() throws ExecutionException
+    {
+        if (_cancelled)
+        {
+            throw new CancellationException();
+        }
+        if (_exception != null)
+        {
+            throw new ExecutionException(_exception.getMessage(), _exception);
+        }
+        return _result;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.console;
+
+// QMF2 Imports
+import org.apache.qpid.qmf2.common.QmfCallback;
+import org.apache.qpid.qmf2.common.QmfException;
+
+/**
+ * A QmfFutureCallback may be added to a QmfFuture in order to be notified when the asynchronous request that the
+ * QmfFuture represents completes.
+ * <p>
+ * Callbacks are invoked on the Console thread that completed the request, which is either the thread that receives
+ * responses from Agents or the thread that enforces request timeouts. Callbacks should therefore return quickly and
+ * <b>must not</b> call any of the blocking Console methods, as the responses those methods wait for can't be
+ * delivered until the callback has returned. Further asynchronous requests may be made freely from a callback.
+ *
+ * @param <T> the type of the result of the request.
+ */
+public interface QmfFutureCallback<T> extends QmfCallback
+{
+    /**
+     * Called when the request completes successfully.
+     *
+     * @param result the result of the request.
+     */
+    public void onSuccess(T result);
+
+    /**
+     * Called when the request fails, times out (where a timeout is treated as a failure) or is cancelled.
+     *
+     * @param cause a QmfException describing the reason for the failure.
+     */
+    public void onFailure(QmfException cause);
+}
@@ -0,0 +1,77 @@
+/*
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ *
+ */
+package org.apache.qpid.qmf2.console;
+
+// Misc Imports
+import java.util.List;
+
+/**
+ * A QueryResult holds the results of a query that has been sent to a number of Agents at once, for example by
+ * Console.gatherObjects().
+ * <p>
+ * As the query is subject to a single overall deadline a QueryResult contains all of the objects that arrived before
+ * that deadline, together with the list of Agents that failed to respond completely in time. Note that an Agent
+ * that timed out may still have contributed some objects if it returned its results as partial responses.
+ */
+public final class QueryResult
+{
+    private final List<QmfConsoleData> _objects;
+    private final List<Agent> _timedOutAgents;
+
+    /**
+     * Construct a QueryResult.
+     *
+     * @param objects the objects returned by all of the Agents that were queried.
+     * @param timedOutAgents the Agents that didn't return a complete response before the deadline.
+     */
+    public QueryResult(final List<QmfConsoleData> objects, final List<Agent> timedOutAgents)
+    {
+        _objects = objects;
+        _timedOutAgents = timedOutAgents;
+    }
+
+    /**
+     * Return the objects returned by all of the Agents that were queried.
+     * @return the objects returned by all of the Agents that were queried.
+     */
+    public List<QmfConsoleData> getObjects()
+    {
+        return _objects;
+    }
+
+    /**
+     * Return the Agents that didn't return a complete response before the deadline, or for which the query failed.
+     * @return the Agents that didn't return a complete response before the deadline.
+     */
+    public List<Agent> getTimedOutAgents()
+    {
+        return _timedOutAgents;
+    }
+
+    /**
+     * Return true if every Agent that was queried returned a complete response before the deadline.
+     * @return true if every Agent that was queried returned a complete response before the deadline.
+     */
+    public boolean isComplete()
+    {
+        return _timedOutAgents.isEmpty();
+    }
+}
@@ -28,8 +28,10 @@ import org.slf4j.LoggerFactory;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
 // QMF2 Imports
+import org.apache.qpid.qmf2.common.ObjectId;
 import org.apache.qpid.qmf2.common.QmfQuery;
 
 /** 
@@ -50,6 +52,10 @@ import org.apache.qpid.qmf2.common.QmfQuery;
  * the QmfConsoleData returned by the _data indication. Any QmfConsoleData that match the query are passed to the
  * client application with the consoleHandle of the matching Subscription.
  * <p>
+ * If the Subscription was created with the "delta" option the Agent sends objects that the Console has already
+ * received with only their changed properties, so the SubscriptionManager keeps a copy of each object, merges the
+ * deltas into it and passes the merged copy to the client application.
+ * <p>
  * The following diagram illustrates the Subscription relationships with the Console and local Agent proxy.
  * <p>
  * <img alt="" src="doc-files/Subscriptions.png">
@@ -70,6 +76,12 @@ public final class SubscriptionManager extends TimerTask
     private long     _interval = 0;
     private boolean  _waiting = true;
 
+    /**
+     * The Console's copy of the objects received by a Subscription created with the "delta" option, indexed by
+     * ObjectId, otherwise null.
+     */
+    private final Map<ObjectId, QmfConsoleData> _objects;
+
     /**
      * Construct a Console side proxy of a Subscription. Primarily to manage references to the Subscription.
      *
@@ -78,10 +90,12 @@ public final class SubscriptionManager extends TimerTask
      * @param consoleHandle the handle that uniquely identifies the Subscription
      * @param interval the interval between subscription updates
      * @param duration the duration of the subscription (assuming it doesn't get refreshed)
+     * @param delta true if the Agent has been asked for delta-encoded Subscription indications
      */
     SubscriptionManager(final Agent agent, final QmfQuery query, final String consoleHandle,
-                        final String replyHandle, final long interval, final long duration)
+                        final String replyHandle, final long interval, final long duration, final boolean delta)
     {
+        _objects = delta ? new ConcurrentHashMap<ObjectId, QmfConsoleData>() : null;
         _agent = agent;
         _query = query;
         _consoleHandle = consoleHandle;
@@ -167,11 +181,53 @@ public final class SubscriptionManager extends TimerTask
     public boolean cancel()
     {
         _log.debug("Cancelling Subscription {}, {}", _consoleHandle, _subscriptionId);
+        if (_objects != null)
+        {
+            _objects.clear();
+        }
         _agent.removeSubscription(this);
         signal(); // Just in case anything is blocking on this Subscription.
         return super.cancel(); // Cancel the TimerTask
     }
 
+    /**
+     * Merge an object received in a Subscription indication with the Console's copy of the object. If the
+     * Subscription wasn't created with the "delta" option the object is simply returned.
+     *
+     * @param object the object received in the Subscription indication.
+     * @param delta true if the object is delta-encoded, i.e. contains only the properties that have changed.
+     * @return the up to date object.
+     */
+    QmfConsoleData merge(final QmfConsoleData object, final boolean delta)
+    {
+        if (_objects == null)
+        {
+            return object;
+        }
+
+        ObjectId objectId = object.getObjectId();
+        if (object.isDeleted())
+        {
+            _objects.remove(objectId);
+            return object;
+        }
+
+        if (delta)
+        {
+            QmfConsoleData local = _objects.get(objectId);
+            if (local == null)
+            { // Shouldn't happen as the Agent sends objects in full first, but all we can do is pass the delta on.
+                _log.info("Subscription {} received a delta for unknown object {}", _consoleHandle, objectId);
+                return object;
+            }
+            local.merge(object);
+            return local;
+        }
+
+        _objects.put(objectId, object);
+        return object;
+    }
+
     /**
      * Set the SubscriptionId.
      * @param subscriptionId the new SubscriptionId of this Subscription.